@@ -0,0 +1,226 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import android.os.Handler;
+import android.os.Message;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.protocol.HTTP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Used to receive the whole body of a successful response as one object. Where {@link AsyncHttpResponseHandler} hands
+ * the body over in segments, this handler reads all of it on the worker thread, into a single buffer sized from the
+ * Content-Length of the response, and turns it into the result with a {@link Parser}, still on the worker thread. The
+ * callback thread only receives the finished result in {@link #onSuccess(int, Header[], Object)}.
+ * <p>
+ * For example:
+ * <p>
+ *
+ * <pre>
+ * client.get(&quot;http://www.google.com&quot;,
+ *         new AggregatingResponseHandler&lt;String&gt;(AggregatingResponseHandler.STRING) {
+ *     &#064;Override
+ *     public void onSuccess(int statusCode, Header[] headers, String content) {
+ *     }
+ *
+ *     &#064;Override
+ *     public void onFailure(Throwable e, String response) {
+ *     }
+ * });
+ * </pre>
+ *
+ * Responses with a status of 300 or above are reported to {@link #onFailure(Throwable, String)} as with any handler,
+ * and so are errors thrown by the parser.
+ *
+ * @param <T> the type of the result.
+ */
+public class AggregatingResponseHandler<T> extends AsyncHttpResponseHandler {
+    private static final int RESULT_MESSAGE = 100;
+
+    private static final int DEFAULT_CAPACITY = 8 * 1024;
+    // an unreliable Content-Length must not make us allocate a huge buffer before anything has been read
+    private static final int MAX_INITIAL_CAPACITY = 4 * 1024 * 1024;
+
+    /**
+     * Turns the body of a successful response into the result of an {@link AggregatingResponseHandler}. Runs on the
+     * worker thread that read the response.
+     */
+    public interface Parser<T> {
+        /**
+         * @param body the body, in the first <code>length</code> bytes of the array. The array may be longer, and it
+         *            is not used once the parser returns.
+         * @param length the length of the body.
+         * @param charset the charset parameter of the Content-Type of the response, null if there is none.
+         * @throws Exception to report the response as a failure.
+         */
+        T parse(byte[] body, int length, String charset) throws Exception;
+    }
+
+    /**
+     * Decodes the body with the charset of the response, or ISO-8859-1 if it names none.
+     */
+    public static final Parser<String> STRING = new Parser<String>() {
+        public String parse(byte[] body, int length, String charset) throws Exception {
+            return new String(body, 0, length, charset != null ? charset : HTTP.DEFAULT_CONTENT_CHARSET);
+        }
+    };
+
+    /**
+     * Returns the bytes of the body as they are.
+     */
+    public static final Parser<byte[]> BYTES = new Parser<byte[]>() {
+        public byte[] parse(byte[] body, int length, String charset) {
+            return length == body.length ? body : Arrays.copyOf(body, length);
+        }
+    };
+
+    private final Parser<? extends T> parser;
+
+    /**
+     * @param parser turns the body into the result, for instance {@link #STRING}.
+     */
+    public AggregatingResponseHandler(Parser<? extends T> parser) {
+        super();
+        this.parser = parser;
+    }
+
+    public AggregatingResponseHandler(Handler h, Parser<? extends T> parser) {
+        super(h);
+        this.parser = parser;
+    }
+
+    //
+    // Callbacks to be overridden, typically anonymously
+    //
+
+    /**
+     * Fired when a request returns successfully, with the result of the parser.
+     *
+     * @param statusCode the status code of the response.
+     * @param headers the headers of the response.
+     * @param result what the parser made of the body.
+     */
+    public void onSuccess(int statusCode, Header[] headers, T result) {
+    }
+
+    //
+    // Pre-processing of messages (executes in background threadpool thread)
+    //
+
+    protected void sendResultMessage(int statusCode, Header[] headers, T result) {
+        if (!deliver(RESULT_MESSAGE, headers, result, statusCode, 0)) {
+            sendMessage(obtainMessage(RESULT_MESSAGE, new Object[] { statusCode, headers, result }));
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    void dispatch(int what, Object a, Object b, long x, long y) {
+        if (what == RESULT_MESSAGE) {
+            onSuccess((int) x, (Header[]) a, (T) b);
+        } else {
+            super.dispatch(what, a, b, x, y);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void handleMessage(Message msg) {
+        switch (msg.what) {
+            case RESULT_MESSAGE:
+                Object[] result = (Object[]) msg.obj;
+                onSuccess((Integer) result[0], (Header[]) result[1], (T) result[2]);
+                break;
+            default:
+                super.handleMessage(msg);
+                break;
+        }
+    }
+
+    /**
+     * The body is read and parsed on a worker thread, never on the I/O thread of a non-blocking transport.
+     */
+    @Override
+    boolean acceptsPushedResponse() {
+        return false;
+    }
+
+    @Override
+    void processResponse(HttpResponse response) throws IOException {
+        StatusLine status = response.getStatusLine();
+        HttpEntity entity = response.getEntity();
+        if (status.getStatusCode() >= 300 || entity == null) {
+            super.processResponse(response);
+            return;
+        }
+
+        long contentLength = entity.getContentLength();
+        if (contentLength > Integer.MAX_VALUE) {
+            sendFailureMessage(new IOException("HTTP entity too large to be buffered in memory"), null);
+            return;
+        }
+        byte[] body = new byte[contentLength >= 0 ? (int) Math.min(contentLength, MAX_INITIAL_CAPACITY)
+                : DEFAULT_CAPACITY];
+        int length = 0;
+        boolean consumed = false;
+        InputStream in = entity.getContent();
+        try {
+            while (true) {
+                if (Thread.currentThread().isInterrupted()) {
+                    sendFailureMessage(new InterruptedException("request interupted!"), null);
+                    return;
+                }
+                if (length == body.length) {
+                    // full, most likely because the body has the announced length
+                    int next = in.read();
+                    if (next < 0) {
+                        break;
+                    }
+                    body = Arrays.copyOf(body, Math.max(body.length * 2, DEFAULT_CAPACITY));
+                    body[length++] = (byte) next;
+                }
+                int count = in.read(body, length, body.length - length);
+                if (count < 0) {
+                    break;
+                }
+                length += count;
+            }
+            consumed = true;
+        } catch (IOException e) {
+            sendFailureMessage(e, null);
+            return;
+        } finally {
+            FileDownloadHandler.release(in, consumed);
+        }
+
+        T result;
+        try {
+            result = parser.parse(body, length, getCharset(entity.getContentType()));
+        } catch (Exception e) {
+            sendFailureMessage(e, null);
+            return;
+        }
+        sendResultMessage(status.getStatusCode(), response.getAllHeaders(), result);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * A {@link HttpTransport} backed by an Apache {@link HttpClient}, the default transport of {@link AsyncHttpClient}.
+ */
+public class ApacheHttpTransport implements HttpTransport {
+    private final HttpClient client;
+
+    public ApacheHttpTransport(HttpClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Get the underlying HttpClient instance.
+     */
+    public HttpClient getHttpClient() {
+        return client;
+    }
+
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        NetworkUtils.refreshProxySetting(null, client);
+        return client.execute(request, context);
+    }
+}
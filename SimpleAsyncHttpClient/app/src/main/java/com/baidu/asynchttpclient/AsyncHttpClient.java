@@ -15,10 +15,9 @@
 
 package com.baidu.asynchttpclient;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.File;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -26,16 +25,20 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.GZIPInputStream;
 
 import org.apache.http.Header;
 import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
@@ -50,17 +53,17 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.params.ConnManagerParams;
 import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
@@ -96,25 +99,43 @@ public class AsyncHttpClient {
     private static final int DEFAULT_SOCKET_BUFFER_SIZE = 8192;
     private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
     private static final String ENCODING_GZIP = "gzip";
+    private static final String ENCODING_IDENTITY = "identity";
 
     private static int maxConnections = DEFAULT_MAX_CONNECTIONS;
     private static int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
 
     private final DefaultHttpClient httpClient;
+    private final TrackedClientConnManager connectionManager;
     private final HttpContext httpContext;
+    private final RetryHandler retryHandler;
+    private final HttpTransport defaultTransport;
+    private HttpTransport transport;
     private ThreadPoolExecutor threadPool;
+    private final List<Bulkhead> bulkheads = new CopyOnWriteArrayList<Bulkhead>();
+    private ConnectionLeakDetector leakDetector;
+    private volatile RateLimiter rateLimiter;
+    private volatile ConcurrencyLimiter concurrencyLimiter;
     private final Map<Context, List<WeakReference<Future<?>>>> requestMap;
-    private final Map<String, String> clientHeaderMap;
+    private volatile HeaderSet defaultHeaders = HeaderSet.EMPTY;
 
     /**
      * Creates a new AsyncHttpClient.
      */
     public AsyncHttpClient() {
+        this(maxConnections);
+    }
+
+    /**
+     * Creates a new AsyncHttpClient with a connection pool of the given size.
+     * 
+     * @param maxConnections the maximum number of pooled connections, per route and in total.
+     */
+    public AsyncHttpClient(int maxConnections) {
         BasicHttpParams httpParams = new BasicHttpParams();
 
         ConnManagerParams.setTimeout(httpParams, socketTimeout);
         ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(maxConnections));
-        ConnManagerParams.setMaxTotalConnections(httpParams, DEFAULT_MAX_CONNECTIONS);
+        ConnManagerParams.setMaxTotalConnections(httpParams, maxConnections);
 
         HttpConnectionParams.setSoTimeout(httpParams, socketTimeout);
         HttpConnectionParams.setConnectionTimeout(httpParams, socketTimeout);
@@ -130,19 +151,41 @@ public class AsyncHttpClient {
 
         SchemeRegistry schemeRegistry = new SchemeRegistry();
         schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-        // schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
-        ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(httpParams, schemeRegistry);
+        schemeRegistry.register(new Scheme("https", TlsContext.getDefault().getSchemeSocketFactory(), 443));
+        connectionManager = new TrackedClientConnManager(httpParams, schemeRegistry);
 
         httpContext = new SyncBasicHttpContext(new BasicHttpContext());
-        httpClient = new DefaultHttpClient(cm, httpParams);
+        retryHandler = new RetryHandler(DEFAULT_MAX_RETRIES);
+        httpClient = newHttpClient(connectionManager, httpParams);
+        defaultTransport = transport = new ApacheHttpTransport(httpClient);
+
+        threadPool = (ThreadPoolExecutor) Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+
+                Thread t = new Thread(r, "AsyncHttpClient #" + mCount.getAndIncrement());
+                if (t.isDaemon())
+                    t.setDaemon(false);
+                if (t.getPriority() != (Thread.NORM_PRIORITY - 1))
+                    t.setPriority((Thread.NORM_PRIORITY - 1));
+                return t;
+            }
+        });
+
+        requestMap = new WeakHashMap<Context, List<WeakReference<Future<?>>>>();
+    }
+
+    /**
+     * Creates an HttpClient with the settings of this client, on the given connection pool.
+     */
+    private DefaultHttpClient newHttpClient(ClientConnectionManager connectionManager, HttpParams httpParams) {
+        DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager, httpParams);
         httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
             public void process(HttpRequest request, HttpContext context) {
                 if (!request.containsHeader(HEADER_ACCEPT_ENCODING)) {
                     request.addHeader(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
                 }
-                for (String header : clientHeaderMap.keySet()) {
-                    request.addHeader(header, clientHeaderMap.get(header));
-                }
             }
         });
 
@@ -161,24 +204,8 @@ public class AsyncHttpClient {
             }
         });
 
-        httpClient.setHttpRequestRetryHandler(new RetryHandler(DEFAULT_MAX_RETRIES));
-
-        threadPool = (ThreadPoolExecutor) Executors.newCachedThreadPool(new ThreadFactory() {
-            private final AtomicInteger mCount = new AtomicInteger(1);
-
-            public Thread newThread(Runnable r) {
-
-                Thread t = new Thread(r, "AsyncHttpClient #" + mCount.getAndIncrement());
-                if (t.isDaemon())
-                    t.setDaemon(false);
-                if (t.getPriority() != (Thread.NORM_PRIORITY - 1))
-                    t.setPriority((Thread.NORM_PRIORITY - 1));
-                return t;
-            }
-        });
-
-        requestMap = new WeakHashMap<Context, List<WeakReference<Future<?>>>>();
-        clientHeaderMap = new HashMap<String, String>();
+        httpClient.setHttpRequestRetryHandler(retryHandler);
+        return httpClient;
     }
 
     /**
@@ -189,6 +216,26 @@ public class AsyncHttpClient {
         return this.httpClient;
     }
 
+    /**
+     * Overrides the transport used to execute requests. By default, a {@link ApacheHttpTransport} wrapping
+     * {@link #getHttpClient()} is used.
+     * <p>
+     * Settings made through this client, such as the user agent, cookie store or SSL socket factory, only apply to
+     * the default transport.
+     * 
+     * @param transport the transport to use for requests of this client.
+     */
+    public void setTransport(HttpTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Get the transport used to execute requests.
+     */
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
     /**
      * Sets an optional CookieStore to use when making requests
      * 
@@ -208,6 +255,68 @@ public class AsyncHttpClient {
         this.threadPool = threadPool;
     }
 
+    /**
+     * Sets a detector for connections that are leased from the pool of the default transport and not given back, for
+     * instance because a response was not read to the end. Set it before making requests, connections leased while
+     * another detector was set are not tracked.
+     * 
+     * @param leakDetector the detector, null to stop tracking connections.
+     */
+    public synchronized void setConnectionLeakDetector(ConnectionLeakDetector leakDetector) {
+        this.leakDetector = leakDetector;
+        connectionManager.setLeakDetector(leakDetector);
+        for (Bulkhead bulkhead : bulkheads) {
+            bulkhead.getConnectionManager().setLeakDetector(leakDetector);
+        }
+    }
+
+    /**
+     * Isolates the requests to the hosts of a bulkhead from the other requests of this client. They run on the
+     * workers of the bulkhead instead of the thread pool of this client, and with the default transport on a
+     * connection pool of the bulkhead, which shares the settings of {@link #getHttpClient()} made so far. The first
+     * bulkhead matching the host of a request takes it. A bulkhead can only be added to one client.
+     * 
+     * @param bulkhead the bulkhead to add.
+     */
+    public synchronized void addBulkhead(Bulkhead bulkhead) {
+        HttpParams poolParams = httpClient.getParams().copy();
+        ConnManagerParams.setMaxConnectionsPerRoute(poolParams, new ConnPerRouteBean(bulkhead.getMaxConnections()));
+        ConnManagerParams.setMaxTotalConnections(poolParams, bulkhead.getMaxConnections());
+        TrackedClientConnManager manager = new TrackedClientConnManager(poolParams,
+                connectionManager.getSchemeRegistry());
+        manager.setLeakDetector(leakDetector);
+        bulkhead.attach(manager, new ApacheHttpTransport(newHttpClient(manager, httpClient.getParams())));
+        bulkheads.add(bulkhead);
+    }
+
+    /**
+     * Limits the rate of the requests of this client. A request over the limit is held back before it is given a
+     * worker or a connection, without holding a thread. Downloads in segments and streamed requests are not limited.
+     * 
+     * @param rateLimiter the limiter, null to stop limiting requests.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Adapts how many requests of this client are in flight at once to each host, from the times and errors of their
+     * responses. A request over the limit waits in the limiter, without holding a worker or a connection. Downloads
+     * in segments and streamed requests are not limited.
+     * 
+     * @param concurrencyLimiter the limiter, null to stop limiting requests.
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * Returns the bulkheads added to this client, with their counters.
+     */
+    public List<Bulkhead> getBulkheads() {
+        return Collections.unmodifiableList(bulkheads);
+    }
+
     /**
      * Sets the User-Agent header to be sent with each request. By default,
      * "Android Asynchronous Http Client/VERSION (http://loopj.com/android-async-http/)" is used.
@@ -219,7 +328,8 @@ public class AsyncHttpClient {
     }
 
     /**
-     * Sets the SSLSocketFactory to user when making requests. By default, a new, default SSLSocketFactory is used.
+     * Sets the SSLSocketFactory to user when making requests. By default, the sockets of
+     * {@link TlsContext#getDefault()} are used.
      * 
      * @param sslSocketFactory the socket factory to use for https requests.
      */
@@ -228,13 +338,45 @@ public class AsyncHttpClient {
     }
 
     /**
-     * Sets headers that will be added to all requests this client makes (before sending).
+     * Sets the TLS settings and session cache of the https connections of the default transport and of the
+     * bulkheads, {@link TlsContext#getDefault()} by default.
+     * 
+     * @param tlsContext the context to use for https requests.
+     */
+    public void setTlsContext(TlsContext tlsContext) {
+        connectionManager.getSchemeRegistry().register(
+                new Scheme("https", tlsContext.getSchemeSocketFactory(), 443));
+    }
+
+    /**
+     * Sets headers that will be added to all requests this client makes (before sending). A header of the same name
+     * given with a request takes precedence.
      * 
      * @param header the name of the header
      * @param value the contents of the header
      */
-    public void addHeader(String header, String value) {
-        clientHeaderMap.put(header, value);
+    public synchronized void addHeader(String header, String value) {
+        defaultHeaders = defaultHeaders.with(header, value);
+    }
+
+    /**
+     * Replaces the headers added to all requests this client makes. A header of the same name given with a request
+     * takes precedence.
+     * 
+     * @param headers the headers, which may be shared with other clients.
+     */
+    public synchronized void setDefaultHeaders(HeaderSet headers) {
+        if (headers == null) {
+            throw new IllegalArgumentException("headers == null");
+        }
+        defaultHeaders = headers;
+    }
+
+    /**
+     * Returns the headers added to all requests this client makes.
+     */
+    public HeaderSet getDefaultHeaders() {
+        return defaultHeaders;
     }
 
     /**
@@ -308,7 +450,7 @@ public class AsyncHttpClient {
             AsyncHttpResponseHandler responseHandler) {
         return new WeakReference<Future<?>>(
                                         sendRequest(
-                                                httpClient, httpContext, 
+                                                transport, httpContext, 
                                                 new HttpGet(getUrlWithQueryString(url, params)),
                                                 null, responseHandler, context));
     }
@@ -327,7 +469,25 @@ public class AsyncHttpClient {
 
         return new WeakReference<Future<?>>(
                                         sendRequest(
-                                                httpClient, httpContext, getMethod, null, responseHandler, context));
+                                                transport, httpContext, getMethod, null, responseHandler, context));
+    }
+
+    /**
+     * Perform a HTTP GET request to an expansion of a URL template and track the Android Context which initiated the
+     * request.
+     * 
+     * @param context the Android Context which initiated the request, may be null.
+     * @param url the template of the URL to send the request to.
+     * @param params additional GET parameters to send with the request, may be null.
+     * @param responseHandler the response handler instance that should handle the response.
+     * @param values the values of the variables of the template, see {@link UrlTemplate#expand(Object...)}.
+     */
+    public WeakReference<Future<?>> get(Context context, UrlTemplate url, RequestParams params,
+            AsyncHttpResponseHandler responseHandler, Object... values) {
+        return new WeakReference<Future<?>>(
+                                        sendRequest(
+                                                transport, httpContext, new HttpGet(url.expand(params, values)),
+                                                null, responseHandler, context));
     }
 
     //
@@ -383,7 +543,7 @@ public class AsyncHttpClient {
             AsyncHttpResponseHandler responseHandler) {
         return new WeakReference<Future<?>>(
                                         sendRequest(
-                                                httpClient, httpContext, 
+                                                transport, httpContext, 
                                                 addEntityToRequestBase(new HttpPost(url), entity),
                                                 contentType, responseHandler, context));
     }
@@ -441,7 +601,7 @@ public class AsyncHttpClient {
             AsyncHttpResponseHandler responseHandler) {
         return new WeakReference<Future<?>>(
                                          sendRequest(
-                                                 httpClient, httpContext, 
+                                                 transport, httpContext, 
                                                  addEntityToRequestBase(new HttpPut(url), entity),
                                                  contentType, responseHandler, context));
     }
@@ -470,14 +630,263 @@ public class AsyncHttpClient {
     public WeakReference<Future<?>> delete(Context context, String url, AsyncHttpResponseHandler responseHandler) {
         final HttpDelete delete = new HttpDelete(url);
         return new WeakReference<Future<?>>(
-                                        sendRequest(httpClient, httpContext, delete, null, responseHandler, context));
+                                        sendRequest(transport, httpContext, delete, null, responseHandler, context));
+    }
+
+    //
+    // Arbitrary Requests
+    //
+
+    /**
+     * Perform an arbitrary HTTP request on the given transport and track the Android Context which initiated the
+     * request.
+     * 
+     * @param context the Android Context which initiated the request, may be null.
+     * @param request the request to send.
+     * @param transport the transport to execute the request on, or null to use the transport of this client.
+     * @param responseHandler the response handler instance that should handle the response.
+     */
+    public WeakReference<Future<?>> execute(Context context, HttpUriRequest request, HttpTransport transport,
+            AsyncHttpResponseHandler responseHandler) {
+        return new WeakReference<Future<?>>(
+                                        sendRequest(
+                                                transport != null ? transport : this.transport, httpContext,
+                                                request, null, responseHandler, context));
+    }
+
+    //
+    // File Downloads
+    //
+
+    /**
+     * Download a file with a HTTP GET request, resuming an earlier download to the same file if possible.
+     * 
+     * @param url the URL to download.
+     * @param file the file to save the body to, it is replaced once the download is complete.
+     * @param responseHandler the handler that reports the progress and the outcome of the download.
+     */
+    public WeakReference<Future<?>> download(String url, File file, FileDownloadHandler responseHandler) {
+        return download(null, url, file, responseHandler);
+    }
+
+    /**
+     * Download a file with a HTTP GET request, resuming an earlier download to the same file if possible, and track
+     * the Android Context which initiated the request. See {@link FileDownloadHandler}.
+     * 
+     * @param context the Android Context which initiated the request.
+     * @param url the URL to download.
+     * @param file the file to save the body to, it is replaced once the download is complete.
+     * @param responseHandler the handler that reports the progress and the outcome of the download.
+     */
+    public WeakReference<Future<?>> download(Context context, String url, File file,
+            FileDownloadHandler responseHandler) {
+        HttpGet request = new HttpGet(url);
+        // byte ranges of a compressed body cannot be resumed
+        request.setHeader(HEADER_ACCEPT_ENCODING, ENCODING_IDENTITY);
+        responseHandler.setFile(file);
+        return new WeakReference<Future<?>>(
+                                        sendRequest(transport, httpContext, request, null, responseHandler, context));
+    }
+
+    /**
+     * Download a file with up to the given number of HTTP GET requests at once, each fetching a byte range of it.
+     * 
+     * @param url the URL to download.
+     * @param file the file to save the body to, it is replaced once the download is complete.
+     * @param responseHandler the handler that reports the progress and the outcome of the download.
+     * @param segments the maximum number of ranges fetched at once.
+     */
+    public WeakReference<Future<?>> download(String url, File file, FileDownloadHandler responseHandler,
+            int segments) {
+        return download(null, url, file, responseHandler, segments);
+    }
+
+    /**
+     * Download a file with up to the given number of HTTP GET requests at once, each fetching a byte range of it, and
+     * track the Android Context which initiated the request.
+     * <p>
+     * A first request checks that the server serves byte ranges. If it does, the file is split into as many segments,
+     * of at least 256 KB each, fetched concurrently over the connection pool and written straight to their offsets in
+     * the file. A segment that fails is retried on its own. If the server does not serve ranges, the file is too small
+     * to split, or an earlier download to the file can be resumed, this is the same as
+     * {@link #download(Context, String, File, FileDownloadHandler)}. A segmented download that fails starts over the
+     * next time.
+     * 
+     * @param context the Android Context which initiated the request.
+     * @param url the URL to download.
+     * @param file the file to save the body to, it is replaced once the download is complete.
+     * @param responseHandler the handler that reports the progress and the outcome of the download.
+     * @param segments the maximum number of ranges fetched at once, limited in effect by the size of the connection
+     *            pool.
+     */
+    public WeakReference<Future<?>> download(Context context, String url, File file,
+            FileDownloadHandler responseHandler, int segments) {
+        if (segments <= 1) {
+            return download(context, url, file, responseHandler);
+        }
+        HttpGet request = new HttpGet(url);
+        request.setHeader(HEADER_ACCEPT_ENCODING, ENCODING_IDENTITY);
+        responseHandler.setFile(file);
+        prepareRequest(request, null);
+        Future<?> download = threadPool.submit(new SegmentedDownload(transport, retryHandler, httpContext, threadPool,
+                request, segments, responseHandler));
+        trackRequest(context, download);
+        return new WeakReference<Future<?>>(download);
+    }
+
+    //
+    // Requests returning futures
+    //
+
+    /**
+     * Perform a HTTP GET request, without any parameters, and return a future of its response.
+     * 
+     * @param url the URL to send the request to.
+     */
+    public ResponseFuture<Response> getFuture(String url) {
+        return getFuture(url, null);
+    }
+
+    /**
+     * Perform a HTTP GET request with parameters and return a future of its response.
+     * 
+     * @param url the URL to send the request to.
+     * @param params additional GET parameters to send with the request.
+     */
+    public ResponseFuture<Response> getFuture(String url, RequestParams params) {
+        return sendFutureRequest(null, new HttpGet(getUrlWithQueryString(url, params)), null);
+    }
+
+    /**
+     * Perform a HTTP GET request to an expansion of a URL template and return a future of its response.
+     * 
+     * @param url the template of the URL to send the request to.
+     * @param params additional GET parameters to send with the request, may be null.
+     * @param values the values of the variables of the template, see {@link UrlTemplate#expand(Object...)}.
+     */
+    public ResponseFuture<Response> getFuture(UrlTemplate url, RequestParams params, Object... values) {
+        return sendFutureRequest(null, new HttpGet(url.expand(params, values)), null);
+    }
+
+    /**
+     * Perform a HTTP POST request with parameters and return a future of its response.
+     * 
+     * @param url the URL to send the request to.
+     * @param params additional POST parameters or files to send with the request.
+     */
+    public ResponseFuture<Response> postFuture(String url, RequestParams params) {
+        return postFuture(url, paramsToEntity(params), null);
+    }
+
+    /**
+     * Perform a HTTP POST request with a raw entity and return a future of its response.
+     * 
+     * @param url the URL to send the request to.
+     * @param entity a raw {@link HttpEntity} to send with the request.
+     * @param contentType the content type of the payload you are sending, may be null.
+     */
+    public ResponseFuture<Response> postFuture(String url, HttpEntity entity, String contentType) {
+        return sendFutureRequest(null, addEntityToRequestBase(new HttpPost(url), entity), contentType);
+    }
+
+    /**
+     * Perform a HTTP PUT request with a raw entity and return a future of its response.
+     * 
+     * @param url the URL to send the request to.
+     * @param entity a raw {@link HttpEntity} to send with the request.
+     * @param contentType the content type of the payload you are sending, may be null.
+     */
+    public ResponseFuture<Response> putFuture(String url, HttpEntity entity, String contentType) {
+        return sendFutureRequest(null, addEntityToRequestBase(new HttpPut(url), entity), contentType);
+    }
+
+    /**
+     * Perform a HTTP DELETE request and return a future of its response.
+     * 
+     * @param url the URL to send the request to.
+     */
+    public ResponseFuture<Response> deleteFuture(String url) {
+        return sendFutureRequest(null, new HttpDelete(url), null);
+    }
+
+    /**
+     * Perform an arbitrary HTTP request and return a future of its response. The future succeeds with the whole
+     * response once it has been read, or fails with a {@link ResponseException} if its status is 300 or above.
+     * Cancelling the future aborts the request.
+     * <p>
+     * With a {@link NonBlockingHttpTransport} the future is completed on the I/O thread that read the response, no
+     * worker thread is involved.
+     * 
+     * @param context the Android Context which initiated the request, may be null.
+     * @param request the request to send.
+     */
+    public ResponseFuture<Response> execute(Context context, HttpUriRequest request) {
+        return sendFutureRequest(context, request, null);
+    }
+
+    //
+    // Streamed Requests
+    //
+
+    /**
+     * Perform an arbitrary HTTP request and stream its response body to a subscriber, as fast as the subscriber
+     * consumes it. On a {@link NonBlockingHttpTransport} such as {@link NioHttpTransport} the connection is not read
+     * while the subscriber has no demand; on a blocking transport the worker thread waits for demand before each read.
+     * 
+     * @param context the Android Context which initiated the request, may be null.
+     * @param request the request to send.
+     * @param subscriber receives the response.
+     * @return a future that completes once the subscriber has received its last call, cancelling it aborts the
+     *         request.
+     */
+    public ResponseFuture<Void> stream(Context context, HttpUriRequest request, BodySubscriber subscriber) {
+        prepareRequest(request, null);
+        StreamingResponseHandler handler = new StreamingResponseHandler(request, subscriber);
+        ResponseFuture<Void> future = handler.getFuture();
+        Bulkhead bulkhead = bulkheadFor(request);
+        if (bulkhead != null) {
+            future.setCancelTarget(bulkhead.submit(new AsyncHttpRequest(transportFor(bulkhead, transport),
+                    retryHandler, new BasicHttpContext(httpContext), request, handler)));
+        } else if (transport instanceof SinkTransport) {
+            Future<?> started = ((SinkTransport) transport).start(request, new BasicHttpContext(httpContext),
+                    handler, handler);
+            handler.setSource((ResponseSource) started);
+            future.setCancelTarget(started);
+        } else {
+            future.setCancelTarget(threadPool.submit(new AsyncHttpRequest(transport, retryHandler,
+                    new BasicHttpContext(httpContext), request, handler)));
+        }
+        trackRequest(context, future);
+        return future;
     }
 
     // Private stuff
-    private Future<?> sendRequest(DefaultHttpClient client, HttpContext httpContext, HttpUriRequest uriRequest,
-            String contentType, AsyncHttpResponseHandler responseHandler, Context context) {
-        if (contentType != null) {
-            uriRequest.addHeader("Content-Type", contentType);
+    private ResponseFuture<Response> sendFutureRequest(Context context, final HttpUriRequest uriRequest,
+            String contentType) {
+        ResponseFuture<Response> future = new ResponseFuture<Response>();
+        future.setCancelTarget(sendRequest(transport, httpContext, uriRequest, contentType,
+                new FutureResponseHandler(future), context));
+        future.addCallback(new ResponseFuture.Callback<Response>() {
+            public void onSuccess(Response response) {
+            }
+
+            public void onFailure(Throwable error) {
+                if (error instanceof CancellationException) {
+                    // a worker thread blocked in a read does not notice its interrupt, close the connection
+                    uriRequest.abort();
+                }
+            }
+        });
+        return future;
+    }
+
+    private Future<?> sendRequest(final HttpTransport transport, final HttpContext httpContext,
+            final HttpUriRequest uriRequest, String contentType, final AsyncHttpResponseHandler responseHandler,
+            Context context) {
+        prepareRequest(uriRequest, contentType);
+        if (uriRequest instanceof HttpEntityEnclosingRequest && responseHandler != null
+                && responseHandler.reportsUploadProgress()) {
+            ProgressEntity.wrap((HttpEntityEnclosingRequest) uriRequest, responseHandler);
         }
         /*
          * ------------------ 加http header ----------------- uriRequest.addHeader("Platform", "8"); // 平台类型 1=IOS
@@ -491,8 +900,107 @@ public class AsyncHttpClient {
          * -----------------
          */
 
-        Future<?> request = threadPool.submit(new AsyncHttpRequest(client, httpContext, uriRequest, responseHandler));
+        final RequestTiming timing = new RequestTiming();
+        if (responseHandler != null) {
+            responseHandler.setTiming(timing);
+        }
+        RateLimiter limiter = rateLimiter;
+        long delay = limiter != null ? limiter.reserve(uriRequest) : 0;
+        Future<?> request;
+        if (delay > 0) {
+            timing.throttled(delay);
+            request = new ThrottledRequest(new Callable<Future<?>>() {
+                public Future<?> call() {
+                    return admitRequest(transport, httpContext, uriRequest, responseHandler, timing, true);
+                }
+            }, timing).schedule(delay);
+        } else {
+            request = admitRequest(transport, httpContext, uriRequest, responseHandler, timing, false);
+        }
+        trackRequest(context, request);
+        return request;
+    }
 
+    /**
+     * Starts a request, or queues it in the concurrency limiter.
+     * 
+     * @param deferred whether the caller has returned already, then a rejection goes to the handler.
+     */
+    private Future<?> admitRequest(final HttpTransport transport, final HttpContext httpContext,
+            final HttpUriRequest uriRequest, final AsyncHttpResponseHandler responseHandler,
+            final RequestTiming timing, boolean deferred) {
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        if (limiter == null) {
+            return startRequest(transport, httpContext, uriRequest, responseHandler, timing, deferred);
+        }
+        ThrottledRequest request = new ThrottledRequest(new Callable<Future<?>>() {
+            public Future<?> call() {
+                return startRequest(transport, httpContext, uriRequest, responseHandler, timing, true);
+            }
+        }, timing);
+        limiter.acquire(uriRequest, timing, request);
+        return request;
+    }
+
+    private Future<?> startRequest(HttpTransport transport, HttpContext httpContext, HttpUriRequest uriRequest,
+            AsyncHttpResponseHandler responseHandler, RequestTiming timing, boolean deferred) {
+        // every request gets its own context so that concurrent executions do not share execution state
+        HttpContext requestContext = new BasicHttpContext(httpContext);
+        timing.attachTo(requestContext);
+        try {
+            Bulkhead bulkhead = bulkheadFor(uriRequest);
+            if (bulkhead != null) {
+                return bulkhead.submit(new AsyncHttpRequest(transportFor(bulkhead, transport), retryHandler,
+                        requestContext, uriRequest, responseHandler));
+            } else if (transport instanceof NonBlockingHttpTransport && responseHandler != null
+                    && responseHandler.acceptsPushedResponse()) {
+                // no worker thread is needed, the transport pushes the response to the handler
+                return ((NonBlockingHttpTransport) transport).start(uriRequest, requestContext, responseHandler);
+            } else {
+                return threadPool.submit(new AsyncHttpRequest(transport, retryHandler, requestContext, uriRequest,
+                        responseHandler));
+            }
+        } catch (RejectedExecutionException e) {
+            timing.finished(false);
+            if (deferred && responseHandler != null) {
+                // nobody is left to throw it to
+                responseHandler.sendFailureMessage(e, null);
+                responseHandler.sendFinishMessage();
+            }
+            throw e;
+        }
+    }
+
+    private Bulkhead bulkheadFor(HttpUriRequest uriRequest) {
+        if (bulkheads.isEmpty()) {
+            return null;
+        }
+        String host = uriRequest.getURI().getHost();
+        if (host != null) {
+            for (Bulkhead bulkhead : bulkheads) {
+                if (bulkhead.matches(host)) {
+                    return bulkhead;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the transport for a request of a bulkhead, the one of the bulkhead unless another was chosen.
+     */
+    private HttpTransport transportFor(Bulkhead bulkhead, HttpTransport transport) {
+        return transport == defaultTransport ? bulkhead.getTransport() : transport;
+    }
+
+    private void prepareRequest(HttpUriRequest uriRequest, String contentType) {
+        if (contentType != null) {
+            uriRequest.addHeader("Content-Type", contentType);
+        }
+        defaultHeaders.applyTo(uriRequest);
+    }
+
+    private void trackRequest(Context context, Future<?> request) {
         if (context != null) {
             // Add request to request map
             List<WeakReference<Future<?>>> requestList = requestMap.get(context);
@@ -505,13 +1013,16 @@ public class AsyncHttpClient {
 
             // TODO: Remove dead weakrefs from requestLists?
         }
-        return request;
     }
 
     private String getUrlWithQueryString(String url, RequestParams params) {
         if (params != null) {
             String paramString = params.getParamString();
-            url += "?" + paramString;
+            if (paramString.length() > 0) {
+                StringBuilder result = new StringBuilder(url.length() + paramString.length() + 1).append(url);
+                UrlTemplate.appendQuery(result, url.indexOf('?') >= 0, paramString);
+                url = result.toString();
+            }
         }
 
         return url;
@@ -535,20 +1046,4 @@ public class AsyncHttpClient {
 
         return requestBase;
     }
-
-    private static class InflatingEntity extends HttpEntityWrapper {
-        public InflatingEntity(HttpEntity wrapped) {
-            super(wrapped);
-        }
-
-        @Override
-        public InputStream getContent() throws IOException {
-            return new GZIPInputStream(wrappedEntity.getContent());
-        }
-
-        @Override
-        public long getContentLength() {
-            return -1;
-        }
-    }
 }
@@ -15,82 +15,146 @@
 
 package com.baidu.asynchttpclient;
 
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 
 import java.io.IOException;
 import java.net.ConnectException;
 
-class AsyncHttpRequest implements Runnable {
-    private final AbstractHttpClient client;
+/**
+ * Runs a request on the calling thread: sends it through a {@link HttpTransport}, retries it as a
+ * {@link RetryHandler} allows, and reports the response and its timing to an {@link AsyncHttpResponseHandler}. This is
+ * the request path of {@link AsyncHttpClient}, also used by
+ * {@link com.baidu.simpleasynchttpclient.SimpleAsyncHttpClient}.
+ */
+public class AsyncHttpRequest implements Runnable {
+    private static final HttpRequestRetryHandler DEFAULT_RETRY_HANDLER = new RetryHandler(1);
+
+    private final HttpTransport transport;
+    private final HttpRequestRetryHandler retryHandler;
     private final HttpContext context;
     private final HttpUriRequest request;
     private final AsyncHttpResponseHandler responseHandler;
+    private final RequestTiming timing;
     private int executionCount;
 
-    public AsyncHttpRequest(AbstractHttpClient client, HttpContext context, HttpUriRequest request,
-                         AsyncHttpResponseHandler responseHandler) {
-        this.client = client;
+    AsyncHttpRequest(HttpTransport transport, HttpRequestRetryHandler retryHandler, HttpContext context,
+                         HttpUriRequest request, AsyncHttpResponseHandler responseHandler) {
+        this.transport = transport;
+        this.retryHandler = retryHandler;
         this.context = context;
         this.request = request;
         this.responseHandler = responseHandler;
+        this.timing = RequestTiming.of(context);
+    }
+
+    /**
+     * Creates a request with a context of its own, retried once like the requests of {@link AsyncHttpClient}. The
+     * body of the request reports upload progress if the handler listens for it.
+     */
+    public AsyncHttpRequest(HttpTransport transport, HttpUriRequest request, AsyncHttpResponseHandler responseHandler) {
+        this.transport = transport;
+        this.retryHandler = DEFAULT_RETRY_HANDLER;
+        this.context = new BasicHttpContext();
+        this.request = request;
+        this.responseHandler = responseHandler;
+        this.timing = new RequestTiming();
+        timing.attachTo(context);
+        if (responseHandler != null) {
+            responseHandler.setTiming(timing);
+            if (request instanceof HttpEntityEnclosingRequest && responseHandler.reportsUploadProgress()) {
+                ProgressEntity.wrap((HttpEntityEnclosingRequest) request, responseHandler);
+            }
+        }
     }
 
     public void run() {
+        boolean failed = false;
         try {
+            if (timing != null) {
+                timing.started();
+            }
             if (responseHandler != null) {
                 responseHandler.sendStartMessage();
             }
 
             makeRequestWithRetries();
         } catch (IOException e) {
+            // a cancelled request did not fail
+            failed = !Thread.currentThread().isInterrupted();
             if (responseHandler != null) {
                 // TODO: by Guangshan Shang
                 responseHandler.sendFailureMessage(e, e.toString());
             }
+        } catch (RuntimeException e) {
+            // a bug in a transport or a callback running on this thread, the request still has to finish
+            failed = true;
+            if (responseHandler != null) {
+                responseHandler.sendFailureMessage(e, e.toString());
+            }
+        } finally {
+            onDone();
+            // gives back the permit of the concurrency limiter, whatever happened
+            if (timing != null) {
+                timing.finished(failed);
+            }
+            if (responseHandler != null) {
+                responseHandler.sendFinishMessage();
+            }
         }
+    }
 
-        if (responseHandler != null) {
-            responseHandler.sendFinishMessage();
-        }
+    /**
+     * Called on the thread of the request once it is done, before the handler is told that it finished.
+     */
+    protected void onDone() {
     }
 
     private void makeRequest() throws IOException {
         if (!Thread.currentThread().isInterrupted()) {
-            updateNetProxy();
-            HttpResponse response = client.execute(request, context);
-            if (!Thread.currentThread().isInterrupted()) {
-                if (responseHandler != null) {
-                    responseHandler.sendResponseMessage(response);
+            if (responseHandler != null) {
+                responseHandler.beforeExecute(request);
+            }
+            if (timing != null) {
+                timing.attempted();
+            }
+            HttpResponse response = transport.execute(request, context);
+            if (timing != null) {
+                timing.responded(response.getStatusLine().getStatusCode());
+            }
+            // whether the handler reads the body, stops half way, fails or never gets it, the connection goes back
+            GuardedEntity entity = GuardedEntity.guard(response);
+            try {
+                if (!Thread.currentThread().isInterrupted()) {
+                    if (responseHandler != null) {
+                        responseHandler.processResponse(response);
+                    }
+                }
+                // else {
+                // responseHandler.sendFailureMessage(new InterruptedException("request interupted!"), null);
+                // TODO: should raise InterruptedException? this block is reached whenever the request is cancelled
+                // before its response is received
+                // }
+            } finally {
+                if (entity != null) {
+                    entity.release();
                 }
             }
-            // else {
-            // responseHandler.sendFailureMessage(new InterruptedException("request interupted!"), null);
-            // TODO: should raise InterruptedException? this block is reached whenever the request is cancelled
-            // before its response is received
-            // }
         } else {
             responseHandler.sendFailureMessage(new InterruptedException("request interupted!"), null);
         }
     }
 
-    /**
-     * shangguangshan 更新代理
-     */
-    private void updateNetProxy() {
-        NetworkUtils.refreshProxySetting(null, client);
-    }
-
     private void makeRequestWithRetries() throws ConnectException {
         // This is an additional layer of retry logic lifted from droid-fu
         // See:
         // https://github.com/kaeppler/droid-fu/blob/master/src/main/java/com/github/droidfu/http/BetterHttpRequestBase.java
         boolean retry = true;
         IOException cause = null;
-        HttpRequestRetryHandler retryHandler = client.getHttpRequestRetryHandler();
         while (retry) {
             try {
                 makeRequest();
@@ -20,17 +20,23 @@ import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 
+import org.apache.http.Header;
 import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpResponseException;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HTTP;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 
 /**
@@ -67,6 +73,12 @@ import java.net.HttpURLConnection;
  *     }
  * });
  * </pre>
+ * 
+ * Callbacks are posted to the thread that created the handler, if it has a Looper. Handlers created with an
+ * {@link Executor} run them on that executor instead, without going through a Looper or allocating a message, one
+ * task per callback. With {@link #DIRECT_EXECUTOR} they run on the thread reading the response, and nothing is
+ * allocated for any of them. A subclass that overrides {@link #handleMessage(Message)} or
+ * {@link #sendMessage(Message)} gets every callback as a message, as it would on a Looper.
  */
 public class AsyncHttpResponseHandler {
     private static final String TAG = "AsyncHttpResponseHandler";
@@ -78,13 +90,37 @@ public class AsyncHttpResponseHandler {
     private static final int RECEIVE_MESSAGE_START = 4;
     private static final int RECEIVE_MESSAGE_UPDATE = 5;
     private static final int RECEIVE_MESSAGE_END = 6;
+    private static final int UPLOAD_PROGRESS_MESSAGE = 7;
+
+    private static final int DEFAULT_MAX_ERROR_BODY_SIZE = 64 * 1024;
+    // skipping more than this costs more than opening a new connection
+    static final int MAX_ERROR_BODY_DRAIN = 256 * 1024;
+    private static final int ERROR_BUFFER_SIZE = 4096;
+
+    private static final Map<Class<?>, Boolean> PUSHABLE_TYPES = new ConcurrentHashMap<Class<?>, Boolean>();
+    private static final Map<Class<?>, Boolean> UPLOAD_PROGRESS_TYPES = new ConcurrentHashMap<Class<?>, Boolean>();
+    private static final Map<Class<?>, Boolean> MESSAGE_TYPES = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    /**
+     * Runs the callbacks on the thread reading the response, as the events happen. The slice passed to
+     * {@link #onSegmentReceive(byte[], int)} is then only valid during the call, its array is reused.
+     */
+    public static final Executor DIRECT_EXECUTOR = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
 
     private Handler handler;
+    private final Executor executor;
+    private volatile int maxErrorBodySize = DEFAULT_MAX_ERROR_BODY_SIZE;
+    private volatile RequestTiming timing;
 
     /**
      * Creates a new AsyncHttpResponseHandler
      */
     public AsyncHttpResponseHandler() {
+        executor = null;
         // Set up a handler to post events back to the correct thread if possible
         if (Looper.myLooper() != null) {
             handler = new Handler() {
@@ -97,6 +133,51 @@ public class AsyncHttpResponseHandler {
 
     public AsyncHttpResponseHandler(Handler h) {
         handler = h;
+        executor = null;
+    }
+
+    /**
+     * Creates a handler whose callbacks run on an executor, for consumers that do not need to be called on a Looper
+     * thread.
+     * 
+     * @param executor runs the callbacks. It must run them one at a time, in the order they are submitted, such as
+     *            {@link java.util.concurrent.Executors#newSingleThreadExecutor()} or {@link #DIRECT_EXECUTOR}.
+     */
+    public AsyncHttpResponseHandler(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor == null");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Sets how much of the body of an error response is passed to {@link #onFailure(Throwable, String)}, 64K by
+     * default. The rest of the body is skipped so that the connection can be reused, or the connection is closed if
+     * there is a lot more of it.
+     * 
+     * @param maxErrorBodySize the limit in bytes, 0 to keep none of the body.
+     */
+    public void setMaxErrorBodySize(int maxErrorBodySize) {
+        if (maxErrorBodySize < 0) {
+            throw new IllegalArgumentException("maxErrorBodySize < 0");
+        }
+        this.maxErrorBodySize = maxErrorBodySize;
+    }
+
+    int getMaxErrorBodySize() {
+        return maxErrorBodySize;
+    }
+
+    /**
+     * Returns the timing of the request this handler was last given to, null if it was not made by an
+     * {@link AsyncHttpClient}.
+     */
+    public RequestTiming getTiming() {
+        return timing;
+    }
+
+    void setTiming(RequestTiming timing) {
+        this.timing = timing;
     }
 
     //
@@ -134,6 +215,16 @@ public class AsyncHttpResponseHandler {
     public void onSuccessReceive() {
     }
 
+    /**
+     * Fired as the request body is sent, at most every 200 milliseconds, and once more when all of it has been sent.
+     * Only handlers overriding this method are told, a retried request reports from 0 again.
+     * 
+     * @param bytesWritten the number of bytes of the body sent so far.
+     * @param totalBytes the length of the body, or -1 if it is not known in advance.
+     */
+    public void onUploadProgress(long bytesWritten, long totalBytes) {
+    }
+
     /**
      * Fired when a request fails to complete, override to handle in your own code
      * 
@@ -161,37 +252,109 @@ public class AsyncHttpResponseHandler {
     //
 
     protected void sendSuccessMessage(String responseBody) {
-        sendMessage(obtainMessage(SUCCESS_MESSAGE, responseBody));
+        if (!deliver(SUCCESS_MESSAGE, responseBody, null, 0, 0)) {
+            sendMessage(obtainMessage(SUCCESS_MESSAGE, responseBody));
+        }
     }
 
     protected void sendFailureMessage(Throwable e, String responseBody) {
-        sendMessage(obtainMessage(FAILURE_MESSAGE, new Object[] { e, responseBody }));
+        if (!deliver(FAILURE_MESSAGE, e, responseBody, 0, 0)) {
+            sendMessage(obtainMessage(FAILURE_MESSAGE, new Object[] { e, responseBody }));
+        }
     }
 
     protected void sendStartMessage() {
-        sendMessage(obtainMessage(START_MESSAGE, null));
+        if (!deliver(START_MESSAGE, null, null, 0, 0)) {
+            sendMessage(obtainMessage(START_MESSAGE, null));
+        }
     }
 
     protected void sendFinishMessage() {
-        sendMessage(obtainMessage(FINISH_MESSAGE, null));
+        if (!deliver(FINISH_MESSAGE, null, null, 0, 0)) {
+            sendMessage(obtainMessage(FINISH_MESSAGE, null));
+        }
     }
 
     protected void sendReceiveStartMessage(int length, String charset/* , Header[] headers */) {
-        Message msg = obtainMessage(RECEIVE_MESSAGE_START, null);
-        // msg.obj = new Object[]{charset, headers};
-        msg.obj = new Object[] { charset, null };
-        msg.arg1 = length;
-        sendMessage(msg);
+        if (!deliver(RECEIVE_MESSAGE_START, charset, null, length, 0)) {
+            Message msg = obtainMessage(RECEIVE_MESSAGE_START, null);
+            // msg.obj = new Object[]{charset, headers};
+            msg.obj = new Object[] { charset, null };
+            msg.arg1 = length;
+            sendMessage(msg);
+        }
     }
 
     protected void sendReceiveUpdateMessage(byte[] slice, int length) {
-        Message msg = obtainMessage(RECEIVE_MESSAGE_UPDATE, slice);
-        msg.arg1 = length;
-        sendMessage(msg);
+        if (!deliver(RECEIVE_MESSAGE_UPDATE, slice, null, length, 0)) {
+            Message msg = obtainMessage(RECEIVE_MESSAGE_UPDATE, slice);
+            msg.arg1 = length;
+            sendMessage(msg);
+        }
     }
 
     protected void sendReceiveEndMessage() {
-        sendMessage(obtainMessage(RECEIVE_MESSAGE_END, null));
+        if (!deliver(RECEIVE_MESSAGE_END, null, null, 0, 0)) {
+            sendMessage(obtainMessage(RECEIVE_MESSAGE_END, null));
+        }
+    }
+
+    protected void sendUploadProgressMessage(long bytesWritten, long totalBytes) {
+        if (!deliver(UPLOAD_PROGRESS_MESSAGE, null, null, bytesWritten, totalBytes)) {
+            sendMessage(obtainMessage(UPLOAD_PROGRESS_MESSAGE, new long[] { bytesWritten, totalBytes }));
+        }
+    }
+
+    /**
+     * Delivers an event without a message when the handler does not post to a Looper: on the calling thread with
+     * {@link #DIRECT_EXECUTOR} or without an executor, or as one task on the executor. Handlers that override
+     * {@link #handleMessage(Message)} or {@link #sendMessage(Message)} still get their messages.
+     * 
+     * @return false if the event must be sent as a message instead.
+     */
+    boolean deliver(int what, Object a, Object b, long x, long y) {
+        if (handler != null || usesMessages()) {
+            return false;
+        }
+        if (executor == null || executor == DIRECT_EXECUTOR) {
+            dispatch(what, a, b, x, y);
+        } else {
+            executor.execute(new Callback(what, a, b, x, y));
+        }
+        return true;
+    }
+
+    /**
+     * Calls the callback of an event delivered by {@link #deliver(int, Object, Object, long, long)}. Subclasses with
+     * events of their own handle them here, and pass the others on.
+     */
+    void dispatch(int what, Object a, Object b, long x, long y) {
+        switch (what) {
+            case SUCCESS_MESSAGE:
+                handleSuccessMessage((String) a);
+                break;
+            case FAILURE_MESSAGE:
+                handleFailureMessage((Throwable) a, (String) b);
+                break;
+            case START_MESSAGE:
+                onStart();
+                break;
+            case FINISH_MESSAGE:
+                onFinish();
+                break;
+            case RECEIVE_MESSAGE_START:
+                handleReceiveStartMessage((int) x, (String) a);
+                break;
+            case RECEIVE_MESSAGE_UPDATE:
+                handleReceiveUpdateMessage((byte[]) a, (int) x);
+                break;
+            case RECEIVE_MESSAGE_END:
+                handleReceiveEndMessage();
+                break;
+            case UPLOAD_PROGRESS_MESSAGE:
+                handleUploadProgressMessage(x, y);
+                break;
+        }
     }
 
     //
@@ -218,6 +381,10 @@ public class AsyncHttpResponseHandler {
         onSuccessReceive();
     }
 
+    protected void handleUploadProgressMessage(long bytesWritten, long totalBytes) {
+        onUploadProgress(bytesWritten, totalBytes);
+    }
+
     // Methods which emulate android's Handler and Message methods
     protected void handleMessage(Message msg) {
         switch (msg.what) {
@@ -247,20 +414,53 @@ public class AsyncHttpResponseHandler {
             case FINISH_MESSAGE:
                 onFinish();
                 break;
+            case UPLOAD_PROGRESS_MESSAGE:
+                long[] progress = (long[]) msg.obj;
+                handleUploadProgressMessage(progress[0], progress[1]);
+                break;
         }
     }
 
-    protected void sendMessage(Message msg) {
+    protected void sendMessage(final Message msg) {
         if (handler != null) {
             Thread thread = handler.getLooper().getThread();
             if (thread.isAlive() && !thread.isInterrupted()) {
                 handler.sendMessage(msg);
             }
+        } else if (executor != null && executor != DIRECT_EXECUTOR) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    handleMessage(msg);
+                }
+            });
         } else {
             handleMessage(msg);
         }
     }
 
+    /**
+     * An event on its way to the executor.
+     */
+    private final class Callback implements Runnable {
+        private final int what;
+        private final Object a;
+        private final Object b;
+        private final long x;
+        private final long y;
+
+        Callback(int what, Object a, Object b, long x, long y) {
+            this.what = what;
+            this.a = a;
+            this.b = b;
+            this.x = x;
+            this.y = y;
+        }
+
+        public void run() {
+            dispatch(what, a, b, x, y);
+        }
+    }
+
     protected Message obtainMessage(int responseMessage, Object response) {
         Message msg = null;
         if (handler != null) {
@@ -273,8 +473,30 @@ public class AsyncHttpResponseHandler {
         return msg;
     }
 
+    /**
+     * Called on the worker thread before each attempt to execute the request.
+     */
+    void beforeExecute(HttpUriRequest request) {
+    }
+
+    /**
+     * Called on the worker thread with the response. An exception thrown here goes through the retry logic of the
+     * request, as if the request itself had failed.
+     */
+    void processResponse(HttpResponse response) throws IOException {
+        sendResponseMessage(response);
+    }
+
+    /**
+     * Called with the status line and headers of the response before its body is read, on the thread reading the
+     * response.
+     */
+    void receiveResponseHead(HttpResponse response) {
+    }
+
     // Interface to AsyncHttpRequest
-    void sendResponseMessage(HttpResponse response) {
+    protected void sendResponseMessage(HttpResponse response) {
+        receiveResponseHead(response);
         StatusLine status = response.getStatusLine();
         int statusCode = status.getStatusCode();
 
@@ -282,13 +504,12 @@ public class AsyncHttpResponseHandler {
         try {
             HttpEntity entity = response.getEntity();
             if (statusCode >= 300) {
-                responseBody = EntityUtils.toString(entity);
-            } else {
-                if (entity == null) {
-                    throw new IllegalArgumentException("HTTP entity may not be null");
+                if (entity != null) {
+                    responseBody = readErrorBody(entity);
                 }
+            } else {
                 // û�����
-                InputStream instream = entity.getContent();
+                InputStream instream = entity != null ? entity.getContent() : null;
                 if (instream == null) {
                     sendReceiveStartMessage(0, null/* , headers */);
                     sendReceiveUpdateMessage(new byte[0], 0);
@@ -304,16 +525,7 @@ public class AsyncHttpResponseHandler {
                 if (i < 0) {
                     i = 4096;
                 }
-                String charset = null;
-                if (entity.getContentType() != null) {
-                    HeaderElement values[] = entity.getContentType().getElements();
-                    if (values.length > 0) {
-                        NameValuePair param = values[0].getParameterByName("charset");
-                        if (param != null) {
-                            charset = param.getValue();
-                        }
-                    }
-                }
+                String charset = getCharset(entity.getContentType());
                 sendReceiveStartMessage(i, charset/* , headers */);
                 // ////////////////////////phase 2//////////////////////////
 
@@ -325,6 +537,8 @@ public class AsyncHttpResponseHandler {
                 // }
 
                 boolean readDone = false;
+                // callbacks run before the next read can take the same array
+                boolean reuse = deliversDirectly();
                 byte[] tmp = null;
                 int remain = 0;
                 do {
@@ -355,9 +569,12 @@ public class AsyncHttpResponseHandler {
                     if (offset >= 0) {
                         sendReceiveUpdateMessage(tmp, offset);
                     }
-                    tmp = null;
+                    if (!reuse) {
+                        tmp = null;
+                    }
                 } while (!readDone);
                 // ////////////////////////phase 3//////////////////////////
+                instream.close();
                 sendReceiveEndMessage();
             }
 
@@ -371,4 +588,148 @@ public class AsyncHttpResponseHandler {
                     responseBody);
         }
     }
+
+    /**
+     * Whether the callbacks run as the events are sent, so that a slice can be reused once it has been sent.
+     */
+    boolean deliversDirectly() {
+        return executor == DIRECT_EXECUTOR;
+    }
+
+    /**
+     * Reads the body of an error response, up to {@link #setMaxErrorBodySize(int) the limit}. The rest of the body is
+     * skipped, unless there is more than {@link #MAX_ERROR_BODY_DRAIN} of it: then the connection is closed instead.
+     * 
+     * @return the kept part of the body, decoded with the charset of the response. The bytes themselves go to
+     *         {@link #receiveErrorBody(byte[])} first.
+     */
+    String readErrorBody(HttpEntity entity) throws IOException {
+        InputStream in = entity.getContent();
+        if (in == null) {
+            return null;
+        }
+        int limit = maxErrorBodySize;
+        long length = entity.getContentLength();
+        long drainLimit = length > (long) limit + MAX_ERROR_BODY_DRAIN ? 0 : MAX_ERROR_BODY_DRAIN;
+        ByteArrayOutputStream body = new ByteArrayOutputStream(length >= 0 ? (int) Math.min(length, limit)
+                : Math.min(limit, ERROR_BUFFER_SIZE));
+        boolean consumed = false;
+        try {
+            byte[] buffer = new byte[ERROR_BUFFER_SIZE];
+            long skipped = 0;
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                int kept = Math.min(count, limit - body.size());
+                body.write(buffer, 0, kept);
+                skipped += count - kept;
+                if (skipped > drainLimit) {
+                    break;
+                }
+            }
+            consumed = count < 0;
+        } finally {
+            FileDownloadHandler.release(in, consumed);
+        }
+        byte[] bytes = body.toByteArray();
+        receiveErrorBody(bytes);
+        String charset = getCharset(entity.getContentType());
+        return new String(bytes, charset != null ? charset : HTTP.DEFAULT_CONTENT_CHARSET);
+    }
+
+    /**
+     * Receives the kept part of the body of an error response as it was read, before it is decoded for the failure
+     * message. Does nothing by default.
+     */
+    void receiveErrorBody(byte[] body) {
+    }
+
+    /**
+     * Whether a transport may push the response to this handler piece by piece, see
+     * {@link NonBlockingHttpTransport}. This is the case unless the handler reads the response itself by overriding
+     * {@link #sendResponseMessage(HttpResponse)}, such handlers are always run on a worker thread.
+     */
+    boolean acceptsPushedResponse() {
+        Class<?> type = getClass();
+        Boolean pushable = PUSHABLE_TYPES.get(type);
+        if (pushable == null) {
+            pushable = Boolean.valueOf(!overrides(type, "sendResponseMessage", HttpResponse.class));
+            PUSHABLE_TYPES.put(type, pushable);
+        }
+        return pushable.booleanValue();
+    }
+
+    /**
+     * Whether the handler wants to hear about the progress of the request body, see
+     * {@link #onUploadProgress(long, long)}. Bodies of other requests are sent without counting.
+     */
+    boolean reportsUploadProgress() {
+        Class<?> type = getClass();
+        Boolean reports = UPLOAD_PROGRESS_TYPES.get(type);
+        if (reports == null) {
+            reports = Boolean.valueOf(overrides(type, "onUploadProgress", long.class, long.class)
+                    || overrides(type, "handleUploadProgressMessage", long.class, long.class)
+                    || overrides(type, "sendUploadProgressMessage", long.class, long.class));
+            UPLOAD_PROGRESS_TYPES.put(type, reports);
+        }
+        return reports.booleanValue();
+    }
+
+    /**
+     * Whether a subclass looks at the messages, by overriding {@link #handleMessage(Message)} or
+     * {@link #sendMessage(Message)}. Subclasses that handle their events in
+     * {@link #dispatch(int, Object, Object, long, long)} as well, as the handlers of this library do, do not count.
+     */
+    private boolean usesMessages() {
+        Class<?> type = getClass();
+        Boolean uses = MESSAGE_TYPES.get(type);
+        if (uses == null) {
+            uses = Boolean.FALSE;
+            for (Class<?> c = type; c != AsyncHttpResponseHandler.class; c = c.getSuperclass()) {
+                if ((declares(c, "handleMessage", Message.class) || declares(c, "sendMessage", Message.class))
+                        && !declares(c, "dispatch", int.class, Object.class, Object.class, long.class, long.class)) {
+                    uses = Boolean.TRUE;
+                    break;
+                }
+            }
+            MESSAGE_TYPES.put(type, uses);
+        }
+        return uses.booleanValue();
+    }
+
+    private static boolean declares(Class<?> c, String name, Class<?>... parameterTypes) {
+        try {
+            c.getDeclaredMethod(name, parameterTypes);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static boolean overrides(Class<?> type, String name, Class<?>... parameterTypes) {
+        for (Class<?> c = type; c != AsyncHttpResponseHandler.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod(name, parameterTypes);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // not overridden at this level
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the charset parameter of a Content-Type header, or null if there is none.
+     */
+    static String getCharset(Header contentType) {
+        if (contentType != null) {
+            HeaderElement values[] = contentType.getElements();
+            if (values.length > 0) {
+                NameValuePair param = values[0].getParameterByName("charset");
+                if (param != null) {
+                    return param.getValue();
+                }
+            }
+        }
+        return null;
+    }
 }
\ No newline at end of file
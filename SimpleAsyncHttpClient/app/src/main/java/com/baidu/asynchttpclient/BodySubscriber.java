@@ -0,0 +1,84 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.HttpResponse;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Consumes the body of a response streamed by {@link AsyncHttpClient#stream} at its own pace. Nothing is read from the connection beyond what the subscriber has asked for with
+ * {@link BodySubscription#request(long)}, give or take one read of the socket, or the stream window on HTTP/2, so a
+ * slow subscriber holds back the server instead of piling up data in memory.
+ * <p>
+ * The calls are never concurrent, but they may come from different threads: the thread reading the response, or the
+ * thread calling {@link BodySubscription#request(long)}. They must not block. A subscriber that hands the data to
+ * another thread should request more once it has been processed there.
+ * <p>
+ * For example, to process one chunk at a time on the main thread:
+ * <p>
+ * 
+ * <pre>
+ * client.stream(context, new HttpGet(url), new BodySubscriber() {
+ *     BodySubscription subscription;
+ * 
+ *     public void onSubscribe(HttpResponse response, BodySubscription subscription) {
+ *         this.subscription = subscription;
+ *         subscription.request(1);
+ *     }
+ * 
+ *     public void onNext(final ByteBuffer chunk) {
+ *         mainHandler.post(new Runnable() {
+ *             public void run() {
+ *                 consume(chunk);
+ *                 subscription.request(1);
+ *             }
+ *         });
+ *     }
+ *     ...
+ * });
+ * </pre>
+ */
+public interface BodySubscriber {
+
+    /**
+     * The status line and headers have arrived. The body is not read until data is requested from the subscription.
+     * This is called for every status, it is up to the subscriber to check it.
+     * 
+     * @param response the response, its entity must not be used.
+     * @param subscription the subscription to request the body or to cancel the request with.
+     */
+    void onSubscribe(HttpResponse response, BodySubscription subscription);
+
+    /**
+     * A part of the body has arrived, decompressed if it was sent gzipped.
+     * 
+     * @param chunk the bytes, owned by the subscriber from now on.
+     */
+    void onNext(ByteBuffer chunk);
+
+    /**
+     * The whole body has been delivered. No more calls follow.
+     */
+    void onComplete();
+
+    /**
+     * The request failed, possibly before {@link #onSubscribe} was called. No more calls follow. A
+     * {@link java.util.concurrent.CancellationException} means the request was cancelled by other means than the
+     * subscription, such as {@link AsyncHttpClient#cancelRequests(android.content.Context, boolean)}.
+     */
+    void onError(Throwable error);
+}
@@ -0,0 +1,34 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+/**
+ * The link between a {@link BodySubscriber} and its response. May be used from any thread.
+ */
+public interface BodySubscription {
+
+    /**
+     * Asks for up to n more chunks of the body. Requests add up.
+     * 
+     * @param n the number of chunks, greater than 0.
+     */
+    void request(long n);
+
+    /**
+     * Aborts the request. The subscriber receives no more calls.
+     */
+    void cancel();
+}
@@ -0,0 +1,205 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.baidu.asynchttpclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Isolates the requests to a group of hosts from the other requests of an {@link AsyncHttpClient}, see
+ * {@link AsyncHttpClient#addBulkhead(Bulkhead)}. The requests of the group run on workers of their own, wait in a
+ * queue of their own, and with the default transport use a connection pool of their own, each with its own limit. A
+ * slow host then only holds up the requests of its own group.
+ * <p>
+ * For example:
+ * <p>
+ * 
+ * <pre>
+ * Bulkhead ads = new Bulkhead(&quot;ads&quot;, 4, 4, 20).addHost(&quot;*.adnetwork.com&quot;);
+ * client.addBulkhead(ads);
+ * </pre>
+ * 
+ * A request to a full group, with all its workers busy and its queue full, is rejected at once: the method that makes
+ * it throws a {@link RejectedExecutionException}. The counters of a group, and its {@link #toString()}, show how close
+ * to its limits it runs.
+ * <p>
+ * Requests of a group always run on its workers, also on a {@link NonBlockingHttpTransport}, so the worker limit
+ * bounds the connections they use on any transport.
+ */
+public class Bulkhead {
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final String name;
+    private final int maxWorkers;
+    private final int maxConnections;
+    private final int maxQueued;
+    // exact host names and, starting with a dot, suffixes of host names, all lower case
+    private final List<String> hosts = new ArrayList<String>();
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejected = new AtomicLong();
+
+    // set once the bulkhead is added to a client
+    private volatile TrackedClientConnManager connectionManager;
+    private volatile HttpTransport transport;
+
+    /**
+     * @param name the name of the group, used for its threads and in {@link #toString()}.
+     * @param maxWorkers the maximum number of requests of the group running at once.
+     * @param maxConnections the size of the connection pool of the group, per route and in total.
+     * @param maxQueued the maximum number of requests of the group waiting for a worker.
+     */
+    public Bulkhead(final String name, int maxWorkers, int maxConnections, int maxQueued) {
+        if (maxWorkers <= 0 || maxConnections <= 0 || maxQueued < 0) {
+            throw new IllegalArgumentException("Invalid limits: " + maxWorkers + " workers, " + maxConnections
+                    + " connections, " + maxQueued + " queued");
+        }
+        this.name = name;
+        this.maxWorkers = maxWorkers;
+        this.maxConnections = maxConnections;
+        this.maxQueued = maxQueued;
+        BlockingQueue<Runnable> queue = maxQueued > 0 ? new LinkedBlockingQueue<Runnable>(maxQueued)
+                : new SynchronousQueue<Runnable>();
+        executor = new ThreadPoolExecutor(maxWorkers, maxWorkers, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue,
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "AsyncHttpClient " + name + " #" + mCount.getAndIncrement());
+                        t.setPriority(Thread.NORM_PRIORITY - 1);
+                        return t;
+                    }
+                }, new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        rejected.incrementAndGet();
+                        throw new RejectedExecutionException("Bulkhead " + Bulkhead.this.name + " is full");
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Adds hosts to the group. Add them all before adding the bulkhead to a client.
+     * 
+     * @param pattern a host name, or <code>*.</code> followed by a domain for all the hosts of the domain.
+     * @return this bulkhead.
+     */
+    public Bulkhead addHost(String pattern) {
+        String host = pattern.toLowerCase(Locale.US);
+        hosts.add(host.startsWith("*.") ? host.substring(1) : host);
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Returns the number of requests of the group running.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns the number of requests of the group waiting for a worker.
+     */
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the number of requests rejected because the group was full.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the number of requests of the group that have run.
+     */
+    public long getCompletedCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    /**
+     * Returns the number of connections open in the pool of the group, 0 if it has no pool of its own.
+     */
+    public int getOpenConnections() {
+        TrackedClientConnManager manager = connectionManager;
+        return manager != null ? manager.getConnectionsInPool() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Bulkhead " + name + ": " + getActiveCount() + "/" + maxWorkers + " active, " + getQueuedCount() + "/"
+                + maxQueued + " queued, " + getRejectedCount() + " rejected, " + getOpenConnections() + "/"
+                + maxConnections + " connections";
+    }
+
+    boolean matches(String host) {
+        host = host.toLowerCase(Locale.US);
+        for (int i = 0; i < hosts.size(); i++) {
+            String pattern = hosts.get(i);
+            if (pattern.charAt(0) == '.' ? host.endsWith(pattern) : host.equals(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gives the group the connection pool and the transport built around it.
+     */
+    void attach(TrackedClientConnManager connectionManager, HttpTransport transport) {
+        if (this.transport != null) {
+            throw new IllegalStateException("Bulkhead " + name + " is already in use by a client");
+        }
+        this.connectionManager = connectionManager;
+        this.transport = transport;
+    }
+
+    TrackedClientConnManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @throws RejectedExecutionException if the workers are busy and the queue is full.
+     */
+    Future<?> submit(Runnable request) {
+        return executor.submit(request);
+    }
+}
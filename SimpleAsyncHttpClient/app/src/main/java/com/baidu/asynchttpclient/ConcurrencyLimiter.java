@@ -0,0 +1,268 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adapts how many requests of an {@link AsyncHttpClient} are in flight at once to each host, or to each key of a
+ * {@link RateLimiter.Key}, see {@link AsyncHttpClient#setConcurrencyLimiter(ConcurrencyLimiter)}. The limit grows by
+ * one for about every limit responses that come back quickly, while the limit is in use. It shrinks by a tenth when
+ * responses take more than twice as long as the shortest seen lately, and by a quarter on errors: failed requests,
+ * 5xx statuses and 429. A request over the limit waits in a queue of the limiter, without holding a worker or a
+ * connection, until a request in flight to the same host completes.
+ * <p>
+ * The time to the response head, from {@link RequestTiming#getResponseMillis()}, is what counts as the round trip.
+ * Override {@link #onLimitChanged(String, int, int)} to watch the limits follow the network.
+ */
+public class ConcurrencyLimiter {
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double LATENCY_BACKOFF = 0.9;
+    private static final double ERROR_BACKOFF = 0.75;
+    // the baseline follows a slower network up by this fraction of the difference on each response
+    private static final double BASELINE_DRIFT = 1.0 / 128;
+
+    private static final int SUCCESS = 0;
+    private static final int FAILURE = 1;
+    private static final int DROPPED = 2;
+
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final RateLimiter.Key key;
+    private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+
+    /**
+     * Starts each host at 4 requests in flight, adapting between 1 and 15, the size of the default connection pool.
+     */
+    public ConcurrencyLimiter() {
+        this(4, 1, 15);
+    }
+
+    /**
+     * @param initialLimit the limit of a host before anything is known about it.
+     * @param minLimit the lowest the limit of a host goes.
+     * @param maxLimit the highest the limit of a host goes, it should not be over the size of the connection pool.
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this(initialLimit, minLimit, maxLimit, RateLimiter.HOST);
+    }
+
+    /**
+     * @param initialLimit the limit of a key before anything is known about it.
+     * @param minLimit the lowest the limit of a key goes.
+     * @param maxLimit the highest the limit of a key goes.
+     * @param key tells which limit each request counts against.
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, RateLimiter.Key key) {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("Invalid limits: " + minLimit + " <= " + initialLimit + " <= "
+                    + maxLimit);
+        }
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.key = key;
+    }
+
+    /**
+     * Returns the current limit of a host, or key.
+     */
+    public int getLimit(String key) {
+        Host host = hosts.get(key);
+        if (host == null) {
+            return initialLimit;
+        }
+        synchronized (host) {
+            return (int) host.limit;
+        }
+    }
+
+    /**
+     * Returns the number of requests in flight to a host, or key.
+     */
+    public int getInFlight(String key) {
+        Host host = hosts.get(key);
+        if (host == null) {
+            return 0;
+        }
+        synchronized (host) {
+            return host.inFlight;
+        }
+    }
+
+    /**
+     * Returns the number of requests waiting for the limit of a host, or key.
+     */
+    public int getQueued(String key) {
+        Host host = hosts.get(key);
+        if (host == null) {
+            return 0;
+        }
+        synchronized (host) {
+            return host.queue.size();
+        }
+    }
+
+    /**
+     * Called when the limit of a host, or key, changes, on the thread that completed the request that changed it.
+     */
+    protected void onLimitChanged(String key, int oldLimit, int newLimit) {
+    }
+
+    /**
+     * Starts the request now if the limit of its host allows, or queues it until it does. The timing of the request
+     * gives the permit back once the request is done.
+     */
+    void acquire(HttpUriRequest request, RequestTiming timing, ThrottledRequest start) {
+        String name = key.keyOf(request);
+        Host host = hosts.get(name);
+        if (host == null) {
+            host = new Host(name, initialLimit);
+            Host existing = hosts.putIfAbsent(name, host);
+            if (existing != null) {
+                host = existing;
+            }
+        }
+        Permit permit = new Permit(host, start);
+        boolean now;
+        synchronized (host) {
+            timing.setPermit(permit);
+            now = host.inFlight < (int) host.limit;
+            if (now) {
+                permit.acquired = true;
+                host.inFlight++;
+            } else {
+                host.queue.add(permit);
+            }
+        }
+        if (now) {
+            try {
+                start.start();
+            } catch (RuntimeException e) {
+                release(permit, FAILURE, -1);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Called once for each permit: when its request completes, fails, is cancelled or could not be started.
+     */
+    void release(Permit permit, RequestTiming timing, boolean failed) {
+        int outcome = failed ? FAILURE : timing.getStatusCode() >= 500 || timing.getStatusCode() == 429 ? FAILURE
+                : timing.getResponseMillis() >= 0 ? SUCCESS : DROPPED;
+        release(permit, outcome, timing.getResponseNanos());
+    }
+
+    private void release(Permit permit, int outcome, long rtt) {
+        Host host = permit.host;
+        int oldLimit;
+        int newLimit;
+        List<Permit> next = null;
+        synchronized (host) {
+            if (permit.released) {
+                return;
+            }
+            permit.released = true;
+            if (!permit.acquired) {
+                host.queue.remove(permit);
+                return;
+            }
+            oldLimit = (int) host.limit;
+            boolean used = host.inFlight * 2 >= host.limit;
+            host.inFlight--;
+            if (outcome == FAILURE) {
+                host.limit = Math.max(minLimit, host.limit * ERROR_BACKOFF);
+            } else if (outcome == SUCCESS) {
+                if (host.baselineNanos == 0 || rtt < host.baselineNanos) {
+                    host.baselineNanos = rtt;
+                } else {
+                    host.baselineNanos += (long) ((rtt - host.baselineNanos) * BASELINE_DRIFT);
+                }
+                if (rtt > host.baselineNanos * LATENCY_TOLERANCE) {
+                    host.limit = Math.max(minLimit, host.limit * LATENCY_BACKOFF);
+                } else if (used) {
+                    host.limit = Math.min(maxLimit, host.limit + 1 / host.limit);
+                }
+            }
+            newLimit = (int) host.limit;
+            while (host.inFlight < newLimit && !host.queue.isEmpty()) {
+                Permit queued = host.queue.removeFirst();
+                queued.acquired = true;
+                host.inFlight++;
+                if (next == null) {
+                    next = new ArrayList<Permit>(2);
+                }
+                next.add(queued);
+            }
+        }
+        if (newLimit != oldLimit) {
+            onLimitChanged(host.name, oldLimit, newLimit);
+        }
+        if (next != null) {
+            for (Permit queued : next) {
+                // one cancelled meanwhile has given its permit back already
+                try {
+                    queued.request.start();
+                } catch (RuntimeException e) {
+                    // the permits after it must still start, and this one must not stay taken
+                    release(queued, FAILURE, -1);
+                }
+            }
+        }
+    }
+
+    private static class Host {
+        final String name;
+        final LinkedList<Permit> queue = new LinkedList<Permit>();
+        double limit;
+        int inFlight;
+        // the shortest time to a response seen lately
+        long baselineNanos;
+
+        Host(String name, int limit) {
+            this.name = name;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * The place of a request in the limit of its host, from when it is queued until it is done.
+     */
+    class Permit {
+        final Host host;
+        final ThrottledRequest request;
+        // both guarded by the host
+        boolean acquired;
+        boolean released;
+
+        Permit(Host host, ThrottledRequest request) {
+            this.host = host;
+            this.request = request;
+        }
+
+        void release(RequestTiming timing, boolean failed) {
+            ConcurrencyLimiter.this.release(this, timing, failed);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.baidu.asynchttpclient;
+
+import android.util.Log;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches the connections leased from the connection pool of an {@link AsyncHttpClient}, see
+ * {@link AsyncHttpClient#setConnectionLeakDetector(ConnectionLeakDetector)}. A connection leaks when it is held longer
+ * than the threshold, or when it is garbage collected without having been given back to the pool. Each leak is passed
+ * to {@link #onLeak(Throwable, long, boolean)} with the stack of the code that leased the connection, and counted in
+ * {@link #getLeakCount()}.
+ * <p>
+ * Leases are checked whenever a connection is leased or given back, and on {@link #check()}.
+ */
+public class ConnectionLeakDetector {
+    private static final String TAG = "ConnectionLeakDetector";
+
+    private final long thresholdNanos;
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+    private final List<Lease> leases = new ArrayList<Lease>();
+    private final AtomicInteger leakCount = new AtomicInteger();
+
+    /**
+     * @param thresholdMillis how long a connection may be held before it is reported.
+     */
+    public ConnectionLeakDetector(long thresholdMillis) {
+        this.thresholdNanos = thresholdMillis * 1000000L;
+    }
+
+    /**
+     * Returns the number of leases reported as leaked so far. A lease held too long and then collected counts once.
+     */
+    public int getLeakCount() {
+        return leakCount.get();
+    }
+
+    /**
+     * Returns the number of connections currently leased from the pool.
+     */
+    public synchronized int getLeasedCount() {
+        return leases.size();
+    }
+
+    /**
+     * Reports the connections held longer than the threshold, and those collected while leased.
+     */
+    public void check() {
+        List<Lease> leaked = new ArrayList<Lease>();
+        List<Lease> lost = new ArrayList<Lease>();
+        long now = System.nanoTime();
+        synchronized (this) {
+            Reference<?> reference;
+            while ((reference = collected.poll()) != null) {
+                // only those still leased, the others were given back before they were collected
+                if (leases.remove(reference)) {
+                    lost.add((Lease) reference);
+                }
+            }
+            for (Lease lease : leases) {
+                if (!lease.reported && now - lease.leasedAt > thresholdNanos) {
+                    lease.reported = true;
+                    leaked.add(lease);
+                }
+            }
+        }
+        for (Lease lease : leaked) {
+            leakCount.incrementAndGet();
+            onLeak(lease.site, (now - lease.leasedAt) / 1000000L, false);
+        }
+        for (Lease lease : lost) {
+            if (!lease.reported) {
+                leakCount.incrementAndGet();
+            }
+            onLeak(lease.site, (now - lease.leasedAt) / 1000000L, true);
+        }
+    }
+
+    /**
+     * Called once a connection is found leaked. Logs a warning by default, override to send it elsewhere.
+     * 
+     * @param leaseSite the stack of the code that leased the connection.
+     * @param heldMillis how long the connection has been held.
+     * @param collected true if the connection was garbage collected without having been given back, false if it is
+     *            still held after the threshold. A connection held too long may be reported again once collected.
+     */
+    protected void onLeak(Throwable leaseSite, long heldMillis, boolean collected) {
+        if (collected) {
+            Log.w(TAG, "Connection collected without being released, leased " + heldMillis + " ms ago", leaseSite);
+        } else {
+            Log.w(TAG, "Connection held for " + heldMillis + " ms", leaseSite);
+        }
+    }
+
+    void leased(Object connection) {
+        synchronized (this) {
+            leases.add(new Lease(connection, collected));
+        }
+        check();
+    }
+
+    void released(Object connection) {
+        synchronized (this) {
+            for (Iterator<Lease> i = leases.iterator(); i.hasNext();) {
+                if (i.next().get() == connection) {
+                    i.remove();
+                    break;
+                }
+            }
+        }
+        check();
+    }
+
+    private static class Lease extends WeakReference<Object> {
+        final Throwable site = new Throwable("Connection leased here");
+        final long leasedAt = System.nanoTime();
+        boolean reported;
+
+        Lease(Object connection, ReferenceQueue<Object> queue) {
+            super(connection, queue);
+        }
+    }
+}
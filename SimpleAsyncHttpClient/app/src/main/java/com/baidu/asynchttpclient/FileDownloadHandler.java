@@ -0,0 +1,476 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import android.os.Handler;
+import android.os.Message;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+/**
+ * Used with {@link AsyncHttpClient#download(android.content.Context, String, File, FileDownloadHandler)} to save a
+ * response body to a file. The body is written to the file on the worker thread, the main thread only receives
+ * {@link #onProgress(long, long)} at most every {@link #setProgressInterval(int) progress interval}, then
+ * {@link #onSuccess(File)} or {@link #onFailure(Throwable, String)}.
+ * <p>
+ * The body is first written to <code>&lt;file&gt;.part</code>, next to the ETag or Last-Modified date of the response
+ * in <code>&lt;file&gt;.part.info</code>, and renamed to the file once complete. If the download fails or is
+ * cancelled, the next download to the same file asks the server for the rest of the body only, with a
+ * <code>Range</code> request guarded by <code>If-Range</code>: if the file changed on the server meanwhile, it is
+ * downloaded again from the start. A download that breaks off half way is also resumed right away by the retries of
+ * the client.
+ * <p>
+ * For example:
+ * <p>
+ * 
+ * <pre>
+ * client.download(context, url, new File(getCacheDir(), &quot;video.mp4&quot;), new FileDownloadHandler() {
+ *     &#064;Override
+ *     public void onProgress(long bytesWritten, long totalBytes) {
+ *         progressBar.setProgress((int) (bytesWritten * 100 / totalBytes));
+ *     }
+ * 
+ *     &#064;Override
+ *     public void onSuccess(File file) {
+ *         play(file);
+ *     }
+ * });
+ * </pre>
+ * 
+ * A handler serves one download at a time.
+ */
+public class FileDownloadHandler extends AsyncHttpResponseHandler {
+    private static final int PROGRESS_MESSAGE = 100;
+    private static final int DOWNLOAD_SUCCESS_MESSAGE = 101;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int DEFAULT_PROGRESS_INTERVAL = 200;
+    private static final String PART_SUFFIX = ".part";
+    private static final String INFO_SUFFIX = ".info";
+    private static final String KEY_VALIDATOR = "validator";
+    private static final String KEY_LENGTH = "length";
+
+    private int progressInterval = DEFAULT_PROGRESS_INTERVAL;
+
+    // set by the client when the download is started
+    private File file;
+
+    // confined to the worker thread
+    private long resumeFrom;
+    private long expectedLength;
+
+    public FileDownloadHandler() {
+        super();
+    }
+
+    public FileDownloadHandler(Handler h) {
+        super(h);
+    }
+
+    /**
+     * Sets how often the progress is reported, 200 milliseconds by default.
+     * 
+     * @param millis the minimum time between two {@link #onProgress(long, long)} calls.
+     */
+    public void setProgressInterval(int millis) {
+        progressInterval = millis;
+    }
+
+    //
+    // Callbacks to be overridden, typically anonymously
+    //
+
+    /**
+     * Fired as the body is written, at most once per progress interval, and once more when the body is complete.
+     * 
+     * @param bytesWritten the number of bytes in the file so far, including those of an earlier attempt.
+     * @param totalBytes the size of the whole file, or -1 if the server did not tell.
+     */
+    public void onProgress(long bytesWritten, long totalBytes) {
+    }
+
+    /**
+     * Fired when the whole body has been written to the file.
+     * 
+     * @param file the downloaded file.
+     */
+    public void onSuccess(File file) {
+    }
+
+    //
+    // Pre-processing of messages (executes in background threadpool thread)
+    //
+
+    protected void sendProgressMessage(long bytesWritten, long totalBytes) {
+        if (!deliver(PROGRESS_MESSAGE, null, null, bytesWritten, totalBytes)) {
+            sendMessage(obtainMessage(PROGRESS_MESSAGE, new long[] { bytesWritten, totalBytes }));
+        }
+    }
+
+    protected void sendDownloadSuccessMessage(File file) {
+        if (!deliver(DOWNLOAD_SUCCESS_MESSAGE, file, null, 0, 0)) {
+            sendMessage(obtainMessage(DOWNLOAD_SUCCESS_MESSAGE, file));
+        }
+    }
+
+    @Override
+    void dispatch(int what, Object a, Object b, long x, long y) {
+        switch (what) {
+            case PROGRESS_MESSAGE:
+                onProgress(x, y);
+                break;
+            case DOWNLOAD_SUCCESS_MESSAGE:
+                onSuccess((File) a);
+                break;
+            default:
+                super.dispatch(what, a, b, x, y);
+                break;
+        }
+    }
+
+    @Override
+    protected void handleMessage(Message msg) {
+        switch (msg.what) {
+            case PROGRESS_MESSAGE:
+                long[] progress = (long[]) msg.obj;
+                onProgress(progress[0], progress[1]);
+                break;
+            case DOWNLOAD_SUCCESS_MESSAGE:
+                onSuccess((File) msg.obj);
+                break;
+            default:
+                super.handleMessage(msg);
+                break;
+        }
+    }
+
+    /**
+     * Binds the handler to a download, called by the client before the request is started.
+     */
+    void setFile(File file) {
+        this.file = file;
+    }
+
+    int getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * Tells whether an earlier download to the file left a part that can be resumed.
+     */
+    boolean hasResumablePart() {
+        return loadInfo().getProperty(KEY_VALIDATOR) != null && partFile().length() > 0;
+    }
+
+    /**
+     * Asks for the rest of a partial download, if there is one that can be resumed.
+     */
+    @Override
+    void beforeExecute(HttpUriRequest request) {
+        request.removeHeaders("Range");
+        request.removeHeaders("If-Range");
+        resumeFrom = 0;
+        expectedLength = -1;
+        File part = partFile();
+        Properties info = loadInfo();
+        String validator = info.getProperty(KEY_VALIDATOR);
+        if (validator != null && part.length() > 0) {
+            resumeFrom = part.length();
+            try {
+                expectedLength = Long.parseLong(info.getProperty(KEY_LENGTH, "-1"));
+            } catch (NumberFormatException e) {
+                expectedLength = -1;
+            }
+            request.setHeader("Range", "bytes=" + resumeFrom + "-");
+            request.setHeader("If-Range", validator);
+        }
+    }
+
+    // Interface to AsyncHttpRequest
+    @Override
+    protected void sendResponseMessage(HttpResponse response) {
+        try {
+            processResponse(response);
+        } catch (IOException e) {
+            sendFailureMessage(e, null);
+        }
+    }
+
+    /**
+     * Writes the body to the file. A failure half way is thrown, so that the request is retried, and resumed.
+     */
+    @Override
+    void processResponse(HttpResponse response) throws IOException {
+        StatusLine status = response.getStatusLine();
+        int statusCode = status.getStatusCode();
+        HttpEntity entity = response.getEntity();
+
+        long offset = 0;
+        if (statusCode == HttpStatus.SC_PARTIAL_CONTENT && resumeFrom > 0) {
+            offset = rangeStart(response);
+            if (offset != resumeFrom) {
+                discardPart();
+                throw new ProtocolException("Unexpected Content-Range, starting over");
+            }
+        } else if (statusCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && resumeFrom > 0
+                && resumeFrom == expectedLength) {
+            // the previous attempt got the whole body but did not get to rename the file
+            consume(entity);
+            complete(resumeFrom);
+            return;
+        } else if (statusCode >= 300) {
+            if (statusCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                discardPart();
+            }
+            String responseBody = entity != null ? readErrorBody(entity) : null;
+            sendFailureMessage(new HttpResponseException(statusCode, status.getReasonPhrase()), responseBody);
+            return;
+        }
+
+        long totalBytes = totalLength(response, entity, offset);
+        saveInfo(validator(response), totalBytes);
+        if (entity == null) {
+            new RandomAccessFile(partFile(), "rw").close();
+            complete(totalBytes < 0 ? 0 : totalBytes);
+            return;
+        }
+        long written = write(entity, offset, totalBytes);
+        if (written < 0) {
+            sendFailureMessage(new InterruptedException("request interupted!"), null);
+            return;
+        }
+        complete(written);
+    }
+
+    /**
+     * Writes the body at the given offset of the part file.
+     * 
+     * @return the length of the part file, or -1 if the download was cancelled.
+     */
+    private long write(HttpEntity entity, long offset, long totalBytes) throws IOException {
+        boolean consumed = false;
+        InputStream in = entity.getContent();
+        RandomAccessFile out = new RandomAccessFile(partFile(), "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            // the server may have sent the whole body instead of the rest
+            channel.truncate(offset);
+            channel.position(offset);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer chunk = ByteBuffer.wrap(buffer);
+            long written = offset;
+            long intervalNanos = progressInterval * 1000000L;
+            long lastProgress = System.nanoTime();
+            sendProgressMessage(written, totalBytes);
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return -1;
+                }
+                chunk.limit(count);
+                chunk.position(0);
+                while (chunk.hasRemaining()) {
+                    written += channel.write(chunk);
+                }
+                long now = System.nanoTime();
+                if (now - lastProgress >= intervalNanos) {
+                    lastProgress = now;
+                    sendProgressMessage(written, totalBytes);
+                }
+            }
+            consumed = true;
+            if (totalBytes >= 0 && written < totalBytes) {
+                // older connections report a body cut short as its end
+                throw new EOFException("Body ended at " + written + " of " + totalBytes + " bytes");
+            }
+            return written;
+        } catch (ClosedByInterruptException e) {
+            return -1;
+        } catch (InterruptedIOException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                return -1;
+            }
+            throw e;
+        } finally {
+            out.close();
+            release(in, consumed);
+        }
+    }
+
+    /**
+     * Closes the content of a response, dropping the connection if the body was not read to the end: closing it
+     * would read the rest of the body first.
+     */
+    static void release(InputStream in, boolean consumed) throws IOException {
+        if (consumed) {
+            in.close();
+        } else if (in instanceof ConnectionReleaseTrigger) {
+            ((ConnectionReleaseTrigger) in).abortConnection();
+        } else {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // the connection is given up anyway
+            }
+        }
+    }
+
+    /**
+     * Moves the complete part file in place and reports the success.
+     */
+    void complete(long length) throws IOException {
+        File part = partFile();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace " + file);
+        }
+        if (!part.renameTo(file)) {
+            throw new IOException("Cannot rename " + part + " to " + file);
+        }
+        infoFile().delete();
+        sendProgressMessage(length, length);
+        sendDownloadSuccessMessage(file);
+    }
+
+    File partFile() {
+        return new File(file.getPath() + PART_SUFFIX);
+    }
+
+    private File infoFile() {
+        return new File(file.getPath() + PART_SUFFIX + INFO_SUFFIX);
+    }
+
+    void discardPart() {
+        partFile().delete();
+        infoFile().delete();
+    }
+
+    private Properties loadInfo() {
+        Properties info = new Properties();
+        File infoFile = infoFile();
+        if (infoFile.exists()) {
+            try {
+                InputStream in = new FileInputStream(infoFile);
+                try {
+                    info.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // start over
+                info.clear();
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Saves what is needed to resume the download, before any of the body is written.
+     */
+    private void saveInfo(String validator, long totalBytes) throws IOException {
+        File infoFile = infoFile();
+        if (validator == null) {
+            // the server gives no way to tell whether the rest would belong to the same file
+            infoFile.delete();
+            return;
+        }
+        Properties info = new Properties();
+        info.setProperty(KEY_VALIDATOR, validator);
+        info.setProperty(KEY_LENGTH, Long.toString(totalBytes));
+        OutputStream out = new FileOutputStream(infoFile);
+        try {
+            info.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the strong ETag of the response, or its Last-Modified date. Weak ETags cannot be used with If-Range.
+     */
+    static String validator(HttpResponse response) {
+        Header etag = response.getFirstHeader("ETag");
+        if (etag != null && !etag.getValue().startsWith("W/")) {
+            return etag.getValue();
+        }
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        return lastModified != null ? lastModified.getValue() : null;
+    }
+
+    /**
+     * Returns the first byte position of a Content-Range header, as in <code>bytes 100-199/200</code>.
+     */
+    static long rangeStart(HttpResponse response) throws IOException {
+        String range = contentRange(response);
+        try {
+            return Long.parseLong(range.substring(range.indexOf(' ') + 1, range.indexOf('-')).trim());
+        } catch (RuntimeException e) {
+            throw new ProtocolException("Invalid Content-Range: " + range);
+        }
+    }
+
+    /**
+     * Returns the size of the whole file, of which the body starts at the given offset, or -1 if it is not known.
+     */
+    static long totalLength(HttpResponse response, HttpEntity entity, long offset) throws IOException {
+        if (response.getStatusLine().getStatusCode() == HttpStatus.SC_PARTIAL_CONTENT) {
+            String range = contentRange(response);
+            String total = range.substring(range.indexOf('/') + 1).trim();
+            try {
+                return "*".equals(total) ? -1 : Long.parseLong(total);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Range: " + range);
+            }
+        }
+        long length = entity != null ? entity.getContentLength() : 0;
+        return length < 0 ? -1 : offset + length;
+    }
+
+    private static String contentRange(HttpResponse response) throws IOException {
+        Header range = response.getFirstHeader("Content-Range");
+        if (range == null || range.getValue().indexOf('/') < 0 || range.getValue().indexOf('-') < 0) {
+            throw new ProtocolException("Invalid Content-Range: " + (range != null ? range.getValue() : null));
+        }
+        return range.getValue();
+    }
+
+    private static void consume(HttpEntity entity) throws IOException {
+        if (entity != null) {
+            entity.consumeContent();
+        }
+    }
+}
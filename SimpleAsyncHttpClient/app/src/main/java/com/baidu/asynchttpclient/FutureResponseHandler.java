@@ -0,0 +1,96 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import android.os.Handler;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.protocol.HTTP;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Collects a response into a {@link Response} and completes a {@link ResponseFuture} with it. The messages are
+ * handled right where they are sent, without going through a {@link Handler}, so the future completes on the thread
+ * that read the response.
+ */
+class FutureResponseHandler extends AsyncHttpResponseHandler {
+    // an unreliable Content-Length must not make us allocate the whole body up front
+    private static final int MAX_INITIAL_CAPACITY = 64 * 1024;
+
+    private final ResponseFuture<Response> future;
+    private StatusLine status;
+    private Header[] headers;
+    private String charset;
+    private ByteArrayOutputStream body;
+    private byte[] errorBody;
+
+    FutureResponseHandler(ResponseFuture<Response> future) {
+        super((Handler) null);
+        this.future = future;
+    }
+
+    @Override
+    void receiveResponseHead(HttpResponse response) {
+        status = response.getStatusLine();
+        headers = response.getAllHeaders();
+        charset = getCharset(response.getFirstHeader(HTTP.CONTENT_TYPE));
+    }
+
+    @Override
+    void receiveErrorBody(byte[] body) {
+        errorBody = body;
+    }
+
+    @Override
+    protected void sendStartMessage() {
+    }
+
+    @Override
+    protected void sendFinishMessage() {
+    }
+
+    @Override
+    protected void sendReceiveStartMessage(int length, String charset) {
+        body = new ByteArrayOutputStream(Math.min(Math.max(length, 0), MAX_INITIAL_CAPACITY));
+    }
+
+    @Override
+    protected void sendReceiveUpdateMessage(byte[] slice, int length) {
+        body.write(slice, 0, length);
+    }
+
+    @Override
+    protected void sendReceiveEndMessage() {
+        future.set(new Response(status, headers, body.toByteArray(), charset));
+    }
+
+    @Override
+    protected void sendFailureMessage(Throwable e, String responseBody) {
+        if (e instanceof InterruptedException) {
+            // the request was cancelled
+            future.cancel(false);
+        } else if (e instanceof HttpResponseException && status != null) {
+            future.setException(new ResponseException(new Response(status, headers, errorBody != null ? errorBody
+                    : new byte[0], charset)));
+        } else {
+            future.setException(e);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Wraps the entity of a response handed to a handler, so that the connection behind it is given back whatever the
+ * handler does with the body. Once the handler is done, {@link #release()} aborts the connection unless the body was
+ * read to the end, consumed or closed, which release the connection already.
+ */
+class GuardedEntity extends HttpEntityWrapper {
+    private GuardedStream content;
+    private boolean consumed;
+    private boolean released;
+
+    GuardedEntity(HttpEntity entity) {
+        super(entity);
+    }
+
+    /**
+     * Guards the entity of the response, if it has one.
+     * 
+     * @return the guard to release once the response has been handled, null if there is no entity.
+     */
+    static GuardedEntity guard(HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return null;
+        }
+        GuardedEntity guarded = new GuardedEntity(entity);
+        response.setEntity(guarded);
+        return guarded;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        if (wrappedEntity.isRepeatable()) {
+            // held in memory, there is no connection behind it
+            return wrappedEntity.getContent();
+        }
+        if (content == null) {
+            InputStream in = wrappedEntity.getContent();
+            if (in == null) {
+                return null;
+            }
+            content = new GuardedStream(in);
+        }
+        return content;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        wrappedEntity.writeTo(out);
+        consumed = true;
+    }
+
+    @Override
+    public void consumeContent() throws IOException {
+        wrappedEntity.consumeContent();
+        consumed = true;
+    }
+
+    /**
+     * Aborts the connection behind the body, unless the body was read to the end or closed. Does nothing the second
+     * time.
+     */
+    void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        if (consumed || wrappedEntity.isRepeatable() || (content != null && content.finished)) {
+            return;
+        }
+        HttpEntity entity = wrappedEntity;
+        while (entity instanceof InflatingEntity) {
+            // reading the gzip header of an unread body would wait for the network
+            entity = ((InflatingEntity) entity).getWrappedEntity();
+        }
+        try {
+            if (entity instanceof ConnectionReleaseTrigger) {
+                // closing the stream would read the rest of the body
+                ((ConnectionReleaseTrigger) entity).abortConnection();
+            } else if (content != null) {
+                content.close();
+            } else {
+                InputStream in = entity.getContent();
+                if (in != null) {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            // the connection is given up anyway
+        } catch (IllegalStateException e) {
+            // the content was taken from the entity behind this one
+        }
+    }
+
+    private static class GuardedStream extends FilterInputStream {
+        boolean finished;
+
+        GuardedStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                finished = true;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n < 0) {
+                finished = true;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            finished = true;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a gzip stream that arrives in pieces, for transports that cannot block on a {@link java.util.zip.GZIPInputStream}.
+ * Only the first member of the stream is decoded, as browsers do.
+ */
+class GzipDecoder {
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_EXTRA_LENGTH = 1;
+    private static final int STATE_EXTRA = 2;
+    private static final int STATE_NAME = 3;
+    private static final int STATE_COMMENT = 4;
+    private static final int STATE_HEADER_CRC = 5;
+    private static final int STATE_DEFLATE = 6;
+    private static final int STATE_TRAILER = 7;
+    private static final int STATE_DONE = 8;
+
+    /**
+     * Receives the decompressed bytes.
+     */
+    interface Output {
+        /**
+         * @param buffer the bytes, only valid during the call.
+         */
+        void write(byte[] buffer, int length);
+    }
+
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] input;
+    private final byte[] output;
+    private final byte[] field = new byte[10];
+    private int fieldLength;
+    private int flags;
+    private int extraRemaining;
+    private int state = STATE_HEADER;
+
+    GzipDecoder(int bufferSize) {
+        input = new byte[bufferSize];
+        output = new byte[bufferSize];
+    }
+
+    /**
+     * Decodes the compressed bytes of the buffer.
+     * 
+     * @throws IOException if the data is not valid gzip.
+     */
+    void decode(ByteBuffer buffer, Output out) throws IOException {
+        while (buffer.hasRemaining() && state != STATE_DONE) {
+            switch (state) {
+                case STATE_HEADER:
+                    if (fill(buffer, 10)) {
+                        if ((field[0] & 0xff) != 0x1f || (field[1] & 0xff) != 0x8b || field[2] != 8) {
+                            throw new ZipException("Not in GZIP format");
+                        }
+                        flags = field[3] & 0xff;
+                        state = STATE_EXTRA_LENGTH;
+                        skipOptionalFields();
+                    }
+                    break;
+                case STATE_EXTRA_LENGTH:
+                    if (fill(buffer, 2)) {
+                        extraRemaining = (field[0] & 0xff) | ((field[1] & 0xff) << 8);
+                        state = STATE_EXTRA;
+                        skipOptionalFields();
+                    }
+                    break;
+                case STATE_EXTRA: {
+                    int count = Math.min(extraRemaining, buffer.remaining());
+                    buffer.position(buffer.position() + count);
+                    extraRemaining -= count;
+                    if (extraRemaining == 0) {
+                        state = STATE_NAME;
+                        skipOptionalFields();
+                    }
+                    break;
+                }
+                case STATE_NAME:
+                case STATE_COMMENT:
+                    if (buffer.get() == 0) {
+                        state++;
+                        skipOptionalFields();
+                    }
+                    break;
+                case STATE_HEADER_CRC:
+                    if (fill(buffer, 2)) {
+                        state = STATE_DEFLATE;
+                    }
+                    break;
+                case STATE_DEFLATE:
+                    inflate(buffer, out);
+                    break;
+                case STATE_TRAILER:
+                    if (fill(buffer, 8)) {
+                        long expected = (field[0] & 0xff) | ((field[1] & 0xff) << 8) | ((field[2] & 0xff) << 16)
+                                | ((long) (field[3] & 0xff) << 24);
+                        if (expected != crc.getValue()) {
+                            throw new ZipException("Corrupt GZIP trailer");
+                        }
+                        state = STATE_DONE;
+                    }
+                    break;
+            }
+        }
+        // anything after the first member is ignored
+        buffer.position(buffer.limit());
+    }
+
+    /**
+     * Checks that the whole stream has been decoded, once the body is complete.
+     * 
+     * @throws IOException if the stream was truncated.
+     */
+    void finish() throws IOException {
+        if (state != STATE_DONE) {
+            throw new ZipException("Unexpected end of GZIP stream");
+        }
+    }
+
+    /**
+     * Releases the native resources of the decoder.
+     */
+    void end() {
+        inflater.end();
+    }
+
+    private void inflate(ByteBuffer buffer, Output out) throws IOException {
+        int count = Math.min(buffer.remaining(), input.length);
+        buffer.get(input, 0, count);
+        inflater.setInput(input, 0, count);
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(output);
+                if (n > 0) {
+                    crc.update(output, 0, n);
+                    out.write(output, n);
+                } else if (inflater.needsInput() || inflater.needsDictionary()) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+        if (inflater.finished()) {
+            // give back what the inflater did not consume, it starts the trailer
+            int unused = inflater.getRemaining();
+            buffer.position(buffer.position() - unused);
+            fieldLength = 0;
+            state = STATE_TRAILER;
+        }
+    }
+
+    private boolean fill(ByteBuffer buffer, int length) {
+        while (fieldLength < length && buffer.hasRemaining()) {
+            field[fieldLength++] = buffer.get();
+        }
+        if (fieldLength < length) {
+            return false;
+        }
+        fieldLength = 0;
+        return true;
+    }
+
+    private void skipOptionalFields() {
+        if (state == STATE_EXTRA_LENGTH && (flags & FEXTRA) == 0) {
+            state = STATE_NAME;
+        }
+        if (state == STATE_NAME && (flags & FNAME) == 0) {
+            state = STATE_COMMENT;
+        }
+        if (state == STATE_COMMENT && (flags & FCOMMENT) == 0) {
+            state = STATE_HEADER_CRC;
+        }
+        if (state == STATE_HEADER_CRC && (flags & FHCRC) == 0) {
+            state = STATE_DEFLATE;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pushes a response received by {@link NioHttpTransport} or {@link Http2Transport} to an
+ * {@link AsyncHttpResponseHandler} as it arrives, with the same sequence of messages the handler sends when it reads
+ * the response on a worker thread. The body of an error response is collected, up to the limit of the handler, and
+ * passed to the failure message. The rest of it is read and dropped without copying, so that the connection can be
+ * reused.
+ */
+class HandlerResponseSink implements ResponseSink, GzipDecoder.Output {
+    private static final int DEFAULT_LENGTH = 4096;
+    private static final int GZIP_BUFFER_SIZE = 8 * 1024;
+    private static final String ENCODING_GZIP = "gzip";
+
+    private final AsyncHttpResponseHandler handler;
+    private final RequestTiming timing;
+    private StatusLine status;
+    private String charset;
+    private GzipDecoder gzip;
+    // reused for every piece of the body when the handler runs its callbacks directly
+    private byte[] segment;
+    private ByteArrayOutputStream errorBody;
+    private int errorBodyLimit;
+    private long errorBodyDrain;
+    private long errorBodySkipped;
+    private boolean bodyStarted;
+    private boolean receivedBody;
+    private boolean finished;
+
+    HandlerResponseSink(AsyncHttpResponseHandler handler, HttpContext context) {
+        this.handler = handler;
+        this.timing = RequestTiming.of(context);
+    }
+
+    public synchronized void onStart() {
+        if (timing != null) {
+            timing.started();
+        }
+        handler.sendStartMessage();
+    }
+
+    public synchronized void onResponseHead(HttpResponse head) {
+        if (finished) {
+            return;
+        }
+        handler.receiveResponseHead(head);
+        status = head.getStatusLine();
+        if (timing != null) {
+            timing.responded(status.getStatusCode());
+        }
+        charset = AsyncHttpResponseHandler.getCharset(head.getFirstHeader(HTTP.CONTENT_TYPE));
+        Header encoding = head.getFirstHeader(HTTP.CONTENT_ENCODING);
+        if (encoding != null && ENCODING_GZIP.equalsIgnoreCase(encoding.getValue())) {
+            gzip = new GzipDecoder(GZIP_BUFFER_SIZE);
+        }
+        long length = -1;
+        Header contentLength = head.getFirstHeader(HTTP.CONTENT_LEN);
+        if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength.getValue().trim());
+            } catch (NumberFormatException e) {
+                // checked by the parser already
+            }
+        }
+        if (status.getStatusCode() >= 300) {
+            errorBodyLimit = handler.getMaxErrorBodySize();
+            errorBodyDrain = length > (long) errorBodyLimit + AsyncHttpResponseHandler.MAX_ERROR_BODY_DRAIN ? 0
+                    : AsyncHttpResponseHandler.MAX_ERROR_BODY_DRAIN;
+            errorBody = new ByteArrayOutputStream(Math.min(errorBodyLimit, DEFAULT_LENGTH));
+            return;
+        }
+
+        // the decoded length of a compressed body is unknown
+        if (gzip != null) {
+            length = -1;
+        }
+        handler.sendReceiveStartMessage(length < 0 || length > Integer.MAX_VALUE ? DEFAULT_LENGTH : (int) length,
+                charset);
+    }
+
+    public synchronized boolean onResponseBody(ByteBuffer body) throws IOException {
+        if (finished) {
+            return true;
+        }
+        bodyStarted = true;
+        if (errorBody != null && errorBody.size() >= errorBodyLimit) {
+            if (gzip != null) {
+                // what is left is dropped undecoded
+                gzip.end();
+                gzip = null;
+            }
+            errorBodySkipped += body.remaining();
+            if (errorBodySkipped > errorBodyDrain) {
+                // opening a new connection costs less than reading the rest, the failure closes this one
+                finishError();
+                throw new IOException("Error response body too large, closing the connection");
+            }
+            return true;
+        }
+        if (gzip != null) {
+            gzip.decode(body, this);
+        } else {
+            int length = body.remaining();
+            byte[] slice;
+            if (handler.deliversDirectly()) {
+                if (segment == null || segment.length < length) {
+                    segment = new byte[length];
+                }
+                slice = segment;
+            } else {
+                slice = new byte[length];
+            }
+            body.get(slice, 0, length);
+            deliver(slice, length);
+        }
+        return true;
+    }
+
+    public void write(byte[] buffer, int length) {
+        deliver(handler.deliversDirectly() ? buffer : Arrays.copyOf(buffer, length), length);
+    }
+
+    public synchronized void onResponseComplete() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (gzip != null) {
+            gzip.end();
+            if (bodyStarted) {
+                gzip.finish();
+            }
+        }
+        if (errorBody != null) {
+            finishError();
+            return;
+        }
+        if (!receivedBody) {
+            handler.sendReceiveUpdateMessage(new byte[0], 0);
+        }
+        handler.sendReceiveEndMessage();
+        finished = true;
+        finishTiming(false);
+        handler.sendFinishMessage();
+    }
+
+    public synchronized void onFailure(IOException e) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (gzip != null) {
+            gzip.end();
+        }
+        handler.sendFailureMessage(e, e.toString());
+        finishTiming(true);
+        handler.sendFinishMessage();
+    }
+
+    public synchronized void onCancel() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (gzip != null) {
+            gzip.end();
+        }
+        handler.sendFailureMessage(new InterruptedException("request interupted!"), null);
+        finishTiming(false);
+        handler.sendFinishMessage();
+    }
+
+    private void finishError() throws IOException {
+        byte[] bytes = errorBody.toByteArray();
+        handler.receiveErrorBody(bytes);
+        String responseBody = bytes.length > 0 ? new String(bytes, charset != null ? charset
+                : HTTP.DEFAULT_CONTENT_CHARSET) : null;
+        handler.sendFailureMessage(new HttpResponseException(status.getStatusCode(), status.getReasonPhrase()),
+                responseBody);
+        finished = true;
+        finishTiming(false);
+        handler.sendFinishMessage();
+    }
+
+    private void finishTiming(boolean failed) {
+        if (timing != null) {
+            timing.finished(failed);
+        }
+    }
+
+    private void deliver(byte[] slice, int length) {
+        if (errorBody != null) {
+            errorBody.write(slice, 0, Math.min(length, errorBodyLimit - errorBody.size()));
+        } else {
+            receivedBody = true;
+            handler.sendReceiveUpdateMessage(slice, length);
+        }
+    }
+}
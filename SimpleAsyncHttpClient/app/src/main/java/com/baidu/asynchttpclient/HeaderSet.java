@@ -0,0 +1,131 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicLineFormatter;
+import org.apache.http.message.BufferedHeader;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of headers, such as the default headers of an {@link AsyncHttpClient}, see
+ * {@link AsyncHttpClient#setDefaultHeaders(HeaderSet)}. Each header is formatted once, when it is added, and written
+ * as it is to every request the set is applied to. A set can be shared by any number of clients and threads.
+ * <p>
+ * For example:
+ * <p>
+ * 
+ * <pre>
+ * HeaderSet headers = HeaderSet.EMPTY.with(&quot;X-Platform&quot;, &quot;android&quot;)
+ *         .with(&quot;X-Version&quot;, &quot;3&quot;);
+ * client.setDefaultHeaders(headers);
+ * </pre>
+ */
+public final class HeaderSet {
+    public static final HeaderSet EMPTY = new HeaderSet(new Header[0]);
+
+    private final Header[] headers;
+
+    private HeaderSet(Header[] headers) {
+        this.headers = headers;
+    }
+
+    /**
+     * Returns a set with the header added, in place of any header of the same name.
+     * 
+     * @param name the name of the header.
+     * @param value the value of the header.
+     */
+    public HeaderSet with(String name, String value) {
+        Header header = new BufferedHeader(BasicLineFormatter.DEFAULT.formatHeader(null, new BasicHeader(name, value)));
+        int index = indexOf(name);
+        Header[] copy;
+        if (index >= 0) {
+            copy = headers.clone();
+            copy[index] = header;
+        } else {
+            copy = Arrays.copyOf(headers, headers.length + 1);
+            copy[headers.length] = header;
+        }
+        return new HeaderSet(copy);
+    }
+
+    /**
+     * Returns a set without the header of that name.
+     * 
+     * @param name the name of the header.
+     */
+    public HeaderSet without(String name) {
+        int index = indexOf(name);
+        if (index < 0) {
+            return this;
+        }
+        Header[] copy = new Header[headers.length - 1];
+        System.arraycopy(headers, 0, copy, 0, index);
+        System.arraycopy(headers, index + 1, copy, index, copy.length - index);
+        return new HeaderSet(copy);
+    }
+
+    /**
+     * Returns the header of that name, null if there is none.
+     * 
+     * @param name the name of the header.
+     */
+    public Header get(String name) {
+        int index = indexOf(name);
+        return index >= 0 ? headers[index] : null;
+    }
+
+    public int size() {
+        return headers.length;
+    }
+
+    /**
+     * Returns the headers of the set, in the order they were added.
+     */
+    public Header[] getHeaders() {
+        return headers.clone();
+    }
+
+    /**
+     * Adds the headers to the request, except those it already has a header of the same name for.
+     */
+    void applyTo(HttpRequest request) {
+        for (Header header : headers) {
+            if (!request.containsHeader(header.getName())) {
+                request.addHeader(header);
+            }
+        }
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < headers.length; i++) {
+            if (headers[i].getName().equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(headers);
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2, RFC 7541. Header names and values are handled as strings of 8 bit
+ * characters, like the HTTP/1.1 transports do.
+ */
+final class Hpack {
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_TABLE = {
+            { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+            { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+            { ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+            { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+            { "accept-encoding", "gzip, deflate" }, { "accept-language", "" }, { "accept-ranges", "" },
+            { "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+            { "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+            { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+            { "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+            { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" }, { "host", "" },
+            { "if-match", "" }, { "if-modified-since", "" }, { "if-none-match", "" }, { "if-range", "" },
+            { "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" }, { "location", "" },
+            { "max-forwards", "" }, { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" },
+            { "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+            { "strict-transport-security", "" }, { "transfer-encoding", "" }, { "user-agent", "" },
+            { "vary", "" }, { "via", "" }, { "www-authenticate", "" } };
+
+    // 1-based indexes of the static table, by name and by name and value
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+    private static final Map<String, Integer> STATIC_ENTRIES = new HashMap<String, Integer>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_ENTRIES.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * The dynamic table, newest entry first as seen from the outside.
+     */
+    private static class DynamicTable {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int head;
+        private int count;
+        private int size;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        int count() {
+            return count;
+        }
+
+        /**
+         * @param index 0 for the newest entry.
+         */
+        String name(int index) {
+            return names[slot(index)];
+        }
+
+        String value(int index) {
+            return values[slot(index)];
+        }
+
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            if (entrySize > maxSize) {
+                // an entry larger than the table empties it
+                clear();
+                return;
+            }
+            while (size + entrySize > maxSize) {
+                evict();
+            }
+            if (count == names.length) {
+                grow();
+            }
+            head = (head + names.length - 1) % names.length;
+            names[head] = name;
+            values[head] = value;
+            count++;
+            size += entrySize;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            while (size > maxSize) {
+                evict();
+            }
+        }
+
+        private void evict() {
+            int oldest = slot(count - 1);
+            size -= names[oldest].length() + values[oldest].length() + ENTRY_OVERHEAD;
+            names[oldest] = null;
+            values[oldest] = null;
+            count--;
+        }
+
+        private void clear() {
+            while (count > 0) {
+                evict();
+            }
+        }
+
+        private int slot(int index) {
+            return (head + index) % names.length;
+        }
+
+        private void grow() {
+            String[] newNames = new String[names.length * 2];
+            String[] newValues = new String[names.length * 2];
+            for (int i = 0; i < count; i++) {
+                newNames[i] = name(i);
+                newValues[i] = value(i);
+            }
+            names = newNames;
+            values = newValues;
+            head = 0;
+        }
+    }
+
+    /**
+     * Decodes header blocks. Its dynamic table follows the encoder of the peer, so all header blocks of a connection
+     * must be decoded, in order, by the same decoder.
+     */
+    static class Decoder {
+        private final DynamicTable table;
+        private final int maxTableSize;
+
+        /**
+         * @param maxTableSize the header table size advertised to the peer.
+         */
+        Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            table = new DynamicTable(maxTableSize);
+        }
+
+        /**
+         * Decodes a header block into a list of names followed by their values.
+         */
+        List<String> decode(byte[] block, int offset, int length) throws IOException {
+            List<String> headers = new ArrayList<String>();
+            int[] position = { offset };
+            int end = offset + length;
+            while (position[0] < end) {
+                int b = block[position[0]] & 0xff;
+                if ((b & 0x80) != 0) {
+                    // indexed field
+                    int index = readInt(block, position, end, 7);
+                    headers.add(name(index));
+                    headers.add(value(index));
+                } else if ((b & 0x40) != 0) {
+                    // literal with incremental indexing
+                    String name = readName(block, position, end, 6);
+                    String value = readString(block, position, end);
+                    table.add(name, value);
+                    headers.add(name);
+                    headers.add(value);
+                } else if ((b & 0x20) != 0) {
+                    int size = readInt(block, position, end, 5);
+                    if (size > maxTableSize) {
+                        throw new ProtocolException("Header table size update above the limit: " + size);
+                    }
+                    table.setMaxSize(size);
+                } else {
+                    // literal without indexing or never indexed
+                    String name = readName(block, position, end, 4);
+                    headers.add(name);
+                    headers.add(readString(block, position, end));
+                }
+            }
+            return headers;
+        }
+
+        private String readName(byte[] block, int[] position, int end, int prefix) throws IOException {
+            int index = readInt(block, position, end, prefix);
+            return index == 0 ? readString(block, position, end) : name(index);
+        }
+
+        private String name(int index) throws IOException {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][0];
+            }
+            return table.name(dynamicIndex(index));
+        }
+
+        private String value(int index) throws IOException {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][1];
+            }
+            return table.value(dynamicIndex(index));
+        }
+
+        private int dynamicIndex(int index) throws IOException {
+            int dynamic = index - STATIC_TABLE.length - 1;
+            if (dynamic < 0 || dynamic >= table.count()) {
+                throw new ProtocolException("Invalid header index " + index);
+            }
+            return dynamic;
+        }
+
+        private static String readString(byte[] block, int[] position, int end) throws IOException {
+            if (position[0] >= end) {
+                throw new ProtocolException("Truncated header block");
+            }
+            boolean huffman = (block[position[0]] & 0x80) != 0;
+            int length = readInt(block, position, end, 7);
+            if (length > end - position[0]) {
+                throw new ProtocolException("Truncated header block");
+            }
+            String s;
+            if (huffman) {
+                s = Huffman.decode(block, position[0], length);
+            } else {
+                char[] chars = new char[length];
+                for (int i = 0; i < length; i++) {
+                    chars[i] = (char) (block[position[0] + i] & 0xff);
+                }
+                s = new String(chars);
+            }
+            position[0] += length;
+            return s;
+        }
+
+        private static int readInt(byte[] block, int[] position, int end, int prefix) throws IOException {
+            int max = (1 << prefix) - 1;
+            int value = block[position[0]++] & max;
+            if (value < max) {
+                return value;
+            }
+            int shift = 0;
+            while (true) {
+                if (position[0] >= end) {
+                    throw new ProtocolException("Truncated header block");
+                }
+                int b = block[position[0]++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                shift += 7;
+                if (shift > 28 || value < 0) {
+                    throw new ProtocolException("Header integer overflow");
+                }
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Encodes header blocks, indexing repeated headers in its dynamic table so that they cost a byte or two in
+     * later blocks. Header blocks must be sent in the order they are encoded.
+     */
+    static class Encoder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        private final DynamicTable table;
+        private int maxTableSize;
+        private int pendingTableSize = -1;
+
+        Encoder() {
+            maxTableSize = Http2.DEFAULT_HEADER_TABLE_SIZE;
+            table = new DynamicTable(maxTableSize);
+        }
+
+        /**
+         * Applies the header table size setting of the peer, announced at the start of the next block.
+         */
+        void setMaxTableSize(int size) {
+            size = Math.min(size, Http2.DEFAULT_HEADER_TABLE_SIZE);
+            if (size != maxTableSize) {
+                maxTableSize = size;
+                pendingTableSize = pendingTableSize < 0 ? size : Math.min(pendingTableSize, size);
+                table.setMaxSize(size);
+            }
+        }
+
+        /**
+         * Starts a new header block.
+         */
+        void begin() {
+            out.reset();
+            if (pendingTableSize >= 0) {
+                writeInt(0x20, 5, pendingTableSize);
+                pendingTableSize = -1;
+            }
+        }
+
+        /**
+         * Adds a header to the block. The name must be lower case.
+         * 
+         * @param indexing whether the header is worth remembering for later blocks. Values that change from
+         *            request to request, or secrets, should not be indexed.
+         */
+        void header(String name, String value, boolean indexing) {
+            Integer exact = STATIC_ENTRIES.get(name + '\0' + value);
+            int nameIndex = 0;
+            if (exact == null) {
+                for (int i = 0; i < table.count(); i++) {
+                    if (table.name(i).equals(name)) {
+                        if (table.value(i).equals(value)) {
+                            exact = STATIC_TABLE.length + 1 + i;
+                            break;
+                        }
+                        if (nameIndex == 0) {
+                            nameIndex = STATIC_TABLE.length + 1 + i;
+                        }
+                    }
+                }
+            }
+            if (exact != null) {
+                writeInt(0x80, 7, exact);
+                return;
+            }
+            Integer staticName = STATIC_NAMES.get(name);
+            if (staticName != null) {
+                nameIndex = staticName;
+            }
+
+            if (indexing) {
+                writeInt(0x40, 6, nameIndex);
+            } else {
+                // never indexed, so that intermediaries do not index it either
+                writeInt(0x10, 4, nameIndex);
+            }
+            if (nameIndex == 0) {
+                writeString(name);
+            }
+            writeString(value);
+            if (indexing) {
+                table.add(name, value);
+            }
+        }
+
+        /**
+         * Returns the encoded block, valid until the next call to {@link #begin()}.
+         */
+        byte[] buffer() {
+            return out.toByteArray();
+        }
+
+        private void writeString(String s) {
+            int huffmanLength = Huffman.encodedLength(s);
+            if (huffmanLength < s.length()) {
+                writeInt(0x80, 7, huffmanLength);
+                Huffman.encode(s, out);
+            } else {
+                writeInt(0, 7, s.length());
+                for (int i = 0; i < s.length(); i++) {
+                    out.write(s.charAt(i));
+                }
+            }
+        }
+
+        private void writeInt(int pattern, int prefix, int value) {
+            int max = (1 << prefix) - 1;
+            if (value < max) {
+                out.write(pattern | value);
+                return;
+            }
+            out.write(pattern | max);
+            value -= max;
+            while (value >= 0x80) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+}
@@ -0,0 +1,961 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HTTP;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An HTTP/2 connection of {@link Http2Transport}, multiplexing the requests to a host. A reader thread parses the
+ * incoming frames and pushes responses to the sinks of their streams; a single writer thread connects, encodes
+ * headers, and writes all outgoing frames, so that header blocks and stream ids go out in order.
+ */
+class Http2Connection implements Runnable {
+    private static final int STATE_CONNECTING = 0;
+    private static final int STATE_READY = 1;
+    private static final int STATE_DRAINING = 2;
+    private static final int STATE_CLOSED = 3;
+
+    private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+    private static final int STREAM_WINDOW = 256 * 1024;
+    private static final int CONNECTION_WINDOW = 1024 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    // request headers that have no meaning in HTTP/2, RFC 7540 section 8.1.2.2
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<String>();
+
+    static {
+        CONNECTION_HEADERS.add("connection");
+        CONNECTION_HEADERS.add("keep-alive");
+        CONNECTION_HEADERS.add("proxy-connection");
+        CONNECTION_HEADERS.add("transfer-encoding");
+        CONNECTION_HEADERS.add("upgrade");
+        CONNECTION_HEADERS.add("host");
+        CONNECTION_HEADERS.add("content-length");
+    }
+
+    final Http2Transport transport;
+    final Http2Transport.Route route;
+    private final ExecutorService writer;
+
+    // confined to the writer thread
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private Socket socket;
+    private Http2FrameWriter frameWriter;
+    private boolean readerStarted;
+    private IOException writeFailure;
+
+    // confined to the reader thread
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Http2.DEFAULT_HEADER_TABLE_SIZE);
+    private Http2FrameReader frameReader;
+    private ByteArrayOutputStream headerBlock;
+    private int headerBlockStreamId;
+    private boolean headerBlockEndStream;
+    private int connectionUnacknowledged;
+    private long lastFrameAt;
+
+    // guarded by this
+    private final Map<Integer, Http2Stream> streams = new HashMap<Integer, Http2Stream>();
+    private final ArrayDeque<Http2Stream> waiting = new ArrayDeque<Http2Stream>();
+    private int state = STATE_CONNECTING;
+    private int nextStreamId = 1;
+    private int maxConcurrentStreams = Integer.MAX_VALUE;
+    private int peerInitialWindow = Http2.DEFAULT_INITIAL_WINDOW_SIZE;
+    private int peerMaxFrameSize = Http2.DEFAULT_MAX_FRAME_SIZE;
+    private long sendWindow = Http2.DEFAULT_INITIAL_WINDOW_SIZE;
+    // when the connection last went idle, or busy again
+    private long idleSince = NioSelectorLoop.now();
+
+    Http2Connection(Http2Transport transport, Http2Transport.Route route) {
+        this.transport = transport;
+        this.route = route;
+        final String name = route.toString();
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Http2 writer " + name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Connects in the background. Streams submitted meanwhile wait for the server settings.
+     */
+    void start() {
+        post(new WriterTask() {
+            public void write() throws IOException {
+                socket = transport.openSocket(route);
+                socket.setTcpNoDelay(true);
+                // woken up by the shorter of both timeouts, readFrame() tells them apart
+                socket.setSoTimeout(Math.min(transport.getReadTimeout(), transport.getKeepAliveDuration()));
+                frameReader = new Http2FrameReader(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE),
+                        Http2.DEFAULT_MAX_FRAME_SIZE);
+                BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+                out.write(Http2.CONNECTION_PREFACE);
+                frameWriter = new Http2FrameWriter(out);
+                frameWriter.writeSettings(Http2.SETTINGS_ENABLE_PUSH, 0, Http2.SETTINGS_INITIAL_WINDOW_SIZE,
+                        STREAM_WINDOW);
+                frameWriter.writeWindowUpdate(0, CONNECTION_WINDOW - Http2.DEFAULT_INITIAL_WINDOW_SIZE);
+                frameWriter.flush();
+
+                Thread reader = new Thread(Http2Connection.this, "Http2 reader " + route);
+                reader.setDaemon(true);
+                reader.start();
+                readerStarted = true;
+            }
+        });
+    }
+
+    /**
+     * Queues a stream on this connection.
+     * 
+     * @return false if the connection no longer accepts streams.
+     */
+    boolean submit(Http2Stream stream) {
+        synchronized (this) {
+            if (state == STATE_DRAINING || state == STATE_CLOSED) {
+                return false;
+            }
+            if (!stream.assign(this)) {
+                // cancelled meanwhile
+                return true;
+            }
+            waiting.add(stream);
+            if (state != STATE_READY) {
+                return true;
+            }
+        }
+        post(new WriterTask() {
+            public void write() throws IOException {
+                dispatchWaiting();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Takes a cancelled stream off the connection, resetting it if it has been sent.
+     */
+    void cancel(final Http2Stream stream) {
+        boolean reset;
+        synchronized (this) {
+            if (waiting.remove(stream)) {
+                reset = false;
+            } else if (stream.id != 0 && streams.get(stream.id) == stream) {
+                streams.remove(stream.id);
+                streamClosed();
+                reset = true;
+            } else {
+                return;
+            }
+        }
+        if (reset) {
+            post(new WriterTask() {
+                public void write() throws IOException {
+                    frameWriter.writeRstStream(stream.id, Http2.CANCEL);
+                    dispatchWaiting();
+                }
+            });
+        }
+        stream.aborted();
+    }
+
+    /**
+     * Opens the stream window again once the sink has caught up.
+     */
+    void resume(final Http2Stream stream) {
+        post(new WriterTask() {
+            public void write() throws IOException {
+                int increment;
+                synchronized (Http2Connection.this) {
+                    stream.paused = false;
+                    increment = streams.get(stream.id) == stream ? stream.unacknowledged : 0;
+                    stream.unacknowledged = 0;
+                }
+                if (increment > 0) {
+                    frameWriter.writeWindowUpdate(stream.id, increment);
+                    frameWriter.flush();
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the connection, failing the streams on it.
+     */
+    void shutdown(IOException reason) {
+        fail(reason);
+    }
+
+    /**
+     * The reader loop.
+     */
+    public void run() {
+        try {
+            try {
+                frameReader.readFrame();
+                if (frameReader.type != Http2.TYPE_SETTINGS || (frameReader.flags & Http2.FLAG_ACK) != 0) {
+                    throw new ProtocolException("Expected SETTINGS but got frame type " + frameReader.type);
+                }
+            } catch (SocketTimeoutException e) {
+                throw e;
+            } catch (IOException e) {
+                // with prior knowledge, anything but the server preface means that the server only speaks HTTP/1.x
+                if (route.secure) {
+                    throw e;
+                }
+                throw new Http2Transport.ProtocolNotSupportedException("No HTTP/2 connection preface from " + route,
+                        e);
+            }
+            readSettings();
+
+            while (readFrame()) {
+                if (headerBlock != null && frameReader.type != Http2.TYPE_CONTINUATION) {
+                    throw new ProtocolException("Expected CONTINUATION but got frame type " + frameReader.type);
+                }
+                switch (frameReader.type) {
+                    case Http2.TYPE_DATA:
+                        readData();
+                        break;
+                    case Http2.TYPE_HEADERS:
+                        readHeaders();
+                        break;
+                    case Http2.TYPE_CONTINUATION:
+                        readContinuation();
+                        break;
+                    case Http2.TYPE_RST_STREAM:
+                        readRstStream();
+                        break;
+                    case Http2.TYPE_SETTINGS:
+                        readSettings();
+                        break;
+                    case Http2.TYPE_PING:
+                        readPing();
+                        break;
+                    case Http2.TYPE_GOAWAY:
+                        readGoAway();
+                        break;
+                    case Http2.TYPE_WINDOW_UPDATE:
+                        readWindowUpdate();
+                        break;
+                    case Http2.TYPE_PUSH_PROMISE:
+                        throw new ProtocolException("PUSH_PROMISE although push is disabled");
+                    default:
+                        // PRIORITY and unknown frame types are ignored
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Reads the next frame, closing the connection once it has been idle for too long.
+     * 
+     * @return false if the connection has been closed for idleness.
+     */
+    private boolean readFrame() throws IOException {
+        while (true) {
+            try {
+                frameReader.readFrame();
+                lastFrameAt = NioSelectorLoop.now();
+                return true;
+            } catch (SocketTimeoutException e) {
+                long now = NioSelectorLoop.now();
+                synchronized (this) {
+                    if (state == STATE_CLOSED) {
+                        return false;
+                    }
+                    if (!streams.isEmpty() || !waiting.isEmpty()) {
+                        if (now - Math.max(lastFrameAt, idleSince) < transport.getReadTimeout()) {
+                            continue;
+                        }
+                        throw e;
+                    }
+                    if (now - idleSince < transport.getKeepAliveDuration()) {
+                        continue;
+                    }
+                    state = STATE_DRAINING;
+                }
+                transport.forget(this);
+                closeGracefully();
+                return false;
+            }
+        }
+    }
+
+    private void readData() throws IOException {
+        int length = frameReader.length;
+        int offset = 0;
+        int padding = 0;
+        if ((frameReader.flags & Http2.FLAG_PADDED) != 0) {
+            padding = frameReader.payload[0] & 0xff;
+            offset = 1;
+        }
+        int dataLength = length - offset - padding;
+        if (dataLength < 0) {
+            throw new ProtocolException("Invalid padding");
+        }
+
+        // the connection window is replenished whatever happens to the stream
+        connectionUnacknowledged += length;
+        if (connectionUnacknowledged >= CONNECTION_WINDOW / 2) {
+            final int increment = connectionUnacknowledged;
+            connectionUnacknowledged = 0;
+            post(new WriterTask() {
+                public void write() throws IOException {
+                    frameWriter.writeWindowUpdate(0, increment);
+                    frameWriter.flush();
+                }
+            });
+        }
+
+        final Http2Stream stream = stream(frameReader.streamId);
+        if (stream == null || !stream.responseStarted) {
+            return;
+        }
+        boolean more = true;
+        if (dataLength > 0 && stream.isActive()) {
+            try {
+                more = stream.sink.onResponseBody(ByteBuffer.wrap(frameReader.payload, offset, dataLength));
+            } catch (IOException e) {
+                resetStream(stream, Http2.CANCEL);
+                stream.fail(e);
+                return;
+            }
+        }
+        boolean endStream = (frameReader.flags & Http2.FLAG_END_STREAM) != 0;
+        int increment = 0;
+        synchronized (this) {
+            stream.unacknowledged += length;
+            if (!more) {
+                stream.paused = true;
+            }
+            if (!stream.paused && !endStream && stream.unacknowledged >= STREAM_WINDOW / 2) {
+                increment = stream.unacknowledged;
+                stream.unacknowledged = 0;
+            }
+        }
+        if (increment > 0) {
+            final int streamIncrement = increment;
+            post(new WriterTask() {
+                public void write() throws IOException {
+                    frameWriter.writeWindowUpdate(stream.id, streamIncrement);
+                    frameWriter.flush();
+                }
+            });
+        }
+        if (endStream) {
+            completeStream(stream);
+        }
+    }
+
+    private void readHeaders() throws IOException {
+        int length = frameReader.length;
+        int offset = 0;
+        int padding = 0;
+        if ((frameReader.flags & Http2.FLAG_PADDED) != 0) {
+            padding = frameReader.payload[0] & 0xff;
+            offset = 1;
+        }
+        if ((frameReader.flags & Http2.FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        int fragmentLength = length - offset - padding;
+        if (fragmentLength < 0) {
+            throw new ProtocolException("Invalid padding");
+        }
+        boolean endStream = (frameReader.flags & Http2.FLAG_END_STREAM) != 0;
+        if ((frameReader.flags & Http2.FLAG_END_HEADERS) != 0) {
+            readHeaderBlock(frameReader.streamId, frameReader.payload, offset, fragmentLength, endStream);
+        } else {
+            headerBlock = new ByteArrayOutputStream(fragmentLength * 2);
+            headerBlock.write(frameReader.payload, offset, fragmentLength);
+            headerBlockStreamId = frameReader.streamId;
+            headerBlockEndStream = endStream;
+        }
+    }
+
+    private void readContinuation() throws IOException {
+        if (headerBlock == null || frameReader.streamId != headerBlockStreamId) {
+            throw new ProtocolException("Unexpected CONTINUATION");
+        }
+        headerBlock.write(frameReader.payload, 0, frameReader.length);
+        if ((frameReader.flags & Http2.FLAG_END_HEADERS) != 0) {
+            byte[] block = headerBlock.toByteArray();
+            headerBlock = null;
+            readHeaderBlock(headerBlockStreamId, block, 0, block.length, headerBlockEndStream);
+        }
+    }
+
+    private void readHeaderBlock(int streamId, byte[] block, int offset, int length, boolean endStream)
+            throws IOException {
+        // decoded even for streams that are gone, to keep the header table in sync with the server
+        List<String> headers = decoder.decode(block, offset, length);
+        Http2Stream stream = stream(streamId);
+        if (stream == null) {
+            return;
+        }
+
+        if (!stream.responseStarted) {
+            String status = null;
+            for (int i = 0; i < headers.size(); i += 2) {
+                if (":status".equals(headers.get(i))) {
+                    status = headers.get(i + 1);
+                }
+            }
+            int statusCode;
+            try {
+                statusCode = Integer.parseInt(status);
+            } catch (NumberFormatException e) {
+                resetStream(stream, Http2.PROTOCOL_ERROR);
+                stream.fail(new ProtocolException("Invalid :status " + status));
+                return;
+            }
+            if (statusCode >= 100 && statusCode < 200) {
+                // interim response, the real one follows
+                return;
+            }
+
+            BasicHttpResponse response = new BasicHttpResponse(HTTP_2, statusCode,
+                    EnglishReasonPhraseCatalog.INSTANCE.getReason(statusCode, Locale.US));
+            for (int i = 0; i < headers.size(); i += 2) {
+                if (headers.get(i).charAt(0) != ':') {
+                    response.addHeader(headers.get(i), headers.get(i + 1));
+                }
+            }
+            stream.responseStarted = true;
+            if (stream.isActive()) {
+                try {
+                    stream.sink.onResponseHead(response);
+                } catch (IOException e) {
+                    resetStream(stream, Http2.CANCEL);
+                    stream.fail(e);
+                    return;
+                }
+            }
+        }
+        // anything else is trailers, which are dropped
+        if (endStream) {
+            completeStream(stream);
+        }
+    }
+
+    private void readRstStream() throws IOException {
+        int errorCode = frameReader.readInt(0);
+        Http2Stream stream;
+        synchronized (this) {
+            stream = streams.remove(frameReader.streamId);
+            if (stream != null) {
+                streamClosed();
+            }
+        }
+        if (stream == null) {
+            return;
+        }
+        if (errorCode == Http2.REFUSED_STREAM && !stream.responseStarted) {
+            // not processed by the server, safe to send again
+            transport.retry(stream, new IOException("Stream refused by the server"));
+        } else {
+            stream.fail(new IOException("Stream reset by the server, error code " + errorCode));
+        }
+        post(new WriterTask() {
+            public void write() throws IOException {
+                dispatchWaiting();
+            }
+        });
+    }
+
+    private void readSettings() throws IOException {
+        if ((frameReader.flags & Http2.FLAG_ACK) != 0) {
+            return;
+        }
+        int headerTableSize = -1;
+        synchronized (this) {
+            for (int i = 0; i + 6 <= frameReader.length; i += 6) {
+                int id = ((frameReader.payload[i] & 0xff) << 8) | (frameReader.payload[i + 1] & 0xff);
+                int value = frameReader.readInt(i + 2);
+                switch (id) {
+                    case Http2.SETTINGS_HEADER_TABLE_SIZE:
+                        headerTableSize = value;
+                        break;
+                    case Http2.SETTINGS_MAX_CONCURRENT_STREAMS:
+                        maxConcurrentStreams = value;
+                        break;
+                    case Http2.SETTINGS_INITIAL_WINDOW_SIZE:
+                        if (value < 0) {
+                            throw new ProtocolException("Invalid initial window size " + value);
+                        }
+                        int delta = value - peerInitialWindow;
+                        peerInitialWindow = value;
+                        for (Http2Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                        }
+                        break;
+                    case Http2.SETTINGS_MAX_FRAME_SIZE:
+                        if (value < Http2.DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                            throw new ProtocolException("Invalid max frame size " + value);
+                        }
+                        peerMaxFrameSize = value;
+                        break;
+                    default:
+                        // ENABLE_PUSH and MAX_HEADER_LIST_SIZE do not matter to a client
+                        break;
+                }
+            }
+            if (state == STATE_CONNECTING) {
+                state = STATE_READY;
+            }
+        }
+
+        final int tableSize = headerTableSize;
+        post(new WriterTask() {
+            public void write() throws IOException {
+                if (tableSize >= 0) {
+                    encoder.setMaxTableSize(tableSize);
+                }
+                frameWriter.writeSettingsAck();
+                dispatchWaiting();
+                flushData();
+            }
+        });
+    }
+
+    private void readPing() {
+        if ((frameReader.flags & Http2.FLAG_ACK) != 0) {
+            return;
+        }
+        final byte[] payload = new byte[8];
+        System.arraycopy(frameReader.payload, 0, payload, 0, 8);
+        post(new WriterTask() {
+            public void write() throws IOException {
+                frameWriter.writePingAck(payload, 0);
+                frameWriter.flush();
+            }
+        });
+    }
+
+    private void readGoAway() throws IOException {
+        int lastStreamId = frameReader.readInt(0) & 0x7fffffff;
+        List<Http2Stream> unprocessed = new ArrayList<Http2Stream>();
+        boolean idle;
+        synchronized (this) {
+            if (state != STATE_CLOSED) {
+                state = STATE_DRAINING;
+            }
+            // streams above the last one were not processed and can be sent again
+            for (Http2Stream stream : new ArrayList<Http2Stream>(streams.values())) {
+                if (stream.id > lastStreamId) {
+                    streams.remove(stream.id);
+                    unprocessed.add(stream);
+                }
+            }
+            unprocessed.addAll(waiting);
+            waiting.clear();
+            idle = streams.isEmpty();
+        }
+        transport.forget(this);
+        IOException reason = new IOException("Connection shut down by the server");
+        for (Http2Stream stream : unprocessed) {
+            // a server that processed nothing may refuse everything, so that counts as an attempt
+            if (lastStreamId == 0) {
+                transport.retry(stream, reason);
+            } else {
+                transport.requeue(stream);
+            }
+        }
+        if (idle) {
+            closeGracefully();
+        }
+    }
+
+    private void readWindowUpdate() {
+        int increment = frameReader.readInt(0) & 0x7fffffff;
+        synchronized (this) {
+            if (frameReader.streamId == 0) {
+                sendWindow += increment;
+            } else {
+                Http2Stream stream = streams.get(frameReader.streamId);
+                if (stream == null) {
+                    return;
+                }
+                stream.sendWindow += increment;
+            }
+        }
+        post(new WriterTask() {
+            public void write() throws IOException {
+                flushData();
+            }
+        });
+    }
+
+    private synchronized Http2Stream stream(int streamId) {
+        return streams.get(streamId);
+    }
+
+    private void completeStream(Http2Stream stream) {
+        boolean close;
+        synchronized (this) {
+            if (streams.get(stream.id) != stream) {
+                return;
+            }
+            streams.remove(stream.id);
+            streamClosed();
+            close = state == STATE_DRAINING && streams.isEmpty();
+        }
+        stream.complete();
+        if (close) {
+            closeGracefully();
+        } else {
+            post(new WriterTask() {
+                public void write() throws IOException {
+                    dispatchWaiting();
+                }
+            });
+        }
+    }
+
+    private void resetStream(final Http2Stream stream, final int errorCode) {
+        synchronized (this) {
+            if (streams.remove(stream.id) == null) {
+                return;
+            }
+            streamClosed();
+        }
+        post(new WriterTask() {
+            public void write() throws IOException {
+                frameWriter.writeRstStream(stream.id, errorCode);
+                frameWriter.flush();
+            }
+        });
+    }
+
+    // called under the lock when a stream leaves the map
+    private void streamClosed() {
+        if (streams.isEmpty()) {
+            idleSince = NioSelectorLoop.now();
+        }
+    }
+
+    /**
+     * Opens streams for the waiting requests, as far as the concurrency limit of the server allows. Runs on the
+     * writer thread.
+     */
+    private void dispatchWaiting() throws IOException {
+        boolean wrote = false;
+        while (true) {
+            Http2Stream stream;
+            int maxFrameSize;
+            synchronized (this) {
+                if (state != STATE_READY || waiting.isEmpty() || streams.size() >= maxConcurrentStreams) {
+                    break;
+                }
+                stream = waiting.poll();
+                if (!stream.start()) {
+                    continue;
+                }
+                if (nextStreamId < 0) {
+                    // stream ids exhausted, a new connection takes over
+                    state = STATE_DRAINING;
+                    waiting.addFirst(stream);
+                    break;
+                }
+                stream.id = nextStreamId;
+                nextStreamId += 2;
+                stream.sendWindow = peerInitialWindow;
+                if (streams.isEmpty()) {
+                    idleSince = NioSelectorLoop.now();
+                }
+                streams.put(stream.id, stream);
+                maxFrameSize = peerMaxFrameSize;
+            }
+            writeHeaders(stream, maxFrameSize);
+            wrote = true;
+        }
+
+        List<Http2Stream> moved = null;
+        synchronized (this) {
+            if (state == STATE_DRAINING && !waiting.isEmpty()) {
+                moved = new ArrayList<Http2Stream>(waiting);
+                waiting.clear();
+            }
+        }
+        if (moved != null) {
+            transport.forget(this);
+            for (Http2Stream stream : moved) {
+                transport.requeue(stream);
+            }
+        }
+        if (wrote) {
+            flushData();
+            frameWriter.flush();
+        }
+    }
+
+    private void writeHeaders(Http2Stream stream, int maxFrameSize) throws IOException {
+        URI uri = stream.request.getURI();
+        String path = uri.getRawPath();
+        if (path == null || path.length() == 0) {
+            path = "/";
+        }
+        if (uri.getRawQuery() != null) {
+            path += '?' + uri.getRawQuery();
+        }
+
+        encoder.begin();
+        encoder.header(":method", stream.request.getMethod(), true);
+        encoder.header(":scheme", route.secure ? "https" : "http", true);
+        encoder.header(":authority", route.authority, true);
+        encoder.header(":path", path, false);
+        boolean acceptEncoding = false;
+        for (Header header : stream.request.getAllHeaders()) {
+            String name = header.getName().toLowerCase(Locale.US);
+            if (CONNECTION_HEADERS.contains(name)) {
+                continue;
+            }
+            acceptEncoding |= name.equals("accept-encoding");
+            // credentials are kept out of the header tables of the server and of intermediaries
+            boolean secret = name.equals("authorization") || name.equals("proxy-authorization");
+            encoder.header(name, header.getValue(), !secret);
+        }
+        if (!acceptEncoding) {
+            encoder.header("accept-encoding", "gzip", true);
+        }
+        if (stream.body != null) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) stream.request).getEntity();
+            if (entity != null && entity.getContentType() != null
+                    && !stream.request.containsHeader(HTTP.CONTENT_TYPE)) {
+                encoder.header("content-type", entity.getContentType().getValue(), true);
+            }
+            if (entity != null && entity.getContentEncoding() != null
+                    && !stream.request.containsHeader(HTTP.CONTENT_ENCODING)) {
+                encoder.header("content-encoding", entity.getContentEncoding().getValue(), true);
+            }
+            encoder.header("content-length", Integer.toString(stream.body.length), false);
+        }
+        byte[] block = encoder.buffer();
+        boolean endStream = stream.body == null || stream.body.length == 0;
+        frameWriter.writeHeaders(stream.id, block, block.length, endStream, maxFrameSize);
+        if (endStream) {
+            stream.requestSent();
+        }
+    }
+
+    /**
+     * Writes as much of the request bodies as the flow control windows allow. Runs on the writer thread.
+     */
+    private void flushData() throws IOException {
+        boolean wrote = false;
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            List<Http2Stream> sending = new ArrayList<Http2Stream>();
+            synchronized (this) {
+                for (Http2Stream stream : streams.values()) {
+                    if (stream.body != null && stream.bodyOffset < stream.body.length) {
+                        sending.add(stream);
+                    }
+                }
+            }
+            for (Http2Stream stream : sending) {
+                int offset;
+                int count;
+                synchronized (this) {
+                    if (streams.get(stream.id) != stream) {
+                        continue;
+                    }
+                    count = (int) Math.min(Math.min(stream.body.length - stream.bodyOffset, stream.sendWindow),
+                            Math.min(sendWindow, peerMaxFrameSize));
+                    if (count <= 0) {
+                        continue;
+                    }
+                    offset = stream.bodyOffset;
+                    stream.bodyOffset += count;
+                    stream.sendWindow -= count;
+                    sendWindow -= count;
+                }
+                boolean last = offset + count == stream.body.length;
+                frameWriter.writeFrame(Http2.TYPE_DATA, last ? Http2.FLAG_END_STREAM : 0, stream.id, stream.body,
+                        offset, count);
+                stream.bodyWritten(offset, count);
+                if (last) {
+                    stream.requestSent();
+                }
+                wrote = true;
+                progress = true;
+            }
+        }
+        if (wrote) {
+            frameWriter.flush();
+        }
+    }
+
+    private void closeGracefully() {
+        post(new Runnable() {
+            public void run() {
+                if (writeFailure == null) {
+                    try {
+                        frameWriter.writeGoAway(0, Http2.NO_ERROR);
+                        frameWriter.flush();
+                    } catch (IOException e) {
+                        // closing anyway
+                    }
+                }
+                fail(new IOException("Connection closed"));
+            }
+        });
+    }
+
+    /**
+     * Stops writing after a write error. The server may have gone away after a GOAWAY that is still to be read, so
+     * the streams are left to the reader, which knows which of them the server has processed. Runs on the writer
+     * thread.
+     */
+    private void writeFailed(IOException e) {
+        if (!readerStarted) {
+            fail(e);
+            return;
+        }
+        writeFailure = e;
+        List<Http2Stream> unsent;
+        synchronized (this) {
+            if (state == STATE_CLOSED) {
+                return;
+            }
+            state = STATE_DRAINING;
+            unsent = new ArrayList<Http2Stream>(waiting);
+            waiting.clear();
+        }
+        transport.forget(this);
+        for (Http2Stream stream : unsent) {
+            transport.requeue(stream);
+        }
+        try {
+            socket.shutdownOutput();
+        } catch (IOException ignored) {
+            // the reader fails when the socket does
+        }
+    }
+
+    /**
+     * Closes the connection. Streams that were never sent are dispatched again, or handed to the fallback transport
+     * if the server turned out not to speak HTTP/2; the others fail.
+     */
+    private void fail(IOException e) {
+        List<Http2Stream> unsent = new ArrayList<Http2Stream>();
+        List<Http2Stream> sent = new ArrayList<Http2Stream>();
+        synchronized (this) {
+            if (state == STATE_CLOSED) {
+                return;
+            }
+            state = STATE_CLOSED;
+            for (Http2Stream stream : streams.values()) {
+                sent.add(stream);
+            }
+            unsent.addAll(waiting);
+            streams.clear();
+            waiting.clear();
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // nothing to do
+            }
+        }
+        writer.shutdown();
+        transport.forget(this);
+
+        boolean notHttp2 = e instanceof Http2Transport.ProtocolNotSupportedException;
+        for (Http2Stream stream : unsent) {
+            if (notHttp2) {
+                transport.fallBack(stream);
+            } else {
+                transport.retry(stream, e);
+            }
+        }
+        for (Http2Stream stream : sent) {
+            if (notHttp2) {
+                transport.fallBack(stream);
+            } else if (e instanceof EOFException && !stream.responseStarted) {
+                // the server closed the connection without a word about the stream, as it may when idle
+                transport.retry(stream, e);
+            } else {
+                stream.fail(e);
+            }
+        }
+    }
+
+    private void post(Runnable task) {
+        try {
+            writer.execute(task);
+        } catch (RejectedExecutionException e) {
+            // the connection is closed, its streams have been taken care of
+        }
+    }
+
+    /**
+     * A unit of work for the writer thread, skipped once a write has failed.
+     */
+    private abstract class WriterTask implements Runnable {
+        abstract void write() throws IOException;
+
+        public void run() {
+            if (writeFailure != null) {
+                return;
+            }
+            try {
+                write();
+            } catch (IOException e) {
+                writeFailed(e);
+            } catch (RuntimeException e) {
+                IOException failure = new IOException("Unexpected error: " + e);
+                failure.initCause(e);
+                fail(failure);
+            }
+        }
+    }
+}
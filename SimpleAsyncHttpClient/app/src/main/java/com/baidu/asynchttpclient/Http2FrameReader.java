@@ -0,0 +1,90 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/**
+ * Reads HTTP/2 frames from a stream. The payload buffer is reused from frame to frame. A read interrupted by a
+ * socket timeout can be resumed by calling {@link #readFrame()} again.
+ */
+class Http2FrameReader {
+    private final InputStream in;
+    private final byte[] header = new byte[Http2.FRAME_HEADER_LENGTH];
+    private final int maxFrameSize;
+    // bytes of the current frame read so far, header included
+    private int position;
+
+    int type;
+    int flags;
+    int streamId;
+    int length;
+    byte[] payload;
+
+    /**
+     * @param maxFrameSize the largest frame accepted, as advertised to the peer.
+     */
+    Http2FrameReader(InputStream in, int maxFrameSize) {
+        this.in = in;
+        this.maxFrameSize = maxFrameSize;
+        payload = new byte[maxFrameSize];
+    }
+
+    /**
+     * Reads the next frame into the fields of this reader.
+     * 
+     * @throws EOFException if the stream ends before a frame starts.
+     */
+    void readFrame() throws IOException {
+        if (position < Http2.FRAME_HEADER_LENGTH) {
+            readFully(header, 0, Http2.FRAME_HEADER_LENGTH);
+        }
+        length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+        type = header[3] & 0xff;
+        flags = header[4] & 0xff;
+        streamId = ((header[5] & 0x7f) << 24) | ((header[6] & 0xff) << 16) | ((header[7] & 0xff) << 8)
+                | (header[8] & 0xff);
+        if (length > maxFrameSize) {
+            throw new ProtocolException("Frame of " + length + " bytes exceeds " + maxFrameSize);
+        }
+        readFully(payload, Http2.FRAME_HEADER_LENGTH, length);
+        position = 0;
+    }
+
+    /**
+     * Reads a big endian 32 bit value from the payload.
+     */
+    int readInt(int offset) {
+        return ((payload[offset] & 0xff) << 24) | ((payload[offset + 1] & 0xff) << 16)
+                | ((payload[offset + 2] & 0xff) << 8) | (payload[offset + 3] & 0xff);
+    }
+
+    private void readFully(byte[] buffer, int start, int count) throws IOException {
+        while (position - start < count) {
+            int n = in.read(buffer, position - start, count - (position - start));
+            if (n < 0) {
+                if (position == 0) {
+                    throw new EOFException();
+                }
+                throw new ProtocolException("Stream ends within a frame");
+            }
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes HTTP/2 frames to a buffered stream. Not thread safe, callers serialize the writes of a connection.
+ */
+class Http2FrameWriter {
+    private final OutputStream out;
+    private final byte[] header = new byte[Http2.FRAME_HEADER_LENGTH];
+    private final byte[] scratch = new byte[8];
+
+    Http2FrameWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        header[5] = (byte) ((streamId >>> 24) & 0x7f);
+        header[6] = (byte) (streamId >>> 16);
+        header[7] = (byte) (streamId >>> 8);
+        header[8] = (byte) streamId;
+        out.write(header);
+        if (length > 0) {
+            out.write(payload, offset, length);
+        }
+    }
+
+    /**
+     * Writes a header block as a HEADERS frame followed by as many CONTINUATION frames as needed.
+     */
+    void writeHeaders(int streamId, byte[] block, int length, boolean endStream, int maxFrameSize)
+            throws IOException {
+        int first = Math.min(length, maxFrameSize);
+        int flags = (endStream ? Http2.FLAG_END_STREAM : 0) | (first == length ? Http2.FLAG_END_HEADERS : 0);
+        writeFrame(Http2.TYPE_HEADERS, flags, streamId, block, 0, first);
+        for (int offset = first; offset < length; offset += maxFrameSize) {
+            int count = Math.min(length - offset, maxFrameSize);
+            writeFrame(Http2.TYPE_CONTINUATION, offset + count == length ? Http2.FLAG_END_HEADERS : 0, streamId,
+                    block, offset, count);
+        }
+    }
+
+    /**
+     * @param settings pairs of setting identifier and value.
+     */
+    void writeSettings(int... settings) throws IOException {
+        byte[] payload = new byte[settings.length / 2 * 6];
+        for (int i = 0, p = 0; i < settings.length; i += 2, p += 6) {
+            payload[p] = (byte) (settings[i] >>> 8);
+            payload[p + 1] = (byte) settings[i];
+            putInt(payload, p + 2, settings[i + 1]);
+        }
+        writeFrame(Http2.TYPE_SETTINGS, 0, 0, payload, 0, payload.length);
+    }
+
+    void writeSettingsAck() throws IOException {
+        writeFrame(Http2.TYPE_SETTINGS, Http2.FLAG_ACK, 0, null, 0, 0);
+    }
+
+    void writeWindowUpdate(int streamId, int increment) throws IOException {
+        putInt(scratch, 0, increment);
+        writeFrame(Http2.TYPE_WINDOW_UPDATE, 0, streamId, scratch, 0, 4);
+    }
+
+    void writeRstStream(int streamId, int errorCode) throws IOException {
+        putInt(scratch, 0, errorCode);
+        writeFrame(Http2.TYPE_RST_STREAM, 0, streamId, scratch, 0, 4);
+    }
+
+    void writeGoAway(int lastStreamId, int errorCode) throws IOException {
+        putInt(scratch, 0, lastStreamId);
+        putInt(scratch, 4, errorCode);
+        writeFrame(Http2.TYPE_GOAWAY, 0, 0, scratch, 0, 8);
+    }
+
+    void writePingAck(byte[] payload, int offset) throws IOException {
+        writeFrame(Http2.TYPE_PING, Http2.FLAG_ACK, 0, payload, offset, 8);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A request on {@link Http2Transport}, from the moment it is started until its response has been delivered to its
+ * {@link ResponseSink}. It is also the future handed back to the caller, cancelling it resets the stream.
+ */
+class Http2Stream implements ResponseSource, Future<Object> {
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_ACTIVE = 1;
+    private static final int STATE_DONE = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    final Http2Transport transport;
+    final HttpUriRequest request;
+    final HttpContext context;
+    final ResponseSink sink;
+    final AsyncHttpResponseHandler responseHandler;
+    final byte[] body;
+    // reports the progress of the request body, null if nobody listens
+    private final ProgressEntity upload;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    // guarded by this
+    private int state = STATE_PENDING;
+    private Http2Connection connection;
+    private Future<?> fallback;
+    private boolean started;
+    private int retries;
+
+    // guarded by the connection
+    int id;
+    int sendWindow;
+    int bodyOffset;
+    boolean paused;
+    int unacknowledged;
+
+    // written by the reader thread of the connection
+    volatile boolean responseStarted;
+
+    // confined to the writer thread of the connection
+    private ProgressEntity.Tracker tracker;
+
+    /**
+     * @param body the request body, null if there is none.
+     * @param responseHandler the handler behind the sink, to run the request on the fallback transport; null for
+     *            blocking executions.
+     */
+    Http2Stream(Http2Transport transport, HttpUriRequest request, HttpContext context, byte[] body,
+                ResponseSink sink, AsyncHttpResponseHandler responseHandler) {
+        this.transport = transport;
+        this.request = request;
+        this.context = context;
+        this.body = body;
+        this.sink = sink;
+        this.responseHandler = responseHandler;
+        HttpEntity entity = request instanceof HttpEntityEnclosingRequest
+                ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+        upload = entity instanceof ProgressEntity ? (ProgressEntity) entity : null;
+    }
+
+    /**
+     * Binds the stream to the connection that will carry it.
+     * 
+     * @return false if the stream has been cancelled meanwhile.
+     */
+    synchronized boolean assign(Http2Connection connection) {
+        if (state != STATE_PENDING) {
+            return false;
+        }
+        this.connection = connection;
+        state = STATE_ACTIVE;
+        return true;
+    }
+
+    /**
+     * Puts the stream back in the pending state so that it can be sent on another connection.
+     * 
+     * @param retry whether this counts as a retry, rather than a move of a stream that the server never saw.
+     * @return false if the stream is over, or if it has been retried too often.
+     */
+    synchronized boolean detach(boolean retry) {
+        if (state != STATE_ACTIVE || (retry && ++retries >= Http2Transport.MAX_ATTEMPTS)) {
+            return false;
+        }
+        connection = null;
+        state = STATE_PENDING;
+        return true;
+    }
+
+    /**
+     * Takes the stream off HTTP/2, to run it on the fallback transport.
+     * 
+     * @return false if the stream is over.
+     */
+    synchronized boolean fallBack() {
+        if (state == STATE_DONE || state == STATE_CANCELLED) {
+            return false;
+        }
+        connection = null;
+        state = STATE_ACTIVE;
+        return true;
+    }
+
+    /**
+     * Sets the task running the stream on the fallback transport, so that cancelling the stream cancels it.
+     * 
+     * @return false if the stream has been cancelled meanwhile.
+     */
+    synchronized boolean setFallback(Future<?> fallback) {
+        if (state == STATE_CANCELLED) {
+            return false;
+        }
+        this.fallback = fallback;
+        return true;
+    }
+
+    synchronized boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Called by the connection before the request is written.
+     * 
+     * @return false if the stream has been cancelled.
+     */
+    synchronized boolean start() {
+        if (state != STATE_ACTIVE) {
+            return false;
+        }
+        if (!started) {
+            started = true;
+            // under the lock, so that a concurrent cancel cannot overtake the start message
+            sink.onStart();
+        }
+        return true;
+    }
+
+    void requestSent() {
+        context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.TRUE);
+        if (upload != null) {
+            long length = body != null ? body.length : 0;
+            (tracker != null ? tracker : upload.track(length)).finish(length);
+            tracker = null;
+        }
+    }
+
+    /**
+     * Called by the connection each time a DATA frame of the body has been written. A stream sent again starts over
+     * from offset 0.
+     */
+    void bodyWritten(int offset, int count) {
+        if (upload != null) {
+            if (offset == 0 || tracker == null) {
+                tracker = upload.track(body.length);
+            }
+            tracker.update(offset + count);
+        }
+    }
+
+    synchronized boolean isActive() {
+        return state == STATE_ACTIVE;
+    }
+
+    /**
+     * Called from the reader thread when the response is complete.
+     */
+    void complete() {
+        if (finish()) {
+            try {
+                sink.onResponseComplete();
+            } catch (IOException e) {
+                sink.onFailure(e);
+            }
+        }
+    }
+
+    /**
+     * Called when the request cannot be completed.
+     */
+    void fail(IOException e) {
+        if (finish()) {
+            sink.onFailure(e);
+        }
+    }
+
+    /**
+     * Called once a cancelled stream has been taken off its connection.
+     */
+    void aborted() {
+        if (isStarted()) {
+            sink.onCancel();
+        }
+    }
+
+    /**
+     * Marks the stream done without calling the sink, when the fallback transport has taken over.
+     */
+    void finishedByFallback() {
+        finish();
+    }
+
+    private boolean finish() {
+        synchronized (this) {
+            if (state == STATE_DONE || state == STATE_CANCELLED) {
+                return false;
+            }
+            state = STATE_DONE;
+        }
+        done.countDown();
+        return true;
+    }
+
+    public void resumeReading() {
+        Http2Connection c;
+        synchronized (this) {
+            c = connection;
+        }
+        if (c != null) {
+            c.resume(this);
+        }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Http2Connection c;
+        Future<?> f;
+        synchronized (this) {
+            if (state == STATE_DONE || state == STATE_CANCELLED) {
+                return false;
+            }
+            state = STATE_CANCELLED;
+            c = connection;
+            f = fallback;
+        }
+        done.countDown();
+        if (c != null) {
+            c.cancel(this);
+        } else {
+            if (f != null) {
+                f.cancel(mayInterruptIfRunning);
+            }
+            aborted();
+        }
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return state == STATE_CANCELLED;
+    }
+
+    public synchronized boolean isDone() {
+        return state == STATE_DONE || state == STATE_CANCELLED;
+    }
+
+    public Object get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private Object result() {
+        if (isCancelled()) {
+            throw new CancellationException();
+        }
+        return null;
+    }
+}
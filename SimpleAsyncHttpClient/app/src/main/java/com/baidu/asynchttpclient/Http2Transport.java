@@ -0,0 +1,545 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A {@link NonBlockingHttpTransport} speaking HTTP/2: all requests to a host share a single connection, each on its
+ * own stream, so a burst of requests neither waits for free connections nor opens new ones.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * AsyncHttpClient client = new AsyncHttpClient();
+ * client.setTransport(new Http2Transport());
+ * </pre>
+ * <p>
+ * https connections negotiate HTTP/2 with ALPN, where the platform supports it. Plain http connections assume that
+ * the server speaks HTTP/2 ("prior knowledge", as with h2c servers behind a load balancer). When a server turns out to
+ * speak HTTP/1.x only, its requests go to a fallback transport, {@link UrlConnectionTransport} by default, and so do
+ * later requests to the same host.
+ * <p>
+ * Each connection has a reader thread that pushes responses to the handlers, so a handler without a Looper must not
+ * block in its callbacks. Request bodies are buffered in memory and sent as the flow control windows of the server
+ * allow. Cancelling a request resets its stream and leaves the connection to the other requests. A request that the
+ * server refused, or did not process before shutting the connection down, is sent again once on a new connection.
+ */
+public class Http2Transport implements SinkTransport {
+    static final int MAX_ATTEMPTS = 2;
+
+    private static final int DEFAULT_TIMEOUT = 15 * 1000;
+    private static final int DEFAULT_KEEP_ALIVE = 30 * 1000;
+    private static final String PROTOCOL_HTTP_2 = "h2";
+    private static final String PROTOCOL_HTTP_1_1 = "http/1.1";
+
+    private final HttpTransport fallback;
+    private final Map<Route, Http2Connection> connections = new HashMap<Route, Http2Connection>();
+    // hosts that do not speak HTTP/2, guarded by connections
+    private final Set<Route> http1Routes = new HashSet<Route>();
+    private ExecutorService fallbackExecutor;
+    private volatile boolean shutdown;
+    private volatile int connectTimeout = DEFAULT_TIMEOUT;
+    private volatile int readTimeout = DEFAULT_TIMEOUT;
+    private volatile int keepAliveDuration = DEFAULT_KEEP_ALIVE;
+    private volatile SSLSocketFactory sslSocketFactory;
+    private volatile TlsContext tlsContext;
+
+    /**
+     * Creates a transport that falls back to {@link UrlConnectionTransport} for HTTP/1.x servers.
+     */
+    public Http2Transport() {
+        this(new UrlConnectionTransport());
+    }
+
+    /**
+     * Creates a transport.
+     * 
+     * @param fallback the transport for servers that do not speak HTTP/2.
+     */
+    public Http2Transport(HttpTransport fallback) {
+        if (fallback == null) {
+            throw new IllegalArgumentException("fallback must not be null");
+        }
+        this.fallback = fallback;
+    }
+
+    /**
+     * Sets the connect and read timeouts. The read timeout bounds the silence of the server while responses are
+     * expected on a connection.
+     * 
+     * @param connectTimeout the connect timeout in milliseconds.
+     * @param readTimeout the read timeout in milliseconds.
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Sets how long a connection without requests is kept open.
+     * 
+     * @param keepAliveDuration the duration in milliseconds.
+     */
+    public void setKeepAliveDuration(int keepAliveDuration) {
+        this.keepAliveDuration = keepAliveDuration;
+    }
+
+    /**
+     * Sets the factory of https connections, the one of the TLS context if not set.
+     * 
+     * @param sslSocketFactory the factory.
+     */
+    public void setSslSocketFactory(SSLSocketFactory sslSocketFactory) {
+        this.sslSocketFactory = sslSocketFactory;
+    }
+
+    /**
+     * Sets the TLS settings and session cache of https connections, {@link TlsContext#getDefault()} by default. It is
+     * also set on the fallback transport if that is a {@link UrlConnectionTransport}.
+     * 
+     * @param tlsContext the context to use for https requests.
+     */
+    public void setTlsContext(TlsContext tlsContext) {
+        this.tlsContext = tlsContext;
+        if (fallback instanceof UrlConnectionTransport) {
+            ((UrlConnectionTransport) fallback).setTlsContext(tlsContext);
+        }
+    }
+
+    int getReadTimeout() {
+        return readTimeout;
+    }
+
+    int getKeepAliveDuration() {
+        return keepAliveDuration;
+    }
+
+    /**
+     * Closes all connections. Requests in flight fail, and the transport cannot be used afterwards.
+     */
+    public void shutdown() {
+        List<Http2Connection> open;
+        synchronized (connections) {
+            shutdown = true;
+            open = new ArrayList<Http2Connection>(connections.values());
+            connections.clear();
+            if (fallbackExecutor != null) {
+                fallbackExecutor.shutdownNow();
+            }
+        }
+        IOException failure = new IOException("Transport shut down");
+        for (Http2Connection connection : open) {
+            connection.shutdown(failure);
+        }
+    }
+
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        Route route = route(request.getURI());
+        if (isHttp1(route)) {
+            return fallback.execute(request, context);
+        }
+        context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+        context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.FALSE);
+
+        StreamResponseSink sink = new StreamResponseSink("HEAD".equalsIgnoreCase(request.getMethod()));
+        Http2Stream stream = new Http2Stream(this, request, context, bufferBody(request), sink, null);
+        sink.setSource(stream);
+        dispatch(stream);
+        try {
+            return sink.awaitResponse();
+        } catch (ProtocolNotSupportedException e) {
+            return fallback.execute(request, context);
+        }
+    }
+
+    public Future<?> start(HttpUriRequest request, HttpContext context, AsyncHttpResponseHandler responseHandler) {
+        return start(request, context, new HandlerResponseSink(responseHandler, context), responseHandler);
+    }
+
+    public Future<?> start(HttpUriRequest request, HttpContext context, ResponseSink sink,
+            AsyncHttpResponseHandler responseHandler) {
+        context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+        context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.FALSE);
+
+        byte[] body;
+        try {
+            body = bufferBody(request);
+        } catch (IOException e) {
+            Http2Stream failed = new Http2Stream(this, request, context, null, sink, responseHandler);
+            sink.onStart();
+            failed.fail(e);
+            return failed;
+        }
+        Http2Stream stream = new Http2Stream(this, request, context, body, sink, responseHandler);
+        dispatch(stream);
+        return stream;
+    }
+
+    /**
+     * Hands a stream to the connection of its route, opening one if needed.
+     */
+    void dispatch(Http2Stream stream) {
+        Route route;
+        try {
+            route = route(stream.request.getURI());
+        } catch (IOException e) {
+            stream.fail(e);
+            return;
+        }
+
+        while (true) {
+            Http2Connection connection;
+            boolean opened = false;
+            synchronized (connections) {
+                if (shutdown) {
+                    break;
+                }
+                if (http1Routes.contains(route)) {
+                    connection = null;
+                } else {
+                    connection = connections.get(route);
+                    if (connection == null) {
+                        connection = new Http2Connection(this, route);
+                        connections.put(route, connection);
+                        opened = true;
+                    }
+                }
+            }
+            if (connection == null) {
+                fallBack(stream);
+                return;
+            }
+            if (opened) {
+                connection.start();
+            }
+            if (connection.submit(stream)) {
+                return;
+            }
+            // the connection is shutting down, a new one takes over
+            forget(connection);
+        }
+        stream.fail(new IOException("Transport shut down"));
+    }
+
+    /**
+     * Sends a stream that was not processed by the server again, or fails it if it has been tried too often.
+     */
+    void retry(Http2Stream stream, IOException cause) {
+        if (stream.detach(true)) {
+            dispatch(stream);
+        } else {
+            stream.fail(cause);
+        }
+    }
+
+    /**
+     * Moves a stream that the server has certainly not processed to another connection, without counting an attempt.
+     */
+    void requeue(Http2Stream stream) {
+        if (stream.detach(false)) {
+            dispatch(stream);
+        }
+    }
+
+    /**
+     * Runs a stream on the fallback transport, since its server does not speak HTTP/2.
+     */
+    void fallBack(final Http2Stream stream) {
+        ExecutorService executor;
+        synchronized (connections) {
+            try {
+                http1Routes.add(route(stream.request.getURI()));
+            } catch (IOException e) {
+                // the route was valid when the stream was dispatched
+            }
+            if (stream.responseHandler == null || shutdown) {
+                executor = null;
+            } else {
+                if (fallbackExecutor == null) {
+                    fallbackExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "Http2Transport fallback #" + mCount.getAndIncrement());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+                executor = fallbackExecutor;
+            }
+        }
+
+        if (executor == null) {
+            // a blocking execution falls back on its own thread
+            stream.fail(new ProtocolNotSupportedException("HTTP/2 not supported by " + stream.request.getURI()
+                    .getHost(), null));
+            return;
+        }
+        if (!stream.fallBack()) {
+            return;
+        }
+        Future<?> future = executor.submit(new Runnable() {
+            public void run() {
+                runOnFallback(stream);
+            }
+        });
+        if (!stream.setFallback(future)) {
+            future.cancel(true);
+        }
+    }
+
+    private void runOnFallback(Http2Stream stream) {
+        AsyncHttpResponseHandler handler = stream.responseHandler;
+        if (!stream.start()) {
+            return;
+        }
+        try {
+            HttpResponse response = fallback.execute(stream.request, stream.context);
+            GuardedEntity entity = GuardedEntity.guard(response);
+            try {
+                if (!Thread.currentThread().isInterrupted() && stream.isActive()) {
+                    handler.sendResponseMessage(response);
+                }
+            } finally {
+                if (entity != null) {
+                    entity.release();
+                }
+            }
+        } catch (IOException e) {
+            if (stream.isActive()) {
+                handler.sendFailureMessage(e, e.toString());
+            }
+        }
+        if (stream.isActive()) {
+            handler.sendFinishMessage();
+        }
+        stream.finishedByFallback();
+    }
+
+    /**
+     * Forgets a connection that takes no more streams, so that the next request to its host opens a new one.
+     */
+    void forget(Http2Connection connection) {
+        synchronized (connections) {
+            if (connections.get(connection.route) == connection) {
+                connections.remove(connection.route);
+            }
+        }
+    }
+
+    /**
+     * Connects a socket to a route, negotiating HTTP/2 if the route is secure.
+     * 
+     * @throws ProtocolNotSupportedException if the server chose another protocol.
+     */
+    Socket openSocket(Route route) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(route.host, route.port), connectTimeout);
+            if (!route.secure) {
+                return socket;
+            }
+
+            TlsContext tls = tlsContext != null ? tlsContext : TlsContext.getDefault();
+            SSLSocketFactory factory = sslSocketFactory;
+            SSLSocket sslSocket = factory != null ? (SSLSocket) factory.createSocket(socket, route.host, route.port,
+                    true) : tls.layer(socket, route.host, route.port, true);
+            socket = sslSocket;
+            sslSocket.setSoTimeout(readTimeout);
+            boolean alpn = requestAlpn(sslSocket);
+            tls.handshake(sslSocket, route.host);
+            String protocol = alpn ? selectedProtocol(sslSocket) : null;
+            if (!PROTOCOL_HTTP_2.equals(protocol)) {
+                throw new ProtocolNotSupportedException("Server " + route + " negotiated " + protocol, null);
+            }
+            return sslSocket;
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // nothing to do
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Offers h2 and http/1.1 through ALPN, with the API of Java 9 or the one of the Android socket implementation.
+     * 
+     * @return false if the platform does not support ALPN.
+     */
+    private static boolean requestAlpn(SSLSocket socket) {
+        try {
+            Method method = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            SSLParameters parameters = socket.getSSLParameters();
+            method.invoke(parameters, (Object) new String[] {PROTOCOL_HTTP_2, PROTOCOL_HTTP_1_1});
+            socket.setSSLParameters(parameters);
+            return true;
+        } catch (Exception e) {
+            // not Java 9
+        }
+        try {
+            Method method = socket.getClass().getMethod("setAlpnProtocols", byte[].class);
+            ByteArrayOutputStream protocols = new ByteArrayOutputStream();
+            for (String protocol : new String[] {PROTOCOL_HTTP_2, PROTOCOL_HTTP_1_1}) {
+                protocols.write(protocol.length());
+                for (int i = 0; i < protocol.length(); i++) {
+                    protocols.write(protocol.charAt(i));
+                }
+            }
+            method.invoke(socket, (Object) protocols.toByteArray());
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static String selectedProtocol(SSLSocket socket) {
+        try {
+            return (String) SSLSocket.class.getMethod("getApplicationProtocol").invoke(socket);
+        } catch (Exception e) {
+            // not Java 9
+        }
+        try {
+            byte[] protocol = (byte[]) socket.getClass().getMethod("getAlpnSelectedProtocol").invoke(socket);
+            return protocol != null ? new String(protocol, "US-ASCII") : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private boolean isHttp1(Route route) {
+        synchronized (connections) {
+            return http1Routes.contains(route);
+        }
+    }
+
+    private static Route route(URI uri) throws IOException {
+        String scheme = uri.getScheme();
+        boolean secure = "https".equalsIgnoreCase(scheme);
+        if (!secure && scheme != null && !"http".equalsIgnoreCase(scheme)) {
+            throw new IOException("Unsupported scheme: " + scheme);
+        }
+        String host = uri.getHost();
+        if (host == null) {
+            throw new UnknownHostException("No host in " + uri);
+        }
+        int port = uri.getPort() != -1 ? uri.getPort() : secure ? 443 : 80;
+        return new Route(host.toLowerCase(Locale.US), port, secure);
+    }
+
+    /**
+     * Reads the entity of a request into memory.
+     * 
+     * @return the body, null if the request cannot have one.
+     */
+    private static byte[] bufferBody(HttpUriRequest request) throws IOException {
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return null;
+        }
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        if (entity == null) {
+            return new byte[0];
+        }
+        long length = entity.getContentLength();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(length > 0 && length < Integer.MAX_VALUE ? (int) length
+                : 1024);
+        // progress is reported as the body goes out, not as it is buffered
+        (entity instanceof ProgressEntity ? ((ProgressEntity) entity).getWrappedEntity() : entity).writeTo(body);
+        return body.toByteArray();
+    }
+
+    /**
+     * Thrown when a server does not speak HTTP/2.
+     */
+    static class ProtocolNotSupportedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ProtocolNotSupportedException(String message, Throwable cause) {
+            super(message);
+            if (cause != null) {
+                initCause(cause);
+            }
+        }
+    }
+
+    /**
+     * A host, port and scheme, served by one connection.
+     */
+    static class Route {
+        final String host;
+        final int port;
+        final boolean secure;
+        final String authority;
+
+        Route(String host, int port, boolean secure) {
+            this.host = host;
+            this.port = port;
+            this.secure = secure;
+            authority = port == (secure ? 443 : 80) ? host : host + ':' + port;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Route)) {
+                return false;
+            }
+            Route other = (Route) o;
+            return host.equals(other.host) && port == other.port && secure == other.secure;
+        }
+
+        @Override
+        public int hashCode() {
+            return (host.hashCode() * 31 + port) * 2 + (secure ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return host + ':' + port;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.Header;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Incremental HTTP/1.x response parser for the non-blocking transport. Bytes are fed as they arrive and may split
+ * lines, chunk headers and bodies at any point; head and body are reported to a {@link Listener} as soon as they are
+ * complete.
+ * <p>
+ * Not thread safe, a parser belongs to a single connection.
+ */
+class HttpResponseParser {
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_HEADER_COUNT = 256;
+
+    private static final int STATE_STATUS_LINE = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_FIXED_BODY = 2;
+    private static final int STATE_CHUNK_SIZE = 3;
+    private static final int STATE_CHUNK_DATA = 4;
+    private static final int STATE_CHUNK_END = 5;
+    private static final int STATE_TRAILERS = 6;
+    private static final int STATE_BODY_UNTIL_CLOSE = 7;
+    private static final int STATE_DONE = 8;
+
+    /**
+     * Receives the parts of a response.
+     */
+    interface Listener {
+        void onResponseHead(BasicHttpResponse head) throws IOException;
+
+        /**
+         * @param body a view of the body bytes, only valid during the call.
+         */
+        void onResponseBody(ByteBuffer body) throws IOException;
+    }
+
+    private final StringBuilder line = new StringBuilder(128);
+    private Listener listener;
+    private boolean headRequest;
+    private int state = STATE_DONE;
+    private BasicHttpResponse head;
+    private int headerCount;
+    private long remaining;
+    private boolean keepAlive;
+    private boolean http11;
+
+    /**
+     * Prepares the parser for the next response on the connection.
+     * 
+     * @param listener receives the parts of the response.
+     * @param headRequest whether the response answers a HEAD request, which never has a body.
+     */
+    void reset(Listener listener, boolean headRequest) {
+        this.listener = listener;
+        this.headRequest = headRequest;
+        state = STATE_STATUS_LINE;
+        line.setLength(0);
+        head = null;
+        headerCount = 0;
+        remaining = 0;
+        keepAlive = false;
+        http11 = false;
+    }
+
+    /**
+     * Whether the current response has been parsed completely.
+     */
+    boolean isComplete() {
+        return state == STATE_DONE;
+    }
+
+    /**
+     * Whether any part of the current response has been received.
+     */
+    boolean hasStarted() {
+        return state != STATE_STATUS_LINE || line.length() > 0;
+    }
+
+    /**
+     * Whether the connection can carry another response once the current one is complete.
+     */
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Whether the current response is HTTP/1.1 or later, from a server that may take pipelined requests.
+     */
+    boolean isHttp11() {
+        return http11;
+    }
+
+    /**
+     * Consumes bytes of the current response from the buffer. Bytes beyond the end of the response are left in the
+     * buffer, they belong to the next response on the connection.
+     * 
+     * @return true if the response is complete.
+     * @throws IOException if the response is malformed.
+     */
+    boolean parse(ByteBuffer buffer) throws IOException {
+        while (state != STATE_DONE && buffer.hasRemaining()) {
+            switch (state) {
+                case STATE_STATUS_LINE:
+                    if (readLine(buffer)) {
+                        parseStatusLine();
+                    }
+                    break;
+                case STATE_HEADERS:
+                    if (readLine(buffer)) {
+                        parseHeaderLine();
+                    }
+                    break;
+                case STATE_FIXED_BODY:
+                    remaining -= deliver(buffer, remaining);
+                    if (remaining == 0) {
+                        state = STATE_DONE;
+                    }
+                    break;
+                case STATE_CHUNK_SIZE:
+                    if (readLine(buffer)) {
+                        parseChunkSize();
+                    }
+                    break;
+                case STATE_CHUNK_DATA:
+                    remaining -= deliver(buffer, remaining);
+                    if (remaining == 0) {
+                        state = STATE_CHUNK_END;
+                    }
+                    break;
+                case STATE_CHUNK_END:
+                    if (readLine(buffer)) {
+                        if (line.length() != 0) {
+                            throw new ProtocolException("Missing CRLF after chunk data");
+                        }
+                        state = STATE_CHUNK_SIZE;
+                    }
+                    break;
+                case STATE_TRAILERS:
+                    if (readLine(buffer)) {
+                        if (line.length() == 0) {
+                            state = STATE_DONE;
+                        } else {
+                            // trailer fields are dropped
+                            line.setLength(0);
+                        }
+                    }
+                    break;
+                case STATE_BODY_UNTIL_CLOSE:
+                    deliver(buffer, Long.MAX_VALUE);
+                    break;
+            }
+        }
+        return state == STATE_DONE;
+    }
+
+    /**
+     * Signals that the server closed the connection. This completes a response delimited by the connection close.
+     * 
+     * @return true if the response is complete.
+     * @throws IOException if the response was cut short.
+     */
+    boolean endOfStream() throws IOException {
+        if (state == STATE_BODY_UNTIL_CLOSE) {
+            state = STATE_DONE;
+            return true;
+        }
+        if (state == STATE_DONE) {
+            return true;
+        }
+        throw new ProtocolException(hasStarted() ? "Connection closed before the response was complete"
+                : "Connection closed without a response");
+    }
+
+    private int deliver(ByteBuffer buffer, long max) throws IOException {
+        int count = (int) Math.min(buffer.remaining(), max);
+        if (count == 0) {
+            return 0;
+        }
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + count);
+        listener.onResponseBody(buffer.slice());
+        buffer.position(buffer.limit());
+        buffer.limit(limit);
+        return count;
+    }
+
+    private boolean readLine(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            char c = (char) (buffer.get() & 0xff);
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return true;
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("Response line too long");
+            }
+            line.append(c);
+        }
+        return false;
+    }
+
+    private void parseStatusLine() throws IOException {
+        // HTTP/1.1 200 OK
+        String statusLine = line.toString();
+        line.setLength(0);
+        if (statusLine.length() == 0) {
+            // tolerate a stray CRLF between responses
+            return;
+        }
+        int firstSpace = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/") || firstSpace < 0) {
+            throw new ProtocolException("Invalid status line: " + statusLine);
+        }
+        ProtocolVersion version = "HTTP/1.0".equals(statusLine.substring(0, firstSpace)) ? HttpVersion.HTTP_1_0
+                : HttpVersion.HTTP_1_1;
+        int secondSpace = statusLine.indexOf(' ', firstSpace + 1);
+        String code = secondSpace < 0 ? statusLine.substring(firstSpace + 1)
+                : statusLine.substring(firstSpace + 1, secondSpace);
+        String reason = secondSpace < 0 ? "" : statusLine.substring(secondSpace + 1);
+        int statusCode;
+        try {
+            statusCode = Integer.parseInt(code.trim());
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid status line: " + statusLine);
+        }
+        head = new BasicHttpResponse(version, statusCode, reason);
+        headerCount = 0;
+        state = STATE_HEADERS;
+    }
+
+    private void parseHeaderLine() throws IOException {
+        if (line.length() > 0) {
+            if (++headerCount > MAX_HEADER_COUNT) {
+                throw new ProtocolException("Too many response headers");
+            }
+            String header = line.toString();
+            line.setLength(0);
+            int colon = header.indexOf(':');
+            if (colon <= 0) {
+                throw new ProtocolException("Invalid header: " + header);
+            }
+            head.addHeader(header.substring(0, colon).trim(), header.substring(colon + 1).trim());
+            return;
+        }
+        endOfHead();
+    }
+
+    private void endOfHead() throws IOException {
+        int statusCode = head.getStatusLine().getStatusCode();
+        if (statusCode >= 100 && statusCode < 200 && statusCode != 101) {
+            // interim response, the real one follows
+            state = STATE_STATUS_LINE;
+            return;
+        }
+
+        String connection = headerValue("Connection");
+        http11 = !head.getStatusLine().getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0);
+        if (!http11) {
+            keepAlive = connection != null && connection.toLowerCase(Locale.US).contains("keep-alive");
+        } else {
+            keepAlive = connection == null || !connection.toLowerCase(Locale.US).contains("close");
+        }
+
+        String transferEncoding = headerValue("Transfer-Encoding");
+        String contentLength = headerValue("Content-Length");
+        if (headRequest || statusCode == 204 || statusCode == 304) {
+            state = STATE_DONE;
+        } else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+            state = STATE_CHUNK_SIZE;
+        } else if (contentLength != null) {
+            try {
+                remaining = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Length: " + contentLength);
+            }
+            if (remaining < 0) {
+                throw new ProtocolException("Invalid Content-Length: " + contentLength);
+            }
+            state = remaining == 0 ? STATE_DONE : STATE_FIXED_BODY;
+        } else {
+            state = STATE_BODY_UNTIL_CLOSE;
+            keepAlive = false;
+        }
+        listener.onResponseHead(head);
+    }
+
+    private void parseChunkSize() throws IOException {
+        String sizeLine = line.toString();
+        line.setLength(0);
+        int extension = sizeLine.indexOf(';');
+        if (extension >= 0) {
+            sizeLine = sizeLine.substring(0, extension);
+        }
+        try {
+            remaining = Long.parseLong(sizeLine.trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid chunk size: " + sizeLine);
+        }
+        if (remaining < 0) {
+            throw new ProtocolException("Invalid chunk size: " + sizeLine);
+        }
+        state = remaining == 0 ? STATE_TRAILERS : STATE_CHUNK_DATA;
+    }
+
+    private String headerValue(String name) {
+        Header header = head.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * The engine that puts a request on the wire and hands back the response. Scheduling, retries and response handling
+ * are done by {@link AsyncHttpClient} and {@link AsyncHttpResponseHandler} regardless of the transport in use.
+ * <p>
+ * Four transports are provided: {@link ApacheHttpTransport}, backed by HttpClient and used by default,
+ * {@link UrlConnectionTransport}, backed by HttpURLConnection, {@link NioHttpTransport}, which serves all requests
+ * from a couple of selector threads, and {@link Http2Transport}, which multiplexes the requests to a host over a
+ * single HTTP/2 connection. A transport can be set for a whole client with
+ * {@link AsyncHttpClient#setTransport(HttpTransport)} or for a single request with
+ * {@link AsyncHttpClient#execute(android.content.Context, HttpUriRequest, HttpTransport, AsyncHttpResponseHandler)}.
+ * <p>
+ * Implementations are called concurrently from the worker threads and must be thread safe.
+ */
+public interface HttpTransport {
+
+    /**
+     * Executes the request and returns its response. The response entity, if any, must still be streaming: it is
+     * consumed by the response handler, which closes its content when done.
+     * <p>
+     * Transports should set {@link org.apache.http.protocol.ExecutionContext#HTTP_REQUEST} and
+     * {@link org.apache.http.protocol.ExecutionContext#HTTP_REQ_SENT} in the context, the retry logic depends on
+     * them.
+     * 
+     * @param request the request to execute.
+     * @param context the context of this execution, unique to the request.
+     * @return the response, never null.
+     * @throws IOException in case of a problem or if the connection was aborted.
+     */
+    HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException;
+}
@@ -0,0 +1,46 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Wraps a gzip encoded response entity so that its content is transparently decompressed while it is read.
+ */
+class InflatingEntity extends HttpEntityWrapper {
+    public InflatingEntity(HttpEntity wrapped) {
+        super(wrapped);
+    }
+
+    HttpEntity getWrappedEntity() {
+        return wrappedEntity;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new GZIPInputStream(wrappedEntity.getContent());
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+}
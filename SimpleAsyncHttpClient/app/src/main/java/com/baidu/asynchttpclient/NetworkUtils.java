@@ -81,6 +81,7 @@ public class NetworkUtils {
 
         SchemeRegistry schemeRegistry = new SchemeRegistry();
         schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", TlsContext.getDefault().getSchemeSocketFactory(), 443));
         DefaultHttpClient defaultHttpClient = new DefaultHttpClient(
                 new ThreadSafeClientConnManager(params, schemeRegistry), params);
         defaultHttpClient.setKeepAliveStrategy(
@@ -0,0 +1,413 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * A keep-alive connection of {@link NioHttpTransport}. Requests are written and responses parsed as the channel
+ * becomes ready, no thread waits on it. Pipelined requests are written back to back and their responses matched in
+ * order. All methods run on the I/O thread of its {@link NioSelectorLoop}.
+ */
+class NioConnection {
+    final NioHttpTransport transport;
+    final NioSelectorLoop loop;
+    final NioHttpTransport.Route route;
+
+    private final ArrayDeque<NioExchange> exchanges = new ArrayDeque<NioExchange>();
+    private final ArrayDeque<NioExchange> writes = new ArrayDeque<NioExchange>();
+    private final HttpResponseParser parser = new HttpResponseParser();
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer writeBuffer;
+    private ByteBuffer unparsed;
+    private boolean connected;
+    private boolean readingPaused;
+    private boolean writeFailed;
+    private volatile boolean closed;
+    private int responses;
+    private long deadline;
+
+    // guarded by the route map of the transport: the exchanges handed to this connection and not done yet, and
+    // whether they can all be pipelined
+    int assigned;
+    boolean pipelinable = true;
+
+    NioConnection(NioHttpTransport transport, NioSelectorLoop loop, NioHttpTransport.Route route) {
+        this.transport = transport;
+        this.loop = loop;
+        this.route = route;
+    }
+
+    /**
+     * Opens the connection and sends the first exchange once connected.
+     */
+    void connect(InetSocketAddress address, NioExchange first) {
+        if (first.isCancelled()) {
+            first.aborted();
+            close();
+            return;
+        }
+        first.pipelined = false;
+        exchanges.add(first);
+        writes.add(first);
+        if (address.isUnresolved()) {
+            fail(new UnknownHostException("Unable to resolve host " + address.getHostName()));
+            return;
+        }
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            key = loop.register(this, channel);
+            deadline = NioSelectorLoop.now() + transport.getConnectTimeout();
+            if (channel.connect(address)) {
+                connected();
+            } else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Sends a request on this connection, behind the ones already in flight.
+     */
+    void send(NioExchange exchange) {
+        if (closed || writeFailed) {
+            // the connection went away while the exchange was on its way here
+            transport.retry(exchange);
+            return;
+        }
+        if (exchange.isCancelled()) {
+            exchange.aborted();
+            transport.release(this);
+            return;
+        }
+        boolean idle = exchanges.isEmpty();
+        exchange.pipelined = !idle;
+        exchanges.add(exchange);
+        writes.add(exchange);
+        if (idle) {
+            parser.reset(exchange, exchange.headRequest);
+            deadline = NioSelectorLoop.now() + transport.getReadTimeout();
+        }
+        updateInterest();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Called by the loop when the channel is ready for the operations of interest.
+     */
+    void onReady(int readyOps) {
+        try {
+            if ((readyOps & SelectionKey.OP_CONNECT) != 0) {
+                if (!channel.finishConnect()) {
+                    return;
+                }
+                connected();
+            }
+            if ((readyOps & SelectionKey.OP_WRITE) != 0 && !closed) {
+                try {
+                    write();
+                } catch (IOException e) {
+                    writeFailed(e);
+                }
+            }
+            if ((readyOps & SelectionKey.OP_READ) != 0 && !closed) {
+                read();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Fails the connection if it has been silent for too long, or closes it if it has been idle too long.
+     */
+    void checkTimeout(long now) {
+        if (deadline == 0 || now < deadline || closed) {
+            return;
+        }
+        if (exchanges.isEmpty()) {
+            close();
+        } else {
+            fail(new SocketTimeoutException(connected ? "Read timed out" : "Connect timed out"));
+        }
+    }
+
+    void pauseReading() {
+        readingPaused = true;
+        // a slow consumer is not a slow server
+        deadline = 0;
+        updateInterest();
+    }
+
+    void resumeReading() {
+        if (!readingPaused || closed) {
+            return;
+        }
+        readingPaused = false;
+        deadline = NioSelectorLoop.now() + transport.getReadTimeout();
+        try {
+            if (unparsed != null) {
+                parse(unparsed);
+                if (!unparsed.hasRemaining()) {
+                    unparsed = null;
+                }
+            }
+            updateInterest();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Takes a cancelled exchange off the connection. The rest of a response being read cannot be skipped reliably,
+     * so the connection is closed; the requests pipelined behind it go to another connection.
+     */
+    void abort(NioExchange exchange) {
+        if (!exchanges.contains(exchange) || closed) {
+            return;
+        }
+        exchange.aborted();
+        if (exchange == exchanges.peek()) {
+            exchanges.poll();
+            close();
+            settle(new IOException("Request aborted"), null, false);
+        } else if (writes.contains(exchange) && (writeBuffer == null || writes.peek() != exchange)) {
+            // not written yet, so the server will never know
+            exchanges.remove(exchange);
+            writes.remove(exchange);
+            transport.release(this);
+        }
+        // otherwise the server answers it in turn, and the response is dropped
+    }
+
+    /**
+     * Closes the connection and fails, or retries on another connection, the exchanges still on it.
+     */
+    void fail(IOException e) {
+        if (closed) {
+            return;
+        }
+        NioExchange cutOff = parser.hasStarted() ? exchanges.peek() : null;
+        boolean pipelined = false;
+        for (NioExchange exchange : exchanges) {
+            pipelined |= exchange.pipelined;
+        }
+        close();
+        if (pipelined) {
+            transport.pipelineBroken(route);
+        }
+        settle(e, cutOff, true);
+    }
+
+    /**
+     * Closes the connection, the exchanges still on it are left untouched.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+        writes.clear();
+        loop.unregister(this);
+        transport.closed(this);
+    }
+
+    /**
+     * Retries or fails the exchanges left on the closed connection.
+     * 
+     * @param cutOff the exchange whose response was cut off, null if none.
+     * @param blameFirst whether the failure may be down to the first exchange left, as when a fresh connection
+     *            fails.
+     */
+    private void settle(IOException e, NioExchange cutOff, boolean blameFirst) {
+        boolean reused = responses > 0;
+        boolean first = true;
+        NioExchange exchange;
+        while ((exchange = exchanges.poll()) != null) {
+            boolean retry;
+            if (exchange == cutOff) {
+                retry = false;
+            } else if (first && blameFirst) {
+                // A reused connection that fails before any response byte was most likely closed by the server
+                // while idle, or after the last response it meant to give when requests were pipelined.
+                retry = reused && (exchange.pipelined || exchange.getAttempts() < NioHttpTransport.MAX_ATTEMPTS);
+            } else {
+                // Requests queued behind another one were never answered. The connection has made progress if it
+                // answered anything, so going round again cannot loop forever.
+                retry = reused || exchange.getAttempts() < NioHttpTransport.MAX_ATTEMPTS;
+            }
+            if (retry) {
+                transport.retry(exchange);
+            } else {
+                exchange.fail(e);
+            }
+            first = false;
+        }
+    }
+
+    private void connected() throws IOException {
+        connected = true;
+        NioExchange first = exchanges.peek();
+        if (first != null) {
+            parser.reset(first, first.headRequest);
+        }
+        deadline = NioSelectorLoop.now() + transport.getReadTimeout();
+        updateInterest();
+    }
+
+    /**
+     * Stops writing after a write error. A server that closed the connection after its last response may have left
+     * that response unread, so the connection is read to the end before the exchanges left are settled.
+     */
+    private void writeFailed(IOException e) {
+        if (!connected || exchanges.isEmpty()) {
+            fail(e);
+            return;
+        }
+        writeFailed = true;
+        writes.clear();
+        writeBuffer = null;
+        updateInterest();
+    }
+
+    private void write() throws IOException {
+        while (!writes.isEmpty()) {
+            if (writeBuffer == null) {
+                writeBuffer = writes.peek().beginAttempt();
+            }
+            channel.write(writeBuffer);
+            writes.peek().requestWritten();
+            if (writeBuffer.hasRemaining()) {
+                break;
+            }
+            writeBuffer = null;
+            writes.poll().requestSent();
+        }
+        updateInterest();
+    }
+
+    private void read() throws IOException {
+        ByteBuffer buffer = loop.bufferPool.acquire();
+        try {
+            int count = channel.read(buffer);
+            if (count < 0) {
+                endOfStream();
+                return;
+            }
+            if (!exchanges.isEmpty()) {
+                deadline = NioSelectorLoop.now() + transport.getReadTimeout();
+            }
+            buffer.flip();
+            parse(buffer);
+            if (buffer.hasRemaining() && !closed) {
+                // reading was paused half way, keep the rest for later
+                unparsed = ByteBuffer.allocate(buffer.remaining());
+                unparsed.put(buffer);
+                unparsed.flip();
+            }
+        } finally {
+            loop.bufferPool.release(buffer);
+        }
+    }
+
+    private void parse(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && !readingPaused && !closed) {
+            if (exchanges.isEmpty()) {
+                throw new ProtocolException("Unexpected data on an idle connection");
+            }
+            if (parser.parse(buffer)) {
+                completed();
+            }
+        }
+    }
+
+    private void endOfStream() throws IOException {
+        if (!exchanges.isEmpty() && parser.hasStarted() && parser.endOfStream()) {
+            // response delimited by the end of the connection
+            completed();
+        }
+        if (exchanges.isEmpty()) {
+            close();
+        } else {
+            fail(new ProtocolException("Connection closed by the server"));
+        }
+    }
+
+    private void completed() {
+        NioExchange exchange = exchanges.poll();
+        responses++;
+        // a pause asked for by the last body part of the response does not hold back the next one
+        readingPaused = false;
+        transport.responded(route, parser.isHttp11(), exchange.pipelined);
+        // the connection is settled first, so that a request issued from the completion callback can reuse it
+        if (!parser.isKeepAlive() || writeFailed) {
+            close();
+            // the server said it would close, the pipelined requests left were not answered
+            settle(new ProtocolException("Connection closed by the server"), null, false);
+        } else {
+            NioExchange next = exchanges.peek();
+            if (next != null) {
+                parser.reset(next, next.headRequest);
+                deadline = NioSelectorLoop.now() + transport.getReadTimeout();
+            } else {
+                deadline = NioSelectorLoop.now() + transport.getKeepAliveDuration();
+            }
+            updateInterest();
+            transport.release(this);
+        }
+        exchange.complete();
+    }
+
+    private void updateInterest() {
+        if (closed || !connected) {
+            return;
+        }
+        int ops = 0;
+        if (!readingPaused) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!writes.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+}
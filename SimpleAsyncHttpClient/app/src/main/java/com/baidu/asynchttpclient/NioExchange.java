@@ -0,0 +1,291 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A request in flight on {@link NioHttpTransport}, from the moment it is started until its response has been
+ * delivered to its {@link ResponseSink}. It is also the future handed back to the caller, cancelling it aborts the
+ * request.
+ */
+class NioExchange implements HttpResponseParser.Listener, ResponseSource, Future<Object> {
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_ACTIVE = 1;
+    private static final int STATE_DONE = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    final NioHttpTransport transport;
+    final HttpUriRequest request;
+    final HttpContext context;
+    final ResponseSink sink;
+    final boolean headRequest;
+    // GET and HEAD requests may be pipelined behind others
+    final boolean pipelinable;
+    private final byte[] requestBytes;
+    // reports the progress of the request body, null if nobody listens
+    private final ProgressEntity upload;
+    private final int bodyStart;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    // guarded by this
+    private int state = STATE_PENDING;
+    private NioConnection connection;
+
+    // confined to the I/O thread of the connection
+    private ByteBuffer requestBuffer;
+    private ProgressEntity.Tracker tracker;
+    private boolean started;
+    private int attempts;
+    // whether the current attempt was sent behind other requests on its connection
+    boolean pipelined;
+
+    NioExchange(NioHttpTransport transport, HttpUriRequest request, HttpContext context, byte[] requestBytes,
+                ResponseSink sink) {
+        this.transport = transport;
+        this.request = request;
+        this.context = context;
+        this.requestBytes = requestBytes;
+        this.sink = sink;
+        this.headRequest = "HEAD".equalsIgnoreCase(request.getMethod());
+        this.pipelinable = headRequest || "GET".equalsIgnoreCase(request.getMethod());
+        HttpEntity entity = request instanceof HttpEntityEnclosingRequest
+                ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+        upload = entity instanceof ProgressEntity ? (ProgressEntity) entity : null;
+        bodyStart = upload != null ? headLength(requestBytes) : requestBytes.length;
+    }
+
+    /**
+     * Returns the length of the request line and headers, up to and including the empty line.
+     */
+    private static int headLength(byte[] request) {
+        for (int i = 3; i < request.length; i++) {
+            if (request[i] == '\n' && request[i - 1] == '\r' && request[i - 2] == '\n' && request[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return request.length;
+    }
+
+    /**
+     * Binds the exchange to the connection that will carry it. Called under the lock of the transport.
+     * 
+     * @return false if the exchange has been cancelled meanwhile.
+     */
+    synchronized boolean assign(NioConnection connection) {
+        if (state == STATE_CANCELLED || state == STATE_DONE) {
+            return false;
+        }
+        this.connection = connection;
+        state = STATE_ACTIVE;
+        return true;
+    }
+
+    /**
+     * Called by the connection before the request is written. Each attempt writes the request again from the start.
+     */
+    ByteBuffer beginAttempt() {
+        attempts++;
+        requestBuffer = ByteBuffer.wrap(requestBytes);
+        if (upload != null) {
+            tracker = upload.track(requestBytes.length - bodyStart);
+        }
+        if (!started) {
+            started = true;
+            sink.onStart();
+        }
+        return requestBuffer;
+    }
+
+    /**
+     * Called by the connection each time part of the request has been written.
+     */
+    void requestWritten() {
+        if (tracker != null) {
+            tracker.update(Math.max(0, requestBuffer.position() - bodyStart));
+        }
+    }
+
+    /**
+     * Called by the connection once the whole request has been written.
+     */
+    void requestSent() {
+        context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.TRUE);
+        if (tracker != null) {
+            tracker.finish(requestBytes.length - bodyStart);
+            tracker = null;
+        }
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    public void onResponseHead(BasicHttpResponse head) throws IOException {
+        if (isActive()) {
+            sink.onResponseHead(head);
+        }
+    }
+
+    public void onResponseBody(ByteBuffer body) throws IOException {
+        if (isActive() && !sink.onResponseBody(body)) {
+            connection.pauseReading();
+        }
+    }
+
+    public void resumeReading() {
+        final NioConnection c;
+        synchronized (this) {
+            c = connection;
+        }
+        if (c != null) {
+            c.loop.execute(new Runnable() {
+                public void run() {
+                    c.resumeReading();
+                }
+            });
+        }
+    }
+
+    /**
+     * Called from the I/O thread when the response is complete.
+     */
+    void complete() {
+        if (finish()) {
+            try {
+                sink.onResponseComplete();
+            } catch (IOException e) {
+                sink.onFailure(e);
+            }
+        }
+    }
+
+    /**
+     * Called when the request cannot be completed.
+     */
+    void fail(IOException e) {
+        if (finish()) {
+            sink.onFailure(e);
+        }
+    }
+
+    /**
+     * Called from the I/O thread once a cancelled exchange has been taken off its connection.
+     */
+    void aborted() {
+        if (started) {
+            sink.onCancel();
+        }
+    }
+
+    private synchronized boolean isActive() {
+        return state == STATE_ACTIVE;
+    }
+
+    private boolean finish() {
+        synchronized (this) {
+            if (state == STATE_DONE || state == STATE_CANCELLED) {
+                return false;
+            }
+            state = STATE_DONE;
+        }
+        done.countDown();
+        return true;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        final NioConnection c;
+        synchronized (this) {
+            if (state == STATE_DONE || state == STATE_CANCELLED) {
+                return false;
+            }
+            c = connection;
+            state = STATE_CANCELLED;
+        }
+        done.countDown();
+        if (c == null) {
+            transport.removePending(this);
+        } else {
+            c.loop.execute(new Runnable() {
+                public void run() {
+                    c.abort(NioExchange.this);
+                }
+            });
+        }
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return state == STATE_CANCELLED;
+    }
+
+    public synchronized boolean isDone() {
+        return state == STATE_DONE || state == STATE_CANCELLED;
+    }
+
+    public Object get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private Object result() {
+        if (isCancelled()) {
+            throw new CancellationException();
+        }
+        return null;
+    }
+
+    /**
+     * Whether the exchange can still be handed to a connection.
+     */
+    synchronized boolean isPending() {
+        return state == STATE_PENDING;
+    }
+
+    /**
+     * Puts the exchange back in the pending state so that it can be retried on another connection.
+     */
+    synchronized boolean detach() {
+        if (state != STATE_ACTIVE) {
+            return false;
+        }
+        connection = null;
+        state = STATE_PENDING;
+        return true;
+    }
+}
@@ -0,0 +1,587 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link NonBlockingHttpTransport} built on {@link java.nio.channels.Selector}: a couple of I/O threads serve all
+ * connections, so thousands of concurrent requests, long polls for instance, do not need thousands of threads.
+ * Connections are kept alive and reused per host, up to {@link #setMaxConnectionsPerRoute(int)}, and further
+ * requests wait for a free connection. Socket reads go through a small pool of direct buffers.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * AsyncHttpClient client = new AsyncHttpClient();
+ * client.setTransport(new NioHttpTransport());
+ * </pre>
+ * <p>
+ * Pipelining can be turned on with {@link #setPipelineDepth(int)}, to save round trips on slow links to servers that
+ * do not speak HTTP/2: GET and HEAD requests are then written behind the ones in flight on a busy connection rather
+ * than waiting for a free one or opening a new one. Whether a host takes pipelined requests is learned: pipelining
+ * starts after a keep-alive HTTP/1.1 response, and stops for good for hosts answering with HTTP/1.0 or repeatedly
+ * dropping connections with requests in the pipe. Requests left unanswered when a server closes a connection are
+ * sent again on another one.
+ * <p>
+ * Only plain http is supported, https requests belong on the other transports. Request bodies are buffered in memory
+ * before being sent, which suits form posts and small uploads. Responses are pushed to the handler from an I/O
+ * thread, so a handler without a Looper must not block in its callbacks. A request that fails on a connection reused
+ * from the pool before any response byte arrived is retried once on a new connection; other failures are reported to
+ * the handler without the retry policy of {@link AsyncHttpClient}.
+ */
+public class NioHttpTransport implements SinkTransport {
+    static final int MAX_ATTEMPTS = 2;
+
+    private static final int DEFAULT_IO_THREADS = 2;
+    private static final int DEFAULT_TIMEOUT = 15 * 1000;
+    private static final int DEFAULT_KEEP_ALIVE = 30 * 1000;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 128;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_RESOLVER_THREADS = 4;
+    private static final int MAX_PIPELINE_FAILURES = 3;
+    private static final Charset HEAD_CHARSET = Charset.forName(HTTP.ISO_8859_1);
+
+    private final NioSelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final ThreadPoolExecutor resolver;
+    private final Map<String, Route> routes = new HashMap<String, Route>();
+    private volatile boolean shutdown;
+    private volatile int connectTimeout = DEFAULT_TIMEOUT;
+    private volatile int readTimeout = DEFAULT_TIMEOUT;
+    private volatile int keepAliveDuration = DEFAULT_KEEP_ALIVE;
+    private volatile int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    private volatile int pipelineDepth = 1;
+
+    /**
+     * Creates a transport with two I/O threads.
+     */
+    public NioHttpTransport() {
+        this(DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * Creates a transport.
+     * 
+     * @param ioThreads the number of I/O threads, each with its own selector.
+     */
+    public NioHttpTransport(int ioThreads) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("ioThreads must be at least 1");
+        }
+        ByteBufferPool bufferPool = new ByteBufferPool(BUFFER_SIZE, ioThreads * 2);
+        loops = new NioSelectorLoop[ioThreads];
+        try {
+            for (int i = 0; i < ioThreads; i++) {
+                loops[i] = new NioSelectorLoop("NioHttpTransport I/O #" + (i + 1), bufferPool);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open selector", e);
+        }
+
+        // host names are resolved with blocking calls, away from the I/O threads
+        resolver = new ThreadPoolExecutor(MAX_RESOLVER_THREADS, MAX_RESOLVER_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "NioHttpTransport resolver #" + mCount.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        resolver.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the connect and read timeouts of requests. The read timeout bounds the silence of the server while a
+     * response is expected.
+     * 
+     * @param connectTimeout the connect timeout in milliseconds.
+     * @param readTimeout the read timeout in milliseconds.
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Sets how long an unused connection is kept open for reuse.
+     * 
+     * @param keepAliveDuration the duration in milliseconds.
+     */
+    public void setKeepAliveDuration(int keepAliveDuration) {
+        this.keepAliveDuration = keepAliveDuration;
+    }
+
+    /**
+     * Sets the maximum number of connections to a single host and port. Requests beyond it wait for a connection.
+     * 
+     * @param maxConnectionsPerRoute the maximum number of connections.
+     */
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * Sets how many GET and HEAD requests may be in flight on a single connection, to hosts known to take pipelined
+     * requests. Pipelining is off by default.
+     * 
+     * @param pipelineDepth the maximum number of requests per connection, 1 to turn pipelining off.
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 1) {
+            throw new IllegalArgumentException("pipelineDepth must be at least 1");
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    int getReadTimeout() {
+        return readTimeout;
+    }
+
+    int getKeepAliveDuration() {
+        return keepAliveDuration;
+    }
+
+    /**
+     * Stops the I/O threads. Requests in flight fail, and the transport cannot be used afterwards.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (NioSelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+        resolver.shutdown();
+
+        ArrayDeque<NioExchange> pending = new ArrayDeque<NioExchange>();
+        synchronized (routes) {
+            for (Route route : routes.values()) {
+                pending.addAll(route.pending);
+                route.pending.clear();
+            }
+        }
+        IOException failure = new IOException("Transport shut down");
+        for (NioExchange exchange : pending) {
+            exchange.fail(failure);
+        }
+    }
+
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+        context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.FALSE);
+
+        StreamResponseSink sink = new StreamResponseSink("HEAD".equalsIgnoreCase(request.getMethod()));
+        NioExchange exchange = new NioExchange(this, request, context, serialize(request), sink);
+        sink.setSource(exchange);
+        dispatch(exchange);
+        return sink.awaitResponse();
+    }
+
+    public Future<?> start(HttpUriRequest request, HttpContext context, AsyncHttpResponseHandler responseHandler) {
+        return start(request, context, new HandlerResponseSink(responseHandler, context), responseHandler);
+    }
+
+    public Future<?> start(HttpUriRequest request, HttpContext context, ResponseSink sink,
+            AsyncHttpResponseHandler responseHandler) {
+        context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+        context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.FALSE);
+
+        byte[] requestBytes;
+        try {
+            requestBytes = serialize(request);
+        } catch (IOException e) {
+            NioExchange failed = new NioExchange(this, request, context, new byte[0], sink);
+            sink.onStart();
+            failed.fail(e);
+            return failed;
+        }
+        NioExchange exchange = new NioExchange(this, request, context, requestBytes, sink);
+        dispatch(exchange);
+        return exchange;
+    }
+
+    /**
+     * Hands an exchange to an idle connection of its route, to a new connection, or queues it.
+     */
+    void dispatch(NioExchange exchange) {
+        if (shutdown) {
+            exchange.fail(new IOException("Transport shut down"));
+            return;
+        }
+
+        URI uri = exchange.request.getURI();
+        String scheme = uri.getScheme();
+        if (scheme != null && !"http".equalsIgnoreCase(scheme)) {
+            exchange.fail(new IOException("Unsupported scheme: " + scheme));
+            return;
+        }
+        String host = uri.getHost();
+        if (host == null) {
+            exchange.fail(new UnknownHostException("No host in " + uri));
+            return;
+        }
+        int port = uri.getPort() != -1 ? uri.getPort() : 80;
+        String key = host.toLowerCase(Locale.US) + ':' + port;
+
+        NioConnection connection = null;
+        boolean open = false;
+        synchronized (routes) {
+            Route route = routes.get(key);
+            if (route == null) {
+                route = new Route(host, port);
+                routes.put(key, route);
+            }
+            // most recently used first, it is the least likely to have been closed by the server
+            while ((connection = route.idle.pollLast()) != null && connection.isClosed()) {
+            }
+            boolean idle = connection != null;
+            if (connection == null && canPipeline(route, exchange)) {
+                connection = route.pipelineFor(pipelineDepth);
+            }
+            if (connection == null) {
+                if (route.connections >= maxConnectionsPerRoute) {
+                    route.pending.add(exchange);
+                    return;
+                }
+                connection = newConnection(route);
+                open = true;
+            }
+            if (!exchange.assign(connection)) {
+                // cancelled meanwhile
+                if (open) {
+                    route.connections--;
+                } else if (idle) {
+                    route.idle.add(connection);
+                }
+                return;
+            }
+            route.addExchange(connection, exchange);
+        }
+        if (open) {
+            open(connection, exchange);
+        } else {
+            send(connection, exchange);
+        }
+    }
+
+    /**
+     * Dispatches again an exchange that could not be completed on its connection.
+     */
+    void retry(NioExchange exchange) {
+        if (exchange.detach()) {
+            dispatch(exchange);
+        } else {
+            exchange.aborted();
+        }
+    }
+
+    /**
+     * Takes a cancelled exchange out of the queue of its route.
+     */
+    void removePending(NioExchange exchange) {
+        synchronized (routes) {
+            for (Route route : routes.values()) {
+                if (route.pending.remove(exchange)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Called from the I/O thread when an exchange is done with its connection. Gives the connection waiting exchanges,
+     * one if it is free or more if they can be pipelined, or puts it in the pool.
+     */
+    void release(NioConnection connection) {
+        ArrayDeque<NioExchange> next = null;
+        synchronized (routes) {
+            Route route = connection.route;
+            if (--connection.assigned == 0) {
+                connection.pipelinable = true;
+                route.busy.remove(connection);
+            }
+            NioExchange exchange;
+            while ((exchange = route.pending.peek()) != null
+                    && (connection.assigned == 0 || canPipelineOn(connection, exchange))) {
+                route.pending.poll();
+                if (exchange.assign(connection)) {
+                    route.addExchange(connection, exchange);
+                    if (next == null) {
+                        next = new ArrayDeque<NioExchange>();
+                    }
+                    next.add(exchange);
+                }
+            }
+            if (connection.assigned == 0) {
+                route.idle.add(connection);
+            }
+        }
+        if (next != null) {
+            for (NioExchange exchange : next) {
+                connection.send(exchange);
+            }
+        }
+    }
+
+    /**
+     * Called from the I/O thread with each response, to learn whether its host takes pipelined requests.
+     * 
+     * @param http11 whether the response was HTTP/1.1.
+     * @param pipelined whether the request had been sent behind another one.
+     */
+    void responded(Route route, boolean http11, boolean pipelined) {
+        if (pipelineDepth <= 1) {
+            return;
+        }
+        synchronized (routes) {
+            if (!http11) {
+                route.pipelining = Route.PIPELINING_OFF;
+            } else if (route.pipelining == Route.PIPELINING_UNKNOWN) {
+                route.pipelining = Route.PIPELINING_ON;
+            } else if (pipelined) {
+                route.pipelineFailures = 0;
+            }
+        }
+    }
+
+    /**
+     * Called from the I/O thread when a connection fails with pipelined requests on it. Hosts that do so repeatedly,
+     * without answering pipelined requests in between, are not sent any more of them.
+     */
+    void pipelineBroken(Route route) {
+        synchronized (routes) {
+            if (++route.pipelineFailures >= MAX_PIPELINE_FAILURES) {
+                route.pipelining = Route.PIPELINING_OFF;
+            }
+        }
+    }
+
+    // called under the route map lock
+    private boolean canPipeline(Route route, NioExchange exchange) {
+        return pipelineDepth > 1 && exchange.pipelinable && route.pipelining == Route.PIPELINING_ON;
+    }
+
+    // called under the route map lock
+    private boolean canPipelineOn(NioConnection connection, NioExchange exchange) {
+        return connection.pipelinable && connection.assigned < pipelineDepth && canPipeline(connection.route, exchange);
+    }
+
+    /**
+     * Called from the I/O thread when a connection is closed, opens a new one if exchanges are waiting.
+     */
+    void closed(NioConnection connection) {
+        NioExchange next = null;
+        NioConnection replacement = null;
+        synchronized (routes) {
+            Route route = connection.route;
+            route.connections--;
+            route.idle.remove(connection);
+            route.busy.remove(connection);
+            if (!shutdown) {
+                while ((next = route.pending.poll()) != null) {
+                    replacement = newConnection(route);
+                    if (next.assign(replacement)) {
+                        route.addExchange(replacement, next);
+                        break;
+                    }
+                    route.connections--;
+                    replacement = null;
+                }
+            }
+        }
+        if (replacement != null) {
+            open(replacement, next);
+        }
+    }
+
+    private NioConnection newConnection(Route route) {
+        route.connections++;
+        NioSelectorLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        return new NioConnection(this, loop, route);
+    }
+
+    private void open(final NioConnection connection, final NioExchange first) {
+        final Route route = connection.route;
+        try {
+            resolver.execute(new Runnable() {
+                public void run() {
+                    final InetSocketAddress address = new InetSocketAddress(route.host, route.port);
+                    connection.loop.execute(new Runnable() {
+                        public void run() {
+                            connection.connect(address, first);
+                        }
+                    });
+                }
+            });
+        } catch (RuntimeException e) {
+            // rejected after shutdown
+            connection.loop.execute(new Runnable() {
+                public void run() {
+                    connection.connect(InetSocketAddress.createUnresolved(route.host, route.port), first);
+                }
+            });
+        }
+    }
+
+    private void send(final NioConnection connection, final NioExchange exchange) {
+        connection.loop.execute(new Runnable() {
+            public void run() {
+                connection.send(exchange);
+            }
+        });
+    }
+
+    /**
+     * Writes the request line, the headers and the body of a request.
+     */
+    private static byte[] serialize(HttpUriRequest request) throws IOException {
+        URI uri = request.getURI();
+        StringBuilder head = new StringBuilder(256);
+        head.append(request.getMethod()).append(' ');
+        String path = uri.getRawPath();
+        head.append(path == null || path.length() == 0 ? "/" : path);
+        if (uri.getRawQuery() != null) {
+            head.append('?').append(uri.getRawQuery());
+        }
+        head.append(" HTTP/1.1\r\n");
+
+        if (!request.containsHeader(HTTP.TARGET_HOST)) {
+            appendHeader(head, HTTP.TARGET_HOST, uri.getPort() == -1 || uri.getPort() == 80 ? uri.getHost()
+                    : uri.getHost() + ':' + uri.getPort());
+        }
+        for (Header header : request.getAllHeaders()) {
+            String name = header.getName();
+            // framing is decided below
+            if (!HTTP.CONTENT_LEN.equalsIgnoreCase(name) && !HTTP.TRANSFER_ENCODING.equalsIgnoreCase(name)) {
+                appendHeader(head, name, header.getValue());
+            }
+        }
+        if (!request.containsHeader("Accept-Encoding")) {
+            appendHeader(head, "Accept-Encoding", "gzip");
+        }
+
+        HttpEntity entity = null;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        }
+        ByteArrayOutputStream body = null;
+        if (entity != null) {
+            long length = entity.getContentLength();
+            body = new ByteArrayOutputStream(length > 0 && length < Integer.MAX_VALUE ? (int) length : 1024);
+            // progress is reported as the body goes out, not as it is buffered
+            (entity instanceof ProgressEntity ? ((ProgressEntity) entity).getWrappedEntity() : entity).writeTo(body);
+            if (entity.getContentType() != null && !request.containsHeader(HTTP.CONTENT_TYPE)) {
+                appendHeader(head, HTTP.CONTENT_TYPE, entity.getContentType().getValue());
+            }
+            if (entity.getContentEncoding() != null && !request.containsHeader(HTTP.CONTENT_ENCODING)) {
+                appendHeader(head, HTTP.CONTENT_ENCODING, entity.getContentEncoding().getValue());
+            }
+            appendHeader(head, HTTP.CONTENT_LEN, Integer.toString(body.size()));
+        } else if (request instanceof HttpEntityEnclosingRequest) {
+            appendHeader(head, HTTP.CONTENT_LEN, "0");
+        }
+        head.append("\r\n");
+
+        byte[] headBytes = head.toString().getBytes(HEAD_CHARSET);
+        if (body == null || body.size() == 0) {
+            return headBytes;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(headBytes.length + body.size());
+        out.write(headBytes);
+        body.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static void appendHeader(StringBuilder head, String name, String value) {
+        head.append(name).append(": ").append(value).append("\r\n");
+    }
+
+    /**
+     * The connections to a host and port, and the exchanges waiting for one. Guarded by the route map of the
+     * transport.
+     */
+    static class Route {
+        static final int PIPELINING_UNKNOWN = 0;
+        static final int PIPELINING_ON = 1;
+        static final int PIPELINING_OFF = 2;
+
+        final String host;
+        final int port;
+        final ArrayDeque<NioConnection> idle = new ArrayDeque<NioConnection>();
+        // connections with exchanges in flight
+        final ArrayDeque<NioConnection> busy = new ArrayDeque<NioConnection>();
+        final ArrayDeque<NioExchange> pending = new ArrayDeque<NioExchange>();
+        int connections;
+        int pipelining = PIPELINING_UNKNOWN;
+        int pipelineFailures;
+
+        Route(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        void addExchange(NioConnection connection, NioExchange exchange) {
+            if (connection.assigned++ == 0) {
+                busy.add(connection);
+            }
+            connection.pipelinable &= exchange.pipelinable;
+        }
+
+        /**
+         * Returns the busy connection with the fewest requests in flight that can take one more pipelined request,
+         * or null.
+         */
+        NioConnection pipelineFor(int depth) {
+            NioConnection best = null;
+            for (NioConnection connection : busy) {
+                if (connection.pipelinable && connection.assigned < depth && !connection.isClosed()
+                        && (best == null || connection.assigned < best.assigned)) {
+                    best = connection;
+                }
+            }
+            return best;
+        }
+    }
+}
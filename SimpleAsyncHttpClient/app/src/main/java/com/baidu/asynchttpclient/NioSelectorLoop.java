@@ -0,0 +1,146 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An I/O thread of {@link NioHttpTransport}: a selector serving a set of connections, plus a queue of tasks that
+ * other threads use to reach those connections.
+ */
+class NioSelectorLoop implements Runnable {
+    private static final String TAG = "NioSelectorLoop";
+    private static final long SWEEP_INTERVAL = 500;
+
+    final ByteBufferPool bufferPool;
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Set<NioConnection> connections = new HashSet<NioConnection>();
+    private volatile boolean running = true;
+
+    NioSelectorLoop(String name, ByteBufferPool bufferPool) throws IOException {
+        this.bufferPool = bufferPool;
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Monotonic clock in milliseconds used for the deadlines of connections.
+     */
+    static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Runs a task on the I/O thread. May be called from any thread.
+     */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    SelectionKey register(NioConnection connection, SocketChannel channel) throws ClosedChannelException {
+        connections.add(connection);
+        return channel.register(selector, 0, connection);
+    }
+
+    void unregister(NioConnection connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * Stops the loop, connections still open are failed.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void run() {
+        long lastSweep = now();
+        while (running) {
+            try {
+                selector.select(SWEEP_INTERVAL);
+            } catch (IOException e) {
+                // spurious, keep serving
+            }
+            runTasks();
+
+            Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+            while (selected.hasNext()) {
+                SelectionKey key = selected.next();
+                selected.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                if (key.isValid()) {
+                    try {
+                        connection.onReady(key.readyOps());
+                    } catch (RuntimeException e) {
+                        // a failing callback must not take the other connections down
+                        Log.w(TAG, "Unexpected error on " + thread.getName(), e);
+                        IOException failure = new IOException("Unexpected error: " + e);
+                        failure.initCause(e);
+                        connection.fail(failure);
+                    }
+                }
+            }
+
+            long now = now();
+            if (now - lastSweep >= SWEEP_INTERVAL) {
+                lastSweep = now;
+                for (NioConnection connection : connections.toArray(new NioConnection[connections.size()])) {
+                    connection.checkTimeout(now);
+                }
+            }
+        }
+
+        runTasks();
+        IOException shutdown = new IOException("Transport shut down");
+        for (NioConnection connection : connections.toArray(new NioConnection[connections.size()])) {
+            connection.fail(shutdown);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Unexpected error on " + thread.getName(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+
+import java.util.concurrent.Future;
+
+/**
+ * A {@link HttpTransport} that can run a request without occupying a thread while it waits on the network. When such
+ * a transport is in use, {@link AsyncHttpClient} hands requests to {@link #start} instead of its thread pool, and the
+ * transport pushes the response to the handler as it arrives.
+ * <p>
+ * Handlers that read the response themselves by overriding
+ * {@link AsyncHttpResponseHandler#sendResponseMessage(org.apache.http.HttpResponse)} are still run on the thread
+ * pool, through the blocking {@link #execute} method.
+ */
+public interface NonBlockingHttpTransport extends HttpTransport {
+
+    /**
+     * Starts the request and returns immediately. The handler receives the same sequence of messages as when the
+     * request is run on a worker thread: start, then either the receive start/update/end messages or a failure, then
+     * finish.
+     * 
+     * @param request the request to execute.
+     * @param context the context of this execution, unique to the request.
+     * @param responseHandler the handler to push the response to, may be null.
+     * @return a future that completes with the request, cancelling it aborts the request.
+     */
+    Future<?> start(HttpUriRequest request, HttpContext context, AsyncHttpResponseHandler responseHandler);
+}
@@ -0,0 +1,144 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Wraps the body of a request whose handler reports upload progress, see
+ * {@link AsyncHttpResponseHandler#onUploadProgress(long, long)}.
+ * <p>
+ * Transports that write the body straight to the connection, through {@link #writeTo(OutputStream)}, have the bytes
+ * counted as they are written. Transports that buffer the body first write the {@link #getWrappedEntity() wrapped
+ * entity} instead, and report with a {@link Tracker} as the buffered body goes out.
+ */
+class ProgressEntity extends HttpEntityWrapper {
+    private static final long INTERVAL_NANOS = 200 * 1000000L;
+    // the clock is only read once this much more has been written
+    private static final long MIN_BYTES = 16 * 1024;
+    // entities that write their body in one go still get their progress reported
+    private static final int WRITE_SLICE_SIZE = 64 * 1024;
+
+    private final AsyncHttpResponseHandler handler;
+
+    ProgressEntity(HttpEntity entity, AsyncHttpResponseHandler handler) {
+        super(entity);
+        this.handler = handler;
+    }
+
+    /**
+     * Wraps the body of the request, if it has one, for the handler.
+     */
+    static void wrap(HttpEntityEnclosingRequest request, AsyncHttpResponseHandler handler) {
+        HttpEntity entity = request.getEntity();
+        if (entity != null && !(entity instanceof ProgressEntity)) {
+            request.setEntity(new ProgressEntity(entity, handler));
+        }
+    }
+
+    HttpEntity getWrappedEntity() {
+        return wrappedEntity;
+    }
+
+    /**
+     * Starts reporting an attempt to send the body.
+     *
+     * @param length the length of the body, -1 if not known.
+     */
+    Tracker track(long length) {
+        return new Tracker(handler, length);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        Tracker tracker = track(getContentLength());
+        CountingOutputStream counting = new CountingOutputStream(out, tracker);
+        wrappedEntity.writeTo(counting);
+        tracker.finish(counting.count);
+    }
+
+    /**
+     * Reports the progress of one attempt to send a body, throttled by bytes and time so that counting costs next to
+     * nothing. Confined to the thread writing the body.
+     */
+    static class Tracker {
+        private final AsyncHttpResponseHandler handler;
+        private final long length;
+        private long reportedBytes = -1;
+        private long reportedAt = System.nanoTime();
+
+        Tracker(AsyncHttpResponseHandler handler, long length) {
+            this.handler = handler;
+            this.length = length;
+        }
+
+        void update(long bytesWritten) {
+            if (bytesWritten - reportedBytes < MIN_BYTES) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (now - reportedAt >= INTERVAL_NANOS) {
+                reportedBytes = bytesWritten;
+                reportedAt = now;
+                handler.sendUploadProgressMessage(bytesWritten, length);
+            }
+        }
+
+        /**
+         * Reports the whole body as sent, unless that was just reported.
+         */
+        void finish(long bytesWritten) {
+            if (bytesWritten != reportedBytes) {
+                reportedBytes = bytesWritten;
+                handler.sendUploadProgressMessage(bytesWritten, length);
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final Tracker tracker;
+        long count;
+
+        CountingOutputStream(OutputStream out, Tracker tracker) {
+            super(out);
+            this.tracker = tracker;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            tracker.update(++count);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // FilterOutputStream would write the bytes one at a time
+            for (int end = off + len; off < end; ) {
+                int count = Math.min(WRITE_SLICE_SIZE, end - off);
+                out.write(b, off, count);
+                off += count;
+                this.count += count;
+                tracker.update(this.count);
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of the requests of an {@link AsyncHttpClient}, see
+ * {@link AsyncHttpClient#setRateLimiter(RateLimiter)}, with a token bucket for each host, or for each key of a
+ * {@link Key}. A bucket holds up to <code>burst</code> tokens and gains <code>permitsPerSecond</code> of them every
+ * second; each request takes one. A request that finds the bucket empty is held back until its token is due, before it
+ * is given a worker or a connection. Nothing waits on a thread meanwhile, a timer hands the request on when the time
+ * comes.
+ * <p>
+ * For example:
+ * <p>
+ * 
+ * <pre>
+ * RateLimiter limiter = new RateLimiter(0, 0);
+ * limiter.setLimit(&quot;api.partner.com&quot;, 10, 5);
+ * client.setRateLimiter(limiter);
+ * </pre>
+ * 
+ * How long a request was held back is reported in its {@link RequestTiming}.
+ */
+public class RateLimiter {
+    /**
+     * Tells which bucket a request takes its token from.
+     */
+    public interface Key {
+        String keyOf(HttpUriRequest request);
+    }
+
+    /**
+     * The host of the request, in lower case.
+     */
+    public static final Key HOST = new Key() {
+        public String keyOf(HttpUriRequest request) {
+            String host = request.getURI().getHost();
+            return host != null ? host.toLowerCase(Locale.US) : "";
+        }
+    };
+
+    private static ScheduledExecutorService timer;
+
+    private final Key key;
+    private final double defaultRate;
+    private final int defaultBurst;
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+    private final AtomicLong throttledCount = new AtomicLong();
+    private final AtomicLong throttledNanos = new AtomicLong();
+
+    /**
+     * Limits every host to the same rate.
+     * 
+     * @param permitsPerSecond the rate of requests, 0 for no limit except for keys given one with
+     *            {@link #setLimit(String, double, int)}.
+     * @param burst how many requests can be made at once after a quiet time.
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, HOST);
+    }
+
+    /**
+     * @param permitsPerSecond the rate of requests, 0 for no limit except for keys given one with
+     *            {@link #setLimit(String, double, int)}.
+     * @param burst how many requests can be made at once after a quiet time.
+     * @param key tells which bucket each request takes its token from.
+     */
+    public RateLimiter(double permitsPerSecond, int burst, Key key) {
+        checkLimit(permitsPerSecond, burst);
+        this.defaultRate = permitsPerSecond;
+        this.defaultBurst = burst;
+        this.key = key;
+    }
+
+    /**
+     * Gives a key a limit of its own, in place of the one it has.
+     * 
+     * @param key a host, or a key of the {@link Key} of this limiter.
+     * @param permitsPerSecond the rate of requests, 0 for no limit.
+     * @param burst how many requests can be made at once after a quiet time.
+     */
+    public void setLimit(String key, double permitsPerSecond, int burst) {
+        checkLimit(permitsPerSecond, burst);
+        buckets.put(key, new Bucket(permitsPerSecond, burst));
+    }
+
+    /**
+     * Returns the number of requests held back so far.
+     */
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    /**
+     * Returns the time all the requests held back so far were held back for, in milliseconds.
+     */
+    public long getThrottledMillis() {
+        return throttledNanos.get() / 1000000;
+    }
+
+    /**
+     * Takes a token for the request.
+     * 
+     * @return how long the request must wait for its token, in nanoseconds.
+     */
+    long reserve(HttpUriRequest request) {
+        String name = key.keyOf(request);
+        Bucket bucket = buckets.get(name);
+        if (bucket == null) {
+            if (defaultRate == 0) {
+                return 0;
+            }
+            bucket = new Bucket(defaultRate, defaultBurst);
+            Bucket existing = buckets.putIfAbsent(name, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+        long delay = bucket.reserve(System.nanoTime());
+        if (delay > 0) {
+            throttledCount.incrementAndGet();
+            throttledNanos.addAndGet(delay);
+        }
+        return delay;
+    }
+
+    /**
+     * Runs the task once the delay has passed, on the timer shared by all limiters.
+     */
+    static synchronized ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+        if (timer == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "AsyncHttpClient RateLimiter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            timer = executor;
+        }
+        return timer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static void checkLimit(double permitsPerSecond, int burst) {
+        if (!(permitsPerSecond >= 0) || Double.isInfinite(permitsPerSecond) || burst < 0
+                || (permitsPerSecond > 0 && burst == 0)) {
+            throw new IllegalArgumentException("Invalid limit: " + permitsPerSecond + " per second, burst " + burst);
+        }
+    }
+
+    private static class Bucket {
+        private final double intervalNanos;
+        private final int burst;
+        // below 0 when tokens have been promised before they are due
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        Bucket(double permitsPerSecond, int burst) {
+            this.intervalNanos = permitsPerSecond > 0 ? 1e9 / permitsPerSecond : 0;
+            this.burst = burst;
+            this.tokens = burst;
+        }
+
+        synchronized long reserve(long now) {
+            if (intervalNanos == 0) {
+                return 0;
+            }
+            tokens = Math.min(burst, tokens + (now - refilledAt) / intervalNanos);
+            refilledAt = now;
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * intervalNanos);
+        }
+    }
+}
@@ -19,19 +19,18 @@
 package com.baidu.asynchttpclient;
 
 import org.apache.http.HttpEntity;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.entity.ByteArrayEntity;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A collection of string request parameters or files to send along with requests made from an {@link AsyncHttpClient}
@@ -52,18 +51,32 @@ import java.util.concurrent.ConcurrentHashMap;
  * AsyncHttpClient client = new AsyncHttpClient();
  * client.post(&quot;http://myendpoint.com&quot;, params, responseHandler);
  * </pre>
+ * 
+ * Parameters are sent in the order they were added, and a key may be given several values with
+ * {@link #add(String, String)}. The string parameters are encoded once, straight to bytes, and the encoding is reused
+ * for query strings and form bodies until the parameters change.
  */
 public class RequestParams {
-    private static String ENCODING = "UTF-8";
-
-    protected ConcurrentHashMap<String, String> urlParams;
-    protected ConcurrentHashMap<String, FileWrapper> fileParams;
+    private static final String ENCODING = "UTF-8";
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded; charset=" + ENCODING;
+    private static final byte[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D',
+            'E', 'F' };
+
+    // keys at even indexes, each followed by its value
+    private String[] strings = new String[16];
+    private int stringCount;
+    private final List<FileWrapper> fileParams = new ArrayList<FileWrapper>();
+    private boolean chunkedUploads;
+
+    // the string parameters as application/x-www-form-urlencoded, null when they changed since
+    private byte[] encoded;
+    private String encodedString;
+    private ByteBuilder buffer;
 
     /**
      * Constructs a new empty <code>RequestParams</code> instance.
      */
     public RequestParams() {
-        init();
     }
 
     /**
@@ -72,8 +85,6 @@ public class RequestParams {
      * @param source the source key/value string map to add.
      */
     public RequestParams(Map<String, String> source) {
-        init();
-
         for (Map.Entry<String, String> entry : source.entrySet()) {
             put(entry.getKey(), entry.getValue());
         }
@@ -86,31 +97,59 @@ public class RequestParams {
      * @param value the value string for the initial param.
      */
     public RequestParams(String key, String value) {
-        init();
-
         put(key, value);
     }
 
     /**
-     * Adds a key/value string pair to the request.
+     * Adds a key/value string pair to the request, in place of the values the key already has.
      * 
      * @param key the key name for the new param.
      * @param value the value string for the new param.
      */
-    public void put(String key, String value) {
+    public synchronized void put(String key, String value) {
         if (key != null && value != null) {
-            urlParams.put(key, value);
+            int index = indexOf(key, 0);
+            if (index < 0) {
+                add(key, value);
+                return;
+            }
+            strings[index + 1] = value;
+            removeStrings(key, index + 2);
+            encoded = null;
         }
     }
 
     /**
-     * Adds a file to the request.
+     * Adds a key/value string pair to the request, after the values the key already has.
+     * 
+     * @param key the key name for the new param.
+     * @param value the value string for the new param.
+     */
+    public synchronized void add(String key, String value) {
+        if (key != null && value != null) {
+            if (stringCount == strings.length) {
+                strings = Arrays.copyOf(strings, stringCount * 2);
+            }
+            strings[stringCount++] = key;
+            strings[stringCount++] = value;
+            encoded = null;
+        }
+    }
+
+    /**
+     * Adds a file to the request. The file is read when the body is written, again if the request is retried.
      * 
      * @param key the key name for the new param.
      * @param file the file to add.
+     * @throws FileNotFoundException if the file cannot be read.
      */
     public void put(String key, File file) throws FileNotFoundException {
-        put(key, new FileInputStream(file), file.getName());
+        if (!file.isFile() || !file.canRead()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        if (key != null) {
+            putFile(new FileWrapper(key, null, null, file, file.getName(), null, -1));
+        }
     }
 
     /**
@@ -135,7 +174,8 @@ public class RequestParams {
     }
 
     /**
-     * Adds an input stream to the request.
+     * Adds an input stream to the request, in place of the one the key already has. The stream is read into the body,
+     * and closed, when the body is built, unless {@link #setChunkedUploads(boolean) chunked uploads} are on.
      * 
      * @param key the key name for the new param.
      * @param stream the input stream to add.
@@ -143,40 +183,110 @@ public class RequestParams {
      * @param contentType the content type of the file, eg. application/json
      */
     public void put(String key, InputStream stream, String fileName, String contentType) {
+        put(key, stream, fileName, contentType, -1);
+    }
+
+    /**
+     * Adds an input stream that holds a known number of bytes to the request, in place of the one the key already
+     * has. The stream is read, and closed, when the body is written, so it is never held in memory and the body keeps
+     * its Content-Length, but the request cannot be retried.
+     * 
+     * @param key the key name for the new param.
+     * @param stream the input stream to add.
+     * @param fileName the name of the file.
+     * @param contentType the content type of the file, eg. application/json
+     * @param length the number of bytes the stream holds, -1 if it is not known.
+     */
+    public void put(String key, InputStream stream, String fileName, String contentType, long length) {
         if (key != null && stream != null) {
-            fileParams.put(key, new FileWrapper(stream, fileName, contentType));
+            putFile(new FileWrapper(key, stream, null, null, fileName, contentType, length));
+        }
+    }
+
+    /**
+     * Streams the input streams put without a length into the body as it is written, instead of reading them into
+     * memory when the body is built. The length of such a body is not known, so it is sent chunked, which HTTP/1.0
+     * proxies and some WAP gateways do not accept, and the request cannot be retried. Off by default.
+     */
+    public synchronized void setChunkedUploads(boolean chunkedUploads) {
+        this.chunkedUploads = chunkedUploads;
+    }
+
+    /**
+     * Adds bytes to the request as a file, in place of the one the key already has. The array is not copied, and it
+     * is written straight to the connection, again if the request is retried. It must not change until the request is
+     * complete.
+     * 
+     * @param key the key name for the new param.
+     * @param data the content of the file.
+     * @param fileName the name of the file, may be null.
+     * @param contentType the content type of the file, null for application/octet-stream.
+     */
+    public void put(String key, byte[] data, String fileName, String contentType) {
+        if (key != null && data != null) {
+            putFile(new FileWrapper(key, null, ByteBuffer.wrap(data), null, fileName, contentType, -1));
         }
     }
 
     /**
-     * Removes a parameter from the request.
+     * Adds the remaining bytes of a buffer to the request as a file, in place of the one the key already has. The
+     * buffer is not copied, its position and limit are read once, here. Its content is written straight to the
+     * connection, again if the request is retried, and must not change until the request is complete.
+     * 
+     * @param key the key name for the new param.
+     * @param data the content of the file.
+     * @param fileName the name of the file, may be null.
+     * @param contentType the content type of the file, null for application/octet-stream.
+     */
+    public void put(String key, ByteBuffer data, String fileName, String contentType) {
+        if (key != null && data != null) {
+            putFile(new FileWrapper(key, null, data.slice(), null, fileName, contentType, -1));
+        }
+    }
+
+    private synchronized void putFile(FileWrapper file) {
+        for (int i = 0; i < fileParams.size(); i++) {
+            if (fileParams.get(i).key.equals(file.key)) {
+                fileParams.set(i, file);
+                return;
+            }
+        }
+        fileParams.add(file);
+    }
+
+    /**
+     * Removes a parameter from the request, with all its values.
      * 
      * @param key the key name for the parameter to remove.
      */
-    public void remove(String key) {
-        urlParams.remove(key);
-        fileParams.remove(key);
+    public synchronized void remove(String key) {
+        removeStrings(key, 0);
+        for (Iterator<FileWrapper> i = fileParams.iterator(); i.hasNext();) {
+            if (i.next().key.equals(key)) {
+                i.remove();
+            }
+        }
     }
 
     @Override
-    public String toString() {
+    public synchronized String toString() {
         StringBuilder result = new StringBuilder();
-        for (ConcurrentHashMap.Entry<String, String> entry : urlParams.entrySet()) {
+        for (int i = 0; i < stringCount; i += 2) {
             if (result.length() > 0) {
                 result.append("&");
             }
 
-            result.append(entry.getKey());
+            result.append(strings[i]);
             result.append("=");
-            result.append(entry.getValue());
+            result.append(strings[i + 1]);
         }
 
-        for (ConcurrentHashMap.Entry<String, FileWrapper> entry : fileParams.entrySet()) {
+        for (FileWrapper file : fileParams) {
             if (result.length() > 0) {
                 result.append("&");
             }
 
-            result.append(entry.getKey());
+            result.append(file.key);
             result.append("=");
             result.append("FILE");
         }
@@ -184,75 +294,237 @@ public class RequestParams {
         return result.toString();
     }
 
-    HttpEntity getEntity() {
+    /**
+     * Returns the body of a request with these params: a url-encoded form, or a multipart body if files were put.
+     * Files, and streams put with their length, are read as the body is written, not here; a body with such streams can
+     * be written only once.
+     */
+    public synchronized HttpEntity getEntity() {
         HttpEntity entity = null;
 
         if (!fileParams.isEmpty()) {
             SimpleMultipartEntity multipartEntity = new SimpleMultipartEntity();
 
             // Add string params
-            for (ConcurrentHashMap.Entry<String, String> entry : urlParams.entrySet()) {
-                multipartEntity.addPart(entry.getKey(), entry.getValue());
+            for (int i = 0; i < stringCount; i += 2) {
+                multipartEntity.addPart(strings[i], strings[i + 1]);
             }
 
             // Add file params
-            int currentIndex = 0;
-            int lastIndex = fileParams.entrySet().size() - 1;
-            for (ConcurrentHashMap.Entry<String, FileWrapper> entry : fileParams.entrySet()) {
-                FileWrapper file = entry.getValue();
-                if (file.inputStream != null) {
-                    boolean isLast = currentIndex == lastIndex;
-                    if (file.contentType != null) {
-                        multipartEntity.addPart(
-                                                               entry.getKey(), file.getFileName(), 
-                                                               file.inputStream, file.contentType, isLast);
-                    } else {
-                        multipartEntity.addPart(entry.getKey(), file.getFileName(), file.inputStream, isLast);
-                    }
+            int lastIndex = fileParams.size() - 1;
+            for (int i = 0; i <= lastIndex; i++) {
+                FileWrapper file = fileParams.get(i);
+                boolean isLast = i == lastIndex;
+                if (file.data != null) {
+                    multipartEntity.addPart(file.key, file.getFileName(), file.data,
+                            file.contentType != null ? file.contentType : "application/octet-stream", isLast);
+                } else if (file.file != null) {
+                    multipartEntity.addPart(file.key, file.getFileName(), file.file,
+                            file.contentType != null ? file.contentType : "application/octet-stream", isLast);
+                } else if (file.length >= 0 || chunkedUploads) {
+                    multipartEntity.addPart(file.key, file.getFileName(), file.inputStream, file.length,
+                            file.contentType != null ? file.contentType : "application/octet-stream", isLast);
+                } else if (file.contentType != null) {
+                    multipartEntity.addPart(file.key, file.getFileName(), file.inputStream, file.contentType,
+                            isLast);
+                } else {
+                    multipartEntity.addPart(file.key, file.getFileName(), file.inputStream, isLast);
                 }
-                currentIndex++;
             }
 
             entity = multipartEntity;
         } else {
+            // the entity only reads the array, it is shared until the params change
+            ByteArrayEntity form = new ByteArrayEntity(encode());
+            form.setContentType(FORM_CONTENT_TYPE);
+            entity = form;
+        }
+
+        return entity;
+    }
+
+    protected synchronized String getParamString() {
+        if (encoded == null || encodedString == null) {
+            byte[] bytes = encode();
             try {
-                entity = new UrlEncodedFormEntity(getParamsList(), ENCODING);
+                encodedString = new String(bytes, 0, bytes.length, "US-ASCII");
             } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
+                throw new AssertionError(e);
             }
         }
+        return encodedString;
+    }
 
-        return entity;
+    /**
+     * Returns the string params as application/x-www-form-urlencoded, as URLEncodedUtils formats them.
+     */
+    private byte[] encode() {
+        if (encoded != null) {
+            return encoded;
+        }
+        encodedString = null;
+        ByteBuilder out = buffer;
+        if (out == null) {
+            out = buffer = new ByteBuilder(stringCount * 8);
+        }
+        out.reset();
+        for (int i = 0; i < stringCount; i += 2) {
+            if (i > 0) {
+                out.append('&');
+            }
+            percentEncode(strings[i], true, out);
+            out.append('=');
+            percentEncode(strings[i + 1], true, out);
+        }
+        encoded = out.toByteArray();
+        return encoded;
+    }
+
+    private int indexOf(String key, int from) {
+        for (int i = from; i < stringCount; i += 2) {
+            if (strings[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    private void init() {
-        urlParams = new ConcurrentHashMap<String, String>();
-        fileParams = new ConcurrentHashMap<String, FileWrapper>();
+    private void removeStrings(String key, int from) {
+        int kept = from;
+        for (int i = from; i < stringCount; i += 2) {
+            if (!strings[i].equals(key)) {
+                strings[kept++] = strings[i];
+                strings[kept++] = strings[i + 1];
+            }
+        }
+        if (kept != stringCount) {
+            Arrays.fill(strings, kept, stringCount, null);
+            stringCount = kept;
+            encoded = null;
+        }
     }
 
-    protected List<BasicNameValuePair> getParamsList() {
-        List<BasicNameValuePair> lparams = new LinkedList<BasicNameValuePair>();
+    /**
+     * Appends the UTF-8 bytes of the text, percent encoded. Unpaired surrogates are encoded as <code>?</code>, as
+     * String.getBytes does.
+     * 
+     * @param form true to keep letters, digits and <code>-_.*</code> and encode spaces as <code>+</code>, like
+     *            {@link java.net.URLEncoder}, false to keep the unreserved characters of RFC 3986,
+     *            <code>-_.~</code> besides letters and digits, for parts of a url.
+     */
+    static void percentEncode(String text, boolean form, AsciiOutput out) {
+        for (int i = 0, length = text.length(); i < length; i++) {
+            char c = text.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_'
+                    || c == '.' || c == (form ? '*' : '~')) {
+                out.append(c);
+            } else if (c == ' ' && form) {
+                out.append('+');
+            } else if (c < 0x80) {
+                escape(c, out);
+            } else if (c < 0x800) {
+                escape(0xc0 | (c >> 6), out);
+                escape(0x80 | (c & 0x3f), out);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                escape(0xf0 | (codePoint >> 18), out);
+                escape(0x80 | ((codePoint >> 12) & 0x3f), out);
+                escape(0x80 | ((codePoint >> 6) & 0x3f), out);
+                escape(0x80 | (codePoint & 0x3f), out);
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                escape('?', out);
+            } else {
+                escape(0xe0 | (c >> 12), out);
+                escape(0x80 | ((c >> 6) & 0x3f), out);
+                escape(0x80 | (c & 0x3f), out);
+            }
+        }
+    }
 
-        for (ConcurrentHashMap.Entry<String, String> entry : urlParams.entrySet()) {
-            lparams.add(new BasicNameValuePair(entry.getKey(), entry.getValue()));
+    /**
+     * Returns the number of characters {@link #percentEncode(String, boolean, AsciiOutput)} writes for the text.
+     */
+    static int percentEncodedLength(String text, boolean form) {
+        int encoded = 0;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            char c = text.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_'
+                    || c == '.' || c == (form ? '*' : '~') || (c == ' ' && form)) {
+                encoded += 1;
+            } else if (c < 0x80) {
+                encoded += 3;
+            } else if (c < 0x800) {
+                encoded += 6;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                i++;
+                encoded += 12;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                encoded += 3;
+            } else {
+                encoded += 9;
+            }
         }
+        return encoded;
+    }
 
-        return lparams;
+    private static void escape(int b, AsciiOutput out) {
+        out.append('%');
+        out.append(HEX_DIGITS[(b >> 4) & 0xf]);
+        out.append(HEX_DIGITS[b & 0xf]);
     }
 
-    protected String getParamString() {
-        return URLEncodedUtils.format(getParamsList(), ENCODING);
+    /**
+     * Receives the characters of an encoding, all of them ASCII.
+     */
+    interface AsciiOutput {
+        void append(int c);
+    }
+
+    /**
+     * A growable array of bytes.
+     */
+    static class ByteBuilder implements AsciiOutput {
+        private byte[] bytes;
+        private int count;
+
+        ByteBuilder(int capacity) {
+            bytes = new byte[Math.max(capacity, 16)];
+        }
+
+        public void append(int b) {
+            if (count == bytes.length) {
+                bytes = Arrays.copyOf(bytes, count * 2);
+            }
+            bytes[count++] = (byte) b;
+        }
+
+        void reset() {
+            count = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, count);
+        }
     }
 
     private static class FileWrapper {
+        public final String key;
         public InputStream inputStream;
+        public ByteBuffer data;
+        public File file;
         public String fileName;
         public String contentType;
+        public long length;
 
-        public FileWrapper(InputStream inputStream, String fileName, String contentType) {
+        public FileWrapper(String key, InputStream inputStream, ByteBuffer data, File file, String fileName,
+                String contentType, long length) {
+            this.key = key;
             this.inputStream = inputStream;
+            this.data = data;
+            this.file = file;
             this.fileName = fileName;
             this.contentType = contentType;
+            this.length = length;
         }
 
         public String getFileName() {
@@ -263,4 +535,4 @@ public class RequestParams {
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,146 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.protocol.HttpContext;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Where the time went before a request started, available from {@link AsyncHttpResponseHandler#getTiming()} once the
+ * request has been made. The times are only final once {@link AsyncHttpResponseHandler#onStart()} has been called.
+ */
+public final class RequestTiming {
+    // the attribute of the context of a request that holds its timing
+    private static final String ATTRIBUTE = "com.baidu.asynchttpclient.timing";
+
+    private final long createdNanos = System.nanoTime();
+    private volatile long throttleNanos;
+    private volatile long startedNanos = -1;
+    private volatile long attemptNanos = -1;
+    private volatile long respondedNanos = -1;
+    private volatile int statusCode;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile ConcurrencyLimiter.Permit permit;
+
+    RequestTiming() {
+    }
+
+    /**
+     * Returns the timing of the request the context belongs to, null if it has none.
+     */
+    static RequestTiming of(HttpContext context) {
+        return context != null ? (RequestTiming) context.getAttribute(ATTRIBUTE) : null;
+    }
+
+    void attachTo(HttpContext context) {
+        context.setAttribute(ATTRIBUTE, this);
+    }
+
+    /**
+     * Returns how long the request was held back by the {@link RateLimiter} of the client, in milliseconds.
+     */
+    public long getThrottleMillis() {
+        return throttleNanos / 1000000;
+    }
+
+    /**
+     * Returns how long the request then waited to be started, for a worker for instance, in milliseconds. -1 if it
+     * has not started.
+     */
+    public long getQueueMillis() {
+        long started = startedNanos;
+        return started < 0 ? -1 : (started - createdNanos - throttleNanos) / 1000000;
+    }
+
+    /**
+     * Returns how long the request took from its start to the status and headers of its response, in milliseconds,
+     * for the last attempt if it was retried: earlier attempts and the waits between them are not counted. -1 if the
+     * last attempt got no response.
+     */
+    public long getResponseMillis() {
+        long response = getResponseNanos();
+        return response < 0 ? -1 : response / 1000000;
+    }
+
+    long getResponseNanos() {
+        long responded = respondedNanos;
+        return responded < 0 ? -1 : responded - attemptNanos;
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    void setPermit(ConcurrencyLimiter.Permit permit) {
+        this.permit = permit;
+    }
+
+    void throttled(long nanos) {
+        throttleNanos = nanos;
+    }
+
+    void started() {
+        if (startedNanos < 0) {
+            startedNanos = System.nanoTime();
+            attemptNanos = startedNanos;
+        }
+    }
+
+    /**
+     * Called as each attempt to send the request begins, forgetting the response of the previous one.
+     */
+    void attempted() {
+        respondedNanos = -1;
+        statusCode = 0;
+        attemptNanos = System.nanoTime();
+    }
+
+    void responded(int statusCode) {
+        this.statusCode = statusCode;
+        respondedNanos = System.nanoTime();
+    }
+
+    /**
+     * Called when the request is done, only the first call counts.
+     * 
+     * @param failed whether it failed without a response.
+     */
+    void finished(boolean failed) {
+        if (finished.compareAndSet(false, true)) {
+            ConcurrencyLimiter.Permit permit = this.permit;
+            if (permit != null) {
+                permit.release(this, failed);
+            }
+        }
+    }
+
+    /**
+     * Called when the request is cancelled. A request that has not started will not say that it is done.
+     */
+    void cancelled() {
+        if (startedNanos < 0) {
+            finished(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RequestTiming[throttle=" + getThrottleMillis() + "ms, queue=" + getQueueMillis() + "ms, response="
+                + getResponseMillis() + "ms]";
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.Header;
+import org.apache.http.StatusLine;
+import org.apache.http.protocol.HTTP;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A response read completely into memory, the result of a {@link ResponseFuture} returned by
+ * {@link AsyncHttpClient}.
+ */
+public class Response {
+    private final StatusLine statusLine;
+    private final Header[] headers;
+    private final byte[] body;
+    private final String charset;
+
+    Response(StatusLine statusLine, Header[] headers, byte[] body, String charset) {
+        this.statusLine = statusLine;
+        this.headers = headers;
+        this.body = body;
+        this.charset = charset;
+    }
+
+    public StatusLine getStatusLine() {
+        return statusLine;
+    }
+
+    public int getStatusCode() {
+        return statusLine.getStatusCode();
+    }
+
+    public Header[] getAllHeaders() {
+        return headers.clone();
+    }
+
+    /**
+     * Get the first header with the given name, or null if there is none.
+     */
+    public Header getFirstHeader(String name) {
+        for (Header header : headers) {
+            if (header.getName().equalsIgnoreCase(name)) {
+                return header;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the body, decompressed if it was sent gzipped. Empty if the response has no body.
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Get the body decoded with the charset of the Content-Type header, or ISO-8859-1 if it names none.
+     */
+    public String getBodyAsString() {
+        try {
+            return new String(body, charset != null ? charset : HTTP.DEFAULT_CONTENT_CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            return new String(body);
+        }
+    }
+}
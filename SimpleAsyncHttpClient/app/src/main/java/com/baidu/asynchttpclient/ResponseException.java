@@ -0,0 +1,37 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * The failure of a {@link ResponseFuture} whose response has a status of 300 or above, the same responses an
+ * {@link AsyncHttpResponseHandler} reports as failures. The response, body included, is kept.
+ */
+public class ResponseException extends HttpResponseException {
+    private static final long serialVersionUID = 1L;
+
+    private final transient Response response;
+
+    ResponseException(Response response) {
+        super(response.getStatusCode(), response.getStatusLine().getReasonPhrase());
+        this.response = response;
+    }
+
+    public Response getResponse() {
+        return response;
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The result of a request started with {@link AsyncHttpClient#execute(android.content.Context,
+ * org.apache.http.client.methods.HttpUriRequest)} or one of the <code>*Future</code> methods of the client. Unlike the
+ * weak references returned by the handler based methods, the caller holds the only reference it needs, and can wait
+ * for the result, cancel the request or chain further work on it.
+ * <p>
+ * Callbacks and chained stages run on the thread that completes the future: the I/O thread of a non-blocking
+ * transport, a worker thread of the client, or the calling thread if the future is already done. They must not block,
+ * use {@link #addCallback(Callback, Executor)} to run them elsewhere.
+ * <p>
+ * For example, fetching a page that depends on another one:
+ * <p>
+ *
+ * <pre>
+ * client.getFuture(&quot;http://example.com/user&quot;).then(new Continuation&lt;Response, Response&gt;() {
+ *     public ResponseFuture&lt;Response&gt; apply(Response user) {
+ *         return client.getFuture(&quot;http://example.com/avatar?id=&quot; + user.getBodyAsString());
+ *     }
+ * }).addCallback(new Callback&lt;Response&gt;() {
+ *     public void onSuccess(Response avatar) {
+ *     }
+ *
+ *     public void onFailure(Throwable error) {
+ *     }
+ * });
+ * </pre>
+ *
+ * Cancelling a future cancels the stage it is waiting on, down to the request on the wire.
+ *
+ * @param <T> the type of the result.
+ */
+public class ResponseFuture<T> implements Future<T> {
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_SUCCEEDED = 1;
+    private static final int STATE_FAILED = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    /**
+     * Receives the outcome of a future.
+     */
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        /**
+         * @param error the cause of the failure, a {@link CancellationException} if the future was cancelled.
+         */
+        void onFailure(Throwable error);
+    }
+
+    /**
+     * Maps the result of a future to another value.
+     */
+    public interface Transform<T, R> {
+        /**
+         * @throws Exception to fail the resulting future.
+         */
+        R apply(T input) throws Exception;
+    }
+
+    /**
+     * Starts further asynchronous work once the result of a future is known.
+     */
+    public interface Continuation<T, R> {
+        /**
+         * @return the future of the work started, not null.
+         * @throws Exception to fail the resulting future.
+         */
+        ResponseFuture<R> apply(T input) throws Exception;
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    // guarded by this
+    private int state = STATE_PENDING;
+    private T result;
+    private Throwable failure;
+    private List<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>(2);
+    private List<Future<?>> cancelTargets;
+
+    ResponseFuture() {
+    }
+
+    /**
+     * Returns a future that has already succeeded.
+     */
+    public static <T> ResponseFuture<T> completed(T result) {
+        ResponseFuture<T> future = new ResponseFuture<T>();
+        future.set(result);
+        return future;
+    }
+
+    /**
+     * Returns a future that has already failed.
+     */
+    public static <T> ResponseFuture<T> failed(Throwable error) {
+        ResponseFuture<T> future = new ResponseFuture<T>();
+        future.setException(error);
+        return future;
+    }
+
+    /**
+     * Combines futures into one that succeeds with their results, in the order given, once all of them have
+     * succeeded. If any of them fails, the combined future fails with the same error and the others are cancelled.
+     * Cancelling the combined future cancels all of them.
+     */
+    public static <T> ResponseFuture<List<T>> allOf(List<? extends ResponseFuture<? extends T>> futures) {
+        final ResponseFuture<List<T>> all = new ResponseFuture<List<T>>();
+        final int count = futures.size();
+        if (count == 0) {
+            all.set(new ArrayList<T>(0));
+            return all;
+        }
+        final Object[] results = new Object[count];
+        final AtomicInteger remaining = new AtomicInteger(count);
+        for (ResponseFuture<? extends T> future : futures) {
+            all.setCancelTarget(future);
+        }
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            futures.get(i).addCallback(new Callback<T>() {
+                @SuppressWarnings("unchecked")
+                public void onSuccess(T result) {
+                    results[index] = result;
+                    if (remaining.decrementAndGet() == 0) {
+                        List<T> list = new ArrayList<T>(count);
+                        for (Object value : results) {
+                            list.add((T) value);
+                        }
+                        all.set(list);
+                    }
+                }
+
+                public void onFailure(Throwable error) {
+                    if (all.setException(error)) {
+                        all.cancelTargets(true);
+                    }
+                }
+            });
+        }
+        return all;
+    }
+
+    /**
+     * Registers a callback, run on the thread that completes the future, or right away if the future is done.
+     */
+    public void addCallback(Callback<? super T> callback) {
+        synchronized (this) {
+            if (state == STATE_PENDING) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        run(callback);
+    }
+
+    /**
+     * Registers a callback run by the given executor, for instance one that posts to the main thread.
+     */
+    public void addCallback(final Callback<? super T> callback, final Executor executor) {
+        addCallback(new Callback<T>() {
+            public void onSuccess(final T result) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        callback.onSuccess(result);
+                    }
+                });
+            }
+
+            public void onFailure(final Throwable error) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        callback.onFailure(error);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns a future of the result mapped by the given transform. Failures are passed on unchanged.
+     */
+    public <R> ResponseFuture<R> transform(final Transform<? super T, ? extends R> transform) {
+        final ResponseFuture<R> next = new ResponseFuture<R>();
+        next.setCancelTarget(this);
+        addCallback(new Callback<T>() {
+            public void onSuccess(T result) {
+                R mapped;
+                try {
+                    mapped = transform.apply(result);
+                } catch (Exception e) {
+                    next.setException(e);
+                    return;
+                }
+                next.set(mapped);
+            }
+
+            public void onFailure(Throwable error) {
+                next.setException(error);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Returns a future of the work the continuation starts once this future has succeeded. Failures are passed on
+     * unchanged. Cancelling the returned future cancels this one, or the work started by the continuation.
+     */
+    public <R> ResponseFuture<R> then(final Continuation<? super T, R> continuation) {
+        final ResponseFuture<R> next = new ResponseFuture<R>();
+        next.setCancelTarget(this);
+        addCallback(new Callback<T>() {
+            public void onSuccess(T result) {
+                ResponseFuture<R> started;
+                try {
+                    started = continuation.apply(result);
+                } catch (Exception e) {
+                    next.setException(e);
+                    return;
+                }
+                next.setCancelTarget(started);
+                started.addCallback(new Callback<R>() {
+                    public void onSuccess(R result) {
+                        next.set(result);
+                    }
+
+                    public void onFailure(Throwable error) {
+                        next.setException(error);
+                    }
+                });
+            }
+
+            public void onFailure(Throwable error) {
+                next.setException(error);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Completes the future with a result.
+     *
+     * @return false if the future was already done.
+     */
+    boolean set(T value) {
+        List<Callback<? super T>> pending;
+        synchronized (this) {
+            if (state != STATE_PENDING) {
+                return false;
+            }
+            result = value;
+            state = STATE_SUCCEEDED;
+            pending = callbacks;
+            callbacks = null;
+            // nothing left to cancel
+            cancelTargets = null;
+        }
+        done.countDown();
+        runAll(pending);
+        return true;
+    }
+
+    /**
+     * Fails the future. A {@link CancellationException} cancels it instead.
+     *
+     * @return false if the future was already done.
+     */
+    boolean setException(Throwable error) {
+        if (error instanceof CancellationException) {
+            return cancel(false);
+        }
+        List<Callback<? super T>> pending;
+        synchronized (this) {
+            if (state != STATE_PENDING) {
+                return false;
+            }
+            failure = error;
+            state = STATE_FAILED;
+            pending = callbacks;
+            callbacks = null;
+        }
+        done.countDown();
+        runAll(pending);
+        return true;
+    }
+
+    /**
+     * Adds a future to cancel along with this one, such as the request this future waits on. It is cancelled right
+     * away if this future has been cancelled already.
+     */
+    void setCancelTarget(Future<?> target) {
+        synchronized (this) {
+            if (state == STATE_PENDING) {
+                if (cancelTargets == null) {
+                    cancelTargets = new ArrayList<Future<?>>(2);
+                }
+                cancelTargets.add(target);
+                return;
+            }
+            if (state != STATE_CANCELLED) {
+                return;
+            }
+        }
+        target.cancel(true);
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        List<Callback<? super T>> pending;
+        synchronized (this) {
+            if (state != STATE_PENDING) {
+                return false;
+            }
+            state = STATE_CANCELLED;
+            pending = callbacks;
+            callbacks = null;
+        }
+        done.countDown();
+        cancelTargets(mayInterruptIfRunning);
+        runAll(pending);
+        return true;
+    }
+
+    private void cancelTargets(boolean mayInterruptIfRunning) {
+        List<Future<?>> targets;
+        synchronized (this) {
+            targets = cancelTargets;
+            cancelTargets = null;
+        }
+        if (targets != null) {
+            for (Future<?> target : targets) {
+                target.cancel(mayInterruptIfRunning);
+            }
+        }
+    }
+
+    private void runAll(List<Callback<? super T>> pending) {
+        for (Callback<? super T> callback : pending) {
+            run(callback);
+        }
+    }
+
+    private void run(Callback<? super T> callback) {
+        T value;
+        Throwable error;
+        synchronized (this) {
+            value = result;
+            error = state == STATE_CANCELLED ? new CancellationException() : failure;
+        }
+        if (error != null) {
+            callback.onFailure(error);
+        } else {
+            callback.onSuccess(value);
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return state == STATE_CANCELLED;
+    }
+
+    public synchronized boolean isDone() {
+        return state != STATE_PENDING;
+    }
+
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private synchronized T result() throws ExecutionException {
+        if (state == STATE_CANCELLED) {
+            throw new CancellationException();
+        }
+        if (state == STATE_FAILED) {
+            throw new ExecutionException(failure);
+        }
+        return result;
+    }
+}
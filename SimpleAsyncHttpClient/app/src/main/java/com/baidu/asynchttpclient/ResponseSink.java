@@ -0,0 +1,67 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.HttpResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The consumer of a response received by {@link NioHttpTransport} or {@link Http2Transport}. Methods are called from
+ * the thread that reads the connection, and must not block; {@link #onCancel()} may come from any thread, so
+ * implementations are synchronized and ignore whatever arrives after it.
+ */
+interface ResponseSink {
+
+    /**
+     * The request has been assigned to a connection.
+     */
+    void onStart();
+
+    /**
+     * The status line and headers have arrived.
+     * 
+     * @param head the response, its entity is not set.
+     */
+    void onResponseHead(HttpResponse head) throws IOException;
+
+    /**
+     * A part of the body has arrived, after transfer decoding.
+     * 
+     * @param body the bytes, only valid during the call.
+     * @return false to stop reading the response until {@link ResponseSource#resumeReading()} is called.
+     * @throws IOException to fail the request, for instance if the body cannot be decoded.
+     */
+    boolean onResponseBody(ByteBuffer body) throws IOException;
+
+    /**
+     * The response is complete. No more calls follow.
+     * 
+     * @throws IOException to fail the request instead.
+     */
+    void onResponseComplete() throws IOException;
+
+    /**
+     * The request failed. No more calls follow.
+     */
+    void onFailure(IOException e);
+
+    /**
+     * The request was cancelled after {@link #onStart()}. No more calls follow.
+     */
+    void onCancel();
+}
@@ -23,8 +23,8 @@
 
 package com.baidu.asynchttpclient;
 
-import android.os.SystemClock;
-
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.client.methods.HttpUriRequest;
@@ -76,6 +76,9 @@ class RetryHandler implements HttpRequestRetryHandler {
         } else if (exceptionBlacklist.contains(exception.getClass())) {
             // immediately cancel retry if the error is blacklisted
             retry = false;
+        } else if (!isRepeatable(context)) {
+            // the body may have been read already, it cannot be sent again
+            retry = false;
         } else if (exceptionWhitelist.contains(exception.getClass())) {
             // immediately retry if error is whitelisted
             retry = true;
@@ -95,11 +98,31 @@ class RetryHandler implements HttpRequestRetryHandler {
         }
 
         if (retry) {
-            SystemClock.sleep(RETRY_SLEEP_TIME_MILLIS);
+            try {
+                Thread.sleep(RETRY_SLEEP_TIME_MILLIS);
+            } catch (InterruptedException e) {
+                // the request was cancelled while waiting, its worker is needed by the other requests of the group
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            // HttpClient retries within the same execution, the response time is measured from the new attempt
+            RequestTiming timing = RequestTiming.of(context);
+            if (timing != null) {
+                timing.attempted();
+            }
         } else {
             exception.printStackTrace();
         }
 
         return retry;
     }
+
+    private static boolean isRepeatable(HttpContext context) {
+        Object request = context.getAttribute(ExecutionContext.HTTP_REQUEST);
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return true;
+        }
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        return entity == null || entity.isRepeatable();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,358 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import android.os.Handler;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Downloads a file over several connections at once, for
+ * {@link AsyncHttpClient#download(android.content.Context, String, java.io.File, FileDownloadHandler, int)}.
+ * <p>
+ * A request for the first byte of the file tells whether the server serves byte ranges, and how large the file is. If
+ * it does, the part file is allocated at its full size and the body is split into segments, each fetched with its own
+ * request and written at its offset with positional writes, so that the segments never wait on each other. A segment
+ * that breaks off is retried on its own, from where it stopped. Otherwise, or if an earlier download left a part to
+ * resume, the file is downloaded as a single stream.
+ * <p>
+ * The segments run on the thread pool of the client and on the thread running the download, which then waits for the
+ * others. Cancelling that thread cancels the whole download.
+ */
+class SegmentedDownload implements Runnable {
+    // below this, the extra requests cost more than fetching in parallel saves
+    static final long MIN_SEGMENT_SIZE = 256 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final HttpTransport transport;
+    private final HttpRequestRetryHandler retryHandler;
+    private final HttpContext httpContext;
+    private final ExecutorService executor;
+    private final HttpUriRequest request;
+    private final int maxSegments;
+    private final FileDownloadHandler handler;
+
+    // once the download has failed, the segments still running are not retried
+    private final HttpRequestRetryHandler segmentRetryHandler = new HttpRequestRetryHandler() {
+        public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+            return failure.get() == null && retryHandler.retryRequest(exception, executionCount, context);
+        }
+    };
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong lastProgress = new AtomicLong();
+    private final Queue<Segment> pending = new ConcurrentLinkedQueue<Segment>();
+
+    // set up before the segments start
+    private List<Segment> segments;
+    private CountDownLatch finished;
+    private FileChannel channel;
+    private long length;
+
+    SegmentedDownload(HttpTransport transport, HttpRequestRetryHandler retryHandler, HttpContext httpContext,
+            ExecutorService executor, HttpUriRequest request, int maxSegments, FileDownloadHandler handler) {
+        this.transport = transport;
+        this.retryHandler = retryHandler;
+        this.httpContext = httpContext;
+        this.executor = executor;
+        this.request = request;
+        this.maxSegments = maxSegments;
+        this.handler = handler;
+    }
+
+    public void run() {
+        long total = -1;
+        String validator = null;
+        if (!handler.hasResumablePart()) {
+            HttpResponse probe = probe();
+            if (probe != null) {
+                try {
+                    total = FileDownloadHandler.totalLength(probe, null, 0);
+                } catch (IOException e) {
+                    total = -1;
+                }
+                validator = FileDownloadHandler.validator(probe);
+            }
+        }
+        int count = (int) Math.min(maxSegments, Math.max(total, 0) / MIN_SEGMENT_SIZE);
+        if (count < 2) {
+            new AsyncHttpRequest(transport, retryHandler, new BasicHttpContext(httpContext), request, handler).run();
+            return;
+        }
+
+        handler.sendStartMessage();
+        try {
+            download(total, validator, count);
+        } catch (IOException e) {
+            handler.sendFailureMessage(e, e.toString());
+        }
+        handler.sendFinishMessage();
+    }
+
+    /**
+     * Asks for the first byte of the file, in a single attempt: if it fails, so will the single stream download, which
+     * reports the error after its retries.
+     *
+     * @return the response if the server answered with a byte range, null otherwise.
+     */
+    private HttpResponse probe() {
+        HttpGet probe = new HttpGet(request.getURI());
+        probe.setHeaders(request.getAllHeaders());
+        probe.setHeader("Range", "bytes=0-0");
+        try {
+            HttpResponse response = transport.execute(probe, new BasicHttpContext(httpContext));
+            HttpEntity entity = response.getEntity();
+            boolean ranged = response.getStatusLine().getStatusCode() == HttpStatus.SC_PARTIAL_CONTENT
+                    && FileDownloadHandler.rangeStart(response) == 0;
+            if (entity != null) {
+                if (ranged) {
+                    entity.consumeContent();
+                } else {
+                    // the whole body may be on its way
+                    FileDownloadHandler.release(entity.getContent(), false);
+                }
+            }
+            return ranged ? response : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void download(long total, String validator, int count) throws IOException {
+        handler.discardPart();
+        RandomAccessFile file = new RandomAccessFile(handler.partFile(), "rw");
+        try {
+            // allocated up front so that every segment can be written at its offset right away
+            file.setLength(total);
+            channel = file.getChannel();
+            length = total;
+            segments = new ArrayList<Segment>(count);
+            long size = total / count;
+            for (int i = 0; i < count; i++) {
+                long start = i * size;
+                long end = i == count - 1 ? total - 1 : start + size - 1;
+                segments.add(new Segment(start, end, validator));
+            }
+            pending.addAll(segments);
+            finished = new CountDownLatch(count);
+            handler.sendProgressMessage(0, total);
+
+            Runnable worker = new Runnable() {
+                public void run() {
+                    work();
+                }
+            };
+            for (int i = 1; i < count; i++) {
+                executor.execute(worker);
+            }
+            // taking segments here as well keeps the download going on a thread pool that is already busy
+            work();
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                fail(new InterruptedException("request interupted!"));
+                awaitFinished();
+            }
+        } finally {
+            file.close();
+        }
+
+        Throwable error = failure.get();
+        if (error != null) {
+            handler.discardPart();
+            handler.sendFailureMessage(error, error instanceof IOException ? error.toString() : null);
+        } else {
+            handler.complete(total);
+        }
+    }
+
+    private void work() {
+        Segment segment;
+        while ((segment = pending.poll()) != null) {
+            segment.attempt.run();
+        }
+    }
+
+    private void awaitFinished() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                finished.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Fails the download with the first error reported, and stops the segments still running.
+     */
+    private void fail(Throwable error) {
+        if (!failure.compareAndSet(null, error)) {
+            return;
+        }
+        while (pending.poll() != null) {
+            finished.countDown();
+        }
+        for (Segment segment : segments) {
+            segment.request.abort();
+        }
+    }
+
+    private void progress(int count) {
+        long bytes = written.addAndGet(count);
+        long now = System.nanoTime();
+        long last = lastProgress.get();
+        if (now - last >= handler.getProgressInterval() * 1000000L && lastProgress.compareAndSet(last, now)) {
+            handler.sendProgressMessage(bytes, length);
+        }
+    }
+
+    /**
+     * Fetches the byte range <code>[position, end]</code> of the file. A retry asks for what is left of it only.
+     */
+    private class Segment extends AsyncHttpResponseHandler {
+        final HttpGet request;
+        final AsyncHttpRequest attempt;
+        private final long end;
+
+        // confined to the thread running the segment
+        private long position;
+
+        Segment(long start, long end, String validator) {
+            super((Handler) null);
+            this.end = end;
+            position = start;
+            request = new HttpGet(SegmentedDownload.this.request.getURI());
+            request.setHeaders(SegmentedDownload.this.request.getAllHeaders());
+            if (validator != null) {
+                request.setHeader("If-Range", validator);
+            }
+            attempt = new AsyncHttpRequest(transport, segmentRetryHandler, new BasicHttpContext(httpContext), request,
+                    this);
+        }
+
+        @Override
+        void beforeExecute(HttpUriRequest request) {
+            request.setHeader("Range", "bytes=" + position + "-" + end);
+        }
+
+        @Override
+        void processResponse(HttpResponse response) throws IOException {
+            int statusCode = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            IOException error = null;
+            if (statusCode >= 300) {
+                error = new HttpResponseException(statusCode, response.getStatusLine().getReasonPhrase());
+            } else if (statusCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                // If-Range did not match, the file changed on the server
+                error = new ProtocolException("The file changed during the download");
+            } else if (entity == null || FileDownloadHandler.rangeStart(response) != position
+                    || FileDownloadHandler.totalLength(response, entity, 0) != length) {
+                error = new ProtocolException("Unexpected Content-Range");
+            }
+            if (error != null) {
+                if (entity != null) {
+                    FileDownloadHandler.release(entity.getContent(), false);
+                }
+                fail(error);
+                return;
+            }
+
+            boolean consumed = false;
+            InputStream in = entity.getContent();
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                ByteBuffer chunk = ByteBuffer.wrap(buffer);
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        fail(new InterruptedException("request interupted!"));
+                        return;
+                    }
+                    if (count > end + 1 - position) {
+                        fail(new ProtocolException("Body longer than the range asked for"));
+                        return;
+                    }
+                    chunk.limit(count);
+                    chunk.position(0);
+                    while (chunk.hasRemaining()) {
+                        position += channel.write(chunk, position);
+                    }
+                    progress(count);
+                }
+                consumed = true;
+                if (position <= end) {
+                    // retried, from where it stopped
+                    throw new EOFException("Segment ended at " + position + " of " + (end + 1) + " bytes");
+                }
+            } catch (ClosedByInterruptException e) {
+                fail(new InterruptedException("request interupted!"));
+            } finally {
+                FileDownloadHandler.release(in, consumed);
+            }
+        }
+
+        @Override
+        protected void sendStartMessage() {
+        }
+
+        @Override
+        protected void sendFailureMessage(Throwable e, String responseBody) {
+            if (Thread.currentThread().isInterrupted()) {
+                // whatever the transport made of it, the download was cancelled
+                fail(new InterruptedException("request interupted!"));
+            } else {
+                fail(e);
+            }
+        }
+
+        @Override
+        protected void sendFinishMessage() {
+            finished.countDown();
+        }
+    }
+}
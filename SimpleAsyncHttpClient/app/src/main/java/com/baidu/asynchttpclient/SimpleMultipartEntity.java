@@ -31,19 +31,34 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
+/**
+ * A multipart/form-data body, kept as the list of its pieces. Text and plain stream parts are copied into the entity;
+ * byte arrays and buffers are kept as they are, without a copy; files, and streams added with their length, are read
+ * as the body is written, so a large upload never has to fit in memory.
+ * <p>
+ * The body has a Content-Length and can be written any number of times, so requests that carry it can be retried,
+ * unless it has a streamed part: such a stream is read once and closed. The length of the body is unknown only if a
+ * stream was added without its length, and it is then sent chunked.
+ */
 class SimpleMultipartEntity implements HttpEntity {
     private static final char[] MULTIPART_CHARS = "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ"
                                                                                                        .toCharArray();
 
     private String boundary = null;
 
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PieceOutputStream out = new PieceOutputStream();
+    // the body in order, filled as the pieces written to out are completed: ByteBuffers, Files and StreamParts
+    final List<Object> pieces = new ArrayList<Object>();
+    private boolean hasStreams;
+    private boolean lengthUnknown;
     boolean isSetLast = false;
     boolean isSetFirst = false;
 
@@ -79,6 +94,7 @@ class SimpleMultipartEntity implements HttpEntity {
         } catch (final IOException e) {
             e.printStackTrace();
         }
+        out.completePiece();
 
         isSetLast = true;
     }
@@ -98,15 +114,14 @@ class SimpleMultipartEntity implements HttpEntity {
         addPart(key, fileName, fin, "application/octet-stream", isLast);
     }
 
+    /**
+     * Adds a part whose content is read from the stream now, into the entity, which closes the stream.
+     */
     public void addPart(final String key, final String fileName, final InputStream fin, String type,
             final boolean isLast) {
         writeFirstBoundaryIfNeeds();
         try {
-            type = "Content-Type: " + type + "\r\n";
-            out.write(("Content-Disposition: form-data; name=\"" + key + "\"; filename=\"" + fileName + "\"\r\n")
-                    .getBytes());
-            out.write(type.getBytes());
-            out.write("Content-Transfer-Encoding: binary\r\n\r\n".getBytes());
+            writePartHeader(key, fileName, type);
 
             final byte[] tmp = new byte[4096];
             int l = 0;
@@ -128,18 +143,83 @@ class SimpleMultipartEntity implements HttpEntity {
         }
     }
 
-    public void addPart(final String key, final File value, final boolean isLast) {
+    /**
+     * Adds a part whose content is read from the stream when the body is written, which closes the stream. The body
+     * can then be written only once. If the length is not known the body has none either, and it is sent chunked,
+     * which HTTP/1.0 proxies and some WAP gateways do not accept.
+     * 
+     * @param length the number of bytes the stream holds, -1 if it is not known.
+     */
+    public void addPart(final String key, final String fileName, final InputStream fin, final long length,
+            String type, final boolean isLast) {
+        addSourcePart(key, fileName, new StreamPart(fin, length), type, isLast);
+        hasStreams = true;
+        if (length < 0) {
+            lengthUnknown = true;
+        }
+    }
+
+    /**
+     * Adds a part whose content is the remaining bytes of the buffer. The buffer is not copied, its content must not
+     * change until the request is complete.
+     */
+    public void addPart(final String key, final String fileName, final ByteBuffer data, String type,
+            final boolean isLast) {
+        addSourcePart(key, fileName, data.slice(), type, isLast);
+    }
+
+    private void addSourcePart(final String key, final String fileName, final Object source, String type,
+            final boolean isLast) {
+        writeFirstBoundaryIfNeeds();
         try {
-            addPart(key, value.getName(), new FileInputStream(value), isLast);
-        } catch (final FileNotFoundException e) {
+            writePartHeader(key, fileName, type);
+            out.completePiece();
+            pieces.add(source);
+            if (!isLast) {
+                out.write(("\r\n--" + boundary + "\r\n").getBytes());
+            }
+        } catch (final IOException e) {
             e.printStackTrace();
         }
     }
 
+    private void writePartHeader(final String key, final String fileName, String type) throws IOException {
+        type = "Content-Type: " + type + "\r\n";
+        out.write(("Content-Disposition: form-data; name=\"" + key + "\"; filename=\"" + fileName + "\"\r\n")
+                .getBytes());
+        out.write(type.getBytes());
+        out.write("Content-Transfer-Encoding: binary\r\n\r\n".getBytes());
+    }
+
+    public void addPart(final String key, final File value, final boolean isLast) {
+        addPart(key, value.getName(), value, "application/octet-stream", isLast);
+    }
+
+    /**
+     * Adds a part whose content is read from the file each time the body is written.
+     */
+    public void addPart(final String key, final String fileName, final File value, String type,
+            final boolean isLast) {
+        addSourcePart(key, fileName, value, type, isLast);
+    }
+
     @Override
     public long getContentLength() {
         writeLastBoundaryIfNeeds();
-        return out.toByteArray().length;
+        if (lengthUnknown) {
+            return -1;
+        }
+        long length = 0;
+        for (Object piece : pieces) {
+            if (piece instanceof ByteBuffer) {
+                length += ((ByteBuffer) piece).remaining();
+            } else if (piece instanceof StreamPart) {
+                length += ((StreamPart) piece).length;
+            } else {
+                length += ((File) piece).length();
+            }
+        }
+        return length;
     }
 
     @Override
@@ -149,22 +229,71 @@ class SimpleMultipartEntity implements HttpEntity {
 
     @Override
     public boolean isChunked() {
-        return false;
+        return lengthUnknown;
     }
 
     @Override
     public boolean isRepeatable() {
-        return false;
+        return !hasStreams;
     }
 
     @Override
     public boolean isStreaming() {
-        return false;
+        return hasStreams;
     }
 
     @Override
     public void writeTo(final OutputStream outstream) throws IOException {
-        outstream.write(out.toByteArray());
+        writeLastBoundaryIfNeeds();
+        byte[] chunk = null;
+        for (Object part : pieces) {
+            if (!(part instanceof ByteBuffer)) {
+                if (chunk == null) {
+                    chunk = new byte[8192];
+                }
+                long length = part instanceof File ? -1 : ((StreamPart) part).length;
+                InputStream in = part instanceof File ? new FileInputStream((File) part) : ((StreamPart) part).in;
+                try {
+                    copy(in, length, outstream, chunk);
+                } finally {
+                    in.close();
+                }
+                continue;
+            }
+            ByteBuffer piece = (ByteBuffer) part;
+            if (piece.hasArray()) {
+                outstream.write(piece.array(), piece.arrayOffset() + piece.position(), piece.remaining());
+            } else {
+                // a direct buffer, through a small chunk at a time
+                ByteBuffer source = piece.duplicate();
+                if (chunk == null) {
+                    chunk = new byte[8192];
+                }
+                while (source.hasRemaining()) {
+                    int count = Math.min(source.remaining(), chunk.length);
+                    source.get(chunk, 0, count);
+                    outstream.write(chunk, 0, count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the stream, or only its first <code>length</code> bytes if the length is known, which must all be there.
+     */
+    private static void copy(InputStream in, long length, OutputStream outstream, byte[] chunk) throws IOException {
+        long remaining = length >= 0 ? length : Long.MAX_VALUE;
+        while (remaining > 0) {
+            int count = in.read(chunk, 0, (int) Math.min(remaining, chunk.length));
+            if (count == -1) {
+                if (length >= 0) {
+                    throw new IOException("Stream part ended " + remaining + " bytes before its length");
+                }
+                return;
+            }
+            outstream.write(chunk, 0, count);
+            remaining -= count;
+        }
     }
 
     @Override
@@ -174,13 +303,43 @@ class SimpleMultipartEntity implements HttpEntity {
 
     @Override
     public void consumeContent() throws IOException, UnsupportedOperationException {
-        if (isStreaming()) {
-            throw new UnsupportedOperationException("Streaming entity does not implement #consumeContent()");
+        // closes the streams that were not written
+        for (Object piece : pieces) {
+            if (piece instanceof StreamPart) {
+                ((StreamPart) piece).in.close();
+            }
         }
     }
 
     @Override
     public InputStream getContent() throws IOException, UnsupportedOperationException {
-        return new ByteArrayInputStream(out.toByteArray());
+        long length = getContentLength();
+        ByteArrayOutputStream content = new ByteArrayOutputStream(length >= 0 ? (int) length : 8192);
+        writeTo(content);
+        return new ByteArrayInputStream(content.toByteArray());
+    }
+
+    private static class StreamPart {
+        final InputStream in;
+        final long length;
+
+        StreamPart(InputStream in, long length) {
+            this.in = in;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Collects the bytes written since the last completed piece, and hands its array over as a piece without copying
+     * it.
+     */
+    class PieceOutputStream extends ByteArrayOutputStream {
+        void completePiece() {
+            if (count > 0) {
+                pieces.add(ByteBuffer.wrap(buf, 0, count));
+                buf = new byte[32];
+                count = 0;
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,41 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+
+import java.util.concurrent.Future;
+
+/**
+ * A {@link NonBlockingHttpTransport} that can push the response to any {@link ResponseSink}, not only to a handler.
+ */
+interface SinkTransport extends NonBlockingHttpTransport {
+
+    /**
+     * Starts the request and returns immediately.
+     * 
+     * @param request the request to execute.
+     * @param context the context of this execution, unique to the request.
+     * @param sink receives the response.
+     * @param responseHandler the handler behind the sink, used if the request has to be run on a blocking transport
+     *            instead; may be null.
+     * @return a future that completes with the request, cancelling it aborts the request. It is also the
+     *         {@link ResponseSource} of the sink.
+     */
+    Future<?> start(HttpUriRequest request, HttpContext context, ResponseSink sink,
+            AsyncHttpResponseHandler responseHandler);
+}
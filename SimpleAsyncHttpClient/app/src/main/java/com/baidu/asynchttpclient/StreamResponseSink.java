@@ -0,0 +1,218 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.protocol.HTTP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Turns a response received by {@link NioHttpTransport} or {@link Http2Transport} back into a blocking
+ * {@link HttpResponse}, for {@link HttpTransport#execute}. The body is handed over through a bounded queue: when the
+ * reader falls behind, the connection stops reading until it catches up.
+ */
+class StreamResponseSink implements ResponseSink {
+    private static final int HIGH_WATER_MARK = 64 * 1024;
+    private static final int LOW_WATER_MARK = 16 * 1024;
+    private static final String ENCODING_GZIP = "gzip";
+
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+    private final boolean headRequest;
+    private ResponseSource source;
+    private HttpResponse response;
+    private IOException failure;
+    private boolean complete;
+    private boolean cancelled;
+    private boolean paused;
+    private int buffered;
+    private int chunkOffset;
+
+    /**
+     * @param headRequest whether the response answers a HEAD request, whose Content-Length describes no body.
+     */
+    StreamResponseSink(boolean headRequest) {
+        this.headRequest = headRequest;
+    }
+
+    void setSource(ResponseSource source) {
+        this.source = source;
+    }
+
+    /**
+     * Waits for the status line and headers of the response.
+     * 
+     * @throws InterruptedIOException if the thread is interrupted, the request is aborted.
+     */
+    synchronized HttpResponse awaitResponse() throws IOException {
+        while (response == null) {
+            checkFailed();
+            waitForChange();
+        }
+        return response;
+    }
+
+    public void onStart() {
+    }
+
+    public synchronized void onResponseHead(HttpResponse head) {
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new BodyInputStream());
+        Header contentLength = head.getFirstHeader(HTTP.CONTENT_LEN);
+        long length = -1;
+        if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength.getValue().trim());
+            } catch (NumberFormatException e) {
+                // checked by the parser already
+            }
+        }
+        entity.setContentLength(headRequest ? 0 : length);
+        entity.setContentType(head.getFirstHeader(HTTP.CONTENT_TYPE));
+        Header encoding = head.getFirstHeader(HTTP.CONTENT_ENCODING);
+        entity.setContentEncoding(encoding);
+        if (encoding != null && ENCODING_GZIP.equalsIgnoreCase(encoding.getValue())) {
+            head.setEntity(new InflatingEntity(entity));
+        } else {
+            head.setEntity(entity);
+        }
+        response = head;
+        notifyAll();
+    }
+
+    public synchronized boolean onResponseBody(ByteBuffer body) {
+        byte[] chunk = new byte[body.remaining()];
+        body.get(chunk);
+        chunks.add(chunk);
+        buffered += chunk.length;
+        notifyAll();
+        if (buffered >= HIGH_WATER_MARK) {
+            paused = true;
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized void onResponseComplete() {
+        complete = true;
+        notifyAll();
+    }
+
+    public synchronized void onFailure(IOException e) {
+        failure = e;
+        notifyAll();
+    }
+
+    public synchronized void onCancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    private void checkFailed() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (cancelled) {
+            throw new IOException("Request aborted");
+        }
+    }
+
+    private void waitForChange() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            source.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("request interupted!");
+        }
+    }
+
+    private class BodyInputStream extends InputStream {
+        private boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            boolean resume = false;
+            int count;
+            synchronized (StreamResponseSink.this) {
+                while (chunks.isEmpty()) {
+                    if (complete || closed) {
+                        return -1;
+                    }
+                    checkFailed();
+                    waitForChange();
+                }
+                byte[] chunk = chunks.peek();
+                count = Math.min(len, chunk.length - chunkOffset);
+                System.arraycopy(chunk, chunkOffset, b, off, count);
+                chunkOffset += count;
+                if (chunkOffset == chunk.length) {
+                    chunks.poll();
+                    chunkOffset = 0;
+                }
+                buffered -= count;
+                if (paused && buffered <= LOW_WATER_MARK) {
+                    paused = false;
+                    resume = true;
+                }
+            }
+            if (resume) {
+                source.resumeReading();
+            }
+            return count;
+        }
+
+        @Override
+        public int available() {
+            synchronized (StreamResponseSink.this) {
+                return buffered;
+            }
+        }
+
+        @Override
+        public void close() {
+            boolean abort;
+            synchronized (StreamResponseSink.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                abort = !complete && failure == null && !cancelled;
+                chunks.clear();
+                buffered = 0;
+            }
+            // the rest of the body is not wanted, the connection cannot be reused
+            if (abort) {
+                source.cancel(true);
+            }
+        }
+    }
+}
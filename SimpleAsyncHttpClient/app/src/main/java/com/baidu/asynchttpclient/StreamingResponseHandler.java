@@ -0,0 +1,379 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import android.os.Handler;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HTTP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Streams a response to a {@link BodySubscriber}, reading only as much as the subscriber asks for.
+ * <p>
+ * On a {@link SinkTransport} it is the sink of the request: the transport stops reading the connection whenever
+ * the demand is used up, and resumes once more is requested. On any other transport it is run on a worker thread as
+ * a handler whose {@link #sendResponseMessage(HttpResponse)} waits for demand before each read of the body.
+ * <p>
+ * Whatever the thread, signals go through {@link #drain()}, which lets a single thread at a time call the subscriber.
+ */
+class StreamingResponseHandler extends AsyncHttpResponseHandler implements ResponseSink, BodySubscription,
+        GzipDecoder.Output {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final String ENCODING_GZIP = "gzip";
+
+    private final HttpUriRequest request;
+    private final BodySubscriber subscriber;
+    private final ResponseFuture<Void> future = new ResponseFuture<Void>();
+
+    // guarded by this
+    private final LinkedList<ByteBuffer> queue = new LinkedList<ByteBuffer>();
+    private ResponseSource source;
+    private long demand;
+    private boolean paused;
+    private boolean complete;
+    private Throwable failure;
+    private boolean draining;
+    // a final signal has been sent, or the subscriber cancelled
+    private boolean done;
+
+    // confined to the thread reading the response
+    private GzipDecoder gzip;
+    private boolean bodyStarted;
+
+    StreamingResponseHandler(HttpUriRequest request, BodySubscriber subscriber) {
+        super((Handler) null);
+        this.request = request;
+        this.subscriber = subscriber;
+        future.addCallback(new ResponseFuture.Callback<Void>() {
+            public void onSuccess(Void result) {
+            }
+
+            public void onFailure(Throwable error) {
+                if (error instanceof CancellationException) {
+                    // a worker thread blocked in a read does not notice its interrupt, close the connection
+                    StreamingResponseHandler.this.request.abort();
+                    fail(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * The future of the request, it completes once the subscriber has received its last call.
+     */
+    ResponseFuture<Void> getFuture() {
+        return future;
+    }
+
+    /**
+     * Sets the request on a {@link SinkTransport} once it has been started.
+     */
+    void setSource(ResponseSource source) {
+        boolean resume;
+        synchronized (this) {
+            this.source = source;
+            resume = paused && demand > queue.size();
+            if (resume) {
+                paused = false;
+            }
+        }
+        if (resume) {
+            source.resumeReading();
+        }
+    }
+
+    //
+    // BodySubscription
+    //
+
+    public void request(long n) {
+        if (n <= 0) {
+            fail(new IllegalArgumentException("Non-positive request: " + n));
+            return;
+        }
+        synchronized (this) {
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            // wake up a worker thread waiting for demand
+            notifyAll();
+        }
+        drain();
+    }
+
+    public void cancel() {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            queue.clear();
+            notifyAll();
+        }
+        future.cancel(true);
+    }
+
+    //
+    // ResponseSink, called by a SinkTransport
+    //
+
+    public void onStart() {
+    }
+
+    public void onResponseHead(HttpResponse head) {
+        Header encoding = head.getFirstHeader(HTTP.CONTENT_ENCODING);
+        if (encoding != null && ENCODING_GZIP.equalsIgnoreCase(encoding.getValue())) {
+            gzip = new GzipDecoder(BUFFER_SIZE);
+        }
+        subscribe(head);
+    }
+
+    public boolean onResponseBody(ByteBuffer body) throws IOException {
+        synchronized (this) {
+            if (done) {
+                return true;
+            }
+        }
+        bodyStarted = true;
+        if (gzip != null) {
+            gzip.decode(body, this);
+        } else {
+            byte[] chunk = new byte[body.remaining()];
+            body.get(chunk);
+            enqueue(ByteBuffer.wrap(chunk));
+        }
+        drain();
+        synchronized (this) {
+            // keep reading only while there is demand left for more than what is queued
+            paused = !done && demand <= queue.size();
+            return !paused;
+        }
+    }
+
+    public void write(byte[] buffer, int length) {
+        enqueue(ByteBuffer.wrap(Arrays.copyOf(buffer, length)));
+    }
+
+    public void onResponseComplete() throws IOException {
+        if (gzip != null) {
+            gzip.end();
+            if (bodyStarted) {
+                gzip.finish();
+            }
+        }
+        synchronized (this) {
+            complete = true;
+        }
+        drain();
+    }
+
+    public void onFailure(IOException e) {
+        if (gzip != null) {
+            gzip.end();
+        }
+        fail(e);
+    }
+
+    public void onCancel() {
+        if (gzip != null) {
+            gzip.end();
+        }
+        fail(new CancellationException());
+    }
+
+    //
+    // AsyncHttpResponseHandler, called on a worker thread
+    //
+
+    @Override
+    protected void sendStartMessage() {
+    }
+
+    @Override
+    protected void sendFinishMessage() {
+    }
+
+    @Override
+    protected void sendFailureMessage(Throwable e, String responseBody) {
+        fail(e instanceof InterruptedException ? new CancellationException() : e);
+    }
+
+    @Override
+    protected void sendResponseMessage(HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        boolean consumed = false;
+        InputStream in = null;
+        try {
+            in = entity != null ? entity.getContent() : null;
+            subscribe(response);
+            if (in != null) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (awaitDemand()) {
+                    int count = in.read(buffer);
+                    if (count < 0) {
+                        consumed = true;
+                        break;
+                    }
+                    if (count > 0) {
+                        enqueue(ByteBuffer.wrap(Arrays.copyOf(buffer, count)));
+                        drain();
+                    }
+                }
+            } else {
+                consumed = true;
+            }
+            if (consumed) {
+                synchronized (this) {
+                    complete = true;
+                }
+                drain();
+            }
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            if (consumed && in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // the body has been read completely
+                }
+            } else if (!consumed) {
+                // closing the content would read the rest of the body, drop the connection instead
+                request.abort();
+            }
+        }
+    }
+
+    /**
+     * Waits until the subscriber wants more than what is queued.
+     * 
+     * @return false if the request is over.
+     */
+    private synchronized boolean awaitDemand() {
+        while (!done && failure == null && demand <= queue.size()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new CancellationException();
+            }
+        }
+        return !done && failure == null;
+    }
+
+    //
+    // Signals to the subscriber
+    //
+
+    private synchronized void enqueue(ByteBuffer chunk) {
+        if (!done) {
+            queue.add(chunk);
+        }
+    }
+
+    private void subscribe(HttpResponse response) {
+        synchronized (this) {
+            if (done || failure != null) {
+                return;
+            }
+            draining = true;
+        }
+        try {
+            subscriber.onSubscribe(response, this);
+        } finally {
+            synchronized (this) {
+                draining = false;
+            }
+        }
+        drain();
+    }
+
+    private void fail(Throwable error) {
+        synchronized (this) {
+            if (failure == null) {
+                failure = error;
+            }
+            notifyAll();
+        }
+        drain();
+    }
+
+    /**
+     * Delivers queued chunks as far as the demand goes, then the final signal if it is due. Only one thread drains at
+     * a time, the others leave their work to it.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        while (true) {
+            ByteBuffer chunk = null;
+            Throwable error = null;
+            boolean completed = false;
+            ResponseSource resume = null;
+            synchronized (this) {
+                if (done) {
+                    draining = false;
+                    return;
+                }
+                if (failure != null) {
+                    error = failure;
+                    done = true;
+                    queue.clear();
+                } else if (demand > 0 && !queue.isEmpty()) {
+                    chunk = queue.removeFirst();
+                    demand--;
+                } else if (complete && queue.isEmpty()) {
+                    completed = true;
+                    done = true;
+                } else {
+                    draining = false;
+                    if (paused && source != null && demand > queue.size()) {
+                        paused = false;
+                        resume = source;
+                    }
+                }
+            }
+            if (chunk != null) {
+                subscriber.onNext(chunk);
+            } else if (error != null) {
+                subscriber.onError(error);
+                future.setException(error);
+                return;
+            } else if (completed) {
+                subscriber.onComplete();
+                future.set(null);
+                return;
+            } else {
+                if (resume != null) {
+                    resume.resumeReading();
+                }
+                return;
+            }
+        }
+    }
+}
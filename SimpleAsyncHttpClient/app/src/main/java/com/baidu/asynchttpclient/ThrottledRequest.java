@@ -0,0 +1,163 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.baidu.asynchttpclient;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A request held back by a {@link RateLimiter} or a {@link ConcurrencyLimiter}. It is started by the timer of the rate
+ * limiter once its token is due, or by the concurrency limiter once the limit allows, and then stands for the started
+ * request. Cancelling it before then drops the request.
+ */
+class ThrottledRequest implements Future<Object>, Runnable {
+    private final Callable<Future<?>> start;
+    private final RequestTiming timing;
+    private ScheduledFuture<?> scheduled;
+    private Future<?> started;
+    private Exception failure;
+    private boolean cancelled;
+
+    /**
+     * @param start starts the request and returns it.
+     * @param timing the timing of the request, told when the request is cancelled.
+     */
+    ThrottledRequest(Callable<Future<?>> start, RequestTiming timing) {
+        this.start = start;
+        this.timing = timing;
+    }
+
+    /**
+     * Starts the request once the delay has passed.
+     */
+    ThrottledRequest schedule(long delayNanos) {
+        ScheduledFuture<?> scheduled = RateLimiter.schedule(this, delayNanos);
+        synchronized (this) {
+            this.scheduled = scheduled;
+        }
+        return this;
+    }
+
+    public void run() {
+        start();
+    }
+
+    /**
+     * Starts the request, unless it was cancelled.
+     * 
+     * @return false if it was cancelled.
+     */
+    boolean start() {
+        synchronized (this) {
+            if (cancelled) {
+                return false;
+            }
+        }
+        Future<?> request = null;
+        Exception failure = null;
+        try {
+            request = start.call();
+        } catch (Exception e) {
+            failure = e;
+        }
+        boolean cancel;
+        synchronized (this) {
+            started = request;
+            this.failure = failure;
+            cancel = cancelled;
+            notifyAll();
+        }
+        if (cancel && request != null) {
+            // cancelled while it was being started
+            request.cancel(true);
+        }
+        return true;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Future<?> request;
+        synchronized (this) {
+            if (cancelled || failure != null) {
+                return false;
+            }
+            request = started;
+            if (request == null) {
+                cancelled = true;
+                if (scheduled != null) {
+                    scheduled.cancel(false);
+                }
+                notifyAll();
+            }
+        }
+        if (request != null && !request.cancel(mayInterruptIfRunning)) {
+            return false;
+        }
+        timing.cancelled();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled || (started != null && started.isCancelled());
+    }
+
+    public synchronized boolean isDone() {
+        return cancelled || failure != null || (started != null && started.isDone());
+    }
+
+    public Object get() throws InterruptedException, ExecutionException {
+        Future<?> request;
+        synchronized (this) {
+            while (started == null && failure == null && !cancelled) {
+                wait();
+            }
+            request = checkStarted();
+        }
+        return request.get();
+    }
+
+    public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Future<?> request;
+        synchronized (this) {
+            while (started == null && failure == null && !cancelled) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            request = checkStarted();
+        }
+        return request.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    private Future<?> checkStarted() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        if (started == null) {
+            throw new CancellationException();
+        }
+        return started;
+    }
+}
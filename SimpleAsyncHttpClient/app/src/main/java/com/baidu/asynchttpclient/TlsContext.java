@@ -0,0 +1,414 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * The TLS settings shared by the https connections of all the transports: one {@link SSLContext}, whose client
+ * session cache lets a new connection to a host resume the session of an earlier one, with an abbreviated handshake
+ * instead of a full one, and one hostname verifier. Unless set otherwise, {@link AsyncHttpClient},
+ * {@link UrlConnectionTransport} and {@link Http2Transport} all use {@link #getDefault()}, so a session negotiated by
+ * one engine is resumed by the others.
+ * <p>
+ * Sockets are always given the name of the host, which is what the session cache is keyed by, and session tickets
+ * are requested where the platform makes it optional. The counters show how many
+ * handshakes were made, how many of them resumed a session, and how long they took.
+ * <p>
+ * To trust a server with a self-signed certificate, for instance in tests:
+ * <p>
+ * 
+ * <pre>
+ * KeyStore trusted = KeyStore.getInstance(&quot;BKS&quot;);
+ * trusted.load(in, password);
+ * client.setTlsContext(new TlsContext(trusted));
+ * </pre>
+ */
+public class TlsContext {
+    /** The default number of sessions kept in the client session cache. */
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 64;
+    /** The default time a session can be resumed for, in seconds. */
+    public static final int DEFAULT_SESSION_TIMEOUT = 12 * 60 * 60;
+
+    private static TlsContext defaultContext;
+
+    private final SSLContext sslContext;
+    private final javax.net.ssl.SSLSocketFactory sslSocketFactory;
+    private final ListeningSocketFactory socketFactory;
+    private final SchemeSocketFactory schemeSocketFactory;
+    private volatile X509HostnameVerifier hostnameVerifier = SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER;
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong fullHandshakeNanos = new AtomicLong();
+    private final AtomicLong resumedHandshakeNanos = new AtomicLong();
+
+    /**
+     * Returns the context shared by default, which trusts the certificates the platform trusts.
+     * 
+     * @throws IllegalStateException if the platform does not support TLS.
+     */
+    public static synchronized TlsContext getDefault() {
+        if (defaultContext == null) {
+            try {
+                SSLContext sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, null, null);
+                defaultContext = new TlsContext(sslContext);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("TLS is not available", e);
+            }
+        }
+        return defaultContext;
+    }
+
+    /**
+     * Creates a context that only trusts the certificates of a key store, for instance a self-signed one.
+     * 
+     * @param trustStore the trusted certificates.
+     */
+    public TlsContext(KeyStore trustStore) throws GeneralSecurityException {
+        this(newSslContext(trustStore));
+    }
+
+    /**
+     * Creates a context around an initialized {@link SSLContext}, whose client session cache is set to the default
+     * size and timeout. The SSLContext should not be used for other connections, which would share the cache.
+     * 
+     * @param sslContext the SSLContext.
+     */
+    public TlsContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+        this.sslSocketFactory = sslContext.getSocketFactory();
+        this.socketFactory = new ListeningSocketFactory();
+        this.schemeSocketFactory = new SchemeSocketFactory();
+        setSessionCache(DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT);
+    }
+
+    private static SSLContext newSslContext(KeyStore trustStore) throws GeneralSecurityException {
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory
+                .getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    /**
+     * Sets the size of the client session cache and how long its sessions can be resumed for.
+     * 
+     * @param size the maximum number of sessions, 0 for no limit.
+     * @param timeout the time in seconds, 0 for no limit.
+     */
+    public void setSessionCache(int size, int timeout) {
+        SSLSessionContext sessions = sslContext.getClientSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(size);
+            sessions.setSessionTimeout(timeout);
+        }
+    }
+
+    /**
+     * Sets the verifier of the host names of certificates,
+     * {@link SSLSocketFactory#BROWSER_COMPATIBLE_HOSTNAME_VERIFIER} by default.
+     * 
+     * @param hostnameVerifier the verifier.
+     */
+    public void setHostnameVerifier(X509HostnameVerifier hostnameVerifier) {
+        if (hostnameVerifier == null) {
+            throw new IllegalArgumentException("hostnameVerifier must not be null");
+        }
+        this.hostnameVerifier = hostnameVerifier;
+    }
+
+    public X509HostnameVerifier getHostnameVerifier() {
+        return hostnameVerifier;
+    }
+
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * Returns a factory of sockets of this context, for instance for
+     * {@link javax.net.ssl.HttpsURLConnection#setSSLSocketFactory(javax.net.ssl.SSLSocketFactory)}. The handshakes of
+     * its sockets are counted when they complete.
+     */
+    public javax.net.ssl.SSLSocketFactory getSocketFactory() {
+        return socketFactory;
+    }
+
+    /**
+     * Returns the number of handshakes completed on sockets of this context.
+     */
+    public long getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    /**
+     * Returns the number of handshakes that resumed a cached session.
+     */
+    public long getResumedCount() {
+        return resumed.get();
+    }
+
+    /**
+     * Returns the share of the handshakes that resumed a cached session, between 0 and 1.
+     */
+    public float getResumptionRate() {
+        long count = handshakes.get();
+        return count > 0 ? (float) resumed.get() / count : 0;
+    }
+
+    /**
+     * Returns the average time of a full handshake, in milliseconds.
+     */
+    public float getFullHandshakeMillis() {
+        long count = handshakes.get() - resumed.get();
+        return count > 0 ? fullHandshakeNanos.get() / 1000000f / count : 0;
+    }
+
+    /**
+     * Returns the average time of a handshake that resumed a session, in milliseconds.
+     */
+    public float getResumedHandshakeMillis() {
+        long count = resumed.get();
+        return count > 0 ? resumedHandshakeNanos.get() / 1000000f / count : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "TlsContext: %d handshakes, %d resumed (%.0f%%), %.1f ms full, %.1f ms resumed",
+                getHandshakeCount(), getResumedCount(), getResumptionRate() * 100, getFullHandshakeMillis(),
+                getResumedHandshakeMillis());
+    }
+
+    /**
+     * Returns the factory of https sockets of this context for a {@link org.apache.http.conn.scheme.Scheme}.
+     */
+    LayeredSocketFactory getSchemeSocketFactory() {
+        return schemeSocketFactory;
+    }
+
+    /**
+     * Layers a socket of this context over a connected socket, without starting the handshake.
+     */
+    SSLSocket layer(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, host, port, autoClose);
+        prepare(sslSocket, host);
+        return sslSocket;
+    }
+
+    /**
+     * Makes the handshake of a socket layered by this context, counts it, and verifies the name of the host.
+     */
+    void handshake(SSLSocket socket, String host) throws IOException {
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        socket.startHandshake();
+        SSLSession session = socket.getSession();
+        if (!session.isValid()) {
+            throw new SSLPeerUnverifiedException("Handshake with " + host + " failed");
+        }
+        record(session, startMillis, System.nanoTime() - start);
+        hostnameVerifier.verify(host, socket);
+    }
+
+    /**
+     * Requests session tickets from a socket of the Android implementation, which only sends them if asked to, and
+     * gives it the name of the host, which it uses for SNI and to look up the session to resume.
+     * 
+     * @param host the name of the host, null if not known yet.
+     */
+    void prepare(SSLSocket socket, String host) {
+        try {
+            Method method = socket.getClass().getMethod("setUseSessionTickets", boolean.class);
+            method.invoke(socket, true);
+        } catch (Exception e) {
+            // always on, or not supported
+        }
+        if (host != null) {
+            try {
+                Method method = socket.getClass().getMethod("setHostname", String.class);
+                method.invoke(socket, host);
+            } catch (Exception e) {
+                // taken from the address
+            }
+        }
+    }
+
+    /**
+     * Counts a completed handshake. A session created before the handshake started was resumed.
+     */
+    void record(SSLSession session, long startMillis, long nanos) {
+        handshakes.incrementAndGet();
+        if (session.getCreationTime() < startMillis) {
+            resumed.incrementAndGet();
+            resumedHandshakeNanos.addAndGet(nanos);
+        } else {
+            fullHandshakeNanos.addAndGet(nanos);
+        }
+    }
+
+    /**
+     * Counts the handshake of a socket started by its user, such as {@link javax.net.ssl.HttpsURLConnection}, when it
+     * completes. The time is taken from the creation of the socket, usually right before the handshake. Some
+     * platforms notify the listener on a thread of their own, so the count can lag behind the request by a moment.
+     */
+    Socket listen(Socket socket) {
+        if (!(socket instanceof SSLSocket)) {
+            return socket;
+        }
+        SSLSocket sslSocket = (SSLSocket) socket;
+        prepare(sslSocket, null);
+        final long start = System.nanoTime();
+        final long startMillis = System.currentTimeMillis();
+        sslSocket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                record(event.getSession(), startMillis, System.nanoTime() - start);
+            }
+        });
+        return sslSocket;
+    }
+
+    /**
+     * Connects https sockets for HttpClient, which keeps using the socket it created, so the socket is given the name
+     * of the host once connected. The handshake is made and verified before the socket is returned.
+     */
+    class SchemeSocketFactory implements LayeredSocketFactory {
+        public Socket createSocket() throws IOException {
+            return sslSocketFactory.createSocket();
+        }
+
+        public Socket connectSocket(Socket socket, String host, int port, InetAddress localAddress, int localPort,
+                HttpParams params) throws IOException {
+            if (socket == null) {
+                socket = createSocket();
+            }
+            try {
+                if (localAddress != null || localPort > 0) {
+                    socket.bind(new InetSocketAddress(localAddress, localPort > 0 ? localPort : 0));
+                }
+                try {
+                    socket.connect(new InetSocketAddress(host, port),
+                            HttpConnectionParams.getConnectionTimeout(params));
+                } catch (SocketTimeoutException e) {
+                    throw new ConnectTimeoutException("Connect to " + host + ":" + port + " timed out");
+                }
+                socket.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+                SSLSocket sslSocket = (SSLSocket) socket;
+                prepare(sslSocket, host);
+                handshake(sslSocket, host);
+                return sslSocket;
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // nothing to do
+                }
+                throw e;
+            }
+        }
+
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            SSLSocket sslSocket = layer(socket, host, port, autoClose);
+            try {
+                handshake(sslSocket, host);
+            } catch (IOException e) {
+                sslSocket.close();
+                throw e;
+            }
+            return sslSocket;
+        }
+
+        public boolean isSecure(Socket socket) {
+            if (socket == null) {
+                throw new IllegalArgumentException("Socket may not be null");
+            }
+            return socket instanceof SSLSocket;
+        }
+    }
+
+    /**
+     * Creates the sockets of this context for users that make the handshake themselves, and counts their handshakes.
+     */
+    class ListeningSocketFactory extends javax.net.ssl.SSLSocketFactory {
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return sslSocketFactory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return sslSocketFactory.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return listen(sslSocketFactory.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return listen(sslSocketFactory.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return listen(sslSocketFactory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return listen(sslSocketFactory.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return listen(sslSocketFactory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return listen(sslSocketFactory.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
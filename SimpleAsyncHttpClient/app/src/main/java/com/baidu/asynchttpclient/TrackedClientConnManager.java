@@ -0,0 +1,73 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connection pool of {@link AsyncHttpClient}, which tells its {@link ConnectionLeakDetector}, if it has one, about
+ * the connections leased and given back.
+ */
+class TrackedClientConnManager extends ThreadSafeClientConnManager {
+    private volatile ConnectionLeakDetector leakDetector;
+
+    TrackedClientConnManager(HttpParams params, SchemeRegistry schemeRegistry) {
+        super(params, schemeRegistry);
+    }
+
+    void setLeakDetector(ConnectionLeakDetector leakDetector) {
+        this.leakDetector = leakDetector;
+    }
+
+    @Override
+    public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+        final ClientConnectionRequest request = super.requestConnection(route, state);
+        final ConnectionLeakDetector detector = leakDetector;
+        if (detector == null) {
+            return request;
+        }
+        return new ClientConnectionRequest() {
+            public ManagedClientConnection getConnection(long timeout, TimeUnit unit) throws InterruptedException,
+                    ConnectionPoolTimeoutException {
+                ManagedClientConnection connection = request.getConnection(timeout, unit);
+                detector.leased(connection);
+                return connection;
+            }
+
+            public void abortRequest() {
+                request.abortRequest();
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(ManagedClientConnection connection, long validDuration, TimeUnit timeUnit) {
+        ConnectionLeakDetector detector = leakDetector;
+        if (detector != null) {
+            detector.released(connection);
+        }
+        super.releaseConnection(connection, validDuration, timeUnit);
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * A {@link HttpTransport} backed by {@link HttpURLConnection}, the engine behind
+ * {@link com.baidu.simpleasynchttpclient.SimpleAsyncHttpClient}.
+ * <p>
+ * The connection's response is adapted to a {@link HttpResponse}, so that it goes through the same response handling
+ * as responses of the HttpClient transport. Aborting the request disconnects its connection, which ends a read or
+ * write that blocks.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+    private static final int DEFAULT_TIMEOUT = 15 * 1000;
+    private static final String ENCODING_GZIP = "gzip";
+
+    private int connectTimeout = DEFAULT_TIMEOUT;
+    private int readTimeout = DEFAULT_TIMEOUT;
+    private TlsContext tlsContext;
+
+    /**
+     * Sets the connect and read timeouts of new connections.
+     * 
+     * @param connectTimeout the connect timeout in milliseconds.
+     * @param readTimeout the read timeout in milliseconds.
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Sets the TLS settings and session cache of https connections, {@link TlsContext#getDefault()} by default.
+     * 
+     * @param tlsContext the context to use for https requests.
+     */
+    public void setTlsContext(TlsContext tlsContext) {
+        this.tlsContext = tlsContext;
+    }
+
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+        context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.FALSE);
+
+        final HttpURLConnection connection = openConnection(request.getURI().toURL());
+        try {
+            if (request instanceof AbortableHttpRequest) {
+                // throws if the request was aborted already
+                ((AbortableHttpRequest) request).setReleaseTrigger(new ConnectionReleaseTrigger() {
+                    public void releaseConnection() {
+                        // the entity of the response gives the connection back
+                    }
+
+                    public void abortConnection() {
+                        connection.disconnect();
+                    }
+                });
+            }
+            connection.setRequestMethod(request.getMethod());
+            for (Header header : request.getAllHeaders()) {
+                connection.addRequestProperty(header.getName(), header.getValue());
+            }
+            if (request instanceof HttpEntityEnclosingRequest) {
+                HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                if (entity != null) {
+                    writeEntity(connection, entity);
+                }
+            }
+            context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.TRUE);
+            return readResponse(connection);
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the connection for a request. Override to route through a proxy or to set additional connection
+     * properties, and pass the connection to {@link #configure(HttpURLConnection)}.
+     * 
+     * @param url the url of the request.
+     */
+    protected HttpURLConnection openConnection(URL url) throws IOException {
+        return configure((HttpURLConnection) url.openConnection());
+    }
+
+    /**
+     * Applies the timeouts and the TLS settings of this transport to a connection that has just been opened.
+     * 
+     * @return the connection.
+     */
+    protected HttpURLConnection configure(HttpURLConnection connection) {
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setUseCaches(false);
+        connection.setDoInput(true);
+        if (connection instanceof HttpsURLConnection) {
+            TlsContext tls = tlsContext != null ? tlsContext : TlsContext.getDefault();
+            ((HttpsURLConnection) connection).setSSLSocketFactory(tls.getSocketFactory());
+            ((HttpsURLConnection) connection).setHostnameVerifier(tls.getHostnameVerifier());
+        }
+        return connection;
+    }
+
+    /**
+     * Sends a request body on a connection whose request has not been sent yet. The body is streamed, with a fixed
+     * length if the entity knows its length and chunked otherwise, instead of being buffered by the connection.
+     * 
+     * @param connection the connection, set up for output by this method.
+     * @param entity the body. Its content type is sent unless the connection already has one.
+     */
+    public static void writeEntity(HttpURLConnection connection, HttpEntity entity) throws IOException {
+        connection.setDoOutput(true);
+        Header contentType = entity.getContentType();
+        if (contentType != null && connection.getRequestProperty(contentType.getName()) == null) {
+            connection.setRequestProperty(contentType.getName(), contentType.getValue());
+        }
+        Header contentEncoding = entity.getContentEncoding();
+        if (contentEncoding != null) {
+            connection.setRequestProperty(contentEncoding.getName(), contentEncoding.getValue());
+        }
+
+        // stream the body instead of letting the connection buffer all of it
+        long length = entity.getContentLength();
+        if (length >= 0 && length <= Integer.MAX_VALUE && !entity.isChunked()) {
+            connection.setFixedLengthStreamingMode((int) length);
+        } else {
+            connection.setChunkedStreamingMode(0);
+        }
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            entity.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the status and headers of a connection and wraps its body in a streaming entity. The body of an error
+     * response is taken from {@link HttpURLConnection#getErrorStream()}.
+     * 
+     * @param connection a connection whose request has been sent.
+     * @return the response, with a null entity if there is no body at all.
+     */
+    public static HttpResponse readResponse(HttpURLConnection connection) throws IOException {
+        int statusCode = connection.getResponseCode();
+        if (statusCode == -1) {
+            throw new IOException("Invalid HTTP response from " + connection.getURL());
+        }
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode,
+                connection.getResponseMessage());
+        for (Map.Entry<String, List<String>> field : connection.getHeaderFields().entrySet()) {
+            // the status line is reported under the null key
+            if (field.getKey() != null) {
+                for (String value : field.getValue()) {
+                    response.addHeader(field.getKey(), value);
+                }
+            }
+        }
+
+        InputStream content = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (content == null) {
+            connection.disconnect();
+            return response;
+        }
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(content);
+        entity.setContentLength(connection.getContentLength());
+        entity.setContentType(connection.getContentType());
+        entity.setContentEncoding(connection.getContentEncoding());
+        // only set if the caller asked for gzip itself, otherwise the connection decompresses transparently
+        if (ENCODING_GZIP.equalsIgnoreCase(connection.getContentEncoding())) {
+            response.setEntity(new InflatingEntity(entity));
+        } else {
+            response.setEntity(entity);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ *  Android Asynchronous Http Client
+ * Copyright (c) 2011 James Smith <james@loopj.com>
+ *  http://loopj.com
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.baidu.asynchttpclient;
+
+import org.apache.http.HttpHost;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A URL with variables in its path and query, such as <code>http://api.example.com/users/{id}/items</code>. The
+ * template is parsed and checked once, when it is created, and the scheme, host and port it targets are kept. Each
+ * expansion only writes the fixed parts and the encoded values into a buffer sized for them, and parses the result
+ * once into a {@link URI}. Keep a template for each endpoint that is requested often. A template can be shared by any
+ * number of threads.
+ * <p>
+ * For example:
+ * <p>
+ * 
+ * <pre>
+ * static final UrlTemplate USER_ITEMS = new UrlTemplate(&quot;http://api.example.com/users/{id}/items&quot;);
+ * 
+ * client.get(context, USER_ITEMS, params, responseHandler, userId);
+ * </pre>
+ * 
+ * Values are percent-encoded as UTF-8, everything but letters, digits and <code>-._~</code> is escaped, so a value
+ * never adds a path segment or a query parameter.
+ */
+public final class UrlTemplate {
+
+    private final String template;
+    private final HttpHost target;
+    // the literal text before each variable, and after the last one
+    private final String[] literals;
+    // for each variable, the index of its value
+    private final int[] variables;
+    private final String[] names;
+    private final int literalLength;
+    private final boolean hasQuery;
+
+    /**
+     * @param template an absolute http or https URL, variables are names in braces, only allowed after the host.
+     * @throws IllegalArgumentException if the template is not a valid URL, or has a fragment.
+     */
+    public UrlTemplate(String template) {
+        this.template = template;
+        int authority = template.indexOf("://");
+        int pathStart = authority < 0 ? -1 : indexOfAny(template, "/?{", authority + 3);
+        if (pathStart < 0) {
+            pathStart = template.length();
+        }
+        if (pathStart < template.length() && template.charAt(pathStart) == '{') {
+            throw new IllegalArgumentException("Variables are only allowed after the host: " + template);
+        }
+        if (template.indexOf('#') >= 0) {
+            throw new IllegalArgumentException("Fragments are not sent, the template has one: " + template);
+        }
+
+        List<String> literals = new ArrayList<String>();
+        List<String> names = new ArrayList<String>();
+        int[] variables = new int[4];
+        StringBuilder sample = new StringBuilder(template.length());
+        int literalStart = 0;
+        for (int open; (open = template.indexOf('{', literalStart)) >= 0;) {
+            int close = template.indexOf('}', open);
+            String name = close < 0 ? null : template.substring(open + 1, close);
+            if (name == null || name.length() == 0 || name.indexOf('{') >= 0) {
+                throw new IllegalArgumentException("Unclosed or empty variable at " + open + ": " + template);
+            }
+            String literal = template.substring(literalStart, open);
+            literals.add(literal);
+            sample.append(literal).append('x');
+            int index = names.indexOf(name);
+            if (index < 0) {
+                index = names.size();
+                names.add(name);
+            }
+            if (literals.size() > variables.length) {
+                variables = Arrays.copyOf(variables, variables.length * 2);
+            }
+            variables[literals.size() - 1] = index;
+            literalStart = close + 1;
+        }
+        String tail = template.substring(literalStart);
+        literals.add(tail);
+        sample.append(tail);
+
+        URI uri;
+        try {
+            uri = new URI(sample.toString());
+        } catch (URISyntaxException e) {
+            IllegalArgumentException error = new IllegalArgumentException("Invalid URL template: " + template);
+            error.initCause(e);
+            throw error;
+        }
+        String scheme = uri.getScheme();
+        if (uri.getHost() == null || !("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme))) {
+            throw new IllegalArgumentException("Not an absolute http or https URL: " + template);
+        }
+        target = new HttpHost(uri.getHost(), uri.getPort(), scheme);
+
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.variables = Arrays.copyOf(variables, literals.size() - 1);
+        this.names = names.toArray(new String[names.size()]);
+        this.literalLength = sample.length() - this.variables.length;
+        this.hasQuery = uri.getRawQuery() != null;
+    }
+
+    /**
+     * Returns the host, port and scheme every expansion of the template targets.
+     */
+    public HttpHost getTarget() {
+        return target;
+    }
+
+    /**
+     * Returns the names of the variables, in the order their values are given to {@link #expand(Object...)}. A name
+     * used more than once in the template takes a single value.
+     */
+    public List<String> getVariableNames() {
+        return Arrays.asList(names.clone());
+    }
+
+    /**
+     * Expands the template.
+     * 
+     * @param values the values of the variables, in the order the variables first appear in the template.
+     * @throws IllegalArgumentException if there are not as many values as variables, or a value is null.
+     */
+    public URI expand(Object... values) {
+        return expand(null, values);
+    }
+
+    /**
+     * Expands the template and adds the params to its query.
+     * 
+     * @param params the query parameters to add, may be null.
+     * @param values the values of the variables, in the order the variables first appear in the template.
+     * @throws IllegalArgumentException if there are not as many values as variables, or a value is null.
+     */
+    public URI expand(RequestParams params, Object... values) {
+        if (values.length != names.length) {
+            throw new IllegalArgumentException("Expected " + names.length + " values, got " + values.length + ": "
+                    + template);
+        }
+        String[] strings = new String[values.length];
+        int length = literalLength;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                throw new IllegalArgumentException("No value for {" + names[i] + "}: " + template);
+            }
+            strings[i] = values[i].toString();
+        }
+        for (int i = 0; i < variables.length; i++) {
+            // a variable used twice is written twice
+            length += RequestParams.percentEncodedLength(strings[variables[i]], false);
+        }
+        String query = params != null ? params.getParamString() : null;
+        if (query != null) {
+            length += query.length() + 1;
+        }
+
+        final StringBuilder url = new StringBuilder(length);
+        RequestParams.AsciiOutput out = new RequestParams.AsciiOutput() {
+            public void append(int c) {
+                url.append((char) c);
+            }
+        };
+        for (int i = 0; i < variables.length; i++) {
+            url.append(literals[i]);
+            RequestParams.percentEncode(strings[variables[i]], false, out);
+        }
+        url.append(literals[variables.length]);
+        if (query != null && query.length() > 0) {
+            appendQuery(url, hasQuery, query);
+        }
+        // the fixed parts were checked when the template was parsed and the values are encoded, this cannot fail
+        return URI.create(url.toString());
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+
+    /**
+     * Appends a query to a URL, after its own query if it has one.
+     */
+    static void appendQuery(StringBuilder url, boolean hasQuery, String query) {
+        if (!hasQuery) {
+            url.append('?');
+        } else {
+            char last = url.charAt(url.length() - 1);
+            if (last != '?' && last != '&') {
+                url.append('&');
+            }
+        }
+        url.append(query);
+    }
+
+    private static int indexOfAny(String s, String chars, int from) {
+        for (int i = from; i < s.length(); i++) {
+            if (chars.indexOf(s.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -16,13 +16,11 @@
 package com.baidu.simpleasynchttpclient;
 
 import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
-import android.util.Log;
 
-import java.io.IOException;
-import java.io.InputStream;
+import com.baidu.asynchttpclient.UrlConnectionTransport;
+
 import java.net.HttpURLConnection;
+import java.util.concurrent.Executor;
 
 /**
  * Used to intercept and handle the responses from requests made using {@link SimpleAsyncHttpClient}. The
@@ -31,6 +29,10 @@ import java.net.HttpURLConnection;
  * Additionally, you can override the {@link #onFailure(Throwable, String)}, {@link #onStart()}, and {@link #onFinish()}
  * methods as required.
  * <p>
+ * The response is read by the same code as responses of {@link com.baidu.asynchttpclient.AsyncHttpClient}, through
+ * {@link UrlConnectionTransport#readResponse(HttpURLConnection)}. Failures caused by the status code are reported as
+ * {@link HttpResponseException}.
+ * <p>
  * For example:
  * <p>
  * 
@@ -59,287 +61,48 @@ import java.net.HttpURLConnection;
  * });
  * </pre>
  */
-public class AsyncHttpResponseHandler {
-    private static final String TAG = "AsyncHttpResponseHandler";
-
-    private static final int BUFF_SIZE = 1024;
-    private static final int SUCCESS_MESSAGE = 0;
-    private static final int FAILURE_MESSAGE = 1;
-    private static final int START_MESSAGE = 2;
-    private static final int FINISH_MESSAGE = 3;
-
-    private static final int RECEIVE_MESSAGE_START = 4;
-    private static final int RECEIVE_MESSAGE_UPDATE = 5;
-    private static final int RECEIVE_MESSAGE_END = 6;
-
-    private Handler handler;
+public class AsyncHttpResponseHandler extends com.baidu.asynchttpclient.AsyncHttpResponseHandler {
 
     /**
      * Creates a new AsyncHttpResponseHandler
      */
     public AsyncHttpResponseHandler() {
-        // Set up a handler to post events back to the correct thread if possible
-        if (Looper.myLooper() != null) {
-            handler = new Handler() {
-                public void handleMessage(Message msg) {
-                    AsyncHttpResponseHandler.this.handleMessage(msg);
-                }
-            };
-        }
+        super();
     }
 
     public AsyncHttpResponseHandler(Handler h) {
-        handler = h;
+        super(h);
     }
 
-    //
-    // Callbacks to be overridden, typically anonymously
-    //
-
     /**
-     * Fired when the request is started, override to handle in your own code
-     */
-    public void onStart() {
-        Log.i(TAG, "AsyncHttpResponseHandler:onStart");
-    }
-
-    /**
-     * Fired in all cases when the request is finished, after both success and failure, override to handle in your own
-     * code
-     */
-    public void onFinish() {
-        Log.i(TAG, "AsyncHttpResponseHandler:onFinish");
-    }
-
-    /**
-     * Fired when a request returns successfully, override to handle in your own code
+     * Creates a handler whose callbacks run on an executor, without a Looper, for instance off-device.
      * 
-     * @param content the body of the HTTP response from the server
+     * @param executor runs the callbacks one at a time, in order.
      */
-    public void onSuccess(String content) {}
-
-    public void onStartReceive(int contentLength, String charset/* , Header[] headers */) {
-    }
-
-    public void onSegmentReceive(byte[] slice, int length) {
-    }
-
-    public void onSuccessReceive() {
-    }
-
-    /**
-     * Fired when a request fails to complete, override to handle in your own code
-     * 
-     * @param error the underlying cause of the failure
-     * @deprecated use {@link #onFailure(Throwable, String)}
-     */
-    public void onFailure(Throwable error) {
-
-    }
-
-    /**
-     * Fired when a request fails to complete, override to handle in your own code
-     * 
-     * @param error the underlying cause of the failure
-     * @param content the response body, if any
-     */
-    public void onFailure(Throwable error, String content) {
-        // By default, call the deprecated onFailure(Throwable) for compatibility
-        Log.i(TAG, "AsyncHttpResponseHandler:onFailure");
-        onFailure(error);
+    public AsyncHttpResponseHandler(Executor executor) {
+        super(executor);
     }
 
     //
-    // Pre-processing of messages (executes in background threadpool thread)
+    // Redeclared so that SimpleAsyncHttpClient can reach them from this package
     //
 
-    protected void sendSuccessMessage(String responseBody) {
-        sendMessage(obtainMessage(SUCCESS_MESSAGE, responseBody));
-    }
-
-    protected void sendFailureMessage(Throwable e, String responseBody) {
-        sendMessage(obtainMessage(FAILURE_MESSAGE, new Object[] { e, responseBody }));
-    }
-
+    @Override
     protected void sendStartMessage() {
-        sendMessage(obtainMessage(START_MESSAGE, null));
+        super.sendStartMessage();
     }
 
+    @Override
     protected void sendFinishMessage() {
-        sendMessage(obtainMessage(FINISH_MESSAGE, null));
-    }
-
-    protected void sendReceiveStartMessage(int length, String charset/* , Header[] headers */) {
-        Message msg = obtainMessage(RECEIVE_MESSAGE_START, null);
-        // msg.obj = new Object[]{charset, headers};
-        msg.obj = new Object[] { charset, null };
-        msg.arg1 = length;
-        sendMessage(msg);
-    }
-
-    protected void sendReceiveUpdateMessage(byte[] slice, int length) {
-        Message msg = obtainMessage(RECEIVE_MESSAGE_UPDATE, slice);
-        msg.arg1 = length;
-        sendMessage(msg);
-    }
-
-    protected void sendReceiveEndMessage() {
-        sendMessage(obtainMessage(RECEIVE_MESSAGE_END, null));
-    }
-
-    //
-    // Pre-processing of messages (in original calling thread, typically the UI thread)
-    //
-
-    protected void handleSuccessMessage(String responseBody) {
-        onSuccess(responseBody);
-    }
-
-    protected void handleFailureMessage(Throwable e, String responseBody) {
-        onFailure(e, responseBody);
-    }
-
-    protected void handleReceiveStartMessage(int length, String charset/* , Header[] headers */) {
-        onStartReceive(length, charset/* , headers */);
-    }
-
-    protected void handleReceiveUpdateMessage(byte[] slice, int length) {
-        onSegmentReceive(slice, length);
+        super.sendFinishMessage();
     }
 
-    protected void handleReceiveEndMessage() {
-        onSuccessReceive();
-    }
-
-    // Methods which emulate android's Handler and Message methods
-    protected void handleMessage(Message msg) {
-        switch (msg.what) {
-            case RECEIVE_MESSAGE_START: {
-                Object[] repsonse = (Object[]) msg.obj;
-                handleReceiveStartMessage(msg.arg1, (String) repsonse[0]/* , (Header[])repsonse[1] */);
-            }
-                break;
-
-            case RECEIVE_MESSAGE_UPDATE:
-                byte[] segment = (byte[]) msg.obj;
-                handleReceiveUpdateMessage(segment, msg.arg1);
-                break;
-            case RECEIVE_MESSAGE_END:
-                handleReceiveEndMessage();
-                break;
-            case SUCCESS_MESSAGE:
-                handleSuccessMessage((String)msg.obj);
-                break;
-            case FAILURE_MESSAGE:
-                Object[] repsonse = (Object[]) msg.obj;
-                handleFailureMessage((Throwable) repsonse[0], (String) repsonse[1]);
-                break;
-            case START_MESSAGE:
-                onStart();
-                break;
-            case FINISH_MESSAGE:
-                onFinish();
-                break;
-        }
-    }
-
-    protected void sendMessage(Message msg) {
-        if (handler != null) {
-            Thread thread = handler.getLooper().getThread();
-            if (thread.isAlive() && !thread.isInterrupted()) {
-                handler.sendMessage(msg);
-            }
-        } else {
-            handleMessage(msg);
-        }
-    }
-
-    protected Message obtainMessage(int responseMessage, Object response) {
-        Message msg = null;
-        if (handler != null) {
-            msg = this.handler.obtainMessage(responseMessage, response);
-        } else {
-            msg = new Message();
-            msg.what = responseMessage;
-            msg.obj = response;
-        }
-        return msg;
-    }
-    
-    void sendResponseMessage(HttpURLConnection httpURLConnection) {
-
-        try {
-            InputStream in = httpURLConnection.getInputStream();
-            int statusCode = httpURLConnection.getResponseCode();
-
-            if (statusCode >= 300) {
-                String responseBody = httpURLConnection.getResponseMessage();
-                sendFailureMessage(
-                        new HttpResponseException(statusCode, responseBody),
-                        responseBody);
-            } else {
-                if (in == null) {
-                    sendReceiveStartMessage(0, null);
-                    sendReceiveUpdateMessage(new byte[0], 0);
-                    sendReceiveEndMessage();
-                    return;
-                }
-                // 第一步：读内容长度
-                int contentLength = httpURLConnection.getContentLength();
-                if (contentLength > Integer.MAX_VALUE) {
-                    throw new IllegalArgumentException("HTTP entity too large to be buffered in memory");
-                }
-
-                if (contentLength < 0) {
-                    contentLength = 4096;
-                }
-                String charset = "Receive Start";
-                sendReceiveStartMessage(contentLength, charset);
-
-                // 第二步：读内容
-                boolean readDone = false;
-                byte[] tmp = null;
-                int remain = 0;
-                // 从in输入流中循环读取数据，直到数据没有数据读取
-                do {
-                    if (Thread.currentThread().isInterrupted()) {
-                        sendFailureMessage(new InterruptedException("request interupted!"), null);
-                        return;
-                    }
-                    if (tmp == null) {
-                        tmp = new byte[BUFF_SIZE];
-                    }
-                    int offset = 0;
-                    remain = BUFF_SIZE;
-                    // 从in输入流读取BUFF_SIZE字节数据，但是由于in.read读取的多少字节
-                    //内容不一定与BUFF_SIZE一样，所以用了循环方式读取。
-                    do {
-                        if (Thread.currentThread().isInterrupted()) {
-                            sendFailureMessage(new InterruptedException("request interupted!"), null);
-                            return;
-                        }
-                        int length = in.read(tmp, offset, remain);
-                        if (length != -1) {
-                            offset += length;
-                            remain -= length;
-                        } else {
-                            readDone = true;
-                            break;
-                        }
-                    } while (remain > 0);
-
-                    if (offset >= 0) {
-                        sendReceiveUpdateMessage(tmp, offset);
-                    }
-                    tmp = null;
-                } while (!readDone);
-                // ////////////////////////phase 3//////////////////////////
-                in.close();
-                sendReceiveEndMessage();
-            }
-
-        } catch (IOException e) {
-            sendFailureMessage(e, null);
+    @Override
+    protected void sendFailureMessage(Throwable e, String responseBody) {
+        if (e instanceof org.apache.http.client.HttpResponseException) {
+            int statusCode = ((org.apache.http.client.HttpResponseException) e).getStatusCode();
+            e = new HttpResponseException(statusCode, responseBody);
         }
+        super.sendFailureMessage(e, responseBody);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,27 @@
+package com.baidu.simpleasynchttpclient;
+
+import android.content.Context;
+
+import com.baidu.asynchttpclient.UrlConnectionTransport;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The transport of {@link SimpleAsyncHttpClient}: a {@link UrlConnectionTransport} whose connections are opened by
+ * {@link GenerateHttpClientUtils}, through the proxy of the device and with the headers of a CMWAP gateway when
+ * needed.
+ */
+class ConnectionTransport extends UrlConnectionTransport {
+    private final Context mContext;
+
+    ConnectionTransport(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    protected HttpURLConnection openConnection(URL url) throws IOException {
+        return configure(GenerateHttpClientUtils.getConnection(mContext, url));
+    }
+}
@@ -42,7 +42,7 @@ public class GenerateHttpClientUtils {
         // 有可能有些会需要重定向
         HttpURLConnection.setFollowRedirects(true);
         httpURLConnection.setDoInput(true);  
-        httpURLConnection.setDoOutput(true); 
+        // 只有带请求体时才需要setDoOutput，见UrlConnectionTransport.writeEntity
         httpURLConnection.setUseCaches(false);
         
         httpURLConnection.setRequestProperty("accept", "*/*");  
@@ -52,8 +52,15 @@ public class GenerateHttpClientUtils {
     }
     
     private static java.net.Proxy getProxy(Context context, URL url){ 
-        String proxyHost = android.net.Proxy.getDefaultHost();  
-        int proxyPort = android.net.Proxy.getDefaultPort();
+        String proxyHost;
+        int proxyPort;
+        try {
+            proxyHost = android.net.Proxy.getDefaultHost();  
+            proxyPort = android.net.Proxy.getDefaultPort();
+        } catch (RuntimeException e) {
+            // 不在设备上运行时（如单元测试、压测），平台的代理设置不可用，直接连接
+            return null;
+        }
         java.net.Proxy proxy = null;
         if (proxyHost != null) {
             proxy = new java.net.Proxy(
@@ -0,0 +1,246 @@
+package com.baidu.simpleasynchttpclient;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the requests of {@link SimpleAsyncHttpClient} in parallel, up to a limit in total and a limit per host. The
+ * requests over the limits wait in a queue, from which the one with the highest priority, and among those the oldest,
+ * is started first as soon as its host has room.
+ * <p>
+ * Requests run on threads of the executor, without a Looper or an AsyncTask, so the executor also runs off-device.
+ * There are never more threads than the limit in total, and they exit when they have been idle for a while.
+ */
+public class RequestExecutor {
+    public static final int DEFAULT_MAX_REQUESTS = 8;
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mExecutorService;
+    // guarded by this
+    private final TreeSet<Entry> mQueued = new TreeSet<Entry>();
+    private final Map<String, Integer> mRunningPerHost = new HashMap<String, Integer>();
+    private int mRunning;
+    private long mSequence;
+    private int mMaxRequests;
+    private int mMaxRequestsPerHost;
+    private boolean mShutdown;
+
+    public RequestExecutor() {
+        this(DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS_PER_HOST);
+    }
+
+    /**
+     * @param maxRequests the maximum number of requests running at once.
+     * @param maxRequestsPerHost the maximum number of requests to one host running at once.
+     */
+    public RequestExecutor(int maxRequests, int maxRequestsPerHost) {
+        checkLimits(maxRequests, maxRequestsPerHost);
+        mMaxRequests = maxRequests;
+        mMaxRequestsPerHost = maxRequestsPerHost;
+        // the queue of this executor hands the pool no more requests than it has threads for
+        mExecutorService = new ThreadPoolExecutor(maxRequests, maxRequests, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "SimpleAsyncHttpClient #" + mCount.getAndIncrement());
+                        t.setPriority(Thread.NORM_PRIORITY - 1);
+                        return t;
+                    }
+                });
+        mExecutorService.allowCoreThreadTimeOut(true);
+    }
+
+    private static void checkLimits(int maxRequests, int maxRequestsPerHost) {
+        if (maxRequests <= 0 || maxRequestsPerHost <= 0) {
+            throw new IllegalArgumentException("Invalid limits: " + maxRequests + " requests, " + maxRequestsPerHost
+                    + " per host");
+        }
+    }
+
+    /**
+     * Changes the limits. Queued requests are started at once if the new limits leave room for them, running
+     * requests over the new limits are left to complete.
+     */
+    public void setLimits(int maxRequests, int maxRequestsPerHost) {
+        checkLimits(maxRequests, maxRequestsPerHost);
+        List<SimpleAsyncHttpClient<?, ?, ?>> rejected;
+        synchronized (this) {
+            // the core size may never exceed the maximum size
+            if (maxRequests > mExecutorService.getMaximumPoolSize()) {
+                mExecutorService.setMaximumPoolSize(maxRequests);
+                mExecutorService.setCorePoolSize(maxRequests);
+            } else {
+                mExecutorService.setCorePoolSize(maxRequests);
+                mExecutorService.setMaximumPoolSize(maxRequests);
+            }
+            mMaxRequests = maxRequests;
+            mMaxRequestsPerHost = maxRequestsPerHost;
+            rejected = promote();
+        }
+        reject(rejected);
+    }
+
+    public synchronized int getMaxRequests() {
+        return mMaxRequests;
+    }
+
+    public synchronized int getMaxRequestsPerHost() {
+        return mMaxRequestsPerHost;
+    }
+
+    /**
+     * Returns the number of requests running.
+     */
+    public synchronized int getRunningCount() {
+        return mRunning;
+    }
+
+    /**
+     * Returns the number of requests waiting to be started.
+     */
+    public synchronized int getQueuedCount() {
+        return mQueued.size();
+    }
+
+    /**
+     * Drops the queued requests and lets the threads exit once the running requests complete. The executor cannot
+     * be used afterwards: the requests given to it fail with a {@link RejectedExecutionException}.
+     */
+    public synchronized void shutdown() {
+        mShutdown = true;
+        mQueued.clear();
+        mExecutorService.shutdown();
+    }
+
+    public synchronized boolean isShutdown() {
+        return mShutdown;
+    }
+
+    void execute(SimpleAsyncHttpClient<?, ?, ?> request) {
+        List<SimpleAsyncHttpClient<?, ?, ?>> rejected;
+        synchronized (this) {
+            if (mShutdown) {
+                rejected = new ArrayList<SimpleAsyncHttpClient<?, ?, ?>>(1);
+                rejected.add(request);
+            } else {
+                mQueued.add(new Entry(request, mSequence++));
+                rejected = promote();
+            }
+        }
+        reject(rejected);
+    }
+
+    /**
+     * Removes a request that has not been started.
+     * 
+     * @return false if the request was started already.
+     */
+    synchronized boolean remove(SimpleAsyncHttpClient<?, ?, ?> request) {
+        for (Iterator<Entry> iterator = mQueued.iterator(); iterator.hasNext();) {
+            if (iterator.next().request == request) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts the queued requests the limits leave room for, in order, skipping those whose host is at its limit.
+     * 
+     * @return the requests the thread pool refused, to be failed once the lock is released, or null.
+     */
+    private List<SimpleAsyncHttpClient<?, ?, ?>> promote() {
+        List<SimpleAsyncHttpClient<?, ?, ?>> rejected = null;
+        for (Iterator<Entry> iterator = mQueued.iterator(); iterator.hasNext() && mRunning < mMaxRequests;) {
+            final Entry entry = iterator.next();
+            String host = entry.request.getHost();
+            Integer running = mRunningPerHost.get(host);
+            if (running != null && running >= mMaxRequestsPerHost) {
+                continue;
+            }
+            iterator.remove();
+            mRunningPerHost.put(host, running != null ? running + 1 : 1);
+            mRunning++;
+            try {
+                mExecutorService.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            entry.request.execute();
+                        } finally {
+                            finished(entry.request.getHost());
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                release(host);
+                if (rejected == null) {
+                    rejected = new ArrayList<SimpleAsyncHttpClient<?, ?, ?>>(2);
+                }
+                rejected.add(entry.request);
+            }
+        }
+        return rejected;
+    }
+
+    private void finished(String host) {
+        List<SimpleAsyncHttpClient<?, ?, ?>> rejected;
+        synchronized (this) {
+            release(host);
+            rejected = promote();
+        }
+        reject(rejected);
+    }
+
+    private void release(String host) {
+        mRunning--;
+        int running = mRunningPerHost.get(host);
+        if (running > 1) {
+            mRunningPerHost.put(host, running - 1);
+        } else {
+            mRunningPerHost.remove(host);
+        }
+    }
+
+    private static void reject(List<SimpleAsyncHttpClient<?, ?, ?>> rejected) {
+        if (rejected != null) {
+            for (SimpleAsyncHttpClient<?, ?, ?> request : rejected) {
+                request.reject(new RejectedExecutionException("RequestExecutor has been shut down"));
+            }
+        }
+    }
+
+    /**
+     * A queued request, ordered by descending priority, then by the order the requests were queued in.
+     */
+    private static class Entry implements Comparable<Entry> {
+        final SimpleAsyncHttpClient<?, ?, ?> request;
+        final int priority;
+        final long sequence;
+
+        Entry(SimpleAsyncHttpClient<?, ?, ?> request, long sequence) {
+            this.request = request;
+            this.priority = request.getPriority();
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Entry other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+    }
+}
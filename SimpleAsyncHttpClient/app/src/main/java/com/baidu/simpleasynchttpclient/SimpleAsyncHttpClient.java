@@ -1,91 +1,302 @@
 package com.baidu.simpleasynchttpclient;
 
 import android.content.Context;
-import android.os.AsyncTask;
 
-import java.io.IOException;
+import com.baidu.asynchttpclient.AsyncHttpRequest;
+import com.baidu.asynchttpclient.RequestParams;
+import com.baidu.asynchttpclient.UrlConnectionTransport;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Makes a request with {@link HttpURLConnection} on a {@link RequestExecutor}, which runs requests in parallel up to
+ * its limits, in the order of their priorities. The callbacks of the {@link AsyncHttpResponseHandler} are delivered
+ * as it is set up to, on its Looper or on its executor.
+ * <p>
+ * The request takes the same path as those of {@link com.baidu.asynchttpclient.AsyncHttpClient}: an
+ * {@link AsyncHttpRequest} on a {@link UrlConnectionTransport}, retried by the same rules and timed the same way.
+ * <p>
+ * The body of a POST request is streamed to the connection, with a fixed length when the length of the entity is
+ * known and chunked otherwise, so a large upload does not have to fit in memory. The body of {@link RequestParams}
+ * is built on the thread of the request, and its files and streams are read as they are sent. Upload progress is
+ * reported to handlers that override {@link AsyncHttpResponseHandler#onUploadProgress(long, long)}.
+ * <p>
+ * The type parameters are left from when requests ran as an AsyncTask, and are not used.
+ */
+public class SimpleAsyncHttpClient<Params, Progress, Result> {
 
-public class SimpleAsyncHttpClient<Params, Progress, Result> extends AsyncTask<Params, Progress, Result> {
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
 
     private static final String GET = "GET";
     private static final String POST = "POST";
-    
+
+    private static volatile RequestExecutor sExecutor;
+
     private Context mContext;
     private String mUrl;
+    private String mHost;
+    private int mPriority;
+    private RequestExecutor mExecutor;
     private AsyncHttpResponseHandler mAsyncHttpResponseHandler;
-    private HttpURLConnection mHttpURLConnection;
     private String mRequestMethod = GET;
-    
+    private HttpEntity mEntity;
+    private RequestParams mParams;
+    private String mContentType;
+    // guarded by this, so that a cancel either happens before the finish message or fails
+    private boolean mCancelled;
+    private boolean mFinished;
+    // guarded by this, set while the request runs
+    private Thread mThread;
+    private HttpUriRequest mRequest;
+
     private SimpleAsyncHttpClient(Context context, String url, 
-            AsyncHttpResponseHandler asyncHttpResponseHandler, String requestMethod){
+            AsyncHttpResponseHandler asyncHttpResponseHandler, String requestMethod, HttpEntity entity,
+            RequestParams params, String contentType, int priority){
         mContext = context;
         mUrl = url;
         mAsyncHttpResponseHandler = asyncHttpResponseHandler;
         mRequestMethod = requestMethod;
+        mEntity = entity;
+        mParams = params;
+        mContentType = contentType;
+        mPriority = priority;
+        try {
+            mHost = new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            // fails when it runs
+            mHost = "";
+        }
+    }
+
+    /**
+     * Sets the executor of the requests made from now on. By default, a {@link RequestExecutor} with the default
+     * limits is used.
+     */
+    public static void setExecutor(RequestExecutor executor) {
+        sExecutor = executor;
+    }
+
+    public static RequestExecutor getExecutor() {
+        RequestExecutor executor = sExecutor;
+        if (executor == null) {
+            synchronized (SimpleAsyncHttpClient.class) {
+                if (sExecutor == null) {
+                    sExecutor = new RequestExecutor();
+                }
+                executor = sExecutor;
+            }
+        }
+        return executor;
+    }
+
+    String getHost() {
+        return mHost;
+    }
+
+    int getPriority() {
+        return mPriority;
     }
+
     /**
-     * 释放httpURLConnection.
-     * @param httpURLConnection
+     * Cancels the request. A request that has not started is dropped without any callback. A running request is
+     * interrupted and disconnected if mayInterruptIfRunning is set, which fails it with an
+     * {@link InterruptedException} unless its response has been handled already, and reports that it finished.
+     * 
+     * @return false if the request had already finished or been cancelled.
      */
-    private void release(HttpURLConnection httpURLConnection) {
-        if  (httpURLConnection != null) {
-            httpURLConnection.disconnect();
-            httpURLConnection = null;
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean running;
+        HttpUriRequest request = null;
+        synchronized (this) {
+            if (mFinished || mCancelled) {
+                return false;
+            }
+            mCancelled = true;
+            running = mThread != null;
+            if (running && mayInterruptIfRunning) {
+                // only while the lock is held, so that the interrupt cannot reach the next request of the thread
+                mThread.interrupt();
+                request = mRequest;
+            }
+        }
+        if (request != null) {
+            // a thread blocked in a read does not notice its interrupt, the connection is closed too
+            request.abort();
+        } else if (!running && mExecutor.remove(this)) {
+            finished();
         }
+        return true;
     }
-    
-    @Override
-    protected void onPreExecute() {
-        // TODO Auto-generated method stub
-        super.onPreExecute();
-        mAsyncHttpResponseHandler.sendStartMessage();
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
     }
 
-    @Override
-    protected void onPostExecute(Result result) {
-        // TODO Auto-generated method stub
-        super.onPostExecute(result);
-        mAsyncHttpResponseHandler.sendFinishMessage();
+    /**
+     * Marks the request finished, after which it cannot be cancelled.
+     * 
+     * @return whether it was cancelled.
+     */
+    private synchronized boolean finished() {
+        mFinished = true;
+        mThread = null;
+        mRequest = null;
+        return mCancelled;
     }
 
-    @Override
-    protected Result doInBackground(Params...paramArrayOfParams) {
-        // TODO Auto-generated method stub
+    /**
+     * Fails a request the executor could not run, without starting it.
+     */
+    void reject(RejectedExecutionException e) {
+        if (finished()) {
+            return;
+        }
         try {
-            URL url = new URL(mUrl);
-            mHttpURLConnection = GenerateHttpClientUtils.getConnection(mContext, url);
-            // todo 不知道为什么当在getConnection中把FollowRedirects设置为false，再此处再次设置为true没有效果？
-            // HttpURLConnection.setFollowRedirects(true);
-            mHttpURLConnection.setRequestMethod(mRequestMethod);
-            mAsyncHttpResponseHandler.sendResponseMessage(mHttpURLConnection);
-        } catch (IOException ioException) {
-            // TODO: handle exception
-            mAsyncHttpResponseHandler.sendFailureMessage(ioException, null);
+            mAsyncHttpResponseHandler.sendFailureMessage(e, null);
+        } finally {
+            mAsyncHttpResponseHandler.sendFinishMessage();
+        }
+    }
+
+    /**
+     * Runs the request on a thread of the executor. The request is built here, with the body of the params as they
+     * are now, and then made by an {@link AsyncHttpRequest}, which tells the handler that it finished whatever
+     * happens.
+     */
+    void execute() {
+        synchronized (this) {
+            if (mCancelled) {
+                mFinished = true;
+                return;
+            }
+            mThread = Thread.currentThread();
+        }
+        HttpUriRequest request;
+        try {
+            request = newRequest();
+        } catch (RuntimeException e) {
+            // an invalid url, or params that cannot be encoded
+            finished();
+            mAsyncHttpResponseHandler.sendStartMessage();
+            mAsyncHttpResponseHandler.sendFailureMessage(e, null);
+            mAsyncHttpResponseHandler.sendFinishMessage();
+            return;
+        }
+        synchronized (this) {
+            mRequest = request;
+            if (mCancelled) {
+                // cancelled while the request was built, aborting it fails it before it connects
+                request.abort();
+            }
+        }
+        new AsyncHttpRequest(new ConnectionTransport(mContext), request, mAsyncHttpResponseHandler) {
+            @Override
+            protected void onDone() {
+                // from here on the request cannot be cancelled, nor its thread interrupted
+                finished();
+                Thread.interrupted();
+            }
+        }.run();
+    }
+
+    private HttpUriRequest newRequest() {
+        if (!POST.equals(mRequestMethod)) {
+            return new HttpGet(mUrl);
         }
-        release(mHttpURLConnection);
-        return null;
+        HttpPost post = new HttpPost(mUrl);
+        HttpEntity entity = mEntity != null ? mEntity : mParams != null ? mParams.getEntity() : null;
+        if (entity != null) {
+            if (mContentType != null) {
+                post.setHeader("Content-Type", mContentType);
+            }
+            post.setEntity(entity);
+        }
+        return post;
     }
-    
+
     public static <Params, Progress, Result> WeakReference<SimpleAsyncHttpClient<Params, Progress, Result>> getRequest(
             Context context, String url, 
            AsyncHttpResponseHandler asyncHttpResponseHandler){
-        SimpleAsyncHttpClient<Params, Progress, Result> simpleAsyncHttpClient 
-                = new SimpleAsyncHttpClient<Params, Progress, Result>(context, url, asyncHttpResponseHandler, GET);
-        simpleAsyncHttpClient.execute((Params[])null);
-        WeakReference<SimpleAsyncHttpClient<Params, Progress, Result>> wrSimpleAsyncHttpClient
-                = new WeakReference<SimpleAsyncHttpClient<Params, Progress, Result>>(simpleAsyncHttpClient);
-        return wrSimpleAsyncHttpClient;
+        return getRequest(context, url, asyncHttpResponseHandler, PRIORITY_NORMAL);
     }
-    
+
+    /**
+     * @param priority the priority of the request, requests of a higher priority are started first.
+     */
+    public static <Params, Progress, Result> WeakReference<SimpleAsyncHttpClient<Params, Progress, Result>> getRequest(
+            Context context, String url, 
+           AsyncHttpResponseHandler asyncHttpResponseHandler, int priority){
+        return enqueue(context, url, asyncHttpResponseHandler, GET, null, null, null, priority);
+    }
+
+    public static <Params, Progress, Result> WeakReference<SimpleAsyncHttpClient<Params, Progress, Result>> postRequest(
+            Context context, String url, 
+            AsyncHttpResponseHandler asyncHttpResponseHandler){
+        return postRequest(context, url, asyncHttpResponseHandler, PRIORITY_NORMAL);
+    }
+
+    /**
+     * @param priority the priority of the request, requests of a higher priority are started first.
+     */
     public static <Params, Progress, Result> WeakReference<SimpleAsyncHttpClient<Params, Progress, Result>> postRequest(
             Context context, String url, 
+            AsyncHttpResponseHandler asyncHttpResponseHandler, int priority){
+        return enqueue(context, url, asyncHttpResponseHandler, POST, null, null, null, priority);
+    }
+
+    /**
+     * @param params the params, sent as a url-encoded form, or as a multipart body if files were put. The body is
+     *            built when the request starts, from the params as they are then.
+     */
+    public static <Params, Progress, Result> WeakReference<SimpleAsyncHttpClient<Params, Progress, Result>> postRequest(
+            Context context, String url, RequestParams params,
             AsyncHttpResponseHandler asyncHttpResponseHandler){
+        return enqueue(context, url, asyncHttpResponseHandler, POST, null, params, null, PRIORITY_NORMAL);
+    }
+
+    /**
+     * @param entity the body, for instance a {@link org.apache.http.entity.StringEntity} with json, or a
+     *            {@link org.apache.http.entity.InputStreamEntity} of a large file.
+     * @param contentType the content type of the body, null to take the one of the entity.
+     */
+    public static <Params, Progress, Result> WeakReference<SimpleAsyncHttpClient<Params, Progress, Result>> postRequest(
+            Context context, String url, HttpEntity entity, String contentType,
+            AsyncHttpResponseHandler asyncHttpResponseHandler){
+        return postRequest(context, url, entity, contentType, asyncHttpResponseHandler, PRIORITY_NORMAL);
+    }
+
+    /**
+     * @param entity the body, for instance a {@link org.apache.http.entity.StringEntity} with json, or a
+     *            {@link org.apache.http.entity.InputStreamEntity} of a large file.
+     * @param contentType the content type of the body, null to take the one of the entity.
+     * @param priority the priority of the request, requests of a higher priority are started first.
+     */
+    public static <Params, Progress, Result> WeakReference<SimpleAsyncHttpClient<Params, Progress, Result>> postRequest(
+            Context context, String url, HttpEntity entity, String contentType,
+            AsyncHttpResponseHandler asyncHttpResponseHandler, int priority){
+        return enqueue(context, url, asyncHttpResponseHandler, POST, entity, null, contentType, priority);
+    }
+
+    private static <Params, Progress, Result> WeakReference<SimpleAsyncHttpClient<Params, Progress, Result>> enqueue(
+            Context context, String url, 
+            AsyncHttpResponseHandler asyncHttpResponseHandler, String requestMethod, HttpEntity entity,
+            RequestParams params, String contentType, int priority){
         SimpleAsyncHttpClient<Params, Progress, Result> simpleAsyncHttpClient 
-            = new SimpleAsyncHttpClient<Params, Progress, Result>(context, url, asyncHttpResponseHandler, POST);
-        simpleAsyncHttpClient.execute((Params[])null);
+            = new SimpleAsyncHttpClient<Params, Progress, Result>(context, url, asyncHttpResponseHandler,
+                    requestMethod, entity, params, contentType, priority);
+        simpleAsyncHttpClient.mExecutor = getExecutor();
+        simpleAsyncHttpClient.mExecutor.execute(simpleAsyncHttpClient);
         WeakReference<SimpleAsyncHttpClient<Params, Progress, Result>> wrSimpleAsyncHttpClient
             = new WeakReference<SimpleAsyncHttpClient<Params, Progress, Result>>(simpleAsyncHttpClient);
         return wrSimpleAsyncHttpClient;
@@ -0,0 +1,185 @@
+package com.baidu.asynchttpclient;
+
+import org.apache.http.client.methods.HttpGet;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives {@link ConcurrencyLimiter} with requests whose responses take a set time, as {@link AsyncHttpRequest} would
+ * report them through their {@link RequestTiming}.
+ */
+public class ConcurrencyLimiterTest {
+    private static final String HOST = "example.com";
+    // long enough that scheduling noise stays well below the latency tolerance
+    private static final long RESPONSE_MILLIS = 5;
+
+    private final AtomicInteger started = new AtomicInteger();
+    private final List<int[]> changes = new ArrayList<int[]>();
+
+    @Test
+    public void queuesRequestsOverTheLimit() {
+        ConcurrencyLimiter limiter = limiter(2, 1, 10);
+        RequestTiming first = acquire(limiter);
+        acquire(limiter);
+        acquire(limiter);
+        assertEquals(2, started.get());
+        assertEquals(2, limiter.getInFlight(HOST));
+        assertEquals(1, limiter.getQueued(HOST));
+
+        respond(first, 200);
+        assertEquals(3, started.get());
+        assertEquals(2, limiter.getInFlight(HOST));
+        assertEquals(0, limiter.getQueued(HOST));
+    }
+
+    @Test
+    public void growsWhileTheLimitIsInUse() {
+        ConcurrencyLimiter limiter = limiter(2, 1, 10);
+        List<RequestTiming> inFlight = new ArrayList<RequestTiming>();
+        for (int i = 0; i < 60; i++) {
+            while (limiter.getInFlight(HOST) < limiter.getLimit(HOST)) {
+                inFlight.add(acquire(limiter));
+            }
+            respond(inFlight.remove(0), 200);
+        }
+        assertTrue("limit " + limiter.getLimit(HOST), limiter.getLimit(HOST) > 4);
+        for (int[] change : changes) {
+            assertEquals(change[0] + 1, change[1]);
+        }
+    }
+
+    @Test
+    public void staysWhenTheLimitIsNotInUse() {
+        ConcurrencyLimiter limiter = limiter(4, 1, 10);
+        for (int i = 0; i < 30; i++) {
+            respond(acquire(limiter), 200);
+        }
+        assertEquals(4, limiter.getLimit(HOST));
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void backsOffOnErrors() {
+        ConcurrencyLimiter limiter = limiter(8, 2, 10);
+        respond(acquire(limiter), 503);
+        assertEquals(6, limiter.getLimit(HOST));
+        respond(acquire(limiter), 429);
+        assertEquals(4, limiter.getLimit(HOST));
+        acquire(limiter).finished(true);
+        assertEquals(3, limiter.getLimit(HOST));
+        for (int i = 0; i < 5; i++) {
+            respond(acquire(limiter), 500);
+        }
+        assertEquals(2, limiter.getLimit(HOST));
+        assertEquals(0, limiter.getInFlight(HOST));
+    }
+
+    @Test
+    public void backsOffOnSlowResponses() {
+        ConcurrencyLimiter limiter = limiter(10, 1, 10);
+        respond(acquire(limiter), 200);
+        assertEquals(10, limiter.getLimit(HOST));
+        RequestTiming slow = acquire(limiter);
+        slow.started();
+        spin(RESPONSE_MILLIS * 4);
+        slow.responded(200);
+        slow.finished(false);
+        assertEquals(9, limiter.getLimit(HOST));
+    }
+
+    @Test
+    public void ignoresRequestsWithoutResponse() {
+        ConcurrencyLimiter limiter = limiter(4, 1, 10);
+        RequestTiming dropped = acquire(limiter);
+        dropped.started();
+        dropped.finished(false);
+        assertEquals(4, limiter.getLimit(HOST));
+        assertEquals(0, limiter.getInFlight(HOST));
+    }
+
+    @Test
+    public void dropsCancelledQueuedRequests() {
+        ConcurrencyLimiter limiter = limiter(1, 1, 10);
+        RequestTiming first = acquire(limiter);
+        RequestTiming timing = new RequestTiming();
+        ThrottledRequest queued = new ThrottledRequest(starter(), timing);
+        limiter.acquire(new HttpGet("http://" + HOST + "/"), timing, queued);
+        assertEquals(1, limiter.getQueued(HOST));
+
+        assertTrue(queued.cancel(true));
+        assertEquals(0, limiter.getQueued(HOST));
+        respond(first, 200);
+        assertEquals(1, started.get());
+        assertEquals(0, limiter.getInFlight(HOST));
+    }
+
+    @Test
+    public void releasesPermitsOfRequestsThatFailToStart() {
+        ConcurrencyLimiter limiter = limiter(1, 1, 10);
+        RequestTiming first = acquire(limiter);
+        RequestTiming timing = new RequestTiming();
+        limiter.acquire(new HttpGet("http://" + HOST + "/"), timing, new ThrottledRequest(starter(), timing) {
+            @Override
+            boolean start() {
+                throw new IllegalStateException("rejected");
+            }
+        });
+        acquire(limiter);
+        assertEquals(2, limiter.getQueued(HOST));
+
+        respond(first, 200);
+        // the failed start backs the limit off, but gives its permit to the next request
+        assertEquals(2, started.get());
+        assertEquals(1, limiter.getInFlight(HOST));
+        assertEquals(0, limiter.getQueued(HOST));
+    }
+
+    private ConcurrencyLimiter limiter(int initialLimit, int minLimit, int maxLimit) {
+        return new ConcurrencyLimiter(initialLimit, minLimit, maxLimit) {
+            @Override
+            protected void onLimitChanged(String key, int oldLimit, int newLimit) {
+                changes.add(new int[] {oldLimit, newLimit});
+            }
+        };
+    }
+
+    private RequestTiming acquire(ConcurrencyLimiter limiter) {
+        RequestTiming timing = new RequestTiming();
+        limiter.acquire(new HttpGet("http://" + HOST + "/"), timing, new ThrottledRequest(starter(), timing));
+        return timing;
+    }
+
+    private Callable<Future<?>> starter() {
+        return new Callable<Future<?>>() {
+            public Future<?> call() {
+                started.incrementAndGet();
+                return new FutureTask<Object>(new Runnable() {
+                    public void run() {
+                    }
+                }, null);
+            }
+        };
+    }
+
+    private static void respond(RequestTiming timing, int statusCode) {
+        timing.started();
+        spin(RESPONSE_MILLIS);
+        timing.responded(statusCode);
+        timing.finished(false);
+    }
+
+    private static void spin(long millis) {
+        long end = System.nanoTime() + millis * 1000000;
+        while (System.nanoTime() < end) {
+            // a sleep could oversleep past the latency tolerance
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.baidu.asynchttpclient;
+
+import android.os.Handler;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link FileDownloadHandler} resumes a download that broke off with a <code>Range</code> request
+ * guarded by <code>If-Range</code>, and starts over when the server sends something else than the rest of the file.
+ */
+public class FileDownloadHandlerTest {
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Mon, 21 Oct 2013 20:13:21 GMT";
+    private static final int LENGTH = 100000;
+    private static final int BROKEN_AT = 30000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] content = new byte[LENGTH];
+    private File file;
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31 + i / 256);
+        }
+        file = new File(folder.getRoot(), "download.bin");
+    }
+
+    @Test
+    public void downloadsWholeFile() throws Exception {
+        Recorder handler = new Recorder();
+        HttpGet request = request(handler);
+        assertNull(request.getFirstHeader("Range"));
+        handler.processResponse(ok(content, ETAG));
+        assertSame(file, handler.success);
+        assertArrayEquals(content, read(file));
+        assertFalse(handler.partFile().exists());
+        assertFalse(handler.hasResumablePart());
+    }
+
+    @Test
+    public void resumesWithRangeAndIfRange() throws Exception {
+        breakOff(ETAG, null);
+
+        Recorder handler = new Recorder();
+        handler.setFile(file);
+        assertTrue(handler.hasResumablePart());
+        HttpGet request = request(handler);
+        assertEquals("bytes=" + BROKEN_AT + "-", request.getFirstHeader("Range").getValue());
+        assertEquals(ETAG, request.getFirstHeader("If-Range").getValue());
+
+        handler.processResponse(partial(BROKEN_AT));
+        assertSame(file, handler.success);
+        assertArrayEquals(content, read(file));
+        assertEquals(LENGTH, handler.lastProgress);
+        assertFalse(handler.partFile().exists());
+    }
+
+    @Test
+    public void usesLastModifiedForWeakETags() throws Exception {
+        breakOff("W/\"weak\"", LAST_MODIFIED);
+        HttpGet request = request(new Recorder());
+        assertEquals(LAST_MODIFIED, request.getFirstHeader("If-Range").getValue());
+    }
+
+    @Test
+    public void startsOverWithoutValidator() throws Exception {
+        breakOff(null, null);
+        Recorder handler = new Recorder();
+        handler.setFile(file);
+        assertFalse(handler.hasResumablePart());
+        assertNull(request(handler).getFirstHeader("Range"));
+    }
+
+    @Test
+    public void startsOverWhenTheFileChanged() throws Exception {
+        breakOff(ETAG, null);
+
+        // If-Range did not match, the server sends the new file whole
+        byte[] changed = Arrays.copyOf(content, LENGTH / 2);
+        Arrays.fill(changed, (byte) 7);
+        Recorder handler = new Recorder();
+        request(handler);
+        handler.processResponse(ok(changed, "\"v2\""));
+        assertArrayEquals(changed, read(file));
+    }
+
+    @Test
+    public void discardsPartOnUnexpectedRange() throws Exception {
+        breakOff(ETAG, null);
+
+        Recorder handler = new Recorder();
+        request(handler);
+        try {
+            handler.processResponse(partial(BROKEN_AT - 1000));
+            fail("Appended a range that does not follow the part");
+        } catch (ProtocolException expected) {
+        }
+        assertFalse(handler.partFile().exists());
+        assertNull(request(new Recorder()).getFirstHeader("Range"));
+    }
+
+    @Test
+    public void completesWhenOnlyTheRenameWasMissing() throws Exception {
+        Recorder first = new Recorder() {
+            @Override
+            void complete(long length) throws IOException {
+                throw new IOException("Killed before the rename");
+            }
+        };
+        request(first);
+        try {
+            first.processResponse(ok(content, ETAG));
+            fail("The rename was not attempted");
+        } catch (IOException expected) {
+        }
+        assertEquals(LENGTH, first.partFile().length());
+
+        Recorder handler = new Recorder();
+        assertEquals("bytes=" + LENGTH + "-", request(handler).getFirstHeader("Range").getValue());
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 416, "Range Not Satisfiable");
+        response.setHeader("Content-Range", "bytes */" + LENGTH);
+        handler.processResponse(response);
+        assertSame(file, handler.success);
+        assertArrayEquals(content, read(file));
+    }
+
+    @Test
+    public void failsOnOtherUnsatisfiableRanges() throws Exception {
+        breakOff(ETAG, null);
+
+        Recorder handler = new Recorder();
+        request(handler);
+        handler.processResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, 416, "Range Not Satisfiable"));
+        assertTrue(handler.failure instanceof HttpResponseException);
+        assertFalse(handler.partFile().exists());
+    }
+
+    /**
+     * Leaves the first {@link #BROKEN_AT} bytes of the content in the part file, as a download cut short does.
+     */
+    private void breakOff(String etag, String lastModified) throws Exception {
+        Recorder handler = new Recorder();
+        request(handler);
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new InputStreamEntity(new ByteArrayInputStream(content, 0, BROKEN_AT), LENGTH));
+        setValidators(response, etag, lastModified);
+        try {
+            handler.processResponse(response);
+            fail("A body cut short was taken for the whole file");
+        } catch (EOFException expected) {
+        }
+        assertEquals(BROKEN_AT, handler.partFile().length());
+        assertNull(handler.success);
+    }
+
+    private HttpGet request(Recorder handler) {
+        handler.setFile(file);
+        HttpGet request = new HttpGet("http://example.com/download.bin");
+        handler.beforeExecute(request);
+        return request;
+    }
+
+    private static HttpResponse ok(byte[] body, String etag) {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new ByteArrayEntity(body));
+        setValidators(response, etag, null);
+        return response;
+    }
+
+    private HttpResponse partial(int from) {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 206, "Partial Content");
+        response.setEntity(new ByteArrayEntity(Arrays.copyOfRange(content, from, LENGTH)));
+        response.setHeader("Content-Range", "bytes " + from + "-" + (LENGTH - 1) + "/" + LENGTH);
+        setValidators(response, ETAG, null);
+        return response;
+    }
+
+    private static void setValidators(HttpResponse response, String etag, String lastModified) {
+        if (etag != null) {
+            response.setHeader("ETag", etag);
+        }
+        if (lastModified != null) {
+            response.setHeader("Last-Modified", lastModified);
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                read += in.read(bytes, read, bytes.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Records the outcome. The message hooks are overridden because there is no Looper off-device.
+     */
+    private static class Recorder extends FileDownloadHandler {
+        File success;
+        Throwable failure;
+        long lastProgress = -1;
+
+        Recorder() {
+            super((Handler) null);
+        }
+
+        @Override
+        protected void sendProgressMessage(long bytesWritten, long totalBytes) {
+            lastProgress = bytesWritten;
+        }
+
+        @Override
+        protected void sendDownloadSuccessMessage(File file) {
+            success = file;
+        }
+
+        @Override
+        protected void sendFailureMessage(Throwable e, String responseBody) {
+            failure = e;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.baidu.asynchttpclient;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link Hpack} against the examples of RFC 7541, appendix C, and by round trips through an encoder and a
+ * decoder.
+ */
+public class HpackTest {
+    private static final String DATE_1 = "Mon, 21 Oct 2013 20:13:21 GMT";
+    private static final String DATE_2 = "Mon, 21 Oct 2013 20:13:22 GMT";
+    private static final String LOCATION = "https://www.example.com";
+    private static final String COOKIE = "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1";
+
+    @Test
+    public void decodesLiteralWithIndexing() throws Exception {
+        // C.2.1
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        assertEquals(Arrays.asList("custom-key", "custom-header"),
+                decode(decoder, "400a637573746f6d2d6b65790d637573746f6d2d686561646572"));
+        // the entry is in the dynamic table, as index 62
+        assertEquals(Arrays.asList("custom-key", "custom-header"), decode(decoder, "be"));
+    }
+
+    @Test
+    public void decodesRequestsWithoutHuffman() throws Exception {
+        // C.3
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        assertEquals(request("http", "/", null, null), decode(decoder, "828684410f7777772e6578616d706c652e636f6d"));
+        assertEquals(request("http", "/", "cache-control", "no-cache"),
+                decode(decoder, "828684be58086e6f2d6361636865"));
+        assertEquals(request("https", "/index.html", "custom-key", "custom-value"),
+                decode(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565"));
+    }
+
+    @Test
+    public void decodesRequestsWithHuffman() throws Exception {
+        // C.4
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        assertEquals(request("http", "/", null, null), decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+        assertEquals(request("http", "/", "cache-control", "no-cache"), decode(decoder, "828684be5886a8eb10649cbf"));
+        assertEquals(request("https", "/index.html", "custom-key", "custom-value"),
+                decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+    }
+
+    @Test
+    public void encodesRequestsLikeTheRfc() {
+        // C.4, which indexes every field and uses Huffman wherever it is shorter, as the encoder does
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        assertEquals("828684418cf1e3c2e5f23a6ba0ab90f4ff", encode(encoder, request("http", "/", null, null)));
+        assertEquals("828684be5886a8eb10649cbf", encode(encoder, request("http", "/", "cache-control", "no-cache")));
+        assertEquals("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf",
+                encode(encoder, request("https", "/index.html", "custom-key", "custom-value")));
+    }
+
+    @Test
+    public void decodesResponsesWithEviction() throws Exception {
+        // C.5, with a table of 256 bytes
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        assertEquals(response("302", DATE_1, null, null), decode(decoder, "4803333032580770726976617465611d"
+                + "4d6f6e2c203231204f637420323031332032303a31333a323120474d546e1768747470733a2f2f7777772e6578616d"
+                + "706c652e636f6d"));
+        assertEquals(response("307", DATE_1, null, null), decode(decoder, "4803333037c1c0bf"));
+        assertEquals(response("200", DATE_2, "content-encoding", "gzip"), decode(decoder, "88c1611d4d6f6e2c203231"
+                + "204f637420323031332032303a31333a323220474d54c05a04677a69707738666f6f3d4153444a4b48514b425a584f"
+                + "5157454f50495541585157454f49553b206d61782d6167653d333630303b2076657273696f6e3d31"));
+    }
+
+    @Test
+    public void roundTripsAcrossBlocks() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Http2.DEFAULT_HEADER_TABLE_SIZE);
+        char[] longValue = new char[1000];
+        Arrays.fill(longValue, 'x');
+        for (int block = 0; block < 50; block++) {
+            List<String> headers = Arrays.asList(":method", "GET", ":path", "/items/" + block, "user-agent",
+                    "test", "x-request-id", Integer.toString(block * 7919), "cookie", "session=" + block,
+                    "x-long", new String(longValue), "x-latin", "caf\u00e9 \u00ff");
+            encoder.begin();
+            for (int i = 0; i < headers.size(); i += 2) {
+                // the request id is not worth indexing, and the cookie must not be
+                boolean indexing = !headers.get(i).equals("x-request-id") && !headers.get(i).equals("cookie");
+                encoder.header(headers.get(i), headers.get(i + 1), indexing);
+            }
+            byte[] encoded = encoder.buffer();
+            assertEquals(headers, decoder.decode(encoded, 0, encoded.length));
+        }
+    }
+
+    @Test
+    public void indexedHeadersCostOneByte() {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        encode(encoder, Arrays.asList("user-agent", "test/1.0"));
+        assertEquals("be", encode(encoder, Arrays.asList("user-agent", "test/1.0")));
+    }
+
+    @Test
+    public void announcesTableSizeChanges() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Http2.DEFAULT_HEADER_TABLE_SIZE);
+        List<String> headers = Arrays.asList("x-first", "1", "x-second", "2");
+        byte[] encoded = encodeBytes(encoder, headers);
+        decoder.decode(encoded, 0, encoded.length);
+
+        encoder.setMaxTableSize(0);
+        encoded = encodeBytes(encoder, headers);
+        // a size update to 0, then literals, since nothing can be indexed any more
+        assertEquals(0x20, encoded[0] & 0xff);
+        assertEquals(headers, decoder.decode(encoded, 0, encoded.length));
+    }
+
+    @Test
+    public void encodesLargeIntegersWithContinuationBytes() throws Exception {
+        // C.1.2: 1337 with a 5 bit prefix, here as a table size update
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        assertEquals(new ArrayList<String>(), decode(decoder, "3f9a0a"));
+        try {
+            new Hpack.Decoder(1000).decode(hex("3f9a0a"), 0, 3);
+            fail("A size update above the limit was accepted");
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsBrokenBlocks() throws Exception {
+        String[] broken = {
+                // index past the dynamic table
+                "be",
+                // index 0
+                "80",
+                // string longer than the block
+                "400a637573746f6d",
+                // integer without its last byte
+                "ff9a",
+                // integer overflow
+                "ffffffffffff0f" };
+        for (String block : broken) {
+            try {
+                decode(new Hpack.Decoder(4096), block);
+                fail("Block " + block + " was accepted");
+            } catch (ProtocolException expected) {
+            }
+        }
+    }
+
+    private static List<String> request(String scheme, String path, String name, String value) {
+        List<String> headers = new ArrayList<String>(Arrays.asList(":method", "GET", ":scheme", scheme, ":path",
+                path, ":authority", "www.example.com"));
+        if (name != null) {
+            headers.add(name);
+            headers.add(value);
+        }
+        return headers;
+    }
+
+    private static List<String> response(String status, String date, String name, String value) {
+        List<String> headers = new ArrayList<String>(Arrays.asList(":status", status, "cache-control", "private",
+                "date", date, "location", LOCATION));
+        if (name != null) {
+            headers.add(name);
+            headers.add(value);
+            headers.add("set-cookie");
+            headers.add(COOKIE);
+        }
+        return headers;
+    }
+
+    private static List<String> decode(Hpack.Decoder decoder, String block) throws IOException {
+        byte[] bytes = hex(block);
+        return decoder.decode(bytes, 0, bytes.length);
+    }
+
+    private static String encode(Hpack.Encoder encoder, List<String> headers) {
+        byte[] encoded = encodeBytes(encoder, headers);
+        StringBuilder s = new StringBuilder();
+        for (byte b : encoded) {
+            s.append(String.format("%02x", b & 0xff));
+        }
+        return s.toString();
+    }
+
+    private static byte[] encodeBytes(Hpack.Encoder encoder, List<String> headers) {
+        encoder.begin();
+        for (int i = 0; i < headers.size(); i += 2) {
+            encoder.header(headers.get(i), headers.get(i + 1), true);
+        }
+        return encoder.buffer();
+    }
+
+    private static byte[] hex(String s) {
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,197 @@
+package com.baidu.asynchttpclient;
+
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds {@link HttpResponseParser} whole responses and the same responses split at every possible point, as the
+ * non-blocking transport does when they arrive in several reads.
+ */
+public class HttpResponseParserTest {
+    private static final String CHUNKED = "HTTP/1.1 200 OK\r\n"
+            + "Transfer-Encoding: chunked\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "\r\n"
+            + "5\r\nHello\r\n"
+            + "7;name=value\r\n, world\r\n"
+            + "0\r\n"
+            + "Expires: never\r\n"
+            + "X-Checksum: 1234\r\n"
+            + "\r\n";
+
+    private static final String FIXED = "HTTP/1.1 404 Not Found\r\n"
+            + "Content-Length: 9\r\n"
+            + "\r\n"
+            + "not found";
+
+    @Test
+    public void parsesChunkedBodyWithTrailers() throws Exception {
+        Recorder recorder = new Recorder();
+        ByteBuffer buffer = bytes(CHUNKED);
+        assertTrue(parser(recorder).parse(buffer));
+        assertFalse(buffer.hasRemaining());
+        assertEquals(200, recorder.head.getStatusLine().getStatusCode());
+        assertEquals("text/plain", recorder.head.getFirstHeader("Content-Type").getValue());
+        assertEquals("Hello, world", recorder.body());
+        // trailers are not headers of the response
+        assertNull(recorder.head.getFirstHeader("Expires"));
+    }
+
+    @Test
+    public void parsesResponsesSplitAtEveryPoint() throws Exception {
+        for (String response : new String[] {CHUNKED, FIXED}) {
+            Recorder whole = new Recorder();
+            parser(whole).parse(bytes(response));
+            for (int split = 1; split < response.length(); split++) {
+                Recorder recorder = new Recorder();
+                HttpResponseParser parser = parser(recorder);
+                assertFalse("split at " + split, parser.parse(bytes(response.substring(0, split))));
+                assertTrue("split at " + split, parser.parse(bytes(response.substring(split))));
+                assertEquals("split at " + split, whole.body(), recorder.body());
+                assertEquals(whole.head.getStatusLine().toString(), recorder.head.getStatusLine().toString());
+            }
+        }
+    }
+
+    @Test
+    public void parsesResponsesOneByteAtATime() throws Exception {
+        Recorder recorder = new Recorder();
+        HttpResponseParser parser = parser(recorder);
+        byte[] response = CHUNKED.getBytes("ISO-8859-1");
+        for (int i = 0; i < response.length; i++) {
+            assertEquals(i == response.length - 1, parser.parse(ByteBuffer.wrap(response, i, 1)));
+        }
+        assertEquals("Hello, world", recorder.body());
+        assertTrue(parser.isKeepAlive());
+    }
+
+    @Test
+    public void leavesPipelinedResponsesInTheBuffer() throws Exception {
+        ByteBuffer buffer = bytes(CHUNKED + FIXED);
+        Recorder first = new Recorder();
+        HttpResponseParser parser = parser(first);
+        assertTrue(parser.parse(buffer));
+        assertEquals("Hello, world", first.body());
+
+        Recorder second = new Recorder();
+        parser.reset(second, false);
+        assertTrue(parser.parse(buffer));
+        assertFalse(buffer.hasRemaining());
+        assertEquals(404, second.head.getStatusLine().getStatusCode());
+        assertEquals("not found", second.body());
+    }
+
+    @Test
+    public void skipsInterimResponses() throws Exception {
+        Recorder recorder = new Recorder();
+        assertTrue(parser(recorder).parse(bytes("HTTP/1.1 100 Continue\r\n\r\n" + FIXED)));
+        assertEquals(404, recorder.head.getStatusLine().getStatusCode());
+        assertEquals(1, recorder.heads);
+    }
+
+    @Test
+    public void readsBodyUntilClose() throws Exception {
+        Recorder recorder = new Recorder();
+        HttpResponseParser parser = parser(recorder);
+        assertFalse(parser.parse(bytes("HTTP/1.0 200 OK\r\n\r\nfirst ")));
+        assertFalse(parser.parse(bytes("second")));
+        assertTrue(parser.endOfStream());
+        assertEquals("first second", recorder.body());
+        assertFalse(parser.isKeepAlive());
+        assertFalse(parser.isHttp11());
+    }
+
+    @Test
+    public void completesResponsesWithoutBody() throws Exception {
+        Recorder recorder = new Recorder();
+        HttpResponseParser parser = new HttpResponseParser();
+        parser.reset(recorder, true);
+        assertTrue(parser.parse(bytes("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n")));
+        parser.reset(recorder, false);
+        assertTrue(parser.parse(bytes("HTTP/1.1 204 No Content\r\n\r\n")));
+        assertEquals("", recorder.body());
+    }
+
+    @Test
+    public void followsConnectionHeader() throws Exception {
+        HttpResponseParser parser = parser(new Recorder());
+        parser.parse(bytes("HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 0\r\n\r\n"));
+        assertFalse(parser.isKeepAlive());
+        parser.reset(new Recorder(), false);
+        parser.parse(bytes("HTTP/1.0 200 OK\r\nConnection: Keep-Alive\r\nContent-Length: 0\r\n\r\n"));
+        assertTrue(parser.isKeepAlive());
+    }
+
+    @Test
+    public void rejectsTruncatedResponses() throws Exception {
+        HttpResponseParser parser = parser(new Recorder());
+        parser.parse(bytes(CHUNKED.substring(0, CHUNKED.indexOf("0\r\n"))));
+        try {
+            parser.endOfStream();
+            fail("A truncated response was accepted");
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsMalformedResponses() throws Exception {
+        String[] malformed = {
+                "SMTP 220 ready\r\n\r\n",
+                "HTTP/1.1 OK\r\n\r\n",
+                "HTTP/1.1 200 OK\r\nNo colon\r\n\r\n",
+                "HTTP/1.1 200 OK\r\nContent-Length: -1\r\n\r\n",
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nxyz\r\n",
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n2\r\nabc\r\n" };
+        for (String response : malformed) {
+            try {
+                parser(new Recorder()).parse(bytes(response));
+                fail("Accepted " + response);
+            } catch (ProtocolException expected) {
+            }
+        }
+    }
+
+    private static HttpResponseParser parser(Recorder recorder) {
+        HttpResponseParser parser = new HttpResponseParser();
+        parser.reset(recorder, false);
+        return parser;
+    }
+
+    private static ByteBuffer bytes(String s) throws IOException {
+        return ByteBuffer.wrap(s.getBytes("ISO-8859-1"));
+    }
+
+    private static class Recorder implements HttpResponseParser.Listener {
+        BasicHttpResponse head;
+        int heads;
+        final List<byte[]> pieces = new ArrayList<byte[]>();
+
+        public void onResponseHead(BasicHttpResponse head) {
+            this.head = head;
+            heads++;
+        }
+
+        public void onResponseBody(ByteBuffer body) {
+            byte[] piece = new byte[body.remaining()];
+            body.get(piece);
+            pieces.add(piece);
+        }
+
+        String body() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (byte[] piece : pieces) {
+                out.write(piece);
+            }
+            return out.toString("ISO-8859-1");
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.baidu.asynchttpclient;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.net.URLEncoder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the order of {@link RequestParams} and its encoding, which must match {@link URLEncoder} exactly.
+ */
+public class RequestParamsTest {
+    private static final String[] TEXTS = {
+            "", "plain", "with space", "a+b=c&d", "-_.*~!'()", "100%", "line\r\nbreak", "caf\u00e9",
+            "\u4e2d\u6587", "emoji \ud83d\ude00", "lone \ud83d surrogate", "\u007f\u0080\u07ff\u0800\uffff" };
+
+    @Test
+    public void encodesLikeUrlEncoder() throws Exception {
+        for (String text : TEXTS) {
+            RequestParams params = new RequestParams(text, text);
+            String expected = URLEncoder.encode(text, "UTF-8");
+            assertEquals(text, expected + "=" + expected, params.getParamString());
+        }
+    }
+
+    @Test
+    public void predictsEncodedLength() {
+        for (String text : TEXTS) {
+            for (boolean form : new boolean[] {true, false}) {
+                RequestParams.ByteBuilder out = new RequestParams.ByteBuilder(0);
+                RequestParams.percentEncode(text, form, out);
+                assertEquals(text, out.toByteArray().length, RequestParams.percentEncodedLength(text, form));
+            }
+        }
+    }
+
+    @Test
+    public void encodesUrlPartsWithUnreservedCharacters() {
+        RequestParams.ByteBuilder out = new RequestParams.ByteBuilder(0);
+        RequestParams.percentEncode("a b*c~/", false, out);
+        assertEquals("a%20b%2Ac~%2F", new String(out.toByteArray()));
+    }
+
+    @Test
+    public void keepsOrderAndRepeatedKeys() {
+        RequestParams params = new RequestParams();
+        params.add("a", "1");
+        params.put("b", "2");
+        params.add("a", "3");
+        assertEquals("a=1&b=2&a=3", params.getParamString());
+
+        params.put("a", "4");
+        assertEquals("a=4&b=2", params.getParamString());
+
+        params.remove("a");
+        assertEquals("b=2", params.getParamString());
+    }
+
+    @Test
+    public void ignoresNullKeysAndValues() {
+        RequestParams params = new RequestParams();
+        params.put(null, "1");
+        params.put("a", (String) null);
+        params.add("b", null);
+        assertEquals("", params.getParamString());
+    }
+
+    @Test
+    public void sendsTheQueryStringAsFormBody() throws Exception {
+        RequestParams params = new RequestParams("name", "J\u00f6rg Schmidt");
+        params.add("tags", "a&b");
+        HttpEntity entity = params.getEntity();
+        assertEquals("application/x-www-form-urlencoded; charset=UTF-8", entity.getContentType().getValue());
+        assertEquals(params.getParamString(), EntityUtils.toString(entity));
+        assertEquals(params.getParamString().length(), entity.getContentLength());
+    }
+
+    @Test
+    public void encodesAgainAfterAChange() throws Exception {
+        RequestParams params = new RequestParams("a", "1");
+        HttpEntity before = params.getEntity();
+        params.put("a", "2");
+        assertEquals("a=1", EntityUtils.toString(before));
+        assertEquals("a=2", EntityUtils.toString(params.getEntity()));
+        assertEquals("a=2", params.getParamString());
+    }
+}
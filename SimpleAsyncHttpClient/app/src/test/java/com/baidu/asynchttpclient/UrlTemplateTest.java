@@ -0,0 +1,93 @@
+package com.baidu.asynchttpclient;
+
+import org.apache.http.HttpHost;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the parsing of {@link UrlTemplate} and the encoding of the values it expands.
+ */
+public class UrlTemplateTest {
+
+    @Test
+    public void expandsPathVariables() {
+        UrlTemplate template = new UrlTemplate("http://api.example.com/users/{id}/items/{item}");
+        assertEquals(Arrays.asList("id", "item"), template.getVariableNames());
+        assertEquals("http://api.example.com/users/42/items/7", template.expand(42, "7").toString());
+    }
+
+    @Test
+    public void encodesValuesAsOneSegment() {
+        UrlTemplate template = new UrlTemplate("https://example.com/files/{name}");
+        assertEquals("https://example.com/files/a%2Fb%3Fc%26d%23e%20f~g.h",
+                template.expand("a/b?c&d#e f~g.h").toString());
+        assertEquals("https://example.com/files/caf%C3%A9%20%F0%9F%98%80",
+                template.expand("caf\u00e9 \ud83d\ude00").toString());
+        assertEquals("/files/a/b?c", template.expand("a/b?c").getPath());
+    }
+
+    @Test
+    public void writesRepeatedVariablesTwice() {
+        UrlTemplate template = new UrlTemplate("http://example.com/{a}/{b}/{a}?q={b}");
+        assertEquals(Arrays.asList("a", "b"), template.getVariableNames());
+        assertEquals("http://example.com/x%20y/z/x%20y?q=z", template.expand("x y", "z").toString());
+    }
+
+    @Test
+    public void appendsParamsToTheQuery() {
+        RequestParams params = new RequestParams("q", "a b");
+        params.add("page", "2");
+        assertEquals("http://example.com/search/1?q=a+b&page=2",
+                new UrlTemplate("http://example.com/search/{id}").expand(params, 1).toString());
+        assertEquals("http://example.com/search?lang=en&q=a+b&page=2",
+                new UrlTemplate("http://example.com/search?lang={lang}").expand(params, "en").toString());
+        assertEquals("http://example.com/search?q=a+b&page=2",
+                new UrlTemplate("http://example.com/search?").expand(params).toString());
+        assertEquals("http://example.com/search",
+                new UrlTemplate("http://example.com/search").expand(new RequestParams()).toString());
+    }
+
+    @Test
+    public void keepsTheTarget() {
+        assertEquals(new HttpHost("example.com", 8443, "https"),
+                new UrlTemplate("https://example.com:8443/{path}").getTarget());
+        assertEquals(new HttpHost("example.com", -1, "http"), new UrlTemplate("http://example.com").getTarget());
+    }
+
+    @Test
+    public void rejectsInvalidTemplates() {
+        String[] invalid = {
+                "http://{host}/path",
+                "http://example.com/{id}#top",
+                "http://example.com/{id",
+                "http://example.com/{}",
+                "/relative/{id}",
+                "ftp://example.com/{id}",
+                "http://example.com/a b/{id}" };
+        for (String template : invalid) {
+            try {
+                new UrlTemplate(template);
+                fail("Accepted " + template);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void rejectsMissingValues() {
+        UrlTemplate template = new UrlTemplate("http://example.com/{a}/{b}");
+        try {
+            template.expand("only one");
+            fail("Expanded with a missing value");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            template.expand("a", null);
+            fail("Expanded with a null value");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
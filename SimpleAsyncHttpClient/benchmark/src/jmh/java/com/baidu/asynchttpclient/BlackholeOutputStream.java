@@ -0,0 +1,34 @@
+package com.baidu.asynchttpclient;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that feeds everything written to it into a JMH {@link Blackhole}, so that entity writes are not
+ * optimized away and are not skewed by a growing in-memory sink.
+ */
+class BlackholeOutputStream extends OutputStream {
+    private final Blackhole blackhole;
+    private long count;
+
+    public BlackholeOutputStream(Blackhole blackhole) {
+        this.blackhole = blackhole;
+    }
+
+    @Override
+    public void write(int b) {
+        blackhole.consume(b);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        blackhole.consume(b);
+        count += len;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,63 @@
+package com.baidu.asynchttpclient;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Measures decompressing gzip encoded response bodies through {@link InflatingEntity}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class InflatingEntityBenchmark {
+    @Param({ "1024", "65536", "1048576" })
+    public int bodySize;
+
+    private byte[] compressed;
+    private byte[] readBuffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        // json like, compressible text
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(bodySize);
+        while (text.length() < bodySize) {
+            text.append("{\"id\":").append(random.nextInt(100000)).append(",\"name\":\"item\"},");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(text.substring(0, bodySize).getBytes("UTF-8"));
+        gzip.close();
+        compressed = bytes.toByteArray();
+        readBuffer = new byte[1024];
+    }
+
+    @Benchmark
+    public long inflate(Blackhole blackhole) throws IOException {
+        InflatingEntity entity = new InflatingEntity(new ByteArrayEntity(compressed));
+        InputStream in = entity.getContent();
+        long total = 0;
+        int read;
+        while ((read = in.read(readBuffer)) != -1) {
+            blackhole.consume(readBuffer);
+            total += read;
+        }
+        in.close();
+        return total;
+    }
+}
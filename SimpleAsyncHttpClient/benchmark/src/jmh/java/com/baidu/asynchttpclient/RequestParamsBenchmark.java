@@ -0,0 +1,71 @@
+package com.baidu.asynchttpclient;
+
+import org.apache.http.HttpEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures query string and form body encoding of {@link RequestParams}. The params keep their encoding until they
+ * change, the put benchmarks change one first so that every call encodes them all again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RequestParamsBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int paramCount;
+
+    private RequestParams params;
+    private int round;
+
+    @Setup
+    public void setUp() {
+        params = new RequestParams();
+        for (int i = 0; i < paramCount; i++) {
+            // mix plain ascii, reserved characters and non ascii text, like real world params
+            params.put("key" + i, (i % 3 == 0) ? "value " + i + "&more=yes" : (i % 3 == 1) ? "中文" + i
+                    : "v" + i);
+        }
+    }
+
+    @Benchmark
+    public String getParamString() {
+        return params.getParamString();
+    }
+
+    @Benchmark
+    public HttpEntity getEntity() {
+        return params.getEntity();
+    }
+
+    @Benchmark
+    public long getEntityAndWrite(Blackhole blackhole) throws IOException {
+        BlackholeOutputStream out = new BlackholeOutputStream(blackhole);
+        params.getEntity().writeTo(out);
+        return out.getCount();
+    }
+
+    @Benchmark
+    public String putAndGetParamString() {
+        params.put("key0", (++round & 1) == 0 ? "even" : "odd");
+        return params.getParamString();
+    }
+
+    @Benchmark
+    public long putAndGetEntityAndWrite(Blackhole blackhole) throws IOException {
+        params.put("key0", (++round & 1) == 0 ? "even" : "odd");
+        BlackholeOutputStream out = new BlackholeOutputStream(blackhole);
+        params.getEntity().writeTo(out);
+        return out.getCount();
+    }
+}
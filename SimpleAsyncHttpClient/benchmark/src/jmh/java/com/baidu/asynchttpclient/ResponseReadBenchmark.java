@@ -0,0 +1,84 @@
+package com.baidu.asynchttpclient;
+
+import android.os.Handler;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the chunk read loop of {@link AsyncHttpResponseHandler#sendResponseMessage(HttpResponse)} against an
+ * in-memory response, with and without a known content length.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ResponseReadBenchmark {
+    @Param({ "1024", "65536", "1048576" })
+    public int bodySize;
+
+    @Param({ "true", "false" })
+    public boolean knownLength;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        body = new byte[bodySize];
+        new Random(42).nextBytes(body);
+    }
+
+    @Benchmark
+    public void sendResponseMessage(Blackhole blackhole) {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new InputStreamEntity(new ByteArrayInputStream(body), knownLength ? bodySize : -1));
+        new ConsumingHandler(blackhole).sendResponseMessage(response);
+    }
+
+    /**
+     * Consumes the segments on the reading thread. The message hooks are overridden because android.os.Message is
+     * not available off-device.
+     */
+    private static class ConsumingHandler extends AsyncHttpResponseHandler {
+        private final Blackhole blackhole;
+
+        public ConsumingHandler(Blackhole blackhole) {
+            super((Handler) null);
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        protected void sendReceiveStartMessage(int length, String charset) {
+            blackhole.consume(length);
+        }
+
+        @Override
+        protected void sendReceiveUpdateMessage(byte[] slice, int length) {
+            blackhole.consume(slice);
+        }
+
+        @Override
+        protected void sendReceiveEndMessage() {
+            blackhole.consume(this);
+        }
+
+        @Override
+        protected void sendFailureMessage(Throwable e, String responseBody) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.baidu.asynchttpclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building a {@link SimpleMultipartEntity} and writing it out, for small form uploads and for large files,
+ * with the file given as a stream, which is read as the body is written, and as an array. A body with a stream can
+ * only be written once, so the repeated writes use the array.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SimpleMultipartEntityBenchmark {
+    @Param({ "1024", "65536", "4194304" })
+    public int partSize;
+
+    private byte[] payload;
+    private SimpleMultipartEntity builtEntity;
+
+    @Setup
+    public void setUp() {
+        payload = new byte[partSize];
+        new Random(42).nextBytes(payload);
+        builtEntity = buildDirect();
+    }
+
+    private SimpleMultipartEntity build() {
+        SimpleMultipartEntity entity = new SimpleMultipartEntity();
+        entity.addPart("user", "james");
+        entity.addPart("comment", "a short description of the upload");
+        entity.addPart("file", "upload.bin", new ByteArrayInputStream(payload), "application/octet-stream", true);
+        return entity;
+    }
+
+    private SimpleMultipartEntity buildDirect() {
+        SimpleMultipartEntity entity = new SimpleMultipartEntity();
+        entity.addPart("user", "james");
+        entity.addPart("comment", "a short description of the upload");
+        entity.addPart("file", "upload.bin", ByteBuffer.wrap(payload), "application/octet-stream", true);
+        return entity;
+    }
+
+    @Benchmark
+    public SimpleMultipartEntity buildEntity() {
+        return build();
+    }
+
+    @Benchmark
+    public long writeTo(Blackhole blackhole) throws IOException {
+        BlackholeOutputStream out = new BlackholeOutputStream(blackhole);
+        builtEntity.writeTo(out);
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long buildAndWrite(Blackhole blackhole) throws IOException {
+        SimpleMultipartEntity entity = build();
+        BlackholeOutputStream out = new BlackholeOutputStream(blackhole);
+        blackhole.consume(entity.getContentLength());
+        entity.writeTo(out);
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long buildDirectAndWrite(Blackhole blackhole) throws IOException {
+        SimpleMultipartEntity entity = buildDirect();
+        BlackholeOutputStream out = new BlackholeOutputStream(blackhole);
+        blackhole.consume(entity.getContentLength());
+        entity.writeTo(out);
+        return out.getCount();
+    }
+}
@@ -0,0 +1,43 @@
+package com.baidu.asynchttpclient;
+
+import org.apache.http.client.methods.HttpGet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building the request of a frequently used endpoint from a {@link UrlTemplate} with concatenating its URL.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UrlTemplateBenchmark {
+    private static final String BASE = "http://api.example.com/v2/users/";
+
+    private final UrlTemplate template = new UrlTemplate(BASE + "{id}/items?fields={fields}");
+    private RequestParams params;
+    private int id;
+
+    @Setup
+    public void setUp() {
+        params = new RequestParams();
+        params.put("page", "3");
+        params.put("sort", "-updated");
+    }
+
+    @Benchmark
+    public HttpGet concatenate() {
+        return new HttpGet(BASE + (++id) + "/items?fields=name,price&" + params.getParamString());
+    }
+
+    @Benchmark
+    public HttpGet expandTemplate() {
+        return new HttpGet(template.expand(params, ++id, "name,price"));
+    }
+}
@@ -0,0 +1,518 @@
+package com.baidu.asynchttpclient;
+
+import com.baidu.asynchttpclient.loadtest.LoopbackHttpServer;
+import com.baidu.asynchttpclient.loadtest.LoopbackServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A small HTTP/2 server bound to the loopback interface, speaking cleartext HTTP/2 with prior knowledge ("h2c"). It is
+ * the target of the load test harness for {@link Http2Transport}, and can be tried with
+ * <code>curl --http2-prior-knowledge</code>.
+ * <p>
+ * Responses are shaped by the query parameters of {@link LoopbackHttpServer}, with two differences: <code>reset</code>
+ * resets the stream rather than the connection, and <code>chunked=1</code> leaves out the content-length. Streams are
+ * answered concurrently, each on a worker thread, within the flow control windows of the client. Keep-alive settings
+ * map to GOAWAY: a connection stops taking streams after <code>maxRequestsPerConnection</code> of them, or after one
+ * if keep-alive is off, and closes once they are answered.
+ */
+public class LoopbackHttp2Server implements LoopbackServer {
+    private static final int DEFAULT_BODY_SIZE = 1024;
+    private static final int MAX_CONCURRENT_STREAMS = 1000;
+
+    private final boolean keepAlive;
+    private final int maxRequestsPerConnection;
+    private final int idleTimeoutMillis;
+
+    private final AtomicInteger acceptedConnections = new AtomicInteger();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger maxOpenConnections = new AtomicInteger();
+    private final AtomicInteger servedRequests = new AtomicInteger();
+
+    private ServerSocket serverSocket;
+    private ExecutorService workers;
+    private byte[] body = new byte[0];
+
+    /**
+     * @param keepAlive whether connections take more than one stream.
+     * @param maxRequestsPerConnection number of streams after which a connection goes away, 0 for no limit.
+     * @param idleTimeoutMillis how long an idle connection stays open.
+     */
+    public LoopbackHttp2Server(boolean keepAlive, int maxRequestsPerConnection, int idleTimeoutMillis) {
+        this.keepAlive = keepAlive;
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 1024);
+        workers = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LoopbackHttp2Server #" + mCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        }, "LoopbackHttp2Server acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        workers.shutdownNow();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + getPort();
+    }
+
+    public int getAcceptedConnections() {
+        return acceptedConnections.get();
+    }
+
+    public int getMaxOpenConnections() {
+        return maxOpenConnections.get();
+    }
+
+    public int getServedRequests() {
+        return servedRequests.get();
+    }
+
+    public void resetCounters() {
+        acceptedConnections.set(0);
+        maxOpenConnections.set(openConnections.get());
+        servedRequests.set(0);
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                acceptedConnections.incrementAndGet();
+                int open = openConnections.incrementAndGet();
+                int max;
+                while (open > (max = maxOpenConnections.get()) && !maxOpenConnections.compareAndSet(max, open)) {
+                    // retry
+                }
+                workers.execute(new Connection(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private synchronized byte[] body(int length) {
+        if (body.length < length) {
+            byte[] grown = new byte[length];
+            for (int i = 0; i < length; i++) {
+                grown[i] = (byte) ('a' + (i % 26));
+            }
+            body = grown;
+        }
+        return body;
+    }
+
+    /**
+     * A connection: its thread reads frames, the responses are written by worker threads under the connection lock.
+     */
+    private class Connection implements Runnable {
+        private final Socket socket;
+        private final Random random = new Random();
+        private final Hpack.Decoder decoder = new Hpack.Decoder(Http2.DEFAULT_HEADER_TABLE_SIZE);
+        private Http2FrameReader reader;
+        private ByteArrayOutputStream headerBlock;
+        private int headerBlockStreamId;
+        private boolean headerBlockEndStream;
+
+        // guarded by this
+        private final Hpack.Encoder encoder = new Hpack.Encoder();
+        private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+        private Http2FrameWriter writer;
+        private long sendWindow = Http2.DEFAULT_INITIAL_WINDOW_SIZE;
+        private int initialWindow = Http2.DEFAULT_INITIAL_WINDOW_SIZE;
+        private int maxFrameSize = Http2.DEFAULT_MAX_FRAME_SIZE;
+        private int served;
+        private int lastStreamId = Integer.MAX_VALUE;
+        private boolean closed;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        public void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(idleTimeoutMillis);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                byte[] preface = new byte[Http2.CONNECTION_PREFACE.length];
+                in.readFully(preface);
+                if (!Arrays.equals(preface, Http2.CONNECTION_PREFACE)) {
+                    throw new IOException("Not an HTTP/2 client");
+                }
+                reader = new Http2FrameReader(in, Http2.DEFAULT_MAX_FRAME_SIZE);
+                synchronized (this) {
+                    writer = new Http2FrameWriter(new BufferedOutputStream(socket.getOutputStream(), 16 * 1024));
+                    writer.writeSettings(Http2.SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+                    writer.flush();
+                }
+                while (true) {
+                    reader.readFrame();
+                    switch (reader.type) {
+                        case Http2.TYPE_HEADERS:
+                            readHeaders();
+                            break;
+                        case Http2.TYPE_CONTINUATION:
+                            headerBlock.write(reader.payload, 0, reader.length);
+                            if ((reader.flags & Http2.FLAG_END_HEADERS) != 0) {
+                                byte[] block = headerBlock.toByteArray();
+                                headerBlock = null;
+                                openStream(headerBlockStreamId, block, 0, block.length, headerBlockEndStream);
+                            }
+                            break;
+                        case Http2.TYPE_DATA:
+                            readData();
+                            break;
+                        case Http2.TYPE_SETTINGS:
+                            readSettings();
+                            break;
+                        case Http2.TYPE_WINDOW_UPDATE:
+                            readWindowUpdate();
+                            break;
+                        case Http2.TYPE_RST_STREAM:
+                            synchronized (this) {
+                                Stream stream = streams.remove(reader.streamId);
+                                if (stream != null) {
+                                    stream.reset = true;
+                                }
+                                notifyAll();
+                            }
+                            break;
+                        case Http2.TYPE_PING:
+                            if ((reader.flags & Http2.FLAG_ACK) == 0) {
+                                synchronized (this) {
+                                    writer.writePingAck(reader.payload, 0);
+                                    writer.flush();
+                                }
+                            }
+                            break;
+                        case Http2.TYPE_GOAWAY:
+                            return;
+                        default:
+                            break;
+                    }
+                }
+            } catch (IOException e) {
+                // idle timeout or client went away
+            } finally {
+                close();
+            }
+        }
+
+        private void readHeaders() throws IOException {
+            int offset = 0;
+            int padding = 0;
+            if ((reader.flags & Http2.FLAG_PADDED) != 0) {
+                padding = reader.payload[0] & 0xff;
+                offset = 1;
+            }
+            if ((reader.flags & Http2.FLAG_PRIORITY) != 0) {
+                offset += 5;
+            }
+            boolean endStream = (reader.flags & Http2.FLAG_END_STREAM) != 0;
+            if ((reader.flags & Http2.FLAG_END_HEADERS) != 0) {
+                openStream(reader.streamId, reader.payload, offset, reader.length - offset - padding, endStream);
+            } else {
+                headerBlock = new ByteArrayOutputStream();
+                headerBlock.write(reader.payload, offset, reader.length - offset - padding);
+                headerBlockStreamId = reader.streamId;
+                headerBlockEndStream = endStream;
+            }
+        }
+
+        private void openStream(int streamId, byte[] block, int offset, int length, boolean endStream)
+                throws IOException {
+            List<String> headers = decoder.decode(block, offset, length);
+            Stream stream = new Stream(streamId);
+            for (int i = 0; i < headers.size(); i += 2) {
+                String name = headers.get(i);
+                String value = headers.get(i + 1);
+                if (":method".equals(name)) {
+                    stream.method = value;
+                } else if (":path".equals(name)) {
+                    parseQuery(stream, value);
+                } else {
+                    stream.headers.put(name, value);
+                }
+            }
+            synchronized (this) {
+                if (streamId > lastStreamId) {
+                    // refused by GOAWAY already, the client sends it again elsewhere
+                    return;
+                }
+                stream.window = initialWindow;
+                streams.put(streamId, stream);
+                served++;
+                if (!keepAlive || (maxRequestsPerConnection > 0 && served >= maxRequestsPerConnection)) {
+                    lastStreamId = streamId;
+                    writer.writeGoAway(lastStreamId, Http2.NO_ERROR);
+                    writer.flush();
+                }
+            }
+            if (endStream) {
+                respond(stream);
+            }
+        }
+
+        private void readData() throws IOException {
+            int length = reader.length;
+            Stream stream;
+            synchronized (this) {
+                stream = streams.get(reader.streamId);
+                if (length > 0) {
+                    // request bodies are discarded as they come
+                    writer.writeWindowUpdate(0, length);
+                    if (stream != null && (reader.flags & Http2.FLAG_END_STREAM) == 0) {
+                        writer.writeWindowUpdate(stream.id, length);
+                    }
+                    writer.flush();
+                }
+            }
+            if (stream != null && (reader.flags & Http2.FLAG_END_STREAM) != 0) {
+                respond(stream);
+            }
+        }
+
+        private void readSettings() throws IOException {
+            if ((reader.flags & Http2.FLAG_ACK) != 0) {
+                return;
+            }
+            synchronized (this) {
+                for (int i = 0; i + 6 <= reader.length; i += 6) {
+                    int id = ((reader.payload[i] & 0xff) << 8) | (reader.payload[i + 1] & 0xff);
+                    int value = reader.readInt(i + 2);
+                    if (id == Http2.SETTINGS_INITIAL_WINDOW_SIZE) {
+                        for (Stream stream : streams.values()) {
+                            stream.window += value - initialWindow;
+                        }
+                        initialWindow = value;
+                    } else if (id == Http2.SETTINGS_MAX_FRAME_SIZE) {
+                        maxFrameSize = value;
+                    } else if (id == Http2.SETTINGS_HEADER_TABLE_SIZE) {
+                        encoder.setMaxTableSize(value);
+                    }
+                }
+                writer.writeSettingsAck();
+                writer.flush();
+                notifyAll();
+            }
+        }
+
+        private synchronized void readWindowUpdate() {
+            int increment = reader.readInt(0) & 0x7fffffff;
+            if (reader.streamId == 0) {
+                sendWindow += increment;
+            } else {
+                Stream stream = streams.get(reader.streamId);
+                if (stream != null) {
+                    stream.window += increment;
+                }
+            }
+            notifyAll();
+        }
+
+        private void respond(final Stream stream) {
+            servedRequests.incrementAndGet();
+            workers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        writeResponse(stream);
+                    } catch (IOException e) {
+                        close();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        private void writeResponse(Stream stream) throws IOException, InterruptedException {
+            int latency = intParam(stream, "latency", 0);
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            if (random.nextDouble() < doubleParam(stream, "reset", 0)) {
+                synchronized (this) {
+                    if (streams.remove(stream.id) != null) {
+                        writer.writeRstStream(stream.id, Http2.INTERNAL_ERROR);
+                        writer.flush();
+                    }
+                    streamClosed();
+                }
+                return;
+            }
+
+            boolean error = random.nextDouble() < doubleParam(stream, "error", 0);
+            byte[] content;
+            int length;
+            if (error) {
+                content = "injected error".getBytes("US-ASCII");
+                length = content.length;
+            } else {
+                length = intParam(stream, "size", DEFAULT_BODY_SIZE);
+                content = body(length);
+            }
+            boolean gzip = !error && "1".equals(stream.query.get("gzip"))
+                    && stream.headers.containsKey("accept-encoding")
+                    && stream.headers.get("accept-encoding").contains("gzip");
+            if (gzip) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+                GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+                gzipOut.write(content, 0, length);
+                gzipOut.close();
+                content = compressed.toByteArray();
+                length = content.length;
+            }
+            boolean head = "HEAD".equals(stream.method);
+
+            synchronized (this) {
+                if (stream.reset || closed) {
+                    return;
+                }
+                encoder.begin();
+                encoder.header(":status", error ? "500" : "200", true);
+                encoder.header("content-type", "application/octet-stream", true);
+                if (gzip) {
+                    encoder.header("content-encoding", "gzip", true);
+                }
+                if (!"1".equals(stream.query.get("chunked"))) {
+                    encoder.header("content-length", Integer.toString(length), true);
+                }
+                byte[] block = encoder.buffer();
+                boolean endStream = head || length == 0;
+                writer.writeHeaders(stream.id, block, block.length, endStream, maxFrameSize);
+
+                int offset = 0;
+                while (!endStream && offset < length) {
+                    if (sendWindow <= 0 || stream.window <= 0) {
+                        writer.flush();
+                        wait();
+                        if (stream.reset || closed) {
+                            return;
+                        }
+                        continue;
+                    }
+                    int count = (int) Math.min(Math.min(sendWindow, stream.window),
+                            Math.min(length - offset, maxFrameSize));
+                    boolean last = offset + count == length;
+                    writer.writeFrame(Http2.TYPE_DATA, last ? Http2.FLAG_END_STREAM : 0, stream.id, content, offset,
+                            count);
+                    offset += count;
+                    sendWindow -= count;
+                    stream.window -= count;
+                }
+                writer.flush();
+                streams.remove(stream.id);
+                streamClosed();
+            }
+        }
+
+        // called under the lock once a stream is over
+        private void streamClosed() throws IOException {
+            if (lastStreamId != Integer.MAX_VALUE && streams.isEmpty()) {
+                // gone away and done
+                socket.close();
+            }
+        }
+
+        private void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                notifyAll();
+            }
+            openConnections.decrementAndGet();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void parseQuery(Stream stream, String path) throws IOException {
+        int queryStart = path.indexOf('?');
+        if (queryStart >= 0) {
+            for (String pair : path.substring(queryStart + 1).split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    stream.query.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                            URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                }
+            }
+        }
+    }
+
+    private static int intParam(Stream stream, String name, int defaultValue) {
+        String value = stream.query.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private static double doubleParam(Stream stream, String name, double defaultValue) {
+        String value = stream.query.get(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    private static class Stream {
+        final int id;
+        final Map<String, String> query = new HashMap<String, String>();
+        final Map<String, String> headers = new HashMap<String, String>();
+        String method;
+        // guarded by the connection
+        long window;
+        boolean reset;
+
+        Stream(int id) {
+            this.id = id;
+        }
+    }
+}
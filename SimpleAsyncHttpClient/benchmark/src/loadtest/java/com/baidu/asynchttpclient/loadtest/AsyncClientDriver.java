@@ -0,0 +1,121 @@
+package com.baidu.asynchttpclient.loadtest;
+
+import android.os.Handler;
+
+import com.baidu.asynchttpclient.AsyncHttpClient;
+import com.baidu.asynchttpclient.AsyncHttpResponseHandler;
+import com.baidu.asynchttpclient.Http2Transport;
+import com.baidu.asynchttpclient.NioHttpTransport;
+import com.baidu.asynchttpclient.UrlConnectionTransport;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Drives {@link AsyncHttpClient}, the HttpClient based engine.
+ */
+class AsyncClientDriver implements ClientDriver {
+    private final String threads;
+    private final int maxConnections;
+    private final String transport;
+    private final int pipelineDepth;
+
+    private AsyncHttpClient client;
+    private ThreadPoolExecutor threadPool;
+    private NioHttpTransport nioTransport;
+    private Http2Transport http2Transport;
+
+    /**
+     * @param threads the thread pool setting, see {@link LoadTest#newThreadPool(String, String)}.
+     * @param maxConnections the size of the connection pool.
+     * @param transport "apache" for the default transport, "urlconnection" for {@link UrlConnectionTransport},
+     *            "nio" for {@link NioHttpTransport} with maxConnections per host, "h2" for {@link Http2Transport}.
+     * @param pipelineDepth the pipeline depth of the nio transport, 1 for no pipelining.
+     */
+    public AsyncClientDriver(String threads, int maxConnections, String transport, int pipelineDepth) {
+        this.threads = threads;
+        this.maxConnections = maxConnections;
+        this.transport = transport;
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    public void start() {
+        client = new AsyncHttpClient(maxConnections);
+        threadPool = LoadTest.newThreadPool(threads, "AsyncHttpClient");
+        client.setThreadPool(threadPool);
+        if ("urlconnection".equals(transport)) {
+            client.setTransport(new UrlConnectionTransport());
+        } else if ("nio".equals(transport)) {
+            nioTransport = new NioHttpTransport();
+            nioTransport.setMaxConnectionsPerRoute(maxConnections);
+            nioTransport.setPipelineDepth(pipelineDepth);
+            client.setTransport(nioTransport);
+        } else if ("h2".equals(transport)) {
+            http2Transport = new Http2Transport();
+            client.setTransport(http2Transport);
+        } else if (!"apache".equals(transport)) {
+            throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+    }
+
+    public void get(String url, Callback callback) {
+        client.get(url, new CountingHandler(callback));
+    }
+
+    public void stop() {
+        threadPool.shutdownNow();
+        client.getHttpClient().getConnectionManager().shutdown();
+        if (nioTransport != null) {
+            nioTransport.shutdown();
+        }
+        if (http2Transport != null) {
+            http2Transport.shutdown();
+        }
+    }
+
+    public String describe() {
+        return "async/" + transport + " threads=" + threads + " maxConnections=" + maxConnections
+                + ("nio".equals(transport) && pipelineDepth > 1 ? " pipeline=" + pipelineDepth : "");
+    }
+
+    /**
+     * Counts the body bytes on the worker thread, or on the I/O thread of the nio and h2 transports. The message hooks
+     * are overridden because there is no Looper off-device, so nothing is posted anywhere.
+     */
+    private static class CountingHandler extends AsyncHttpResponseHandler {
+        private final Callback callback;
+        private boolean failed;
+        private long bytes;
+
+        public CountingHandler(Callback callback) {
+            super((Handler) null);
+            this.callback = callback;
+        }
+
+        @Override
+        protected void sendStartMessage() {
+        }
+
+        @Override
+        protected void sendReceiveStartMessage(int length, String charset) {
+        }
+
+        @Override
+        protected void sendReceiveUpdateMessage(byte[] slice, int length) {
+            bytes += length;
+        }
+
+        @Override
+        protected void sendReceiveEndMessage() {
+        }
+
+        @Override
+        protected void sendFailureMessage(Throwable e, String responseBody) {
+            failed = true;
+        }
+
+        @Override
+        protected void sendFinishMessage() {
+            callback.onComplete(!failed, bytes);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.baidu.asynchttpclient.loadtest;
+
+/**
+ * Adapts one of the http engines of the library to the load test harness.
+ */
+public interface ClientDriver {
+
+    /**
+     * Receives the outcome of a single request. Called once per request, on any thread.
+     */
+    interface Callback {
+        void onComplete(boolean success, long bytesReceived);
+    }
+
+    /**
+     * Creates the client, thread pool and connection pool for a run.
+     */
+    void start();
+
+    /**
+     * Issues an asynchronous GET request.
+     */
+    void get(String url, Callback callback);
+
+    /**
+     * Releases everything created in {@link #start()}.
+     */
+    void stop();
+
+    /**
+     * Short description of the engine and its settings, used in the report.
+     */
+    String describe();
+}
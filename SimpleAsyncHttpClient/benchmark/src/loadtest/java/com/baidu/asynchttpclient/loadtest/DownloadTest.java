@@ -0,0 +1,161 @@
+package com.baidu.asynchttpclient.loadtest;
+
+import android.os.Handler;
+
+import com.baidu.asynchttpclient.AsyncHttpClient;
+import com.baidu.asynchttpclient.FileDownloadHandler;
+import com.baidu.asynchttpclient.NioHttpTransport;
+import com.baidu.asynchttpclient.UrlConnectionTransport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares single stream and segmented downloads of {@link AsyncHttpClient#download(String, File, FileDownloadHandler,
+ * int)} against a {@link LoopbackHttpServer} that paces every response, the way a CDN caps the throughput of a single
+ * connection. One line per run is printed with the download time and throughput.
+ * <p>
+ * Options, all optional, lists are comma separated:
+ *
+ * <pre>
+ * --transport=apache         transports: apache, urlconnection, nio
+ * --segments=1,2,4,8         maximum segments, 1 for a single stream
+ * --size=33554432            file size in bytes
+ * --rate=4194304             bytes per second the server sends on each connection, 0 for no limit
+ * --maxConnections=8         connection pool size
+ * --runs=3                   downloads per setting
+ * </pre>
+ */
+public class DownloadTest {
+    private static final long DOWNLOAD_TIMEOUT_MINUTES = 10;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        List<String> transports = list(options, "transport", "apache");
+        List<String> segmentSettings = list(options, "segments", "1,2,4,8");
+        long size = Long.parseLong(option(options, "size", "33554432"));
+        int maxConnections = Integer.parseInt(option(options, "maxConnections", "8"));
+        int runs = Integer.parseInt(option(options, "runs", "3"));
+
+        LoopbackServer server = new LoopbackHttpServer(true, 0, 30 * 1000);
+        server.start();
+        String url = server.getBaseUrl() + "/file?size=" + size + "&rate=" + option(options, "rate", "4194304");
+        File file = File.createTempFile("download", ".bin");
+        System.out.println("target " + url);
+        System.out.println(String.format(Locale.US, "%-16s %8s %4s %9s %9s %6s", "transport", "segments", "run",
+                "seconds", "MB/s", "conns"));
+        try {
+            for (String transport : transports) {
+                for (String segments : segmentSettings) {
+                    for (int run = 1; run <= runs; run++) {
+                        server.resetCounters();
+                        long start = System.nanoTime();
+                        download(transport, maxConnections, url, file, Integer.parseInt(segments));
+                        double seconds = (System.nanoTime() - start) / 1e9;
+                        if (file.length() != size) {
+                            throw new IllegalStateException("Downloaded " + file.length() + " of " + size + " bytes");
+                        }
+                        System.out.println(String.format(Locale.US, "%-16s %8s %4d %9.2f %9.1f %6d", transport,
+                                segments, run, seconds, size / seconds / (1024 * 1024),
+                                server.getAcceptedConnections()));
+                    }
+                }
+            }
+        } finally {
+            server.stop();
+            file.delete();
+        }
+    }
+
+    private static void download(String transport, int maxConnections, String url, File file, int segments)
+            throws IOException, InterruptedException {
+        AsyncHttpClient client = new AsyncHttpClient(maxConnections);
+        ThreadPoolExecutor threadPool = LoadTest.newThreadPool("cached", "AsyncHttpClient");
+        client.setThreadPool(threadPool);
+        NioHttpTransport nioTransport = null;
+        if ("urlconnection".equals(transport)) {
+            client.setTransport(new UrlConnectionTransport());
+        } else if ("nio".equals(transport)) {
+            nioTransport = new NioHttpTransport();
+            nioTransport.setMaxConnectionsPerRoute(maxConnections);
+            client.setTransport(nioTransport);
+        } else if (!"apache".equals(transport)) {
+            throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+        try {
+            file.delete();
+            DoneHandler handler = new DoneHandler();
+            client.download(url, file, handler, segments);
+            if (!handler.done.await(DOWNLOAD_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("The download did not complete");
+            }
+            if (handler.error != null) {
+                throw new IOException("The download failed", handler.error);
+            }
+        } finally {
+            threadPool.shutdownNow();
+            client.getHttpClient().getConnectionManager().shutdown();
+            if (nioTransport != null) {
+                nioTransport.shutdown();
+            }
+        }
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private static List<String> list(Map<String, String> options, String name, String defaultValue) {
+        return Arrays.asList(option(options, name, defaultValue).split(","));
+    }
+
+    /**
+     * Waits for the outcome of a download. The message hooks are overridden because there is no Looper off-device.
+     */
+    private static class DoneHandler extends FileDownloadHandler {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Throwable error;
+
+        DoneHandler() {
+            super((Handler) null);
+        }
+
+        @Override
+        protected void sendStartMessage() {
+        }
+
+        @Override
+        protected void sendProgressMessage(long bytesWritten, long totalBytes) {
+        }
+
+        @Override
+        protected void sendDownloadSuccessMessage(File file) {
+        }
+
+        @Override
+        protected void sendFailureMessage(Throwable e, String responseBody) {
+            error = e;
+        }
+
+        @Override
+        protected void sendFinishMessage() {
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package com.baidu.asynchttpclient.loadtest;
+
+import com.baidu.asynchttpclient.LoopbackHttp2Server;
+import com.baidu.simpleasynchttpclient.SimpleClientDriver;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Closed loop load generator that drives the http engines against a {@link LoopbackHttpServer}, or a
+ * {@link LoopbackHttp2Server} for the h2 transport.
+ * <p>
+ * Every combination of engine, concurrency, thread pool and connection pool setting is run in turn, and one line per
+ * run is printed with requests/sec, latency percentiles, thread count, connection count and heap churn. Everything
+ * runs on the loopback interface, so no network is needed.
+ * <p>
+ * Options, all optional, lists are comma separated:
+ * 
+ * <pre>
+ * --engine=async,simple      engines to drive
+ * --transport=apache         transports of the async engine: apache, urlconnection, nio, h2
+ * --concurrency=1,8,32,128   in-flight requests
+ * --threads=cached,16        worker pool: "cached" or a fixed size
+ * --maxConnections=15,64     connection pool size (async engine only)
+ * --pipelineDepth=1          requests per connection of the nio transport, 1 for no pipelining
+ * --requests=2000            measured requests per run
+ * --warmup=200               requests per run before measuring
+ * --size=1024                response body size
+ * --latency=0                server think time in ms
+ * --chunked=false            chunked transfer encoding
+ * --gzip=false               gzip content encoding
+ * --error=0                  probability of a 500 response
+ * --reset=0                  probability of dropping the connection (h2: resetting the stream)
+ * --keepAlive=true           server keeps connections open
+ * --maxRequestsPerConnection=0   server closes kept alive connections after that many requests (h2: streams)
+ * </pre>
+ */
+public class LoadTest {
+    // a run fails when no request completes for this long
+    private static final long STALL_TIMEOUT_SECONDS = 60;
+    // the first exception a worker thread died with
+    private static final AtomicReference<Throwable> workerFailure = new AtomicReference<Throwable>();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            public void uncaughtException(Thread t, Throwable e) {
+                workerFailure.compareAndSet(null, e);
+            }
+        });
+
+        List<String> engines = list(options, "engine", "async,simple");
+        List<String> concurrencies = list(options, "concurrency", "1,8,32,128");
+        List<String> threadSettings = list(options, "threads", "cached");
+        List<String> poolSizes = list(options, "maxConnections", "15");
+        List<String> transports = list(options, "transport", "apache");
+        int requests = Integer.parseInt(option(options, "requests", "2000"));
+        int warmup = Integer.parseInt(option(options, "warmup", "200"));
+        int pipelineDepth = Integer.parseInt(option(options, "pipelineDepth", "1"));
+
+        boolean keepAlive = Boolean.parseBoolean(option(options, "keepAlive", "true"));
+        int maxRequestsPerConnection = Integer.parseInt(option(options, "maxRequestsPerConnection", "0"));
+        LoopbackServer server = new LoopbackHttpServer(keepAlive, maxRequestsPerConnection, 30 * 1000);
+        server.start();
+        LoopbackServer http2Server = null;
+        if (engines.contains("async") && transports.contains("h2")) {
+            http2Server = new LoopbackHttp2Server(keepAlive, maxRequestsPerConnection, 30 * 1000);
+            http2Server.start();
+        }
+        String query = "/load?size=" + option(options, "size", "1024")
+                + "&latency=" + option(options, "latency", "0")
+                + "&chunked=" + (Boolean.parseBoolean(option(options, "chunked", "false")) ? "1" : "0")
+                + "&gzip=" + (Boolean.parseBoolean(option(options, "gzip", "false")) ? "1" : "0")
+                + "&error=" + option(options, "error", "0")
+                + "&reset=" + option(options, "reset", "0");
+
+        System.out.println("target " + server.getBaseUrl() + query);
+        System.out.println(String.format(Locale.US, "%-54s %6s %9s %8s %8s %8s %8s %7s %8s %8s %8s %10s %5s",
+                "engine", "conc", "req/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "errors", "threads",
+                "conns", "maxOpen", "alloc MB", "gc"));
+        try {
+            for (String engine : engines) {
+                boolean async = "async".equals(engine);
+                for (String transport : async ? transports : Arrays.asList("-")) {
+                    LoopbackServer target = "h2".equals(transport) ? http2Server : server;
+                    for (String threads : threadSettings) {
+                        for (String pool : async ? poolSizes : Arrays.asList("-")) {
+                            for (String concurrency : concurrencies) {
+                                ClientDriver driver = newDriver(engine, transport, threads, pool, pipelineDepth);
+                                Result result = run(driver, target, target.getBaseUrl() + query,
+                                        Integer.parseInt(concurrency), requests, warmup);
+                                System.out.println(result.format(driver.describe(), Integer.parseInt(concurrency)));
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            server.stop();
+            if (http2Server != null) {
+                http2Server.stop();
+            }
+        }
+    }
+
+    /**
+     * Creates the worker pool for an engine: "cached" mirrors the default of AsyncHttpClient, a number creates a
+     * fixed size pool with an unbounded queue.
+     */
+    public static ThreadPoolExecutor newThreadPool(String setting, final String name) {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + " #" + mCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        if ("cached".equals(setting)) {
+            return (ThreadPoolExecutor) Executors.newCachedThreadPool(threadFactory);
+        }
+        int size = Integer.parseInt(setting);
+        return new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                threadFactory);
+    }
+
+    private static ClientDriver newDriver(String engine, String transport, String threads, String pool,
+            int pipelineDepth) {
+        if ("async".equals(engine)) {
+            return new AsyncClientDriver(threads, Integer.parseInt(pool), transport, pipelineDepth);
+        } else if ("simple".equals(engine)) {
+            return new SimpleClientDriver(threads);
+        }
+        throw new IllegalArgumentException("Unknown engine " + engine);
+    }
+
+    private static Result run(ClientDriver driver, LoopbackServer server, String url, int concurrency,
+            int requests, int warmup) throws InterruptedException {
+        driver.start();
+        try {
+            issue(driver, url, concurrency, warmup, null);
+
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            AllocationSampler allocations = new AllocationSampler();
+            server.resetCounters();
+            threads.resetPeakThreadCount();
+            long gcBefore = gcCount();
+            allocations.start();
+
+            Result result = new Result(requests);
+            long start = System.nanoTime();
+            issue(driver, url, concurrency, requests, result);
+            result.elapsedNanos = System.nanoTime() - start;
+
+            result.allocatedBytes = allocations.stop();
+            result.gcCount = gcCount() - gcBefore;
+            result.peakThreads = threads.getPeakThreadCount();
+            result.connections = server.getAcceptedConnections();
+            result.maxOpenConnections = server.getMaxOpenConnections();
+            return result;
+        } finally {
+            driver.stop();
+        }
+    }
+
+    /**
+     * Issues <code>count</code> requests keeping at most <code>concurrency</code> of them in flight, and waits for all
+     * of them. Fails as soon as a worker thread dies, or when requests stop completing.
+     */
+    private static void issue(ClientDriver driver, String url, int concurrency, int count, final Result result)
+            throws InterruptedException {
+        final Semaphore inFlight = new Semaphore(concurrency);
+        final CountDownLatch done = new CountDownLatch(count);
+        Watchdog watchdog = new Watchdog(done);
+        for (int i = 0; i < count; i++) {
+            while (!inFlight.tryAcquire(1, TimeUnit.SECONDS)) {
+                watchdog.check();
+            }
+            final long started = System.nanoTime();
+            driver.get(url, new ClientDriver.Callback() {
+                public void onComplete(boolean success, long bytesReceived) {
+                    if (result != null) {
+                        result.record(System.nanoTime() - started, success);
+                    }
+                    inFlight.release();
+                    done.countDown();
+                }
+            });
+        }
+        while (!done.await(1, TimeUnit.SECONDS)) {
+            watchdog.check();
+        }
+    }
+
+    /**
+     * Tells when waiting for the requests of a run is pointless.
+     */
+    private static class Watchdog {
+        private final CountDownLatch done;
+        private long remaining;
+        private long changedAt = System.nanoTime();
+
+        Watchdog(CountDownLatch done) {
+            this.done = done;
+            remaining = done.getCount();
+        }
+
+        void check() {
+            Throwable failure = workerFailure.get();
+            if (failure != null) {
+                throw new IllegalStateException("A worker thread died, " + done.getCount()
+                        + " requests will not complete", failure);
+            }
+            long now = System.nanoTime();
+            if (done.getCount() != remaining) {
+                remaining = done.getCount();
+                changedAt = now;
+            } else if (now - changedAt > TimeUnit.SECONDS.toNanos(STALL_TIMEOUT_SECONDS)) {
+                throw new IllegalStateException(remaining + " requests did not complete, none did in the last "
+                        + STALL_TIMEOUT_SECONDS + "s");
+            }
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private static List<String> list(Map<String, String> options, String name, String defaultValue) {
+        return Arrays.asList(option(options, name, defaultValue).split(","));
+    }
+
+    /**
+     * The measurements of a single run.
+     */
+    private static class Result {
+        private final long[] latencies;
+        private final AtomicInteger recorded = new AtomicInteger();
+        private final AtomicInteger errors = new AtomicInteger();
+        long elapsedNanos;
+        long allocatedBytes;
+        long gcCount;
+        int peakThreads;
+        int connections;
+        int maxOpenConnections;
+
+        Result(int requests) {
+            latencies = new long[requests];
+        }
+
+        void record(long latencyNanos, boolean success) {
+            latencies[recorded.getAndIncrement()] = latencyNanos;
+            if (!success) {
+                errors.incrementAndGet();
+            }
+        }
+
+        String format(String engine, int concurrency) {
+            long[] sorted = Arrays.copyOf(latencies, recorded.get());
+            Arrays.sort(sorted);
+            double seconds = elapsedNanos / 1e9;
+            return String.format(Locale.US, "%-54s %6d %9.1f %8.2f %8.2f %8.2f %8.2f %7d %8d %8d %8d %10.1f %5d",
+                    engine, concurrency, sorted.length / seconds, millis(sorted, 0.50), millis(sorted, 0.90),
+                    millis(sorted, 0.99), millis(sorted, 1.0), errors.get(), peakThreads, connections,
+                    maxOpenConnections, allocatedBytes / (1024.0 * 1024.0), gcCount);
+        }
+
+        private static double millis(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+        }
+    }
+
+    /**
+     * Approximates the heap churn of a run by sampling the allocation counters of all live threads. Threads that
+     * start and die between two samples are missed, so the figure is a lower bound.
+     */
+    private static class AllocationSampler implements Runnable {
+        private static final long SAMPLE_INTERVAL_MILLIS = 20;
+
+        private final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private final Map<Long, Long> baseline = new HashMap<Long, Long>();
+        private final Map<Long, Long> latest = new HashMap<Long, Long>();
+        private volatile boolean running;
+        private Thread sampler;
+
+        void start() {
+            threads.setThreadAllocatedMemoryEnabled(true);
+            sample(baseline);
+            running = true;
+            sampler = new Thread(this, "AllocationSampler");
+            sampler.setDaemon(true);
+            sampler.start();
+        }
+
+        long stop() throws InterruptedException {
+            running = false;
+            sampler.join();
+            sample(latest);
+            long sum = 0;
+            for (Map.Entry<Long, Long> entry : latest.entrySet()) {
+                Long before = baseline.get(entry.getKey());
+                sum += entry.getValue() - (before != null ? before : 0);
+            }
+            return sum;
+        }
+
+        public void run() {
+            while (running) {
+                sample(latest);
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private synchronized void sample(Map<Long, Long> into) {
+            long[] ids = threads.getAllThreadIds();
+            long[] allocated = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (allocated[i] >= 0) {
+                    into.put(ids[i], allocated[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package com.baidu.asynchttpclient.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A small HTTP/1.1 server bound to the loopback interface, used as the target of the load test harness.
+ * <p>
+ * Each response is shaped by query parameters of the request, so a single server instance can serve every scenario:
+ * <ul>
+ * <li><code>size</code> - body size in bytes (default 1024)</li>
+ * <li><code>latency</code> - milliseconds to wait before answering (default 0)</li>
+ * <li><code>chunked=1</code> - use chunked transfer encoding instead of Content-Length</li>
+ * <li><code>gzip=1</code> - gzip the body when the client accepts it</li>
+ * <li><code>error</code> - probability (0..1) of answering with a 500</li>
+ * <li><code>reset</code> - probability (0..1) of closing the connection without answering</li>
+ * <li><code>close=1</code> - answer with Connection: close</li>
+ * <li><code>rate</code> - bytes per second at which each body is sent, like a server capping every connection
+ * (default 0, no limit)</li>
+ * </ul>
+ * A <code>Range: bytes=first-last</code> header is served with a 206, unless the body is gzipped or chunked, or an
+ * <code>If-Range</code> header does not match the ETag of the body, which only depends on its size.
+ * Whether connections are kept alive at all, and for how many requests, is a property of the server.
+ */
+public class LoopbackHttpServer implements LoopbackServer {
+    private static final int DEFAULT_BODY_SIZE = 1024;
+    private static final int CHUNK_SIZE = 8192;
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private final boolean keepAlive;
+    private final int maxRequestsPerConnection;
+    private final int idleTimeoutMillis;
+
+    private final AtomicInteger acceptedConnections = new AtomicInteger();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger maxOpenConnections = new AtomicInteger();
+    private final AtomicInteger servedRequests = new AtomicInteger();
+
+    private ServerSocket serverSocket;
+    private ExecutorService workers;
+    private byte[] body = new byte[0];
+
+    /**
+     * @param keepAlive whether connections are kept open between requests.
+     * @param maxRequestsPerConnection number of requests after which a kept alive connection is closed, 0 for no
+     *            limit.
+     * @param idleTimeoutMillis how long an idle kept alive connection stays open.
+     */
+    public LoopbackHttpServer(boolean keepAlive, int maxRequestsPerConnection, int idleTimeoutMillis) {
+        this.keepAlive = keepAlive;
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public void start() throws IOException {
+        serverSocket = createServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 1024);
+        workers = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LoopbackHttpServer #" + mCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        }, "LoopbackHttpServer acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        workers.shutdownNow();
+    }
+
+    /**
+     * Creates the unbound socket the server accepts connections on.
+     */
+    protected ServerSocket createServerSocket() throws IOException {
+        return new ServerSocket();
+    }
+
+    /**
+     * Called on the worker thread of a connection before its first request is read.
+     */
+    protected void connected(Socket socket) throws IOException {
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the base url of the server, for example <code>http://127.0.0.1:4711</code>.
+     */
+    public String getBaseUrl() {
+        return getScheme() + "://127.0.0.1:" + getPort();
+    }
+
+    protected String getScheme() {
+        return "http";
+    }
+
+    public int getAcceptedConnections() {
+        return acceptedConnections.get();
+    }
+
+    public int getMaxOpenConnections() {
+        return maxOpenConnections.get();
+    }
+
+    public int getServedRequests() {
+        return servedRequests.get();
+    }
+
+    /**
+     * Resets the connection and request counters, typically between two runs of a sweep.
+     */
+    public void resetCounters() {
+        acceptedConnections.set(0);
+        maxOpenConnections.set(openConnections.get());
+        servedRequests.set(0);
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                acceptedConnections.incrementAndGet();
+                int open = openConnections.incrementAndGet();
+                int max;
+                while (open > (max = maxOpenConnections.get()) && !maxOpenConnections.compareAndSet(max, open)) {
+                    // retry
+                }
+                workers.execute(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Random random = new Random();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(idleTimeoutMillis);
+            connected(socket);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE);
+            int served = 0;
+            boolean open = true;
+            while (open) {
+                Request request = readRequest(in);
+                if (request == null) {
+                    break;
+                }
+                served++;
+                servedRequests.incrementAndGet();
+                open = keepAlive && !"close".equalsIgnoreCase(request.headers.get("connection"))
+                        && (maxRequestsPerConnection <= 0 || served < maxRequestsPerConnection)
+                        && !"1".equals(request.query.get("close"));
+                if (random.nextDouble() < doubleParam(request, "reset", 0)) {
+                    break;
+                }
+                int latency = intParam(request, "latency", 0);
+                if (latency > 0) {
+                    Thread.sleep(latency);
+                }
+                writeResponse(request, out, open, random);
+            }
+        } catch (SocketException e) {
+            // client went away
+        } catch (IOException e) {
+            // idle timeout or client went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            openConnections.decrementAndGet();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void writeResponse(Request request, OutputStream out, boolean keepOpen, Random random)
+            throws IOException, InterruptedException {
+        boolean error = random.nextDouble() < doubleParam(request, "error", 0);
+        int status = error ? 500 : 200;
+        byte[] content;
+        int length;
+        if (error) {
+            content = "injected error".getBytes("US-ASCII");
+            length = content.length;
+        } else {
+            length = intParam(request, "size", DEFAULT_BODY_SIZE);
+            content = body(length);
+        }
+
+        boolean gzip = !error && "1".equals(request.query.get("gzip"))
+                && request.headers.containsKey("accept-encoding")
+                && request.headers.get("accept-encoding").contains("gzip");
+        if (gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+            gzipOut.write(content, 0, length);
+            gzipOut.close();
+            content = compressed.toByteArray();
+            length = content.length;
+        }
+        boolean chunked = !error && "1".equals(request.query.get("chunked"));
+
+        String etag = "\"" + length + "\"";
+        String range = request.headers.get("range");
+        String ifRange = request.headers.get("if-range");
+        int rangeStart = 0;
+        String contentRange = null;
+        if (!error && !gzip && !chunked && range != null && range.startsWith("bytes=")
+                && (ifRange == null || ifRange.equals(etag))) {
+            int dash = range.indexOf('-');
+            long first = Long.parseLong(range.substring("bytes=".length(), dash).trim());
+            String lastValue = range.substring(dash + 1).trim();
+            long last = lastValue.length() > 0 ? Math.min(Long.parseLong(lastValue), length - 1) : length - 1;
+            if (first >= length) {
+                status = 416;
+                contentRange = "bytes */" + length;
+                length = 0;
+            } else {
+                status = 206;
+                contentRange = "bytes " + first + "-" + last + "/" + length;
+                rangeStart = (int) first;
+                length = (int) (last - first + 1);
+            }
+        }
+
+        StringBuilder head = new StringBuilder(256);
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+        head.append("Content-Type: application/octet-stream\r\n");
+        if (gzip) {
+            head.append("Content-Encoding: gzip\r\n");
+        } else if (!error && !chunked) {
+            head.append("Accept-Ranges: bytes\r\n");
+            head.append("ETag: ").append(etag).append("\r\n");
+        }
+        if (contentRange != null) {
+            head.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        if (chunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else {
+            head.append("Content-Length: ").append(length).append("\r\n");
+        }
+        head.append("Connection: ").append(keepOpen ? "keep-alive" : "close").append("\r\n\r\n");
+        out.write(head.toString().getBytes("US-ASCII"));
+
+        if ("HEAD".equals(request.method)) {
+            out.flush();
+            return;
+        }
+        if (chunked) {
+            for (int offset = 0; offset < length; offset += CHUNK_SIZE) {
+                int count = Math.min(CHUNK_SIZE, length - offset);
+                out.write(Integer.toHexString(count).getBytes("US-ASCII"));
+                out.write(CRLF);
+                out.write(content, offset, count);
+                out.write(CRLF);
+            }
+            out.write('0');
+            out.write(CRLF);
+            out.write(CRLF);
+        } else {
+            int rate = intParam(request, "rate", 0);
+            if (rate > 0) {
+                writePaced(out, content, rangeStart, length, rate);
+            } else {
+                out.write(content, rangeStart, length);
+            }
+        }
+        out.flush();
+    }
+
+    private static void writePaced(OutputStream out, byte[] content, int offset, int length, int rate)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        for (int sent = 0; sent < length; ) {
+            int count = Math.min(CHUNK_SIZE, length - sent);
+            out.write(content, offset + sent, count);
+            out.flush();
+            sent += count;
+            long due = start + sent * 1000000000L / rate;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+        }
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 206:
+                return "Partial Content";
+            case 416:
+                return "Requested Range Not Satisfiable";
+            case 500:
+                return "Internal Server Error";
+            default:
+                return "OK";
+        }
+    }
+
+    private synchronized byte[] body(int length) {
+        if (body.length < length) {
+            byte[] grown = new byte[length];
+            for (int i = 0; i < length; i++) {
+                grown[i] = (byte) ('a' + (i % 26));
+            }
+            body = grown;
+        }
+        return body;
+    }
+
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.length() == 0) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("Malformed request line: " + requestLine);
+        }
+        Request request = new Request();
+        request.method = parts[0];
+        String target = parts[1];
+        int queryStart = target.indexOf('?');
+        if (queryStart >= 0) {
+            for (String pair : target.substring(queryStart + 1).split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    request.query.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                            URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                }
+            }
+        }
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        discardBody(in, request);
+        return request;
+    }
+
+    private static void discardBody(InputStream in, Request request) throws IOException {
+        String contentLength = request.headers.get("content-length");
+        if (contentLength != null) {
+            skipFully(in, Long.parseLong(contentLength));
+        } else if ("chunked".equalsIgnoreCase(request.headers.get("transfer-encoding"))) {
+            String sizeLine;
+            while ((sizeLine = readLine(in)) != null) {
+                int semicolon = sizeLine.indexOf(';');
+                long size = Long.parseLong((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+                if (size == 0) {
+                    // trailers
+                    while ((sizeLine = readLine(in)) != null && sizeLine.length() > 0) {
+                        // skip
+                    }
+                    break;
+                }
+                skipFully(in, size);
+                readLine(in);
+            }
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new IOException("Unexpected end of request body");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private static int intParam(Request request, String name, int defaultValue) {
+        String value = request.query.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private static double doubleParam(Request request, String name, double defaultValue) {
+        String value = request.query.get(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    private static class Request {
+        String method;
+        final Map<String, String> query = new HashMap<String, String>();
+        final Map<String, String> headers = new HashMap<String, String>();
+    }
+}
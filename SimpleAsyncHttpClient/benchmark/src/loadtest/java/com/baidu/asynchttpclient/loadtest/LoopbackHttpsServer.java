@@ -0,0 +1,128 @@
+package com.baidu.asynchttpclient.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A {@link LoopbackHttpServer} behind TLS, with the self-signed certificate of <code>loopback.jks</code>, issued to
+ * 127.0.0.1. Clients trust it through {@link #getTrustStore()}.
+ * <p>
+ * The server offers http/1.1 through ALPN where the platform supports it, and counts the connections on which a
+ * client negotiated it, so a test can tell that the client side of ALPN worked.
+ */
+public class LoopbackHttpsServer extends LoopbackHttpServer {
+    private static final String KEY_STORE = "loopback.jks";
+    private static final char[] KEY_STORE_PASSWORD = "loopback".toCharArray();
+    private static final String ALIAS = "loopback";
+    private static final String PROTOCOL_HTTP_1_1 = "http/1.1";
+
+    private final KeyStore keyStore;
+    private final AtomicInteger alpnConnections = new AtomicInteger();
+
+    /**
+     * @see LoopbackHttpServer#LoopbackHttpServer(boolean, int, int)
+     */
+    public LoopbackHttpsServer(boolean keepAlive, int maxRequestsPerConnection, int idleTimeoutMillis)
+            throws IOException, GeneralSecurityException {
+        super(keepAlive, maxRequestsPerConnection, idleTimeoutMillis);
+        keyStore = KeyStore.getInstance("JKS");
+        InputStream in = LoopbackHttpsServer.class.getResourceAsStream(KEY_STORE);
+        if (in == null) {
+            throw new IOException(KEY_STORE + " not found on the class path");
+        }
+        try {
+            keyStore.load(in, KEY_STORE_PASSWORD);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns a key store holding the certificate of the server, and nothing else.
+     */
+    public KeyStore getTrustStore() throws IOException, GeneralSecurityException {
+        Certificate certificate = keyStore.getCertificate(ALIAS);
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry(ALIAS, certificate);
+        return trustStore;
+    }
+
+    /**
+     * Returns the number of connections on which the client negotiated http/1.1 through ALPN.
+     */
+    public int getAlpnConnections() {
+        return alpnConnections.get();
+    }
+
+    @Override
+    public void resetCounters() {
+        super.resetCounters();
+        alpnConnections.set(0);
+    }
+
+    @Override
+    protected ServerSocket createServerSocket() throws IOException {
+        try {
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory
+                    .getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, KEY_STORE_PASSWORD);
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+            SSLServerSocket serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket();
+            offerAlpn(serverSocket);
+            return serverSocket;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot set up TLS: " + e);
+        }
+    }
+
+    @Override
+    protected void connected(Socket socket) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) socket;
+        sslSocket.startHandshake();
+        if (PROTOCOL_HTTP_1_1.equals(selectedProtocol(sslSocket))) {
+            alpnConnections.incrementAndGet();
+        }
+    }
+
+    @Override
+    protected String getScheme() {
+        return "https";
+    }
+
+    /**
+     * Offers http/1.1 through the ALPN API of Java 9, when it is there.
+     */
+    private static void offerAlpn(SSLServerSocket serverSocket) {
+        try {
+            Method method = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            SSLParameters parameters = serverSocket.getSSLParameters();
+            method.invoke(parameters, (Object) new String[] {PROTOCOL_HTTP_1_1});
+            serverSocket.setSSLParameters(parameters);
+        } catch (Exception e) {
+            // not Java 9, no ALPN
+        }
+    }
+
+    private static String selectedProtocol(SSLSocket socket) {
+        try {
+            return (String) SSLSocket.class.getMethod("getApplicationProtocol").invoke(socket);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.baidu.asynchttpclient.loadtest;
+
+import java.io.IOException;
+
+/**
+ * A server on the loopback interface that the load test harness drives. Responses are shaped by the query parameters
+ * described in {@link LoopbackHttpServer}.
+ */
+public interface LoopbackServer {
+    void start() throws IOException;
+
+    void stop();
+
+    /**
+     * Returns the base url of the server, for example <code>http://127.0.0.1:4711</code>.
+     */
+    String getBaseUrl();
+
+    int getAcceptedConnections();
+
+    int getMaxOpenConnections();
+
+    int getServedRequests();
+
+    /**
+     * Resets the connection and request counters, typically between two runs of a sweep.
+     */
+    void resetCounters();
+}
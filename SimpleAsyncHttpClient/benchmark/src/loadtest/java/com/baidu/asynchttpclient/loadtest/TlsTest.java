@@ -0,0 +1,112 @@
+package com.baidu.asynchttpclient.loadtest;
+
+import com.baidu.asynchttpclient.TlsContext;
+import com.baidu.simpleasynchttpclient.SimpleClientDriver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks that every engine resumes TLS sessions, against a {@link LoopbackHttpsServer} that closes the connection
+ * after each response. For each engine, a fresh server is started and two requests are made one after the other, so
+ * the second one has to open a new connection, whose handshake {@link TlsContext#getDefault()} must count as resumed.
+ * The h2 transport offers h2 and http/1.1 through ALPN; the server only speaks http/1.1, so the request falls back to
+ * HttpURLConnection after the server has seen the protocol negotiated.
+ * <p>
+ * The certificate of the server is installed as the trust store of the JVM, since the engines use the default
+ * context. One line per engine is printed, and the process exits with 1 if a check failed.
+ */
+public class TlsTest {
+    private static final long REQUEST_TIMEOUT_SECONDS = 30;
+    private static final long LISTENER_TIMEOUT_MILLIS = 5 * 1000;
+    private static final String TRUST_STORE_PASSWORD = "loopback";
+
+    public static void main(String[] args) throws Exception {
+        KeyStore trustStore = new LoopbackHttpsServer(false, 0, 0).getTrustStore();
+        File trustStoreFile = File.createTempFile("loopback", ".keystore");
+        trustStoreFile.deleteOnExit();
+        OutputStream out = new FileOutputStream(trustStoreFile);
+        try {
+            trustStore.store(out, TRUST_STORE_PASSWORD.toCharArray());
+        } finally {
+            out.close();
+        }
+        // read when the default context is created, by the first request
+        System.setProperty("javax.net.ssl.trustStore", trustStoreFile.getPath());
+        System.setProperty("javax.net.ssl.trustStorePassword", TRUST_STORE_PASSWORD);
+        System.setProperty("javax.net.ssl.trustStoreType", trustStore.getType());
+
+        List<String> failures = new ArrayList<String>();
+        check(new AsyncClientDriver("cached", 4, "apache", 1), false, failures);
+        check(new AsyncClientDriver("cached", 4, "urlconnection", 1), false, failures);
+        check(new AsyncClientDriver("cached", 4, "h2", 1), true, failures);
+        check(new SimpleClientDriver("cached"), false, failures);
+        System.out.println(TlsContext.getDefault());
+        for (String failure : failures) {
+            System.out.println("FAILED " + failure);
+        }
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    private static void check(ClientDriver driver, boolean alpn, List<String> failures) throws Exception {
+        LoopbackHttpsServer server = new LoopbackHttpsServer(false, 0, 30 * 1000);
+        server.start();
+        driver.start();
+        TlsContext tls = TlsContext.getDefault();
+        long handshakes = tls.getHandshakeCount();
+        long resumed = tls.getResumedCount();
+        try {
+            for (int i = 0; i < 2; i++) {
+                if (!get(driver, server.getBaseUrl() + "/?size=256")) {
+                    failures.add(driver.describe() + ": request " + (i + 1) + " failed");
+                    return;
+                }
+            }
+        } finally {
+            driver.stop();
+            server.stop();
+        }
+        // HttpsURLConnection handshakes are counted by a listener, which the JVM may notify on a thread of its own
+        long deadline = System.currentTimeMillis() + LISTENER_TIMEOUT_MILLIS;
+        while (tls.getHandshakeCount() - handshakes < server.getAcceptedConnections()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        handshakes = tls.getHandshakeCount() - handshakes;
+        resumed = tls.getResumedCount() - resumed;
+        System.out.println(driver.describe() + ": " + server.getAcceptedConnections() + " connections, " + handshakes
+                + " handshakes, " + resumed + " resumed, " + server.getAlpnConnections() + " with ALPN");
+        if (server.getAcceptedConnections() < 2) {
+            failures.add(driver.describe() + ": the second request did not open a new connection");
+        }
+        if (handshakes < server.getAcceptedConnections()) {
+            failures.add(driver.describe() + ": " + handshakes + " handshakes counted for "
+                    + server.getAcceptedConnections() + " connections");
+        }
+        if (resumed < 1) {
+            failures.add(driver.describe() + ": no handshake was counted as resumed");
+        }
+        if (alpn && server.getAlpnConnections() < 1) {
+            failures.add(driver.describe() + ": no connection negotiated a protocol through ALPN");
+        }
+    }
+
+    private static boolean get(ClientDriver driver, String url) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean succeeded = new AtomicBoolean();
+        driver.get(url, new ClientDriver.Callback() {
+            public void onComplete(boolean success, long bytesReceived) {
+                succeeded.set(success);
+                done.countDown();
+            }
+        });
+        return done.await(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS) && succeeded.get();
+    }
+}
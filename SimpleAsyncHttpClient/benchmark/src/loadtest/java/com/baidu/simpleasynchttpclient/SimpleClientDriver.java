@@ -0,0 +1,86 @@
+package com.baidu.simpleasynchttpclient;
+
+import android.os.Handler;
+
+import com.baidu.asynchttpclient.loadtest.ClientDriver;
+
+/**
+ * Drives {@link SimpleAsyncHttpClient}: requests are made with {@link SimpleAsyncHttpClient#getRequest} and run on a
+ * {@link RequestExecutor}, as in an application. The callbacks run on the threads of the executor, without a Looper.
+ */
+public class SimpleClientDriver implements ClientDriver {
+    private final String threads;
+    private RequestExecutor executor;
+
+    /**
+     * @param threads "cached" for the default limits of {@link RequestExecutor}, as the async engine mirrors the
+     *            default of AsyncHttpClient, or the number of requests running at once. The load test talks to a
+     *            single host, so a number applies per host as well.
+     */
+    public SimpleClientDriver(String threads) {
+        this.threads = threads;
+    }
+
+    public void start() {
+        if ("cached".equals(threads)) {
+            executor = new RequestExecutor();
+        } else {
+            int limit = Integer.parseInt(threads);
+            executor = new RequestExecutor(limit, limit);
+        }
+        SimpleAsyncHttpClient.setExecutor(executor);
+    }
+
+    public void get(String url, Callback callback) {
+        SimpleAsyncHttpClient.getRequest(null, url, new CountingHandler(callback));
+    }
+
+    public void stop() {
+        SimpleAsyncHttpClient.setExecutor(null);
+        executor.shutdown();
+    }
+
+    public String describe() {
+        return "simple threads=" + threads;
+    }
+
+    private static class CountingHandler extends AsyncHttpResponseHandler {
+        private final Callback callback;
+        private boolean failed;
+        private long bytes;
+
+        public CountingHandler(Callback callback) {
+            super((Handler) null);
+            this.callback = callback;
+        }
+
+        // the defaults log, which is not available off-device
+
+        @Override
+        public void onStart() {
+        }
+
+        @Override
+        public void onFailure(Throwable error, String content) {
+            failed = true;
+        }
+
+        @Override
+        public void onFinish() {
+            callback.onComplete(!failed, bytes);
+        }
+
+        @Override
+        protected void sendReceiveStartMessage(int length, String charset) {
+        }
+
+        @Override
+        protected void sendReceiveUpdateMessage(byte[] slice, int length) {
+            bytes += length;
+        }
+
+        @Override
+        protected void sendReceiveEndMessage() {
+        }
+    }
+}